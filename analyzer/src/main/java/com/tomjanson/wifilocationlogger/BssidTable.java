@@ -0,0 +1,217 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * Per-BSSID statistics of the analyzed logs: number of samples, level (mean, variance, min, max),
+ * channel and SSID (as last seen), and when it was first and last seen.
+ *
+ * An open-addressing (linear probing) hash table keyed by the BSSID as a long, with the
+ * statistics in parallel primitive arrays, so adding a sample doesn't allocate; only the
+ * SSID's bytes are copied, once per BSSID (and again when it changes, which is rare).
+ */
+final class BssidTable {
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int MAX_LOAD_PERCENT = 60;
+
+    // a slot is empty iff its count is 0
+    private long[]    keys;
+    private int[]     counts;
+    private long[]    sums;
+    private long[]    sumsOfSquares;
+    private int[]     mins;
+    private int[]     maxs;
+    private int[]     channels;
+    private long[]    firstSeen;
+    private long[]    lastSeen;
+    private byte[][]  ssids;   // raw, see CsvLogParser.decode()
+    private boolean[] ssidsQuoted;
+
+    private int size;
+    private int threshold;
+
+    BssidTable() {
+        allocate(INITIAL_SLOTS);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a (non-special) row.
+     */
+    void add(CsvLogParser.Row row) {
+        int slot = slotOf(row.bssid);
+        if (counts[slot] == 0) {
+            slot = insert(row.bssid, slot);
+            mins[slot] = row.level;
+            maxs[slot] = row.level;
+            firstSeen[slot] = row.localTime;
+            lastSeen[slot] = row.localTime;
+            ssids[slot] = row.bytes(row.ssidStart, row.ssidEnd);
+            ssidsQuoted[slot] = row.ssidQuoted;
+            channels[slot] = row.channel;
+        } else {
+            mins[slot] = Math.min(mins[slot], row.level);
+            maxs[slot] = Math.max(maxs[slot], row.level);
+            firstSeen[slot] = Math.min(firstSeen[slot], row.localTime);
+            if (row.localTime >= lastSeen[slot]) {
+                lastSeen[slot] = row.localTime;
+                if (row.ssidQuoted != ssidsQuoted[slot] || !row.equals(row.ssidStart, row.ssidEnd, ssids[slot])) {
+                    ssids[slot] = row.bytes(row.ssidStart, row.ssidEnd);
+                    ssidsQuoted[slot] = row.ssidQuoted;
+                }
+                channels[slot] = row.channel;
+            }
+        }
+        counts[slot]++;
+        sums[slot] += row.level;
+        sumsOfSquares[slot] += row.level * row.level;
+    }
+
+    void addAll(BssidTable other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.counts[i] == 0) {
+                continue;
+            }
+            int slot = slotOf(other.keys[i]);
+            if (counts[slot] == 0) {
+                slot = insert(other.keys[i], slot);
+                mins[slot] = other.mins[i];
+                maxs[slot] = other.maxs[i];
+                firstSeen[slot] = other.firstSeen[i];
+                lastSeen[slot] = other.lastSeen[i];
+                ssids[slot] = other.ssids[i];
+                ssidsQuoted[slot] = other.ssidsQuoted[i];
+                channels[slot] = other.channels[i];
+            } else {
+                mins[slot] = Math.min(mins[slot], other.mins[i]);
+                maxs[slot] = Math.max(maxs[slot], other.maxs[i]);
+                firstSeen[slot] = Math.min(firstSeen[slot], other.firstSeen[i]);
+                if (other.lastSeen[i] >= lastSeen[slot]) {
+                    lastSeen[slot] = other.lastSeen[i];
+                    ssids[slot] = other.ssids[i];
+                    ssidsQuoted[slot] = other.ssidsQuoted[i];
+                    channels[slot] = other.channels[i];
+                }
+            }
+            counts[slot] += other.counts[i];
+            sums[slot] += other.sums[i];
+            sumsOfSquares[slot] += other.sumsOfSquares[i];
+        }
+    }
+
+    /**
+     * Entries are accessed by slot: iterate over [0, slots()) and skip slots with count 0.
+     */
+    int slots() {
+        return keys.length;
+    }
+
+    long bssid(int slot) {
+        return keys[slot];
+    }
+
+    int count(int slot) {
+        return counts[slot];
+    }
+
+    double mean(int slot) {
+        return (double) sums[slot] / counts[slot];
+    }
+
+    double variance(int slot) {
+        double mean = mean(slot);
+        return Math.max(0, (double) sumsOfSquares[slot] / counts[slot] - mean * mean);
+    }
+
+    int min(int slot) {
+        return mins[slot];
+    }
+
+    int max(int slot) {
+        return maxs[slot];
+    }
+
+    int channel(int slot) {
+        return channels[slot];
+    }
+
+    long firstSeen(int slot) {
+        return firstSeen[slot];
+    }
+
+    long lastSeen(int slot) {
+        return lastSeen[slot];
+    }
+
+    String ssid(int slot) {
+        return CsvLogParser.decode(ssids[slot], ssidsQuoted[slot]);
+    }
+
+    private int insert(long bssid, int slot) {
+        if (size >= threshold) {
+            allocate(keys.length * 2);
+            slot = slotOf(bssid);
+        }
+        keys[slot] = bssid;
+        size++;
+        return slot;
+    }
+
+    private int slotOf(long bssid) {
+        int mask = keys.length - 1;
+        long h = bssid * 0x9e3779b97f4a7c15L;
+        int slot = (int) (h ^ h >>> 32) & mask;
+        while (counts[slot] != 0 && keys[slot] != bssid) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int slots) {
+        long[]    oldKeys = keys;
+        int[]     oldCounts = counts;
+        long[]    oldSums = sums;
+        long[]    oldSumsOfSquares = sumsOfSquares;
+        int[]     oldMins = mins;
+        int[]     oldMaxs = maxs;
+        int[]     oldChannels = channels;
+        long[]    oldFirstSeen = firstSeen;
+        long[]    oldLastSeen = lastSeen;
+        byte[][]  oldSsids = ssids;
+        boolean[] oldSsidsQuoted = ssidsQuoted;
+
+        keys          = new long[slots];
+        counts        = new int[slots];
+        sums          = new long[slots];
+        sumsOfSquares = new long[slots];
+        mins          = new int[slots];
+        maxs          = new int[slots];
+        channels      = new int[slots];
+        firstSeen     = new long[slots];
+        lastSeen      = new long[slots];
+        ssids         = new byte[slots][];
+        ssidsQuoted   = new boolean[slots];
+        threshold     = slots * MAX_LOAD_PERCENT / 100;
+
+        if (oldKeys == null) {
+            return;
+        }
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCounts[i] != 0) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot]          = oldKeys[i];
+                counts[slot]        = oldCounts[i];
+                sums[slot]          = oldSums[i];
+                sumsOfSquares[slot] = oldSumsOfSquares[i];
+                mins[slot]          = oldMins[i];
+                maxs[slot]          = oldMaxs[i];
+                channels[slot]      = oldChannels[i];
+                firstSeen[slot]     = oldFirstSeen[i];
+                lastSeen[slot]      = oldLastSeen[i];
+                ssids[slot]         = oldSsids[i];
+                ssidsQuoted[slot]   = oldSsidsQuoted[i];
+            }
+        }
+    }
+}
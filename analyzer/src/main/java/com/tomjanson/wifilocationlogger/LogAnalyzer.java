@@ -0,0 +1,389 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Command line analysis of CSV scan logs, e.g., months of wifilog.*.csv files of many devices:
+ *
+ *     java -jar analyzer.jar [options] FILE|DIRECTORY...
+ *
+ *     --out DIR            directory the results are written to (default: .)
+ *     --threads N          number of worker threads (default: number of cores)
+ *     --cell-size METERS   size of the hexbin cells (default: 25)
+ *     --max-cells N        maximum number of hexbin (cell, BSSID) entries (default: 1000000)
+ *     --max-error METERS   scans with a larger accuracy + location error aren't binned (default: 50)
+ *
+ * Directories are searched for wifilog*.csv. The results are
+ *
+ *     bssids.csv     per BSSID: SSID, channel, number of samples, level mean/stddev/min/max, first/last seen
+ *     sessions.csv   per session: device model, format version, first/last scan, number of scans and rows
+ *     hexbins.csv    per cell and BSSID: cell center, number of samples, level mean/stddev/min/max
+ *
+ * Files are memory-mapped and split into chunks of about CHUNK_SIZE bytes, at the start of a scan.
+ * The chunks are parsed in parallel (fork/join) by CsvLogParser, which doesn't allocate per row,
+ * each worker thread into its own LogStats; these are merged at the end.
+ */
+public final class LogAnalyzer {
+    private static final String LOG_FILE = "wifilog";
+    private static final long CHUNK_SIZE = 64 * 1024 * 1024;
+
+    // how far past the nominal end of a chunk to look for the start of a scan,
+    // if there's none the chunk is extended by CHUNK_SIZE
+    private static final int BOUNDARY_WINDOW = 1024 * 1024;
+
+    private File outDirectory = new File(".");
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private double cellSizeMeters = 25;
+    private int maxCells = 1000000;
+    private float maxErrorMeters = 50;
+    private final List<File> files = new ArrayList<File>();
+
+    private static final class Chunk {
+        final File file;
+        final long start;
+        final long end;
+
+        Chunk(File file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final class Worker {
+        final CsvLogParser parser = new CsvLogParser();
+        final LogStats stats;
+
+        Worker(LogStats stats) {
+            this.stats = stats;
+        }
+    }
+
+    private final List<Worker> workers = Collections.synchronizedList(new ArrayList<Worker>());
+    private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            Worker w = new Worker(new LogStats(cellSizeMeters, maxCells, maxErrorMeters));
+            workers.add(w);
+            return w;
+        }
+    };
+
+    public static void main(String[] args) {
+        LogAnalyzer analyzer = new LogAnalyzer();
+        try {
+            analyzer.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LogAnalyzer [--out DIR] [--threads N] [--cell-size METERS] "
+                    + "[--max-cells N] [--max-error METERS] FILE|DIRECTORY...");
+            System.exit(2);
+        }
+        try {
+            analyzer.run();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--")) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                try {
+                    if (arg.equals("--out")) {
+                        outDirectory = new File(value);
+                    } else if (arg.equals("--threads")) {
+                        threads = Integer.parseInt(value);
+                    } else if (arg.equals("--cell-size")) {
+                        cellSizeMeters = Double.parseDouble(value);
+                    } else if (arg.equals("--max-cells")) {
+                        maxCells = Integer.parseInt(value);
+                    } else if (arg.equals("--max-error")) {
+                        maxErrorMeters = Float.parseFloat(value);
+                    } else {
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value of " + arg + ": " + value);
+                }
+            } else {
+                addFiles(new File(arg));
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No log files given");
+        }
+    }
+
+    private void addFiles(File file) {
+        if (!file.isDirectory()) {
+            files.add(file);
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory() || (name.startsWith(LOG_FILE) && name.endsWith(".csv"))) {
+                addFiles(child);
+            }
+        }
+    }
+
+    private void run() throws IOException {
+        long startTime = System.nanoTime();
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (File file : files) {
+            split(file, chunks);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new ParseTask(chunks, 0, chunks.size()));
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+        double parseSeconds = (System.nanoTime() - startTime) / 1e9;
+
+        LogStats total = new LogStats(cellSizeMeters, maxCells, maxErrorMeters);
+        for (Worker w : workers) {
+            total.addAll(w.stats);
+        }
+
+        if (!outDirectory.isDirectory() && !outDirectory.mkdirs()) {
+            throw new IOException("Could not create " + outDirectory);
+        }
+        writeBssids(total.bssids, new File(outDirectory, "bssids.csv"));
+        writeSessions(total, new File(outDirectory, "sessions.csv"));
+        writeHexbins(total.coverage, new File(outDirectory, "hexbins.csv"));
+
+        double megabytes = total.bytes / 1e6;
+        System.out.printf(Locale.US, "%d files, %.1f MB in %d chunks: %d rows (%d malformed), %d sessions, "
+                        + "%d BSSIDs, %d hexbin entries (%d samples dropped)%n",
+                files.size(), megabytes, chunks.size(), total.rows, total.malformedRows, total.sessions.size(),
+                total.bssids.size(), total.coverage.size(), total.coverage.droppedSamples());
+        System.out.printf(Locale.US, "Parsed in %.2f s (%.0f MB/s) with %d threads, total %.2f s%n",
+                parseSeconds, megabytes / parseSeconds, threads, (System.nanoTime() - startTime) / 1e9);
+    }
+
+    /**
+     * Splits a file into chunks of about CHUNK_SIZE, each starting at a scan.
+     */
+    private static void split(File file, List<Chunk> chunks) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long start = 0;
+            while (start < size) {
+                long end = -1;
+                for (long target = start + CHUNK_SIZE; end < 0; target += CHUNK_SIZE) {
+                    end = target >= size ? size : nextScanStart(channel, target, size);
+                }
+                if (end - start > Integer.MAX_VALUE) {
+                    throw new IOException("No scan boundaries found in " + file + " after " + start);
+                }
+                chunks.add(new Chunk(file, start, end));
+                start = end;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The offset of the first row (after {@code from}) which starts a new scan, i.e., whose
+     * timestamp differs from that of the row before it; -1 if there's none in BOUNDARY_WINDOW.
+     */
+    private static long nextScanStart(FileChannel channel, long from, long size) throws IOException {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(size - from, BOUNDARY_WINDOW));
+        int previousRow = -1;
+        for (int i = 0; i < buf.limit(); i++) {
+            if (buf.get(i) == '\n' && CsvLogParser.isRowStart(buf, i + 1)) {
+                if (previousRow >= 0 && !CsvLogParser.sameTimestamp(buf, previousRow, i + 1)) {
+                    return from + i + 1;
+                }
+                previousRow = i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private final class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Chunk> chunks;
+        private final int from;
+        private final int to;
+
+        ParseTask(List<Chunk> chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ParseTask(chunks, from, middle), new ParseTask(chunks, middle, to));
+            } else if (to - from == 1) {
+                parse(chunks.get(from));
+            }
+        }
+    }
+
+    private void parse(Chunk chunk) {
+        Worker w = worker.get();
+        try {
+            RandomAccessFile in = new RandomAccessFile(chunk.file, "r");
+            try {
+                MappedByteBuffer buf = in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        chunk.start, chunk.end - chunk.start);
+                long rows = w.parser.rows();
+                long malformedRows = w.parser.malformedRows();
+                w.stats.beginChunk();
+                w.parser.parse(buf, w.stats);
+                w.stats.rows += w.parser.rows() - rows;
+                w.stats.malformedRows += w.parser.malformedRows() - malformedRows;
+                w.stats.bytes += chunk.end - chunk.start;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeBssids(BssidTable bssids, File file) throws IOException {
+        Writer out = open(file);
+        try {
+            SimpleDateFormat dateFormat = localTimeFormat();
+            StringBuilder sb = new StringBuilder(256);
+            out.write("bssid,ssid,channel,samples,mean,stddev,min,max,first_seen,last_seen\n");
+            for (int i = 0; i < bssids.slots(); i++) {
+                if (bssids.count(i) == 0) {
+                    continue;
+                }
+                sb.setLength(0);
+                sb.append(Bssids.format(bssids.bssid(i))).append(',');
+                CsvRecordEncoder.appendField(sb, bssids.ssid(i));
+                sb.append(',').append(bssids.channel(i))
+                  .append(',').append(bssids.count(i))
+                  .append(',').append(round(bssids.mean(i)))
+                  .append(',').append(round(Math.sqrt(bssids.variance(i))))
+                  .append(',').append(bssids.min(i))
+                  .append(',').append(bssids.max(i))
+                  .append(',').append(dateFormat.format(bssids.firstSeen(i)))
+                  .append(',').append(dateFormat.format(bssids.lastSeen(i)))
+                  .append('\n');
+                out.append(sb);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeSessions(LogStats stats, File file) throws IOException {
+        Writer out = open(file);
+        try {
+            SimpleDateFormat dateFormat = localTimeFormat();
+            StringBuilder sb = new StringBuilder(256);
+            out.write("session,model,version,first_scan,last_scan,scans,empty_scans,rows\n");
+            for (LogStats.Session session : stats.sessions.values()) {
+                sb.setLength(0);
+                CsvRecordEncoder.appendField(sb, session.id);
+                sb.append(',');
+                CsvRecordEncoder.appendField(sb, session.model);
+                sb.append(',').append(session.version)
+                  .append(',').append(dateFormat.format(session.firstTime))
+                  .append(',').append(dateFormat.format(session.lastTime))
+                  .append(',').append(session.scans)
+                  .append(',').append(session.emptyScans)
+                  .append(',').append(session.rows)
+                  .append('\n');
+                out.append(sb);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeHexbins(CoverageAggregator coverage, File file) throws IOException {
+        Writer out = open(file);
+        try {
+            StringBuilder sb = new StringBuilder(256);
+            out.write("zone,q,r,latitude,longitude,bssid,samples,mean,stddev,min,max\n");
+            for (int i = 0; i < coverage.slots(); i++) {
+                if (coverage.count(i) == 0) {
+                    continue;
+                }
+                long cell = coverage.cell(i);
+                sb.setLength(0);
+                sb.append(CoverageAggregator.cellZone(cell))
+                  .append(',').append(CoverageAggregator.cellQ(cell))
+                  .append(',').append(CoverageAggregator.cellR(cell))
+                  .append(',').append(coverage.cellLatitude(cell))
+                  .append(',').append(coverage.cellLongitude(cell))
+                  .append(',').append(Bssids.format(coverage.bssid(i)))
+                  .append(',').append(coverage.count(i))
+                  .append(',').append(round(coverage.mean(i)))
+                  .append(',').append(round(Math.sqrt(coverage.variance(i))))
+                  .append(',').append(coverage.min(i))
+                  .append(',').append(coverage.max(i))
+                  .append('\n');
+                out.append(sb);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Writer open(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 256 * 1024);
+    }
+
+    /**
+     * Formats the local times of CsvLogParser.Row like the timestamp column.
+     */
+    private static SimpleDateFormat localTimeFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
@@ -0,0 +1,121 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Everything LogAnalyzer computes: per-BSSID statistics, per-session summaries and
+ * hexbin aggregates (see CoverageAggregator). Each worker thread fills its own instance,
+ * which are merged at the end.
+ *
+ * A scan is a run of rows of the same session with the same timestamp. Chunks of the input
+ * are split between scans (see LogAnalyzer), so no scan is counted twice.
+ */
+final class LogStats implements CsvLogParser.Handler {
+
+    static final class Session {
+        final String id;
+        final String model;
+        int  version;
+        long firstTime = Long.MAX_VALUE;   // local time, see CsvLogParser.Row
+        long lastTime  = Long.MIN_VALUE;
+        long rows;
+        long scans;
+        long emptyScans;   // no wifi matched the filter
+
+        Session(String id, String model) {
+            this.id = id;
+            this.model = model;
+        }
+
+        void addAll(Session other) {
+            version = Math.max(version, other.version);
+            firstTime = Math.min(firstTime, other.firstTime);
+            lastTime = Math.max(lastTime, other.lastTime);
+            rows += other.rows;
+            scans += other.scans;
+            emptyScans += other.emptyScans;
+        }
+    }
+
+    final BssidTable bssids = new BssidTable();
+    final Map<String, Session> sessions = new HashMap<String, Session>();
+    final CoverageAggregator coverage;
+    private final float maxLocationErrorMeters;
+
+    long rows;
+    long malformedRows;
+    long bytes;
+
+    // the session of the previous row (its ID's raw bytes), reset for every chunk
+    private Session session;
+    private byte[] sessionBytes;
+    private long scanTime;
+
+    /**
+     * @param maxLocationErrorMeters scans with a larger accuracy + location error aren't aggregated per cell
+     */
+    LogStats(double cellSizeMeters, int maxCells, float maxLocationErrorMeters) {
+        coverage = new CoverageAggregator(cellSizeMeters, maxCells);
+        this.maxLocationErrorMeters = maxLocationErrorMeters;
+    }
+
+    /**
+     * Called before the rows of the next chunk.
+     */
+    void beginChunk() {
+        session = null;
+        sessionBytes = null;
+    }
+
+    @Override
+    public void onRow(CsvLogParser.Row row) {
+        if (sessionBytes == null || !row.equals(row.sessionStart, row.sessionEnd, sessionBytes)) {
+            String id = row.sessionId();
+            session = sessions.get(id);
+            if (session == null) {
+                session = new Session(id, row.model());
+                sessions.put(id, session);
+            }
+            sessionBytes = row.bytes(row.sessionStart, row.sessionEnd);
+            scanTime = Long.MIN_VALUE;
+        }
+
+        session.rows++;
+        if (row.localTime != scanTime) {
+            scanTime = row.localTime;
+            session.scans++;
+            if (row.isSpecial()) {
+                session.emptyScans++;
+            }
+            session.version = Math.max(session.version, row.version);
+            session.firstTime = Math.min(session.firstTime, row.localTime);
+            session.lastTime = Math.max(session.lastTime, row.localTime);
+        }
+
+        if (row.bssid != Bssids.INVALID) {
+            bssids.add(row);
+            // version 1 rows have no location error
+            float error = Float.isNaN(row.locationError) ? 0 : row.locationError;
+            if (row.accuracy + error <= maxLocationErrorMeters) {
+                coverage.add(coverage.cellOf(row.latitude, row.longitude), row.bssid, row.level);
+            }
+        }
+    }
+
+    void addAll(LogStats other) {
+        rows += other.rows;
+        malformedRows += other.malformedRows;
+        bytes += other.bytes;
+        bssids.addAll(other.bssids);
+        coverage.addAll(other.coverage);
+        for (Session otherSession : other.sessions.values()) {
+            Session s = sessions.get(otherSession.id);
+            if (s == null) {
+                sessions.put(otherSession.id, otherSession);
+            } else {
+                s.addAll(otherSession);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * Adapts the delay between scans to get useful samples at the lowest possible rate:
+ *
+ * - while moving, scan about every targetDistance meters (delay = remaining distance / speed)
+ * - without a usable speed, back off while the visible APs stay the same and
+ *   speed up again when they change (multiplicative increase/decrease)
+ * - on low battery (and not charging), scan at most half as often
+ *
+ * The result is always clamped to [minDelay, maxDelay].
+ */
+final class AdaptiveScanScheduler implements ScanScheduler {
+    // below this, GPS speed is mostly noise
+    private static final float MIN_MOVING_SPEED = 0.5f;
+
+    // AP set change thresholds (Jaccard distance) for backing off / speeding up
+    private static final double STABLE_AP_SET_CHANGE = 0.1;
+    private static final double CHANGING_AP_SET_CHANGE = 0.3;
+    private static final double BACKOFF_FACTOR = 1.5;
+    private static final double SPEEDUP_FACTOR = 0.5;
+
+    private static final float LOW_BATTERY_LEVEL = 0.15f;
+    private static final double LOW_BATTERY_FACTOR = 2;
+
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private final double targetDistanceMeters;
+
+    private long delayMillis;
+    private double distanceSinceSample;
+    private volatile boolean lowBattery;
+
+    AdaptiveScanScheduler(long minDelayMillis, long maxDelayMillis, double targetDistanceMeters) {
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.targetDistanceMeters = targetDistanceMeters;
+        this.delayMillis = minDelayMillis;
+    }
+
+    @Override
+    public long nextDelayMillis(double distanceMeters, float speed, double apSetChange) {
+        if (!Double.isNaN(distanceMeters)) {
+            distanceSinceSample += distanceMeters;
+        }
+        if (distanceSinceSample >= targetDistanceMeters || apSetChange >= CHANGING_AP_SET_CHANGE) {
+            // this scan was a useful new sample
+            distanceSinceSample = 0;
+        }
+
+        double delay;
+        if (!Float.isNaN(speed) && speed >= MIN_MOVING_SPEED) {
+            double remaining = Math.max(0, targetDistanceMeters - distanceSinceSample);
+            delay = remaining / speed * 1000;
+        } else if (apSetChange <= STABLE_AP_SET_CHANGE) {
+            delay = delayMillis * BACKOFF_FACTOR;
+        } else if (apSetChange >= CHANGING_AP_SET_CHANGE) {
+            delay = delayMillis * SPEEDUP_FACTOR;
+        } else {
+            delay = delayMillis;
+        }
+
+        delayMillis = clamp(delay);
+        return lowBattery ? clamp(delayMillis * LOW_BATTERY_FACTOR) : delayMillis;
+    }
+
+    private long clamp(double delay) {
+        return Math.max(minDelayMillis, Math.min(maxDelayMillis, (long) delay));
+    }
+
+    @Override
+    public void onBatteryChanged(float level, boolean charging) {
+        lowBattery = !charging && level < LOW_BATTERY_LEVEL;
+    }
+}
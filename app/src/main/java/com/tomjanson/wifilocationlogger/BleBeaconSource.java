@@ -0,0 +1,179 @@
+package com.tomjanson.wifilocationlogger;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.SystemClock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/*
+ * SampleSource of Bluetooth LE advertisements: one observation per advertisement, with a single
+ * sample: the iBeacon ID (uuid:major:minor) or else the device name (empty if it has none) as
+ * SSID, the device address as BSSID, the RSSI as level and channel -1.
+ *
+ * From Android 5.0, the scan is done in batches by the controller where supported (results are
+ * reported every BLE_REPORT_DELAY_MILLIS, with their own timestamps), before that with the older
+ * LeScanCallback. Needs Android 4.3; on devices without Bluetooth LE, start() does nothing.
+ * Callbacks arrive on the main or a binder thread, so they never wait for the SampleLane.
+ */
+class BleBeaconSource implements SampleSource<ScanBatch> {
+    private static final Logger log = LoggerFactory.getLogger(BleBeaconSource.class);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long reportDelayMillis;
+    private SampleSource.Output<ScanBatch> output;
+    private Object callback;   // LeScanCallback or LollipopScanner
+
+    BleBeaconSource(long reportDelayMillis) {
+        this.reportDelayMillis = reportDelayMillis;
+    }
+
+    @Override
+    public String name() {
+        return "ble";
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void start(SampleSource.Output<ScanBatch> output) {
+        this.output = output;
+        BluetoothAdapter adapter = Build.VERSION.SDK_INT >= 18 ? BluetoothAdapter.getDefaultAdapter() : null;
+        if (adapter == null || !adapter.isEnabled()) {
+            log.info("Bluetooth LE not available, not logging beacons");
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= 21 && adapter.getBluetoothLeScanner() != null) {
+            LollipopScanner scanner = new LollipopScanner(adapter.getBluetoothLeScanner());
+            scanner.start(adapter.isOffloadedScanBatchingSupported() ? reportDelayMillis : 0);
+            callback = scanner;
+        } else {
+            BluetoothAdapter.LeScanCallback leScanCallback = new BluetoothAdapter.LeScanCallback() {
+                @Override
+                public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                    onAdvertisement(device, rssi, scanRecord, System.currentTimeMillis());
+                }
+            };
+            if (!adapter.startLeScan(leScanCallback)) {
+                log.warn("Could not start Bluetooth LE scan");
+                return;
+            }
+            callback = leScanCallback;
+        }
+        log.debug("Started Bluetooth LE scan");
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void stop() {
+        if (callback instanceof BluetoothAdapter.LeScanCallback) {
+            BluetoothAdapter.getDefaultAdapter().stopLeScan((BluetoothAdapter.LeScanCallback) callback);
+        } else if (callback != null) {
+            ((LollipopScanner) callback).stop();
+        }
+        callback = null;
+        log.debug("Stopped Bluetooth LE scan");
+    }
+
+    private void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord, long timeMillis) {
+        ScanBatch batch = output.obtain();
+        if (batch == null) {
+            return;
+        }
+        batch.clear();
+        String name = beaconId(scanRecord);
+        if (name == null) {
+            name = device.getName();   // null if it has none, or isn't known yet
+        }
+        batch.add(name != null ? name : "", device.getAddress(), rssi, -1);
+        output.submit(batch, timeMillis);
+    }
+
+    /**
+     * The iBeacon ID (proximity UUID, major, minor) of an advertisement, or null if it isn't one.
+     */
+    static String beaconId(byte[] scanRecord) {
+        if (scanRecord == null) {
+            return null;
+        }
+        int i = 0;
+        while (i + 1 < scanRecord.length) {
+            int length = scanRecord[i] & 0xff;
+            if (length == 0 || i + 1 + length > scanRecord.length) {
+                break;
+            }
+            // manufacturer specific data (0xff) of Apple (0x004c): iBeacon (0x02, 21 bytes)
+            if (length >= 26 && (scanRecord[i + 1] & 0xff) == 0xff && scanRecord[i + 2] == 0x4c
+                    && scanRecord[i + 3] == 0x00 && scanRecord[i + 4] == 0x02 && scanRecord[i + 5] == 0x15) {
+                StringBuilder sb = new StringBuilder(48);
+                for (int j = 0; j < 16; j++) {
+                    if (j == 4 || j == 6 || j == 8 || j == 10) {
+                        sb.append('-');
+                    }
+                    int b = scanRecord[i + 6 + j] & 0xff;
+                    sb.append(HEX[b >>> 4]).append(HEX[b & 0xf]);
+                }
+                int major = (scanRecord[i + 22] & 0xff) << 8 | scanRecord[i + 23] & 0xff;
+                int minor = (scanRecord[i + 24] & 0xff) << 8 | scanRecord[i + 25] & 0xff;
+                return sb.append(':').append(major).append(':').append(minor).toString();
+            }
+            i += 1 + length;
+        }
+        return null;
+    }
+
+    /*
+     * The Android 5.0 scanner, only loaded there.
+     */
+    private final class LollipopScanner extends ScanCallback {
+        private final BluetoothLeScanner scanner;
+
+        LollipopScanner(BluetoothLeScanner scanner) {
+            this.scanner = scanner;
+        }
+
+        void start(long reportDelayMillis) {
+            ScanSettings settings = new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_BALANCED)
+                    .setReportDelay(reportDelayMillis)
+                    .build();
+            scanner.startScan(null, settings, this);
+        }
+
+        void stop() {
+            scanner.stopScan(this);
+        }
+
+        @Override
+        public void onScanResult(int callbackType, android.bluetooth.le.ScanResult result) {
+            onResult(result, System.currentTimeMillis(), SystemClock.elapsedRealtimeNanos());
+        }
+
+        @Override
+        public void onBatchScanResults(List<android.bluetooth.le.ScanResult> results) {
+            long now = System.currentTimeMillis();
+            long nowNanos = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < results.size(); i++) {
+                onResult(results.get(i), now, nowNanos);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            log.warn("Bluetooth LE scan failed: {}", errorCode);
+        }
+
+        private void onResult(android.bluetooth.le.ScanResult result, long now, long nowNanos) {
+            long time = now - (nowNanos - result.getTimestampNanos()) / 1000000;
+            byte[] scanRecord = result.getScanRecord() != null ? result.getScanRecord().getBytes() : null;
+            onAdvertisement(result.getDevice(), result.getRssi(), scanRecord, time);
+        }
+    }
+}
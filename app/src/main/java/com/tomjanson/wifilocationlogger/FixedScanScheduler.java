@@ -0,0 +1,21 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * Always waits the same time between scans.
+ */
+final class FixedScanScheduler implements ScanScheduler {
+    private final long delayMillis;
+
+    FixedScanScheduler(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public long nextDelayMillis(double distanceMeters, float speed, double apSetChange) {
+        return delayMillis;
+    }
+
+    @Override
+    public void onBatteryChanged(float level, boolean charging) {
+    }
+}
@@ -0,0 +1,49 @@
+package com.tomjanson.wifilocationlogger;
+
+import com.google.android.gms.location.LocationRequest;
+
+/*
+ * Location request settings, from accurate and expensive to cheap (see LocationProfileSelector):
+ *
+ * - SURVEY: GPS, a fix every few seconds, for logging on the move
+ * - BALANCED: mostly wifi/cell, block-level accuracy, for logging while standing still
+ * - LOW_POWER: city-level accuracy, rare fixes, while not logging with the screen off
+ *
+ * While the screen is off, fixes are handed to the pipeline in batches, at most batchMillis
+ * after they arrived (see LoggingService), instead of one at a time. That defers the work per
+ * fix (location history, pending scans, UI state), but doesn't save power: Play Services 6.5
+ * can't batch fixes itself (there's no LocationRequest.setMaxWaitTime()), so every fix still
+ * wakes the CPU when it arrives. Only the profiles' intervals and priorities save power.
+ */
+enum LocationProfile {
+    SURVEY(LocationRequest.PRIORITY_HIGH_ACCURACY, 3000, 1000, 0, 15 * 1000),
+    BALANCED(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, 15 * 1000, 5000, 10, 60 * 1000),
+    LOW_POWER(LocationRequest.PRIORITY_LOW_POWER, 60 * 1000, 30 * 1000, 50, 5 * 60 * 1000);
+
+    final int   priority;
+    final long  intervalMillis;
+    final long  fastestIntervalMillis;
+    final float smallestDisplacementMeters;
+    final long  batchMillis;
+
+    LocationProfile(int priority, long intervalMillis, long fastestIntervalMillis,
+                    float smallestDisplacementMeters, long batchMillis) {
+        this.priority = priority;
+        this.intervalMillis = intervalMillis;
+        this.fastestIntervalMillis = fastestIntervalMillis;
+        this.smallestDisplacementMeters = smallestDisplacementMeters;
+        this.batchMillis = batchMillis;
+    }
+
+    LocationRequest locationRequest() {
+        LocationRequest request = new LocationRequest();
+
+        // The interval is inexact: updates may come slower than requested if no location source is
+        // available, or faster if other apps request them more often. The fastest interval is exact.
+        request.setInterval(intervalMillis);
+        request.setFastestInterval(fastestIntervalMillis);
+        request.setSmallestDisplacement(smallestDisplacementMeters);
+        request.setPriority(priority);
+        return request;
+    }
+}
@@ -0,0 +1,91 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * Picks the LocationProfile for the current situation, unless one was chosen by the user:
+ *
+ * - logging and moving (within the last stationaryMillis): SURVEY
+ * - logging and standing still: BALANCED
+ * - not logging: BALANCED while the screen is on (for the UI), LOW_POWER otherwise
+ *
+ * Moving means a speed of at least MIN_MOVING_SPEED, or (as BALANCED fixes have no speed)
+ * a fix farther from the last one where the device was moving than both fixes' accuracy plus
+ * MIN_MOVING_DISTANCE_METERS. Logging starts as moving, so the first fixes are accurate.
+ */
+final class LocationProfileSelector {
+    // below this, GPS speed is mostly noise
+    private static final float  MIN_MOVING_SPEED = 0.5f;
+    private static final double MIN_MOVING_DISTANCE_METERS = 20;
+
+    private final long stationaryMillis;
+
+    private LocationProfile selectedProfile;   // null for automatic
+    private boolean logging;
+    private boolean screenOn = true;
+
+    private long   lastMovingTime;
+    private boolean hasAnchor;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private float  anchorAccuracy;
+
+    LocationProfileSelector(long stationaryMillis) {
+        this.stationaryMillis = stationaryMillis;
+    }
+
+    /**
+     * The profile to use from now on, or null to select it automatically.
+     */
+    void setSelectedProfile(LocationProfile profile) {
+        selectedProfile = profile;
+    }
+
+    LocationProfile selectedProfile() {
+        return selectedProfile;
+    }
+
+    void setLogging(boolean logging, long time) {
+        if (logging && !this.logging) {
+            lastMovingTime = time;
+            hasAnchor = false;
+        }
+        this.logging = logging;
+    }
+
+    void setScreenOn(boolean screenOn) {
+        this.screenOn = screenOn;
+    }
+
+    boolean isScreenOn() {
+        return screenOn;
+    }
+
+    /**
+     * @param speed NaN if the fix has none
+     */
+    void onFix(long time, double latitude, double longitude, float accuracy, float speed) {
+        boolean moving = !Float.isNaN(speed) && speed >= MIN_MOVING_SPEED;
+        if (!moving && hasAnchor) {
+            double distance = LocationHistory.distanceMeters(anchorLatitude, anchorLongitude, latitude, longitude);
+            moving = distance > anchorAccuracy + accuracy + MIN_MOVING_DISTANCE_METERS;
+        }
+        if (moving || !hasAnchor) {
+            hasAnchor = true;
+            anchorLatitude = latitude;
+            anchorLongitude = longitude;
+            anchorAccuracy = accuracy;
+        }
+        if (moving) {
+            lastMovingTime = time;
+        }
+    }
+
+    LocationProfile profile(long time) {
+        if (selectedProfile != null) {
+            return selectedProfile;
+        }
+        if (logging) {
+            return time - lastMovingTime <= stationaryMillis ? LocationProfile.SURVEY : LocationProfile.BALANCED;
+        }
+        return screenOn ? LocationProfile.BALANCED : LocationProfile.LOW_POWER;
+    }
+}
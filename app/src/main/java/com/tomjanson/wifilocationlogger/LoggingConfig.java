@@ -0,0 +1,200 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.android.LogcatAppender;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.filter.ThresholdFilter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.rolling.RollingFileAppender;
+import ch.qos.logback.core.rolling.TimeBasedRollingPolicy;
+
+/*
+ * Logback configuration, set up in code at process start (formerly assets/logback.xml, whose
+ * parsing took a good part of the cold start):
+ *
+ * - root logger at TRACE, to logcat and, see MainActivity.TRACE_FILE_LOG / DEBUG_FILE_LOG, to
+ *   $LOG_DIR/$LOG_FILE.trace.txt (all levels) and $LOG_DIR/$LOG_FILE.debug.txt (DEBUG and up),
+ *   rolled over daily, 7 days kept
+ * - the "data" logger (every fix and unfiltered scan, for the replay tool) only to the trace
+ *   file, and only with MainActivity.DATA_FILE_LOG
+ *
+ * Opening the log files is deferred until startFileLogging() (after the first frame, on a
+ * background thread); events logged before are buffered and written then.
+ */
+final class LoggingConfig {
+    private static final String FILE_PATTERN = "%date{ISO8601} [%thread] %-5level %logger{36} - %msg%n";
+    private static final int MAX_HISTORY_DAYS = 7;
+    private static final int MAX_DEFERRED_EVENTS = 4096;
+
+    private static DeferredAppender fileAppenders;   // null if there are none
+    private static boolean fileLoggingStarted;
+
+    private LoggingConfig() {
+    }
+
+    /**
+     * Replaces logback's default configuration; call before anything is logged.
+     */
+    static synchronized void configure() {
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        context.reset();
+
+        LogcatAppender logcat = new LogcatAppender();
+        logcat.setContext(context);
+        logcat.setTagEncoder(encoder(context, "%logger{0}"));
+        logcat.setEncoder(encoder(context, "[ %thread ] %msg%n"));
+        logcat.start();
+
+        Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.TRACE);
+        root.addAppender(logcat);
+        if (MainActivity.TRACE_FILE_LOG || MainActivity.DEBUG_FILE_LOG) {
+            fileAppenders = new DeferredAppender(MAX_DEFERRED_EVENTS);
+            fileAppenders.setContext(context);
+            fileAppenders.start();
+            root.addAppender(fileAppenders);
+        }
+
+        Logger data = context.getLogger("data");
+        data.setAdditive(false);
+        if (MainActivity.DATA_FILE_LOG && MainActivity.TRACE_FILE_LOG) {
+            data.addAppender(fileAppenders);
+        }
+    }
+
+    /**
+     * Opens the log files on a background thread (once), writing what was buffered until now.
+     */
+    static synchronized void startFileLogging() {
+        if (fileAppenders == null || fileLoggingStarted) {
+            return;
+        }
+        fileLoggingStarted = true;
+        Thread thread = new Thread("logging-setup") {
+            @Override
+            public void run() {
+                LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+                if (MainActivity.TRACE_FILE_LOG) {
+                    fileAppenders.attach(fileAppender(context, "trace", Level.TRACE));
+                }
+                if (MainActivity.DEBUG_FILE_LOG) {
+                    fileAppenders.attach(fileAppender(context, "debug", Level.DEBUG));
+                }
+                fileAppenders.release();
+                StartupTrace.mark(StartupTrace.FILE_LOGGING_STARTED);
+            }
+        };
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static PatternLayoutEncoder encoder(LoggerContext context, String pattern) {
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern(pattern);
+        encoder.start();
+        return encoder;
+    }
+
+    /**
+     * A daily rolled $LOG_DIR/$LOG_FILE.$name.txt of the events of at least {@code level}.
+     */
+    private static Appender<ILoggingEvent> fileAppender(LoggerContext context, String name, Level level) {
+        String path = MainActivity.LOG_DIR + "/" + MainActivity.LOG_FILE;
+
+        ThresholdFilter filter = new ThresholdFilter();
+        filter.setContext(context);
+        filter.setLevel(level.toString());
+        filter.start();
+
+        RollingFileAppender<ILoggingEvent> appender = new RollingFileAppender<ILoggingEvent>();
+        appender.setContext(context);
+        appender.setName("FILE_" + name.toUpperCase(Locale.US));
+        appender.addFilter(filter);
+        appender.setFile(path + "." + name + ".txt");
+        appender.setEncoder(encoder(context, FILE_PATTERN));
+
+        TimeBasedRollingPolicy<ILoggingEvent> rollingPolicy = new TimeBasedRollingPolicy<ILoggingEvent>();
+        rollingPolicy.setContext(context);
+        rollingPolicy.setFileNamePattern(path + ".%d." + name + ".txt");
+        rollingPolicy.setMaxHistory(MAX_HISTORY_DAYS);
+        rollingPolicy.setParent(appender);
+        rollingPolicy.start();
+        appender.setRollingPolicy(rollingPolicy);
+        appender.start();
+        return appender;
+    }
+
+    /*
+     * Forwards events to the appenders attached to it; until release(), it buffers them instead
+     * (the oldest are dropped beyond maxEvents).
+     */
+    private static final class DeferredAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+        private final int maxEvents;
+        private final ArrayDeque<ILoggingEvent> buffer = new ArrayDeque<ILoggingEvent>();
+        private final List<Appender<ILoggingEvent>> targets = new CopyOnWriteArrayList<Appender<ILoggingEvent>>();
+        private volatile boolean released;
+        private int dropped;
+
+        DeferredAppender(int maxEvents) {
+            this.maxEvents = maxEvents;
+            setName("DEFERRED_FILES");
+        }
+
+        void attach(Appender<ILoggingEvent> target) {
+            targets.add(target);
+        }
+
+        /**
+         * Writes the buffered events to the attached appenders, and forwards from now on.
+         */
+        void release() {
+            synchronized (buffer) {
+                if (dropped > 0) {
+                    addWarn(dropped + " events logged before the log files were opened were dropped");
+                }
+                for (ILoggingEvent event : buffer) {
+                    forward(event);
+                }
+                buffer.clear();
+                released = true;
+            }
+        }
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            if (!released) {
+                synchronized (buffer) {
+                    if (!released) {
+                        // keep what's needed of the event's context (e.g., thread name) for later
+                        event.prepareForDeferredProcessing();
+                        if (buffer.size() == maxEvents) {
+                            buffer.removeFirst();
+                            dropped++;
+                        }
+                        buffer.addLast(event);
+                        return;
+                    }
+                }
+            }
+            forward(event);
+        }
+
+        private void forward(ILoggingEvent event) {
+            for (Appender<ILoggingEvent> target : targets) {
+                target.doAppend(event);
+            }
+        }
+    }
+}
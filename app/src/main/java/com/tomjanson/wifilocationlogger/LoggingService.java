@@ -0,0 +1,1183 @@
+package com.tomjanson.wifilocationlogger;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
+import android.os.BatteryManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.telephony.TelephonyManager;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
+import com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener;
+import com.google.android.gms.location.LocationListener;
+import com.google.android.gms.location.LocationServices;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import ch.qos.logback.classic.LoggerContext;
+
+/*
+ * Hosts the scan -> log pipeline: wifi scanning, location updates and persistence.
+ *
+ * All of it runs on the service's own looper thread ("pipeline thread"), so neither
+ * disk I/O nor scan processing stalls the UI. The service is bound by MainActivity
+ * while it's visible, and additionally started (in the foreground) while logging,
+ * so logging continues when the screen is off or the Activity is recreated.
+ *
+ * The Activity only subscribes to ScanSnapshots, which are delivered on the main thread.
+ */
+public class LoggingService extends Service implements
+        ConnectionCallbacks, OnConnectionFailedListener, LocationListener {
+
+    // Logback loggers, see https://github.com/tony19/logback-android
+    Logger log;       // regular log/debug messages
+    Logger dataLog;   // sensor data (geo, wifi) for debugging (verbose)
+
+    interface SnapshotListener {
+        void onSnapshot(ScanSnapshot snapshot);
+
+        /**
+         * Called if an event of category "WARN" was logged.
+         */
+        void onWarn();
+
+        /**
+         * Called when an upload requested with uploadNow() finished.
+         */
+        void onUploadFinished(boolean success);
+    }
+
+    class LocalBinder extends Binder {
+        LoggingService getService() {
+            return LoggingService.this;
+        }
+    }
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread pipelineThread;
+    private Handler pipelineHandler;
+
+    // only accessed on the main thread
+    private SnapshotListener snapshotListener;
+    private ScanSnapshot lastSnapshot;
+
+    // Used to access Fused Location API,
+    // see https://developer.android.com/google/play-services/location.html
+    private GoogleApiClient googleApiClient;
+
+    // Wifi scan stuff
+    WifiManager wifiManager;
+    private WifiScanSource wifiSource;
+    // wifi scans take the ScanPipeline right here, on the pipeline thread
+    private final SampleSource.Output<ScanProcessor> wifiOutput = new SampleSource.Output<ScanProcessor>() {
+        @Override
+        public ScanProcessor obtain() {
+            return pipeline.scan();
+        }
+
+        @Override
+        public void submit(ScanProcessor scan, long timeMillis) {
+            wifiList = new WifiList(onScan(timeMillis, filterText));
+        }
+    };
+
+    // Bluetooth LE beacons, see MainActivity.BLE_LOGGING (null if disabled)
+    private BleBeaconSource bleSource;
+    private SampleLane bleLane;
+
+    // pipeline metrics (updated from several threads), see MainActivity.METRICS_FILE
+    final Metrics metrics = new Metrics();
+    private MetricsLog metricsLog;
+    private volatile boolean showMetrics;   // include them in snapshots, for the debug panel
+    private final Runnable writeMetrics = new Runnable() {
+        @Override
+        public void run() {
+            writeMetrics();
+            pipelineHandler.postDelayed(this, MainActivity.METRICS_INTERVAL_MILLIS);
+        }
+    };
+
+    // wake-lock to (hopefully) continue logging while screen is off
+    private PowerManager.WakeLock wakeLock;
+
+    // location profile (see LocationProfile), only accessed on the pipeline thread
+    private final LocationProfileSelector locationProfileSelector =
+            new LocationProfileSelector(MainActivity.LOCATION_STATIONARY_MILLIS);
+    private LocationProfile locationProfile;   // requested from the FusedLocationApi
+    private final Metrics.Counter locationFixes = metrics.counter("location_fixes");
+    private final Metrics.Counter locationProfileSwitches = metrics.counter("location_profile_switches");
+    private final Metrics.Histogram locationBatchSize = metrics.histogram("location_batch_size");
+
+    // fixes held back while the screen is off, see LocationProfile.batchMillis
+    private final List<Location> batchedFixes = new ArrayList<Location>();
+    private long[] batchedFixTimes = new long[16];
+    private final Runnable deliverBatchedFixes = new Runnable() {
+        @Override
+        public void run() {
+            deliverBatchedFixes();
+        }
+    };
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            locationProfileSelector.setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+            if (locationProfileSelector.isScreenOn()) {
+                deliverBatchedFixes();
+            }
+            updateLocationProfile();
+        }
+    };
+
+    // state below is only accessed on the pipeline thread
+    private boolean scanLogged;   // see StartupTrace
+    Location currentLocation;
+    Date     lastLocationUpdateTime;
+    Date     lastWifiScanTime;
+    WifiList wifiList = WifiList.EMPTY;
+    ScanBatchWriter scanWriter;
+    private ScanJournal scanJournal;   // see MainActivity.SCAN_JOURNAL (null if disabled)
+    private final LocationHistory locationHistory = new LocationHistory(MainActivity.LOCATION_HISTORY_SIZE);
+    final ScanPipeline pipeline = new ScanPipeline(locationHistory, MainActivity.WAIT_FOR_BRACKETING_FIX,
+            MainActivity.BRACKETING_FIX_MAX_WAIT_MILLIS, metrics);
+
+    // wifi scan scheduling
+    private final ScanScheduler scanScheduler = MainActivity.ADAPTIVE_WIFI_SCAN
+            ? new AdaptiveScanScheduler(MainActivity.WIFI_SCAN_MIN_DELAY_MILLIS,
+                    MainActivity.WIFI_SCAN_MAX_DELAY_MILLIS, MainActivity.WIFI_SCAN_TARGET_DISTANCE_METERS)
+            : new FixedScanScheduler(MainActivity.WIFI_SCAN_DELAY_MILLIS);
+    private final ScanRateStats scanRateStats = new ScanRateStats(MainActivity.SCAN_RATE_WINDOW_MILLIS, 1024);
+    private final ScanBatch scanPosition = new ScanBatch();
+    private double lastScanLatitude = Double.NaN;
+    private double lastScanLongitude;
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+            if (level >= 0 && scale > 0) {
+                scanScheduler.onBatteryChanged((float) level / scale, plugged != 0);
+
+                boolean low = plugged == 0 && (float) level / scale < MainActivity.UPLOAD_MIN_BATTERY_LEVEL;
+                if (low != batteryTooLowForUpload) {
+                    batteryTooLowForUpload = low;
+                    uploadScheduler.onConditionsChanged();
+                }
+            }
+        }
+    };
+
+    // uploads, see UploadScheduler
+    private UploadEngine uploadEngine;
+    private UploadScheduler uploadScheduler;
+    private LogCompactor logCompactor;
+    private final Runnable compactLogs = new Runnable() {
+        @Override
+        public void run() {
+            uploadScheduler.runOnUploadThread(logCompactor);
+            pipelineHandler.postDelayed(this, MainActivity.LOG_COMPACTION_INTERVAL_MILLIS);
+        }
+    };
+    private ConnectivityManager connectivityManager;
+    private volatile boolean batteryTooLowForUpload;
+    private boolean uploadsStarted;   // only accessed on the main thread
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            uploadScheduler.onConditionsChanged();
+        }
+    };
+
+    // per-BSSID statistics of the current session, see MainActivity.SESSION_APS_MAX_ENTRIES
+    private final SessionBssidTable sessionAps = new SessionBssidTable(MainActivity.SESSION_APS_MAX_ENTRIES);
+    private final int[] topSessionAps = new int[MainActivity.SESSION_APS_SHOWN];
+
+    // per-cell coverage statistics, see MainActivity.COVERAGE_AGGREGATION (null if disabled)
+    private CoverageAggregator coverage;
+    private final Runnable checkpointCoverage = new Runnable() {
+        @Override
+        public void run() {
+            checkpointCoverage();
+            pipelineHandler.postDelayed(this, MainActivity.COVERAGE_CHECKPOINT_INTERVAL_MILLIS);
+        }
+    };
+
+    // position estimates from logged fingerprints, see MainActivity.FINGERPRINT_POSITIONING (null if disabled)
+    private FingerprintLocator fingerprintLocator;
+    private final FingerprintLocator.Estimate wifiPositionEstimate = new FingerprintLocator.Estimate();
+    private FingerprintLocator.Estimate wifiPosition;   // of the last scan, null if unknown
+    private long[] scanBssids = new long[64];
+    private int[]  scanLevels = new int[64];
+    private final Metrics.Histogram fingerprintLookup = metrics.histogram("fingerprint_lookup_us");
+
+    // indexed copy of the logged scans, see MainActivity.LOG_TO_DATABASE (null if disabled)
+    private ScanStore scanStore;
+
+    // logs scans that waited long enough for a later fix, see MainActivity.WAIT_FOR_BRACKETING_FIX
+    private final Runnable logPendingScans = new Runnable() {
+        @Override
+        public void run() {
+            pipeline.advanceTo(System.currentTimeMillis());
+            schedulePendingScans();
+        }
+    };
+
+    // toggles logging location+wifi to file
+    // debug logs may be created regardless of this
+    volatile boolean loggingEnabled = false;
+
+    // unique ID sent to server to distinguish clients
+    // changes every time logging is enabled
+    volatile String sessionId;
+
+    // set from the UI thread, read by the pipeline
+    volatile String filterText = "";
+    private volatile boolean compactLogFormat;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        log = LoggerFactory.getLogger(LoggingService.class);
+        dataLog = LoggerFactory.getLogger("data");
+        log.trace("onCreate");
+        StartupTrace.mark(StartupTrace.SERVICE_CREATED);
+        LoggingConfig.startFileLogging();
+
+        pipelineThread = new HandlerThread("logging-pipeline");
+        pipelineThread.start();
+        pipelineHandler = new Handler(pipelineThread.getLooper());
+
+        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MyWakelockTag");
+
+        connectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        uploadEngine = new UploadEngine(new File(MainActivity.LOG_DIR), MainActivity.LOG_FILE,
+                getString(R.string.upload_url_default), MainActivity.UPLOAD_SECRET,
+                MainActivity.UPLOAD_CHUNK_SIZE, MainActivity.UPLOAD_BATCH_SIZE);
+        uploadScheduler = new UploadScheduler(uploadEngine, new UploadScheduler.Conditions() {
+            @Override
+            public boolean canUpload() {
+                return canUploadNow();
+            }
+        }, new UploadScheduler.Listener() {
+            @Override
+            public void onUploadFinished(boolean success, boolean requested) {
+                publishUploadResult(success, requested);
+            }
+        }, MainActivity.UPLOAD_INTERVAL_MILLIS,
+                MainActivity.UPLOAD_MIN_BACKOFF_MILLIS, MainActivity.UPLOAD_MAX_BACKOFF_MILLIS, metrics);
+        logCompactor = new LogCompactor(new File(MainActivity.LOG_DIR), MainActivity.LOG_MAX_BYTES,
+                uploadEngine, metrics, MainActivity.BLE_LOG_FILE);
+
+        // Startup brings up what's needed to log a scan first, and location and wifi, whose first
+        // fix and scan take a while. The rest is loaded meanwhile, before the first scan arrives
+        // on the pipeline thread. See StartupTrace.
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (MainActivity.SCAN_JOURNAL) {
+                    scanJournal = openJournal();
+                }
+                scanWriter = createScanWriter();
+                pipeline.addSink(scanWriter);
+                pipeline.addSink(new ScanPipeline.Sink() {
+                    @Override
+                    public void write(ScanBatch batch) {
+                        if (!scanLogged) {
+                            scanLogged = true;
+                            StartupTrace.mark(StartupTrace.FIRST_LOGGED_SCAN);
+                        }
+                    }
+                });
+                StartupTrace.mark(StartupTrace.PIPELINE_READY);
+                if (scanJournal != null && scanJournal.wasLogging() && scanJournal.sessionId() != null) {
+                    final String interruptedSessionId = scanJournal.sessionId();
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            log.info("Resuming session interrupted by the process being killed");
+                            startLogging(interruptedSessionId);
+                        }
+                    });
+                }
+
+                locationProfileSelector.setScreenOn(isScreenOn());
+                IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+                screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+                registerReceiver(screenReceiver, screenFilter, null, pipelineHandler);
+                locationProfile = locationProfileSelector.profile(System.currentTimeMillis());
+                buildGoogleApiClient();
+                googleApiClient.connect();
+                log.trace("Connecting GoogleApiClient ...");
+                initWifiScan();
+                registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED),
+                        null, pipelineHandler);
+                registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION),
+                        null, pipelineHandler);
+                wifiSource.start(wifiOutput);
+                StartupTrace.mark(StartupTrace.WIFI_SCAN_STARTED);
+            }
+        });
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                metricsLog = new MetricsLog(new File(MainActivity.LOG_DIR, MainActivity.METRICS_FILE),
+                        metrics, Build.MODEL, metricsConfig());
+                pipelineHandler.postDelayed(writeMetrics, MainActivity.METRICS_INTERVAL_MILLIS);
+                pipelineHandler.post(compactLogs);
+                pipeline.addSink(new ScanPipeline.Sink() {
+                    @Override
+                    public void write(ScanBatch batch) {
+                        sessionAps.add(batch);
+                    }
+                });
+                if (MainActivity.COVERAGE_AGGREGATION) {
+                    coverage = loadCoverage();
+                    pipeline.addSink(new ScanPipeline.Sink() {
+                        @Override
+                        public void write(ScanBatch batch) {
+                            if (batch.accuracy + batch.locationError <= MainActivity.COVERAGE_MAX_ERROR_METERS) {
+                                coverage.add(batch);
+                            }
+                        }
+                    });
+                    pipelineHandler.postDelayed(checkpointCoverage, MainActivity.COVERAGE_CHECKPOINT_INTERVAL_MILLIS);
+                }
+                if (MainActivity.FINGERPRINT_POSITIONING) {
+                    fingerprintLocator = loadFingerprintLocator();
+                    pipeline.addSink(new ScanPipeline.Sink() {
+                        @Override
+                        public void write(ScanBatch batch) {
+                            fingerprintLocator.add(batch);
+                            if (fingerprintLocator.needsMerge()) {
+                                mergeFingerprints();
+                            }
+                        }
+                    });
+                }
+                if (MainActivity.LOG_TO_DATABASE) {
+                    scanStore = new ScanStore(new File(MainActivity.LOG_DIR, MainActivity.DATABASE_FILE));
+                    pipeline.addSink(scanStore);
+                }
+                if (MainActivity.BLE_LOGGING) {
+                    bleSource = new BleBeaconSource(MainActivity.BLE_REPORT_DELAY_MILLIS);
+                    bleLane = createLane(bleSource.name(), MainActivity.BLE_LOG_FILE, MainActivity.BLE_LANE_CAPACITY);
+                    bleLane.setFilterText(MainActivity.BLE_FILTER);
+                }
+                StartupTrace.mark(StartupTrace.SUBSYSTEMS_LOADED);
+            }
+        });
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Only started while logging. If the process gets killed, we're restarted (with a null
+        // intent), and onCreate() resumes the session from the ScanJournal.
+        if (intent == null) {
+            // after onCreate()'s check of the journal (and the startLogging() it posts, if any)
+            pipelineHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!loggingEnabled) {
+                                log.info("No session to resume");
+                                stopSelf();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        log.trace("onDestroy");
+
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                wifiSource.stop();
+                log.trace("Stopped wifi scans");
+                unregisterReceiver(batteryReceiver);
+                unregisterReceiver(connectivityReceiver);
+                unregisterReceiver(screenReceiver);
+                pipelineHandler.removeCallbacks(compactLogs);
+                uploadScheduler.stop();
+
+                if (googleApiClient.isConnected()) {
+                    LocationServices.FusedLocationApi.removeLocationUpdates(googleApiClient, LoggingService.this);
+                    googleApiClient.disconnect();
+                    log.trace("GoogleApiClient disconnected");
+                }
+
+                deliverBatchedFixes();
+                pipeline.flushPending();
+                pipelineHandler.removeCallbacks(logPendingScans);
+                scanWriter.close();
+                if (bleLane != null) {
+                    bleSource.stop();
+                    bleLane.close();
+                }
+                pipelineHandler.removeCallbacks(checkpointCoverage);
+                checkpointCoverage();
+                mergeFingerprints();
+                if (scanStore != null) {
+                    scanStore.close();
+                }
+                pipelineHandler.removeCallbacks(writeMetrics);
+                writeMetrics();
+                pipelineThread.quit();
+
+                // assume SLF4J is bound to logback-classic in the current environment
+                LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
+                loggerContext.stop();
+            }
+        });
+    }
+
+    /**
+     * Registers the (single) listener, which immediately receives the latest snapshot.
+     * Must be called on the main thread; pass null to unsubscribe.
+     */
+    void setSnapshotListener(SnapshotListener listener) {
+        snapshotListener = listener;
+        if (listener != null && lastSnapshot != null) {
+            listener.onSnapshot(lastSnapshot);
+        }
+    }
+
+    /**
+     * Whether snapshots include the metrics (for the debug panel).
+     */
+    void setShowMetrics(boolean showMetrics) {
+        this.showMetrics = showMetrics;
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                publishSnapshot();
+            }
+        });
+    }
+
+    void setFilterText(String filterText) {
+        this.filterText = filterText;
+    }
+
+    /**
+     * Uses the given location profile from now on, or selects it automatically if null.
+     */
+    void setLocationProfile(final LocationProfile profile) {
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                locationProfileSelector.setSelectedProfile(profile);
+                updateLocationProfile();
+            }
+        });
+    }
+
+    /**
+     * Automatic uploads start once the upload URL has been set.
+     */
+    void setUploadUrl(String uploadUrl) {
+        uploadEngine.setUrl(uploadUrl);
+        if (MainActivity.AUTO_UPLOAD && !uploadsStarted) {
+            uploadsStarted = true;
+            uploadScheduler.start();
+        }
+    }
+
+    /**
+     * Uploads all log data not uploaded yet; the listener is notified when done.
+     */
+    void uploadNow() {
+        uploadScheduler.uploadNow();
+    }
+
+    /**
+     * Selects the log format used from the next logging session on.
+     */
+    void setCompactLogFormat(boolean compactLogFormat) {
+        this.compactLogFormat = compactLogFormat;
+    }
+
+    boolean isLoggingEnabled() {
+        return loggingEnabled;
+    }
+
+    /**
+     * Starts logging data points to file and acquires wake-lock to do so while screen is off.
+     */
+    void startLogging() {
+        startLogging(UUID.randomUUID().toString());
+    }
+
+    /**
+     * Starts logging as part of the given session, e.g., one resumed from the ScanJournal.
+     */
+    private void startLogging(String sessionId) {
+        if (loggingEnabled) {
+            return;
+        }
+        loggingEnabled = true;
+        this.sessionId = sessionId;
+        log.info("Enabled logging to disk");
+        log.info("SessionID for remote logging: " + sessionId);
+
+        // keep running when the Activity unbinds
+        startService(new Intent(this, LoggingService.class));
+        startForeground(NOTIFICATION_ID, buildNotification());
+        wakeLock.acquire();
+        log.debug("Acquired wake-lock");
+
+        final String newSessionId = sessionId;
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!scanWriter.fileExtension().equals(selectedEncoder().fileExtension())) {
+                    scanWriter.close();
+                    pipeline.removeSink(scanWriter);
+                    scanWriter = createScanWriter();
+                    pipeline.addSink(scanWriter);
+                    log.info("Switched log format to {}", scanWriter.fileExtension());
+                }
+                scanWriter.beginSession(newSessionId);
+                sessionAps.clear();
+                if (scanJournal != null) {
+                    scanJournal.setSession(newSessionId, true);
+                }
+                if (scanStore != null) {
+                    scanStore.beginSession(newSessionId, Build.MODEL);
+                }
+                if (bleLane != null) {
+                    bleLane.beginSession(newSessionId);
+                    bleSource.start(bleLane);
+                }
+                locationProfileSelector.setLogging(true, System.currentTimeMillis());
+                updateLocationProfile();
+                publishSnapshot();
+            }
+        });
+    }
+
+    void stopLogging() {
+        if (!loggingEnabled) {
+            return;
+        }
+        loggingEnabled = false;
+        log.info("Disabled logging to disk");
+
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliverBatchedFixes();
+                pipeline.flushPending();
+                pipelineHandler.removeCallbacks(logPendingScans);
+                scanWriter.flush();
+                if (bleLane != null) {
+                    bleSource.stop();
+                    bleLane.flush();
+                }
+                if (scanJournal != null) {
+                    scanJournal.setSession(sessionId, false);
+                }
+                locationProfileSelector.setLogging(false, System.currentTimeMillis());
+                updateLocationProfile();
+                checkpointCoverage();
+                exportSessionAps();
+                publishSnapshot();
+            }
+        });
+
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+            log.debug("Released wake-lock");
+        }
+        stopForeground(true);
+        // keeps running as long as the Activity is bound
+        stopSelf();
+    }
+
+    /**
+     * Writes everything logged so far to disk, e.g., when the Activity is paused.
+     */
+    void flush() {
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                scanWriter.flush();
+            }
+        });
+    }
+
+    /**
+     * Automatic uploads wait for an unmetered, reasonably fast network and enough battery.
+     */
+    private boolean canUploadNow() {
+        if (batteryTooLowForUpload) {
+            return false;
+        }
+        NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+        if (network == null || !network.isConnected()) {
+            return false;
+        }
+        boolean metered = Build.VERSION.SDK_INT >= 16
+                ? connectivityManager.isActiveNetworkMetered()
+                : network.getType() == ConnectivityManager.TYPE_MOBILE;
+        return !metered && !isSlow(network);
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isScreenOn() {
+        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        return Build.VERSION.SDK_INT >= 20 ? powerManager.isInteractive() : powerManager.isScreenOn();
+    }
+
+    private static boolean isSlow(NetworkInfo network) {
+        if (network.getType() != ConnectivityManager.TYPE_MOBILE) {
+            return false;
+        }
+        switch (network.getSubtype()) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Called on the upload thread.
+     */
+    private void publishUploadResult(final boolean success, final boolean requested) {
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                publishSnapshot();
+            }
+        });
+        if (requested) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (snapshotListener != null) {
+                        snapshotListener.onUploadFinished(success);
+                    }
+                }
+            });
+        }
+    }
+
+    private Notification buildNotification() {
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        //noinspection deprecation: minSdkVersion 14, build() requires 16
+        return new Notification.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.logging_notification_text))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .getNotification();
+    }
+
+    private ScanEncoder selectedEncoder() {
+        if (!compactLogFormat) {
+            return new CsvRecordEncoder(Build.MODEL);
+        }
+        if (MainActivity.DELTA_LOGGING) {
+            return new CompactLogEncoder(Build.MODEL,
+                    MainActivity.DELTA_LEVEL_THRESHOLD_DB, MainActivity.DELTA_KEYFRAME_INTERVAL);
+        }
+        return new CompactLogEncoder(Build.MODEL);
+    }
+
+    private ScanBatchWriter createScanWriter() {
+        return new ScanBatchWriter(new File(MainActivity.LOG_DIR), MainActivity.LOG_FILE, selectedEncoder(),
+                MainActivity.DISK_FLUSH_POLICY, MainActivity.DISK_FLUSH_INTERVAL_MILLIS, scanJournal, metrics);
+    }
+
+    /**
+     * Maps the scan journal; the first writer using it writes what the last process didn't.
+     */
+    private ScanJournal openJournal() {
+        File directory = new File(MainActivity.LOG_DIR);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Could not create {}, scans aren't journaled", directory);
+            return null;
+        }
+        try {
+            return new ScanJournal(new File(directory, MainActivity.JOURNAL_FILE + "." + ScanJournal.FILE_EXTENSION),
+                    MainActivity.JOURNAL_SIZE);
+        } catch (IOException e) {
+            log.warn("Could not open scan journal, scans aren't journaled", e);
+            return null;
+        }
+    }
+
+    private void initWifiScan() {
+        log.trace("initWifi");
+        wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+        // deliver scan results on the pipeline thread
+        wifiSource = new WifiScanSource(this, pipelineHandler);
+    }
+
+    /**
+     * The SampleLane of a source other than wifi, logging to $LOG_DIR/$baseName.csv.
+     */
+    private SampleLane createLane(String name, String baseName, int capacity) {
+        // INTERVAL whatever the DISK_FLUSH_POLICY, a write per advertisement would be too many
+        ScanBatchWriter writer = new ScanBatchWriter(new File(MainActivity.LOG_DIR), baseName,
+                new CsvRecordEncoder(Build.MODEL), ScanBatchWriter.FlushPolicy.INTERVAL,
+                MainActivity.DISK_FLUSH_INTERVAL_MILLIS, null, capacity, PipelineStage.DropPolicy.BLOCK,
+                SampleLane.MAX_BLOCK_MILLIS, metrics.prefixed(name + "_writer_"));
+        return new SampleLane(name, writer, MainActivity.LOCATION_HISTORY_SIZE, capacity,
+                PipelineStage.DropPolicy.DROP_OLDEST, metrics);
+    }
+
+    private void buildGoogleApiClient() {
+        log.trace("Building GoogleApiClient");
+        googleApiClient = new GoogleApiClient.Builder(this)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .addApi(LocationServices.API)
+                .build();
+    }
+
+    /**
+     * Requests location updates of the current profile from the FusedLocationApi (replacing
+     * the previous request), delivered on the pipeline thread.
+     */
+    private void startLocationUpdates() {
+        LocationServices.FusedLocationApi.requestLocationUpdates(googleApiClient, locationProfile.locationRequest(),
+                this, pipelineThread.getLooper());
+        log.trace("Requesting GoogleApiClient location updates, profile {}", locationProfile);
+    }
+
+    /**
+     * Switches to the profile the selector picks now, if it's a different one.
+     */
+    private void updateLocationProfile() {
+        LocationProfile profile = locationProfileSelector.profile(System.currentTimeMillis());
+        if (profile == locationProfile) {
+            return;
+        }
+        log.debug("Location profile {} -> {}", locationProfile, profile);
+        locationProfile = profile;
+        locationProfileSwitches.increment();
+        if (googleApiClient != null && googleApiClient.isConnected()) {
+            startLocationUpdates();
+        }
+        if (!batchedFixes.isEmpty()) {
+            // the batch window may have become shorter
+            pipelineHandler.removeCallbacks(deliverBatchedFixes);
+            pipelineHandler.postDelayed(deliverBatchedFixes, Math.max(0,
+                    batchedFixTimes[0] + profile.batchMillis - System.currentTimeMillis()));
+        }
+        publishSnapshot();
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        long time = System.currentTimeMillis();
+        dataLog.trace("Location: {}", location);
+        locationFixes.increment();
+        locationProfileSelector.onFix(time, location.getLatitude(), location.getLongitude(),
+                location.getAccuracy(), location.hasSpeed() ? location.getSpeed() : Float.NaN);
+        if (batchFixes()) {
+            if (batchedFixes.size() == batchedFixTimes.length) {
+                batchedFixTimes = Arrays.copyOf(batchedFixTimes, batchedFixTimes.length * 2);
+            }
+            batchedFixTimes[batchedFixes.size()] = time;
+            batchedFixes.add(location);
+            if (batchedFixes.size() == 1) {
+                pipelineHandler.postDelayed(deliverBatchedFixes, locationProfile.batchMillis);
+            }
+        } else {
+            deliverBatchedFixes();
+            deliverFix(location, time);
+            publishSnapshot();
+        }
+        updateLocationProfile();
+    }
+
+    /**
+     * Whether fixes are held back: while the screen is off, nobody looks at them until the next
+     * scan needs them, unless a scan is already waiting for the next fix. Each fix still wakes
+     * the CPU when it arrives (see LocationProfile), this only saves the work done per fix.
+     */
+    private boolean batchFixes() {
+        return !locationProfileSelector.isScreenOn() && locationProfile.batchMillis > 0
+                && pipeline.nextDeadline() == Long.MAX_VALUE;
+    }
+
+    /**
+     * Hands the held back fixes to the pipeline, in the order they arrived (i.e., of their
+     * arrival times, by which they're indexed). Called before anything that depends on the
+     * latest location, e.g., a scan.
+     */
+    private void deliverBatchedFixes() {
+        pipelineHandler.removeCallbacks(deliverBatchedFixes);
+        int n = batchedFixes.size();
+        if (n == 0) {
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            deliverFix(batchedFixes.get(i), batchedFixTimes[i]);
+        }
+        batchedFixes.clear();
+        locationBatchSize.record(n);
+        publishSnapshot();
+    }
+
+    private void deliverFix(Location location, long time) {
+        currentLocation = location;
+        lastLocationUpdateTime = new Date(time);
+        onLocation(location, time);
+    }
+
+    /**
+     * Fixes are indexed by arrival time, which uses the same clock as the scan times.
+     */
+    private void onLocation(Location location, long time) {
+        StartupTrace.mark(StartupTrace.FIRST_FIX);
+        pipeline.onLocation(time, location.getLatitude(), location.getLongitude(), location.getAltitude(),
+                location.getAccuracy(), location.getSpeed());
+        if (bleLane != null) {
+            bleLane.onLocation(time, location.getLatitude(), location.getLongitude(), location.getAltitude(),
+                    location.getAccuracy(), location.getSpeed());
+        }
+        schedulePendingScans();
+    }
+
+    /**
+     * Updates scan statistics and returns the delay until the next scan should be started.
+     * Called on the pipeline thread whenever a scan completed.
+     */
+    long onScanCompleted(long scanTime, double apSetChange) {
+        double distance = Double.NaN;
+        float speed = Float.NaN;
+        if (locationHistory.estimate(scanTime, scanPosition)) {
+            speed = scanPosition.speed;
+            if (!Double.isNaN(lastScanLatitude)) {
+                distance = LocationHistory.distanceMeters(lastScanLatitude, lastScanLongitude,
+                        scanPosition.latitude, scanPosition.longitude);
+            }
+            lastScanLatitude = scanPosition.latitude;
+            lastScanLongitude = scanPosition.longitude;
+        }
+        scanRateStats.onScan(scanTime, distance);
+        updateLocationProfile();
+
+        long delay = scanScheduler.nextDelayMillis(distance, speed, apSetChange);
+        log.trace("Next wifi scan in {} ms", delay);
+        return delay;
+    }
+
+    /**
+     * Filters the scan added to pipeline.scan() and, if logging, stamps it with the location at
+     * scan time and writes it (or holds on to it until a later fix arrives, if configured).
+     * Called on the pipeline thread.
+     *
+     * @return the wifis matching the filter
+     */
+    ScanBatch onScan(long scanTime, String filterText) {
+        StartupTrace.mark(StartupTrace.FIRST_SCAN);
+        deliverBatchedFixes();
+        ScanBatch batch = pipeline.onScan(scanTime, filterText, loggingEnabled);
+        schedulePendingScans();
+        if (fingerprintLocator != null) {
+            locateScan(pipeline.scan());
+        }
+        return batch;
+    }
+
+    /**
+     * Estimates the position of a scan (all its wifis, not just those matching the filter)
+     * from the fingerprints logged before.
+     */
+    private void locateScan(ScanProcessor scan) {
+        if (scan.size() > scanBssids.length) {
+            scanBssids = new long[scan.size()];
+            scanLevels = new int[scan.size()];
+        }
+        int n = 0;
+        for (int i = 0; i < scan.size(); i++) {
+            ScanProcessor.Wifi wifi = scan.get(i);
+            long bssid = Bssids.parse(wifi.bssid);
+            if (bssid != Bssids.INVALID) {
+                scanBssids[n] = bssid;
+                scanLevels[n] = wifi.level;
+                n++;
+            }
+        }
+        long start = System.nanoTime();
+        boolean located = fingerprintLocator.locate(scanBssids, scanLevels, n, wifiPositionEstimate);
+        fingerprintLookup.record((System.nanoTime() - start) / 1000);
+        wifiPosition = located ? wifiPositionEstimate : null;
+    }
+
+    private void schedulePendingScans() {
+        pipelineHandler.removeCallbacks(logPendingScans);
+        long deadline = pipeline.nextDeadline();
+        if (deadline != Long.MAX_VALUE) {
+            pipelineHandler.postDelayed(logPendingScans, Math.max(0, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    private void writeMetrics() {
+        try {
+            metricsLog.write(System.currentTimeMillis(), sessionId);
+        } catch (IOException e) {
+            log.warn("Could not write metrics", e);
+        }
+    }
+
+    /**
+     * The settings logged with the metrics, so devices and settings can be compared.
+     */
+    private static String metricsConfig() {
+        return "adaptive=" + MainActivity.ADAPTIVE_WIFI_SCAN
+                + ";scanDelay=" + MainActivity.WIFI_SCAN_DELAY_MILLIS
+                + ";flush=" + MainActivity.DISK_FLUSH_POLICY
+                + ";delta=" + MainActivity.DELTA_LOGGING
+                + ";journal=" + MainActivity.SCAN_JOURNAL
+                + ";stationary=" + MainActivity.LOCATION_STATIONARY_MILLIS
+                + ";sdk=" + Build.VERSION.SDK_INT;
+    }
+
+    private File coverageFile() {
+        return new File(MainActivity.LOG_DIR, MainActivity.COVERAGE_FILE + "." + CoverageAggregator.FILE_EXTENSION);
+    }
+
+    /**
+     * Continues from the last checkpoint, if there's one with the configured cell size.
+     */
+    private CoverageAggregator loadCoverage() {
+        CoverageAggregator aggregator = new CoverageAggregator(MainActivity.COVERAGE_CELL_SIZE_METERS,
+                MainActivity.COVERAGE_MAX_ENTRIES);
+        File file = coverageFile();
+        if (file.exists()) {
+            try {
+                aggregator.readCheckpoint(file);
+                log.info("Coverage: {} entries, {} samples", aggregator.size(), aggregator.samples());
+            } catch (IOException e) {
+                log.warn("Could not read coverage checkpoint, starting over", e);
+                aggregator.clear();
+            }
+        }
+        return aggregator;
+    }
+
+    private File fingerprintFile() {
+        return new File(MainActivity.LOG_DIR, MainActivity.FINGERPRINT_FILE + "." + FingerprintIndex.FILE_EXTENSION);
+    }
+
+    /**
+     * Opens the fingerprint index, building it from the coverage statistics the first time.
+     * Without a usable index, positions are only estimated from fingerprints logged from now on.
+     */
+    private FingerprintLocator loadFingerprintLocator() {
+        File file = fingerprintFile();
+        FingerprintIndex index = null;
+        try {
+            if (!file.exists() && coverage != null && coverage.size() > 0) {
+                FingerprintIndex.write(coverage, file);
+                log.info("Built fingerprint index from {} coverage entries", coverage.size());
+            }
+            if (file.exists()) {
+                index = FingerprintIndex.open(file);
+                if (index.cellSizeMeters() != MainActivity.COVERAGE_CELL_SIZE_METERS) {
+                    log.warn("Fingerprint index has cells of {} m, ignoring it", index.cellSizeMeters());
+                    index = null;
+                } else {
+                    log.info("Fingerprints: {} BSSIDs, {} entries", index.bssidCount(), index.postingCount());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not read fingerprint index, starting over", e);
+        }
+        return new FingerprintLocator(index, MainActivity.COVERAGE_CELL_SIZE_METERS,
+                MainActivity.COVERAGE_MAX_ERROR_METERS, MainActivity.FINGERPRINT_MAX_DELTA_ENTRIES,
+                MainActivity.FINGERPRINT_NEIGHBOURS);
+    }
+
+    /**
+     * Merges the fingerprints logged since the index was written into the index file.
+     */
+    private void mergeFingerprints() {
+        if (fingerprintLocator == null || fingerprintLocator.deltaEntries() == 0) {
+            return;
+        }
+        try {
+            fingerprintLocator.merge(fingerprintFile());
+            log.debug("Fingerprint index: {} entries", fingerprintLocator.baseEntries());
+        } catch (IOException e) {
+            log.warn("Could not write fingerprint index", e);
+        }
+    }
+
+    /**
+     * Writes the APs seen most often in the session that just ended to disk.
+     */
+    private void exportSessionAps() {
+        if (sessionAps.scans() == 0) {
+            return;
+        }
+        File file = new File(MainActivity.LOG_DIR, MainActivity.SESSION_APS_FILE_PREFIX + sessionId + ".csv");
+        try {
+            sessionAps.writeCsv(file, MainActivity.SESSION_APS_EXPORT_COUNT);
+            log.info("Session saw {} APs in {} scans ({} evicted), wrote the top {} to {}", sessionAps.size(),
+                    sessionAps.scans(), sessionAps.evicted(), MainActivity.SESSION_APS_EXPORT_COUNT, file);
+        } catch (IOException e) {
+            log.warn("Could not write session APs", e);
+        }
+    }
+
+    /**
+     * Writes the coverage statistics to disk, if anything changed since the last time.
+     */
+    private void checkpointCoverage() {
+        if (coverage == null || !coverage.isModified()) {
+            return;
+        }
+        try {
+            coverage.writeCheckpoint(coverageFile());
+            log.debug("Coverage checkpoint: {} entries, {} samples ({} dropped)",
+                    coverage.size(), coverage.samples(), coverage.droppedSamples());
+        } catch (IOException e) {
+            log.warn("Could not write coverage checkpoint", e);
+        }
+    }
+
+    /**
+     * Runs when a GoogleApiClient object successfully connects.
+     */
+    @Override
+    public void onConnected(Bundle connectionHint) {
+        log.info("Connected to GoogleApiClient");
+        StartupTrace.mark(StartupTrace.LOCATION_CONNECTED);
+
+        if (currentLocation == null) {
+            Location lastLocation = LocationServices.FusedLocationApi.getLastLocation(googleApiClient);
+            if (lastLocation != null) {
+                // arrival time, like onLocationChanged()
+                deliverFix(lastLocation, System.currentTimeMillis());
+            } else {
+                lastLocationUpdateTime = new Date();
+            }
+            publishSnapshot();
+        }
+
+        startLocationUpdates();
+    }
+
+    @Override
+    public void onConnectionFailed(ConnectionResult result) {
+        log.warn("GoogleApiClient connection failed: ConnectionResult.getErrorCode() = {}", result.getErrorCode());
+        warn();
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        log.info("GoogleApiClient connection suspended, attempting reconnect");
+        googleApiClient.connect();
+    }
+
+    /**
+     * Hands the current state to the UI. Called on the pipeline thread.
+     */
+    void publishSnapshot() {
+        String metricsString = null;
+        if (showMetrics) {
+            StringBuilder sb = new StringBuilder(1024);
+            metrics.appendSummary(sb);
+            appendSessionAps(sb);
+            metricsString = sb.toString();
+        }
+        final ScanSnapshot snapshot = new ScanSnapshot(currentLocation, lastLocationUpdateTime,
+                lastWifiScanTime, wifiPosition, wifiList, loggingEnabled, locationProfile,
+                locationProfileSelector.selectedProfile() == null, scanRateStats, uploadScheduler, metricsString);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                lastSnapshot = snapshot;
+                if (snapshotListener != null) {
+                    snapshotListener.onSnapshot(snapshot);
+                }
+            }
+        });
+    }
+
+    private void appendSessionAps(StringBuilder sb) {
+        sb.append("session_aps: ").append(sessionAps.size())
+          .append(", evicted ").append(sessionAps.evicted()).append('\n');
+        int n = sessionAps.top(SessionBssidTable.BY_SIGHTINGS, topSessionAps);
+        for (int i = 0; i < n; i++) {
+            int slot = topSessionAps[i];
+            sb.append("  ").append(Bssids.format(sessionAps.bssid(slot)))
+              .append(' ').append(sessionAps.ssid(slot))
+              .append(": n ").append(sessionAps.count(slot))
+              .append(", level ").append(Math.round(sessionAps.level(slot)))
+              .append(" (").append(sessionAps.min(slot)).append("..").append(sessionAps.max(slot)).append(")\n");
+        }
+    }
+
+    private void warn() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (snapshotListener != null) {
+                    snapshotListener.onWarn();
+                }
+            }
+        });
+    }
+}
@@ -2,99 +2,226 @@ package com.tomjanson.wifilocationlogger;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.IntentFilter;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.location.Location;
 import android.media.Ringtone;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.PowerManager;
-import android.support.annotation.NonNull;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.Spinner;
 import android.widget.TextView;
-
-import android.net.wifi.WifiManager;
-
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
-import com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener;
-import com.google.android.gms.location.LocationListener;
-import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationServices;
+import android.widget.Toast;
 
 import java.text.DateFormat;
-import java.util.Date;
-import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ch.qos.logback.classic.LoggerContext;
-
 /*
  * Location update code based on:
  *     https://developer.android.com/training/location/receive-location-updates.html
  * Wifi scan code loosely based on:
  *     http://www.tutorialspoint.com/android/android_wi_fi.htm
  *     https://github.com/Skarbo/WifiMapper
+ *
+ * Scanning, location updates and logging are done by LoggingService,
+ * this Activity only displays its ScanSnapshots and forwards user input.
  */
 
-public class MainActivity extends Activity implements
-        ConnectionCallbacks, OnConnectionFailedListener, LocationListener {
+public class MainActivity extends Activity implements LoggingService.SnapshotListener {
 
     // Logback loggers, see https://github.com/tony19/logback-android
     Logger log;       // regular log/debug messages
-    Logger dataLog;   // sensor data (geo, wifi) for debugging (verbose)
-    Logger diskLog;   // pretty CSV output, i.e., the "product" of this app
+
+    // pretty CSV (or compact binary) output, i.e., the "product" of this app
+    static final String LOG_DIR  = "/sdcard/WifiLocationLogger";
+    static final String LOG_FILE = "wifilog";
+
+    // Debug logs (see LoggingConfig): logcat, and $LOG_DIR/$LOG_FILE.trace.txt (all levels) and
+    // $LOG_FILE.debug.txt (DEBUG and up), opened after the first frame. With DATA_FILE_LOG, every fix and
+    // unfiltered scan also goes to the trace file, e.g., for the replay tool.
+    static final boolean TRACE_FILE_LOG = true;
+    static final boolean DEBUG_FILE_LOG = false;
+    static final boolean DATA_FILE_LOG  = false;
+
+    // when scans written by LoggingService actually hit the disk (it's always flushed on pause)
+    static final ScanBatchWriter.FlushPolicy DISK_FLUSH_POLICY = ScanBatchWriter.FlushPolicy.EVERY_SCAN;
+    static final long DISK_FLUSH_INTERVAL_MILLIS = 10000;
+
+    // Until they're written to the log file, scans are journaled in a memory-mapped ring,
+    // $LOG_DIR/$JOURNAL_FILE.wlj (see ScanJournal), so none are lost if the process is killed,
+    // whatever the DISK_FLUSH_POLICY. LoggingService is restarted then (it's sticky while logging),
+    // writes them to the log and resumes the session.
+    static final boolean SCAN_JOURNAL = true;
+    static final String  JOURNAL_FILE = "journal";
+    static final int     JOURNAL_SIZE = 1024 * 1024;   // must be larger than ScanBatchWriter's buffer
+
+    // In the compact format, scans can be logged as changes to the previous one (see CompactLogEncoder):
+    // only wifis that appeared, disappeared or whose level changed by more than DELTA_LEVEL_THRESHOLD_DB,
+    // with a full scan at least every DELTA_KEYFRAME_INTERVAL scans.
+    static final boolean DELTA_LOGGING = false;
+    static final int     DELTA_LEVEL_THRESHOLD_DB = 2;
+    static final int     DELTA_KEYFRAME_INTERVAL = 60;
 
     // anti-spam filter on server
     static final String UPLOAD_SECRET = "sLlx6PaL";
 
-    // unique ID sent to server to distinguish clients
-    // changes every time logging is enabled
-    static String sessionId;
-
-    // Location update intervals
-    // it seems the updates take at least 5s; setting it lower doesn't seem to work
-    static final long LOCATION_UPDATE_INTERVAL_MILLIS = 3000;
-    static final long FASTEST_LOCATION_UPDATE_INTERVAL_MILLIS = 1000;
+    // Uploads (see UploadEngine, UploadScheduler): chunk and request size (uncompressed),
+    // how often new data is uploaded automatically, and backoff after failures.
+    // Automatic uploads wait for an unmetered network and at least UPLOAD_MIN_BATTERY_LEVEL (or charging).
+    static final boolean AUTO_UPLOAD = true;
+    static final int     UPLOAD_CHUNK_SIZE = 256 * 1024;
+    static final int     UPLOAD_BATCH_SIZE = 1024 * 1024;
+    static final long    UPLOAD_INTERVAL_MILLIS = 15 * 60 * 1000;
+    static final long    UPLOAD_MIN_BACKOFF_MILLIS = 30 * 1000;
+    static final long    UPLOAD_MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+    static final float   UPLOAD_MIN_BATTERY_LEVEL = 0.3f;
+
+    // Rolled log files are gzipped in the background, every LOG_COMPACTION_INTERVAL_MILLIS (see LogCompactor).
+    // Once the log files (the BLE log's included) take more than LOG_MAX_BYTES, the oldest are deleted,
+    // if they have been uploaded (the BLE log's in any case, they aren't).
+    static final long LOG_COMPACTION_INTERVAL_MILLIS = 60 * 60 * 1000;
+    static final long LOG_MAX_BYTES = 512L * 1024 * 1024;
+
+    // Location updates: priority, intervals and batching of each profile are in LocationProfile.
+    // Unless the user picks one, it's selected by LocationProfileSelector, SURVEY while logging on the
+    // move, BALANCED after LOCATION_STATIONARY_MILLIS without movement.
+    // (SURVEY asks for a fix every 3 s; it seems the updates take at least 5 s, lower doesn't seem to work)
+    static final long LOCATION_STATIONARY_MILLIS = 2 * 60 * 1000;
 
     // Wifi scan delay (i.e., wait $delay between completion of scan and start of next scan)
     static final long WIFI_SCAN_DELAY_MILLIS = 2000;
 
-    // TODO: try different delays
-
-    // Instance state Bundle keys,
-    // see https://developer.android.com/training/basics/activity-lifecycle/recreating.html
-    private final static String LOCATION_KEY                         = "location-key";
-    private final static String LAST_LOCATION_UPDATE_TIME_STRING_KEY = "last-location-update-time-string-key";
-    private final static String LAST_WIFI_SCAN_TIME_STRING_KEY       = "last-wifi-scan-time-string-key";
-    private final static String LOGGING_ENABLED_KEY                  = "logging-enabled-key";
-
-    // Used to access Fused Location API,
-    // see https://developer.android.com/google/play-services/location.html
-    private GoogleApiClient googleApiClient;
-    private LocationRequest locationRequest;
-    Location currentLocation;
-
-    // Wifi scan stuff
-            static WifiManager           wifiManager;
-    private static IntentFilter          wifiIntentFilter;
-    private static WifiBroadcastReceiver wifiBroadcastReceiver;
-
-    // toggles logging location+wifi to file
-    // debug logs may be created regardless of this
-    boolean loggingEnabled = false;
+    // If adaptive, the delay depends on movement, AP set changes and battery, see AdaptiveScanScheduler;
+    // otherwise it's always WIFI_SCAN_DELAY_MILLIS
+    static final boolean ADAPTIVE_WIFI_SCAN = true;
+    static final long    WIFI_SCAN_MIN_DELAY_MILLIS = 1000;
+    static final long    WIFI_SCAN_MAX_DELAY_MILLIS = 30000;
+    static final double  WIFI_SCAN_TARGET_DISTANCE_METERS = 10;
+
+    // window for the achieved scans per minute / per meter shown in the UI
+    static final long SCAN_RATE_WINDOW_MILLIS = 5 * 60 * 1000;
+
+    // Scans are stamped with the location interpolated for the scan time, using this many recent fixes.
+    // Optionally, logging a scan waits (at most the given time) for the first fix after it.
+    static final int     LOCATION_HISTORY_SIZE = 32;
+    static final boolean WAIT_FOR_BRACKETING_FIX = false;
+    static final long    BRACKETING_FIX_MAX_WAIT_MILLIS = 5000;
+
+    // Logged scans are also aggregated per hexagonal cell and BSSID (see CoverageAggregator),
+    // checkpointed to $LOG_DIR/$COVERAGE_FILE.wla. Scans whose location is less accurate than
+    // COVERAGE_MAX_ERROR_METERS (accuracy + interpolation error) aren't aggregated.
+    static final boolean COVERAGE_AGGREGATION = true;
+    static final String  COVERAGE_FILE = "coverage";
+    static final double  COVERAGE_CELL_SIZE_METERS = 25;
+    static final int     COVERAGE_MAX_ENTRIES = 150000;   // table of about 10 MB
+    static final float   COVERAGE_MAX_ERROR_METERS = 50;
+    static final long    COVERAGE_CHECKPOINT_INTERVAL_MILLIS = 60 * 1000;
+
+    // The position of each scan is also estimated from the fingerprints logged before (see
+    // FingerprintLocator), without GPS, and shown in the UI. Fingerprints are indexed in
+    // $LOG_DIR/$FINGERPRINT_FILE.wfi, built from the coverage statistics if missing, with the
+    // cells of COVERAGE_CELL_SIZE_METERS. Newly logged scans are merged into the file once there
+    // are FINGERPRINT_MAX_DELTA_ENTRIES new (cell, BSSID) pairs, and when the service stops.
+    static final boolean FINGERPRINT_POSITIONING = true;
+    static final String  FINGERPRINT_FILE = "fingerprints";
+    static final int     FINGERPRINT_MAX_DELTA_ENTRIES = 50000;
+    static final int     FINGERPRINT_NEIGHBOURS = 4;
+
+    // Logged scans can also be inserted into an indexed SQLite database, $LOG_DIR/$DATABASE_FILE
+    // (see ScanStore), for queries by BSSID, area and time. The log files are written regardless.
+    static final boolean LOG_TO_DATABASE = false;
+    static final String  DATABASE_FILE = "scans.db";
+
+    // While logging, Bluetooth LE advertisements (see BleBeaconSource) are logged to
+    // $LOG_DIR/$BLE_LOG_FILE.csv, in the wifi log's row format, through a SampleLane of their own
+    // (BLE_LANE_CAPACITY advertisements queued per stage and in its writer, the oldest are dropped
+    // when it falls behind), filtered by BLE_FILTER (see ScanFilter). They're written every
+    // DISK_FLUSH_INTERVAL_MILLIS, whatever the DISK_FLUSH_POLICY. These logs aren't uploaded, but
+    // compressed and deleted within LOG_MAX_BYTES along with the wifi log (see LogCompactor).
+    static final boolean BLE_LOGGING = false;
+    static final String  BLE_LOG_FILE = "blelog";
+    static final String  BLE_FILTER = "";
+    static final int     BLE_LANE_CAPACITY = 256;
+    static final long    BLE_REPORT_DELAY_MILLIS = 5000;
+
+    // Per-BSSID statistics of the current session (see SessionBssidTable), in at most about 4 MB.
+    // The top ones are shown on the debug panel; when logging stops, the SESSION_APS_EXPORT_COUNT
+    // seen most often are written to $LOG_DIR/$SESSION_APS_FILE_PREFIX$sessionId.csv.
+    static final int    SESSION_APS_MAX_ENTRIES = 96 * 1024;
+    static final int    SESSION_APS_SHOWN = 5;
+    static final int    SESSION_APS_EXPORT_COUNT = 1000;
+    static final String SESSION_APS_FILE_PREFIX = "aps.";
+
+    // pipeline metrics (see Metrics) are written to $LOG_DIR/$METRICS_FILE every interval,
+    // and shown on the debug panel
+    static final String METRICS_FILE = "metrics.csv";
+    static final long   METRICS_INTERVAL_MILLIS = 60 * 1000;
+
+    // the UI is redrawn at most this often, snapshots arriving in between are coalesced
+    static final int UI_MAX_UPDATES_PER_SECOND = 4;
+
+    // starts logging once the service is bound, e.g., for benchmarks/startup.sh
+    static final String EXTRA_START_LOGGING = "com.tomjanson.wifilocationlogger.START_LOGGING";
+
+    // bound while the Activity is visible, null otherwise
+    private LoggingService loggingService;
+    private boolean serviceBound;
+
+    // The service (and with it location and wifi) is only brought up once the first frame is
+    // drawn: runnables posted to a view that isn't attached yet run after its first traversal.
+    private final Runnable bindLoggingService = new Runnable() {
+        @Override
+        public void run() {
+            StartupTrace.mark(StartupTrace.FIRST_FRAME);
+            LoggingConfig.startFileLogging();
+            bindService(new Intent(MainActivity.this, LoggingService.class), serviceConnection, Context.BIND_AUTO_CREATE);
+            serviceBound = true;
+            log.trace("Binding LoggingService ...");
+        }
+    };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            log.trace("LoggingService connected");
+            loggingService = ((LoggingService.LocalBinder) binder).getService();
+            loggingService.setFilterText(wifiFilterET.getText().toString());
+            loggingService.setCompactLogFormat(compactLogCB.isChecked());
+            loggingService.setLocationProfile(selectedLocationProfile());
+            loggingService.setShowMetrics(showMetricsCB.isChecked());
+            loggingService.setUploadUrl(uploadUrlET.getText().toString());
+            loggingService.setSnapshotListener(MainActivity.this);
+            if (getIntent().getBooleanExtra(EXTRA_START_LOGGING, false)) {
+                getIntent().removeExtra(EXTRA_START_LOGGING);
+                loggingService.startLogging();
+            }
+            updateUI();
+        }
 
-    // wake-lock to (hopefully) continue logging while screen is off
-    private PowerManager.WakeLock wakeLock;
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            log.trace("LoggingService disconnected");
+            loggingService = null;
+        }
+    };
 
     // UI Elements
     Button   loggingButton;
@@ -102,19 +229,41 @@ public class MainActivity extends Activity implements
     TextView locationTV;
     TextView locationAccuracyTV;
     TextView locationUpdateTV;
-    Date     lastLocationUpdateTime;
-    TextView wifiTV;
+    Spinner  locationProfileSpinner;
+    TextView locationProfileTV;
+    TextView wifiPositionTV;
+    LinearLayout wifiListLayout;
     EditText wifiFilterET;
+    CheckBox compactLogCB;
     TextView wifiUpdateTV;
-    String   wifiListString;
-    Date     lastWifiScanTime;
+    TextView scanRateTV;
+    TextView uploadQueueTV;
+    CheckBox showMetricsCB;
+    TextView metricsTV;
+
+    // latest state received from LoggingService
+    private ScanSnapshot snapshot;
+
+    // see UI_MAX_UPDATES_PER_SECOND
+    private final Handler handler = new Handler();
+    private long lastUpdateTime;
+    private boolean updateScheduled;
+    private final Runnable scheduledUpdate = new Runnable() {
+        @Override
+        public void run() {
+            updateScheduled = false;
+            updateUI();
+        }
+    };
+
+    private WifiListRenderer wifiList;
+    private DateFormat timeFormat;
 
     // keys for saving user preferences
     private final static String SSID_FILTER_PREFERENCE_KEY = "ssid-filter-preference-key";
     private final static String UPLOAD_URL_PREFERENCE_KEY  = "upload-url-preference-key";
-
-    // will be incremented when log format changes
-    final static int LOG_FORMAT_VERSION = 1;
+    private final static String COMPACT_LOG_PREFERENCE_KEY = "compact-log-preference-key";
+    private final static String LOCATION_PROFILE_PREFERENCE_KEY = "location-profile-preference-key";
 
     private final static int APP_VERSION = 1;
 
@@ -123,29 +272,87 @@ public class MainActivity extends Activity implements
         super.onCreate(savedInstanceState);
 
         log = LoggerFactory.getLogger(MainActivity.class);
-        dataLog = LoggerFactory.getLogger("data");
-        diskLog = LoggerFactory.getLogger("disk");
         log.info("Started; " + APP_VERSION + ", " + Build.VERSION.RELEASE + ", " + Build.ID + ", " + Build.MODEL);
 
         setContentView(R.layout.activity_main);
 
         assignUiElements();
+        wifiList = new WifiListRenderer(wifiListLayout);
+        timeFormat = DateFormat.getTimeInstance();
 
         // restore saved preferences
         SharedPreferences sharedPref = this.getPreferences(Context.MODE_PRIVATE);
         wifiFilterET.setText(sharedPref.getString(SSID_FILTER_PREFERENCE_KEY, getString(R.string.ssid_filter_default)));
         uploadUrlET.setText(sharedPref.getString(UPLOAD_URL_PREFERENCE_KEY, getString(R.string.upload_url_default)));
+        compactLogCB.setChecked(sharedPref.getBoolean(COMPACT_LOG_PREFERENCE_KEY, false));
+        int locationProfile = sharedPref.getInt(LOCATION_PROFILE_PREFERENCE_KEY, 0);
+        if (locationProfile <= LocationProfile.values().length) {
+            locationProfileSpinner.setSelection(locationProfile);
+        }
 
-        // restore state on Activity recreation
-        updateValuesFromBundle(savedInstanceState);
+        // forward settings to the service as they change, it never reads widgets itself
+        wifiFilterET.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
 
-        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
-        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MyWakelockTag");
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
 
-        buildGoogleApiClient();
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (loggingService != null) {
+                    loggingService.setFilterText(s.toString());
+                }
+            }
+        });
+        uploadUrlET.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
 
-        initWifiScan();
-        wifiManager.startScan();
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (loggingService != null) {
+                    loggingService.setUploadUrl(s.toString());
+                }
+            }
+        });
+        compactLogCB.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (loggingService != null) {
+                    loggingService.setCompactLogFormat(isChecked);
+                }
+            }
+        });
+        locationProfileSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (loggingService != null) {
+                    loggingService.setLocationProfile(selectedLocationProfile());
+                }
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+        showMetricsCB.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                metricsTV.setVisibility(isChecked ? View.VISIBLE : View.GONE);
+                if (loggingService != null) {
+                    loggingService.setShowMetrics(isChecked);
+                }
+            }
+        });
+        StartupTrace.mark(StartupTrace.ACTIVITY_CREATED);
     }
 
     private void assignUiElements() {
@@ -154,130 +361,95 @@ public class MainActivity extends Activity implements
         locationTV          = (TextView) findViewById(R.id.locationTextView);
         locationAccuracyTV  = (TextView) findViewById(R.id.locationAccuracyTextView);
         locationUpdateTV    = (TextView) findViewById(R.id.locationUpdateTextView);
-        wifiTV              = (TextView) findViewById(R.id.wifiTextView);
+        locationProfileSpinner = (Spinner) findViewById(R.id.locationProfileSpinner);
+        locationProfileTV   = (TextView) findViewById(R.id.locationProfileTextView);
+        wifiPositionTV      = (TextView) findViewById(R.id.wifiPositionTextView);
+        wifiListLayout      = (LinearLayout) findViewById(R.id.wifiListLayout);
         wifiFilterET        = (EditText) findViewById(R.id.wifiFilterEditText);
+        compactLogCB        = (CheckBox) findViewById(R.id.compactLogCheckBox);
         wifiUpdateTV        = (TextView) findViewById(R.id.wifiUpdateTextView);
-    }
-
-    void updateUI() {
-        if (currentLocation != null) {
-            locationTV.setText(currentLocation.getLatitude() + ", " + currentLocation.getLongitude());
-            locationAccuracyTV.setText(currentLocation.getAccuracy() + " m");
-        }
-        if (lastLocationUpdateTime != null) {
-            locationUpdateTV.setText(DateFormat.getTimeInstance().format(lastLocationUpdateTime));
-        }
-        if (lastWifiScanTime != null) {
-            wifiUpdateTV.setText(DateFormat.getTimeInstance().format(lastWifiScanTime));
-        }
-        if (wifiListString != null) {
-            wifiTV.setText(wifiListString);
-        }
-
-        loggingButton.setText(loggingEnabled ? R.string.logging_stop : R.string.logging_start);
-
+        scanRateTV          = (TextView) findViewById(R.id.scanRateTextView);
+        uploadQueueTV       = (TextView) findViewById(R.id.uploadQueueTextView);
+        showMetricsCB       = (CheckBox) findViewById(R.id.showMetricsCheckBox);
+        metricsTV           = (TextView) findViewById(R.id.metricsTextView);
     }
 
     /**
-     * Toggles logging data points to file and aquires wake-lock to do so while screen is off.
+     * The location profile picked in the spinner, whose first item is automatic (null).
      */
-    public void toggleLogging(View view) {
-        loggingEnabled = !loggingEnabled;
-        log.info((loggingEnabled ? "En" : "Dis") + "abled logging to disk");
-
-        if (loggingEnabled) {
-            sessionId = UUID.randomUUID().toString();
-            log.info("SessionID for remote logging: " + sessionId);
-            wakeLock.acquire();
-            log.debug("Acquired wake-lock");
-        } else if (wakeLock.isHeld()) {
-            wakeLock.release();
-            log.debug("Released wake-lock");
-        }
-
-        updateUI();
+    private LocationProfile selectedLocationProfile() {
+        int position = locationProfileSpinner.getSelectedItemPosition();
+        return position > 0 ? LocationProfile.values()[position - 1] : null;
     }
 
-    private void initWifiScan() {
-        log.trace("initWifi");
-        wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
-        wifiBroadcastReceiver = new WifiBroadcastReceiver(this);
-        wifiIntentFilter = new IntentFilter();
-        wifiIntentFilter.addAction(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
-        this.registerReceiver(wifiBroadcastReceiver, wifiIntentFilter);
-        log.debug("Registered WifiBroadcastReceiver");
-    }
-
-    private void updateValuesFromBundle(Bundle savedInstanceState) {
-        log.debug("Updating values from Bundle");
-        if (savedInstanceState != null) {
-            if (savedInstanceState.keySet().contains(LOCATION_KEY)) {
-                currentLocation = savedInstanceState.getParcelable(LOCATION_KEY);
+    void updateUI() {
+        lastUpdateTime = SystemClock.uptimeMillis();
+        if (snapshot != null) {
+            if (snapshot.hasLocation) {
+                locationTV.setText(snapshot.latitude + ", " + snapshot.longitude);
+                locationAccuracyTV.setText(snapshot.accuracy + " m");
             }
-            if (savedInstanceState.keySet().contains(LAST_LOCATION_UPDATE_TIME_STRING_KEY)) {
-                lastLocationUpdateTime = new Date(savedInstanceState.getLong(LAST_LOCATION_UPDATE_TIME_STRING_KEY));
+            if (snapshot.lastLocationUpdateTime != null) {
+                locationUpdateTV.setText(timeFormat.format(snapshot.lastLocationUpdateTime));
             }
-            if (savedInstanceState.keySet().contains(LAST_WIFI_SCAN_TIME_STRING_KEY)) {
-                lastWifiScanTime = new Date(savedInstanceState.getLong(LAST_WIFI_SCAN_TIME_STRING_KEY));
+            if (snapshot.locationProfile != null) {
+                String profile = getResources().getStringArray(R.array.location_profiles)[snapshot.locationProfile.ordinal() + 1];
+                locationProfileTV.setText(snapshot.locationProfileAutomatic
+                        ? getString(R.string.location_profile_automatic_format, profile) : profile);
             }
-            if (savedInstanceState.keySet().contains(LOGGING_ENABLED_KEY)) {
-                loggingEnabled = savedInstanceState.getBoolean(LOGGING_ENABLED_KEY);
+            if (snapshot.hasWifiPosition) {
+                wifiPositionTV.setText(getString(R.string.wifi_position_format, snapshot.wifiLatitude,
+                        snapshot.wifiLongitude, snapshot.wifiAccuracy, snapshot.wifiConfidence * 100));
+            }
+            if (snapshot.lastWifiScanTime != null) {
+                wifiUpdateTV.setText(timeFormat.format(snapshot.lastWifiScanTime));
+            }
+            if (snapshot.scansPerMinute > 0) {
+                scanRateTV.setText(getString(R.string.scan_rate_format, snapshot.scansPerMinute,
+                        Double.isNaN(snapshot.scansPerMeter) ? 0 : snapshot.scansPerMeter));
+            }
+            if (snapshot.uploadQueuedBytes >= 0) {
+                uploadQueueTV.setText(getString(R.string.upload_queue_format,
+                        snapshot.uploadQueuedBytes / 1024, snapshot.uploadThroughput / 1024));
+            }
+            wifiList.show(snapshot.wifiList);
+            if (snapshot.metricsString != null) {
+                metricsTV.setText(snapshot.metricsString);
             }
-            updateUI();
         }
-    }
 
-    synchronized void buildGoogleApiClient() {
-        log.trace("Building GoogleApiClient");
-        googleApiClient = new GoogleApiClient.Builder(this)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .addApi(LocationServices.API)
-                .build();
-        createLocationRequest();
+        boolean loggingEnabled = loggingService != null && loggingService.isLoggingEnabled();
+        loggingButton.setText(loggingEnabled ? R.string.logging_stop : R.string.logging_start);
     }
 
-    void createLocationRequest() {
-        locationRequest = new LocationRequest();
-
-        // Sets the desired interval for active location updates. This interval is
-        // inexact. You may not receive updates at all if no location sources are available, or
-        // you may receive them slower than requested. You may also receive updates faster than
-        // requested if other applications are requesting location at a faster interval.
-        locationRequest.setInterval(LOCATION_UPDATE_INTERVAL_MILLIS);
-
-        // Sets the fastest rate for active location updates. This interval is exact, and your
-        // application will never receive updates faster than this value.
-        locationRequest.setFastestInterval(FASTEST_LOCATION_UPDATE_INTERVAL_MILLIS);
-
-        locationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+    @Override
+    public void onSnapshot(ScanSnapshot snapshot) {
+        this.snapshot = snapshot;
+        if (updateScheduled) {
+            return;
+        }
+        long wait = lastUpdateTime + 1000 / UI_MAX_UPDATES_PER_SECOND - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+            updateUI();
+        } else {
+            updateScheduled = true;
+            handler.postDelayed(scheduledUpdate, wait);
+        }
     }
 
     /**
-     * Requests location updates from the FusedLocationApi.
+     * Toggles logging data points to file (done by LoggingService, which keeps going while screen is off).
      */
-    void startLocationUpdates() {
-        // The final argument to {@code requestLocationUpdates()} is a LocationListener
-        // (http://developer.android.com/reference/com/google/android/gms/location/LocationListener.html).
-        LocationServices.FusedLocationApi.requestLocationUpdates(googleApiClient, locationRequest, this);
-        log.trace("Requesting GoogleApiClient location updates");
-    }
-
-    void stopLocationUpdates() {
-        if (googleApiClient.isConnected()) {
-            LocationServices.FusedLocationApi.removeLocationUpdates(googleApiClient, this);
-            log.trace("Stopped location updates");
+    public void toggleLogging(View view) {
+        if (loggingService == null) {
+            log.warn("Attempted to toggle logging, but LoggingService is not bound");
+            return;
+        }
+        if (loggingService.isLoggingEnabled()) {
+            loggingService.stopLogging();
         } else {
-            log.warn("Attempted to stop location updates, but not connected");
-            onWarn();
+            loggingService.startLogging();
         }
-    }
-
-    @Override
-    public void onLocationChanged(Location location) {
-        dataLog.trace("Location: {}", location);
-        currentLocation = location;
-        lastLocationUpdateTime = new Date();
         updateUI();
     }
 
@@ -285,23 +457,7 @@ public class MainActivity extends Activity implements
     protected void onStart() {
         super.onStart();
         log.trace("onStart");
-        googleApiClient.connect();
-        log.trace("Connecting GoogleApiClient ...");
-    }
-
-    @Override
-    protected void onResume() {
-        super.onResume();
-        log.trace("onResume");
-        if (googleApiClient.isConnected()) {
-            startLocationUpdates();
-        }
-
-        if (!loggingEnabled) {
-            this.registerReceiver(wifiBroadcastReceiver, wifiIntentFilter);
-            log.trace("Registered WifiBroadcastReceiver");
-            wifiManager.startScan();
-        }
+        getWindow().getDecorView().post(bindLoggingService);
     }
 
     @Override
@@ -309,12 +465,11 @@ public class MainActivity extends Activity implements
         super.onPause();
         log.trace("onPause");
 
-        if (!loggingEnabled) {
-            this.unregisterReceiver(wifiBroadcastReceiver);
-            log.debug("Unregistered WifiBroadcastReceiver");
-            stopLocationUpdates();
-        } else {
-            log.debug("onPause called, but logging to file; we'll keep going");
+        if (loggingService != null) {
+            loggingService.flush();
+            if (loggingService.isLoggingEnabled()) {
+                log.debug("onPause called, but logging to file; we'll keep going");
+            }
         }
     }
 
@@ -323,85 +478,28 @@ public class MainActivity extends Activity implements
         super.onStop();
         log.trace("onStop");
 
-        if (!loggingEnabled) {
-            disconnectGoogleApiClient();
+        // if not logging, this stops the service (and with it scanning and location updates)
+        if (loggingService != null) {
+            loggingService.setSnapshotListener(null);
+            loggingService = null;
+        }
+        getWindow().getDecorView().removeCallbacks(bindLoggingService);
+        if (serviceBound) {
+            unbindService(serviceConnection);
+            serviceBound = false;
         }
+        handler.removeCallbacks(scheduledUpdate);
+        updateScheduled = false;
 
         // save preferences or other persisting stuff
         SharedPreferences.Editor prefEditor = this.getPreferences(Context.MODE_PRIVATE).edit();
         prefEditor.putString(SSID_FILTER_PREFERENCE_KEY, wifiFilterET.getText().toString());
         prefEditor.putString(UPLOAD_URL_PREFERENCE_KEY, uploadUrlET.getText().toString());
+        prefEditor.putBoolean(COMPACT_LOG_PREFERENCE_KEY, compactLogCB.isChecked());
+        prefEditor.putInt(LOCATION_PROFILE_PREFERENCE_KEY, locationProfileSpinner.getSelectedItemPosition());
         prefEditor.apply();
     }
 
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        log.trace("onDestroy");
-
-        disconnectGoogleApiClient();
-
-        if (loggingEnabled) {
-            this.unregisterReceiver(wifiBroadcastReceiver);
-            log.trace("Unregistered WifiBroadcastReceiver");
-        }
-
-        // assume SLF4J is bound to logback-classic in the current environment
-        LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
-        loggerContext.stop();
-    }
-
-    private void disconnectGoogleApiClient() {
-        if (googleApiClient.isConnected()) {
-            googleApiClient.disconnect();
-            log.trace("GoogleApiClient disconnected");
-        }
-    }
-
-    /**
-     * Runs when a GoogleApiClient object successfully connects.
-     */
-    @Override
-    public void onConnected(Bundle connectionHint) {
-        log.info("Connected to GoogleApiClient");
-
-        if (currentLocation == null) {
-            currentLocation = LocationServices.FusedLocationApi.getLastLocation(googleApiClient);
-            lastLocationUpdateTime = new Date();
-            updateUI();
-        }
-
-        startLocationUpdates();
-    }
-
-    @Override
-    public void onConnectionFailed(ConnectionResult result) {
-        log.warn("GoogleApiClient connection failed: ConnectionResult.getErrorCode() = {}", result.getErrorCode());
-        onWarn();
-    }
-
-    @Override
-    public void onConnectionSuspended(int cause) {
-        log.info("GoogleApiClient connection suspended, attempting reconnect");
-        googleApiClient.connect();
-    }
-
-    /**
-     * Stores activity data in the Bundle.
-     */
-    @Override
-    public void onSaveInstanceState(@NonNull Bundle savedInstanceState) {
-        savedInstanceState.putParcelable(LOCATION_KEY, currentLocation);
-        if (lastLocationUpdateTime != null) {
-            savedInstanceState.putLong(LAST_LOCATION_UPDATE_TIME_STRING_KEY, lastLocationUpdateTime.getTime());
-        }
-        if (lastWifiScanTime != null) {
-            savedInstanceState.putLong(LAST_WIFI_SCAN_TIME_STRING_KEY, lastWifiScanTime.getTime());
-        }
-        savedInstanceState.putBoolean(LOGGING_ENABLED_KEY, loggingEnabled);
-        super.onSaveInstanceState(savedInstanceState);
-    }
-
     /**
      * Clears focus from EditText (the SSID filter).
      * This is needed because EditText grabs focus and opens the keyboard, which is annoying.
@@ -415,10 +513,22 @@ public class MainActivity extends Activity implements
     }
 
     public void triggerUpload(View view) {
-        Uploader.upload(this, "/sdcard/WifiLocationLogger/wifilog.csv");
+        if (loggingService == null) {
+            log.warn("Attempted to upload, but LoggingService is not bound");
+            return;
+        }
+        loggingService.flush();
+        loggingService.uploadNow();
     }
 
-    private void onWarn() {
+    @Override
+    public void onUploadFinished(boolean success) {
+        Toast.makeText(this, getString(success ? R.string.upload_successful : R.string.upload_failed),
+                Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    public void onWarn() {
         try {
             Uri notification = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
             Ringtone r = RingtoneManager.getRingtone(getApplicationContext(), notification);
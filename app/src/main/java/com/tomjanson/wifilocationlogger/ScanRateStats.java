@@ -0,0 +1,62 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * Achieved scan rate over a sliding window: scans per minute and scans per meter moved.
+ *
+ * Keeps the time and distance of the most recent scans in primitive ring buffers.
+ */
+final class ScanRateStats {
+    private final long windowMillis;
+    private final long[] times;
+    private final double[] distances;
+    private int start;
+    private int size;
+
+    ScanRateStats(long windowMillis, int maxScans) {
+        this.windowMillis = windowMillis;
+        this.times = new long[maxScans];
+        this.distances = new double[maxScans];
+    }
+
+    /**
+     * @param distanceMeters distance moved since the previous scan, NaN if unknown
+     */
+    void onScan(long timeMillis, double distanceMeters) {
+        if (size == times.length) {
+            start = (start + 1) % times.length;
+            size--;
+        }
+        int i = (start + size) % times.length;
+        times[i] = timeMillis;
+        distances[i] = Double.isNaN(distanceMeters) ? 0 : distanceMeters;
+        size++;
+        expire(timeMillis);
+    }
+
+    double scansPerMinute() {
+        if (size < 2) {
+            return 0;
+        }
+        long span = times[(start + size - 1) % times.length] - times[start];
+        return span <= 0 ? 0 : (size - 1) * 60000.0 / span;
+    }
+
+    /**
+     * Scans per meter moved, NaN if we didn't move.
+     */
+    double scansPerMeter() {
+        double distance = 0;
+        // the first scan's distance was covered before the window
+        for (int n = 1; n < size; n++) {
+            distance += distances[(start + n) % times.length];
+        }
+        return distance <= 0 ? Double.NaN : (size - 1) / distance;
+    }
+
+    private void expire(long now) {
+        while (size > 0 && now - times[start] > windowMillis) {
+            start = (start + 1) % times.length;
+            size--;
+        }
+    }
+}
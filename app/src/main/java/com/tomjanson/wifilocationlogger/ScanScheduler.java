@@ -0,0 +1,24 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * Decides how long to wait after a scan completed before starting the next one.
+ */
+interface ScanScheduler {
+    /**
+     * Called on the pipeline thread whenever a scan completed.
+     *
+     * @param distanceMeters distance moved since the previous scan, NaN if unknown
+     * @param speed          current speed in m/s, NaN if unknown
+     * @param apSetChange    how much the set of visible APs changed since the previous scan,
+     *                       from 0 (identical) to 1 (disjoint)
+     * @return delay until the next scan
+     */
+    long nextDelayMillis(double distanceMeters, float speed, double apSetChange);
+
+    /**
+     * Called whenever the battery state changes.
+     *
+     * @param level battery level from 0 to 1
+     */
+    void onBatteryChanged(float level, boolean charging);
+}
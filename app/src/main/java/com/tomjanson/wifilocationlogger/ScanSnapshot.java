@@ -0,0 +1,57 @@
+package com.tomjanson.wifilocationlogger;
+
+import android.location.Location;
+
+import java.util.Date;
+
+/*
+ * Immutable copy of the pipeline state shown by MainActivity.
+ */
+final class ScanSnapshot {
+    final boolean hasLocation;
+    final double  latitude;
+    final double  longitude;
+    final float   accuracy;
+    final Date    lastLocationUpdateTime;
+    final Date    lastWifiScanTime;
+    final boolean hasWifiPosition;   // estimated from fingerprints, see FingerprintLocator
+    final double  wifiLatitude;
+    final double  wifiLongitude;
+    final float   wifiAccuracy;
+    final float   wifiConfidence;
+    final WifiList wifiList;
+    final boolean loggingEnabled;
+    final LocationProfile locationProfile;
+    final boolean locationProfileAutomatic;
+    final double  scansPerMinute;
+    final double  scansPerMeter;
+    final long    uploadQueuedBytes;
+    final double  uploadThroughput;
+    final String  metricsString;   // null unless requested, see LoggingService.setShowMetrics()
+
+    ScanSnapshot(Location location, Date lastLocationUpdateTime, Date lastWifiScanTime,
+                 FingerprintLocator.Estimate wifiPosition, WifiList wifiList, boolean loggingEnabled,
+                 LocationProfile locationProfile, boolean locationProfileAutomatic, ScanRateStats scanRateStats,
+                 UploadScheduler uploadScheduler, String metricsString) {
+        this.hasLocation = location != null;
+        this.latitude    = hasLocation ? location.getLatitude() : 0;
+        this.longitude   = hasLocation ? location.getLongitude() : 0;
+        this.accuracy    = hasLocation ? location.getAccuracy() : 0;
+        this.lastLocationUpdateTime = lastLocationUpdateTime;
+        this.lastWifiScanTime       = lastWifiScanTime;
+        this.hasWifiPosition = wifiPosition != null;
+        this.wifiLatitude    = hasWifiPosition ? wifiPosition.latitude : 0;
+        this.wifiLongitude   = hasWifiPosition ? wifiPosition.longitude : 0;
+        this.wifiAccuracy    = hasWifiPosition ? wifiPosition.accuracy : 0;
+        this.wifiConfidence  = hasWifiPosition ? wifiPosition.confidence : 0;
+        this.wifiList = wifiList;
+        this.loggingEnabled = loggingEnabled;
+        this.locationProfile = locationProfile;
+        this.locationProfileAutomatic = locationProfileAutomatic;
+        this.scansPerMinute = scanRateStats.scansPerMinute();
+        this.scansPerMeter  = scanRateStats.scansPerMeter();
+        this.uploadQueuedBytes = uploadScheduler.queuedBytes();
+        this.uploadThroughput  = uploadScheduler.throughput();
+        this.metricsString = metricsString;
+    }
+}
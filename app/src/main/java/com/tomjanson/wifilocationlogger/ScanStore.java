@@ -0,0 +1,279 @@
+package com.tomjanson.wifilocationlogger;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Optional SQLite store of logged scans (see MainActivity.LOG_TO_DATABASE), so questions like
+ * "all sightings of BSSID X" or "everything in this bounding box since Tuesday" don't require
+ * rescanning every log file. The schema and queries are in ScanStoreSchema.
+ *
+ * The database is in WAL mode (synchronous=NORMAL), and each scan is inserted in a single
+ * transaction. Like ScanBatchWriter, write() only copies the scan; inserts run on the store's
+ * own thread. Queries may be run from any thread (but not the main thread), they're logged
+ * with their latency.
+ */
+class ScanStore implements ScanPipeline.Sink {
+    private static final Logger log = LoggerFactory.getLogger(ScanStore.class);
+
+    private static final int BATCH_POOL_SIZE = 16;
+
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final BlockingQueue<ScanBatch> freeBatches = new ArrayBlockingQueue<ScanBatch>(BATCH_POOL_SIZE);
+
+    // only accessed on the executor (and by queries, which only use db)
+    private volatile SQLiteDatabase db;
+    private SQLiteStatement insertScan;
+    private SQLiteStatement insertObservation;
+    private SQLiteStatement insertBssid;
+    private SQLiteStatement updateSsid;
+    private SQLiteStatement selectBssid;
+    private SQLiteStatement insertSession;
+    private SQLiteStatement selectSession;
+    private long sessionRowId = -1;
+
+    private static final class KnownBssid {
+        final long id;
+        String ssid;
+
+        KnownBssid(long id, String ssid) {
+            this.id = id;
+            this.ssid = ssid;
+        }
+    }
+
+    private final Map<String, KnownBssid> bssidIds = new HashMap<String, KnownBssid>();
+
+    ScanStore(File file) {
+        this.file = file;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    void beginSession(final String sessionId, final String model) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (db != null) {
+                    sessionRowId = sessionRowId(sessionId, model);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a (located) scan for insertion. The batch may be reused as soon as this returns.
+     */
+    @Override
+    public void write(ScanBatch batch) {
+        ScanBatch copy = freeBatches.poll();
+        if (copy == null) {
+            copy = new ScanBatch();
+        }
+        copy.copyFrom(batch);
+        final ScanBatch scan = copy;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (db != null && sessionRowId >= 0) {
+                    insert(scan);
+                }
+                scan.clear();
+                freeBatches.offer(scan);
+            }
+        });
+    }
+
+    /**
+     * Inserts what's queued and closes the database.
+     */
+    void close() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (db != null) {
+                    db.close();
+                    db = null;
+                }
+            }
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * All sightings of a BSSID since the given time, ordered by time.
+     * Columns: time, latitude, longitude, level, channel. Null if the store isn't open.
+     */
+    Cursor sightings(String bssid, long sinceMillis) {
+        return query("sightings of " + bssid, ScanStoreSchema.SIGHTINGS,
+                Long.toString(Bssids.parse(bssid)), Long.toString(sinceMillis));
+    }
+
+    /**
+     * All observations in a bounding box since the given time.
+     * Columns: time, latitude, longitude, bssid (see Bssids), ssid, level, channel. Null if the store isn't open.
+     */
+    Cursor observationsInBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+                             long sinceMillis) {
+        return query("observations in box", ScanStoreSchema.observationsInBox(minLatitude, minLongitude,
+                maxLatitude, maxLongitude, sinceMillis));
+    }
+
+    long observationCount() {
+        SQLiteDatabase d = db;
+        return d == null ? 0 : DatabaseUtils.longForQuery(d, ScanStoreSchema.COUNT_OBSERVATIONS, null);
+    }
+
+    private Cursor query(String description, String sql, String... args) {
+        SQLiteDatabase d = db;
+        if (d == null) {
+            return null;
+        }
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = d.rawQuery(sql, args);
+        int rows = cursor.getCount();   // runs the query
+        log.debug("Query {}: {} rows in {} ms", description, rows, SystemClock.elapsedRealtime() - start);
+        return cursor;
+    }
+
+    private void open() {
+        try {
+            SQLiteDatabase d = SQLiteDatabase.openOrCreateDatabase(file, null);
+            d.enableWriteAheadLogging();
+            d.execSQL("PRAGMA synchronous=NORMAL");
+            if (d.getVersion() < ScanStoreSchema.VERSION) {
+                createSchema(d);
+            }
+            insertScan        = d.compileStatement(ScanStoreSchema.INSERT_SCAN);
+            insertObservation = d.compileStatement(ScanStoreSchema.INSERT_OBSERVATION);
+            insertBssid       = d.compileStatement(ScanStoreSchema.INSERT_BSSID);
+            updateSsid        = d.compileStatement(ScanStoreSchema.UPDATE_SSID);
+            selectBssid       = d.compileStatement(ScanStoreSchema.SELECT_BSSID);
+            insertSession     = d.compileStatement(ScanStoreSchema.INSERT_SESSION);
+            selectSession     = d.compileStatement(ScanStoreSchema.SELECT_SESSION);
+            db = d;
+            log.info("Opened scan database {}", file);
+        } catch (SQLiteException e) {
+            log.warn("Could not open scan database " + file, e);
+        }
+    }
+
+    private static void createSchema(SQLiteDatabase d) {
+        d.beginTransaction();
+        try {
+            for (String sql : ScanStoreSchema.CREATE_TABLES) {
+                d.execSQL(sql);
+            }
+            for (String sql : ScanStoreSchema.CREATE_INDEXES) {
+                d.execSQL(sql);
+            }
+            d.setVersion(ScanStoreSchema.VERSION);
+            d.setTransactionSuccessful();
+        } finally {
+            d.endTransaction();
+        }
+    }
+
+    private long sessionRowId(String sessionId, String model) {
+        try {
+            selectSession.bindString(1, sessionId);
+            return selectSession.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            insertSession.bindString(1, sessionId);
+            insertSession.bindString(2, model);
+            insertSession.bindLong(3, ScanEncoder.LOG_FORMAT_VERSION);
+            return insertSession.executeInsert();
+        }
+    }
+
+    private void insert(ScanBatch batch) {
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                insertScan.bindLong(1, sessionRowId);
+                insertScan.bindLong(2, batch.timeMillis);
+                insertScan.bindDouble(3, batch.latitude);
+                insertScan.bindDouble(4, batch.longitude);
+                insertScan.bindDouble(5, batch.altitude);
+                insertScan.bindDouble(6, batch.accuracy);
+                insertScan.bindDouble(7, batch.speed);
+                insertScan.bindLong(8, batch.locationSkew);
+                insertScan.bindDouble(9, batch.locationError);
+                insertScan.bindLong(10, ScanStoreSchema.cell(batch.latitude, batch.longitude));
+                insertScan.bindString(11, batch.filter);
+                long scanId = insertScan.executeInsert();
+
+                for (int i = 0; i < batch.size; i++) {
+                    insertObservation.bindLong(1, scanId);
+                    insertObservation.bindLong(2, bssidId(batch.bssids[i], batch.ssids[i]));
+                    insertObservation.bindLong(3, batch.levels[i]);
+                    insertObservation.bindLong(4, batch.channels[i]);
+                    insertObservation.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            log.warn("Could not insert scan into database", e);
+        }
+    }
+
+    /**
+     * The dictionary ID of a BSSID, added (or its SSID updated) if necessary.
+     */
+    private long bssidId(String bssid, String ssid) {
+        if (ssid == null) {
+            ssid = "";
+        }
+        KnownBssid known = bssidIds.get(bssid);
+        if (known == null) {
+            long value = Bssids.parse(bssid);
+            long id;
+            try {
+                selectBssid.bindLong(1, value);
+                id = selectBssid.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                insertBssid.bindLong(1, value);
+                insertBssid.bindString(2, ssid);
+                id = insertBssid.executeInsert();
+            }
+            known = new KnownBssid(id, null);
+            bssidIds.put(bssid, known);
+        }
+        if (!ssid.equals(known.ssid)) {
+            updateSsid.bindString(1, ssid);
+            updateSsid.bindLong(2, known.id);
+            updateSsid.execute();
+            known.ssid = ssid;
+        }
+        return known.id;
+    }
+}
@@ -0,0 +1,54 @@
+package com.tomjanson.wifilocationlogger;
+
+import android.os.SystemClock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Timing of the cold start phases, relative to the start of the process (Application.onCreate()):
+ * each phase is logged (INFO, logger "StartupTrace") the first time it's reached,
+ *
+ *     StartupTrace: first_frame at 412 ms
+ *
+ * which is what benchmarks/startup.sh collects. Phases are reached from several threads.
+ */
+final class StartupTrace {
+    static final String LOGGING_CONFIGURED   = "logging_configured";
+    static final String ACTIVITY_CREATED     = "activity_created";
+    static final String FIRST_FRAME          = "first_frame";
+    static final String FILE_LOGGING_STARTED = "file_logging_started";
+    static final String SERVICE_CREATED      = "service_created";
+    static final String PIPELINE_READY       = "pipeline_ready";
+    static final String WIFI_SCAN_STARTED    = "wifi_scan_started";
+    static final String LOCATION_CONNECTED   = "location_connected";
+    static final String FIRST_FIX            = "first_fix";
+    static final String FIRST_SCAN           = "first_scan";
+    static final String FIRST_LOGGED_SCAN    = "first_logged_scan";
+    static final String SUBSYSTEMS_LOADED    = "subsystems_loaded";
+
+    private static long startTime = -1;
+    private static final Set<String> reached = new HashSet<String>();
+
+    private StartupTrace() {
+    }
+
+    static synchronized void start() {
+        startTime = SystemClock.elapsedRealtime();
+    }
+
+    static void mark(String phase) {
+        long elapsed;
+        synchronized (StartupTrace.class) {
+            if (startTime < 0 || !reached.add(phase)) {
+                return;
+            }
+            elapsed = SystemClock.elapsedRealtime() - startTime;
+        }
+        Logger log = LoggerFactory.getLogger(StartupTrace.class);
+        log.info("{} at {} ms", phase, elapsed);
+    }
+}
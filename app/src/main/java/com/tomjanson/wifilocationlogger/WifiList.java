@@ -0,0 +1,40 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.util.Arrays;
+
+/*
+ * Immutable copy of the wifis of a scan that matched the filter (strongest first), as shown
+ * in MainActivity's wifi list. Snapshots of the same scan share the same instance, so the UI
+ * can tell by reference whether the list changed at all.
+ */
+final class WifiList {
+    static final WifiList EMPTY = new WifiList(new ScanBatch());
+
+    final int      size;
+    final String[] ssids;
+    final String[] bssids;
+    final int[]    levels;
+    final int[]    channels;
+
+    WifiList(ScanBatch batch) {
+        size     = batch.size;
+        ssids    = Arrays.copyOf(batch.ssids, size);
+        bssids   = Arrays.copyOf(batch.bssids, size);
+        levels   = Arrays.copyOf(batch.levels, size);
+        channels = Arrays.copyOf(batch.channels, size);
+    }
+
+    /**
+     * Whether wifi i of this list and wifi j of {@code other} look the same.
+     */
+    boolean sameAs(int i, WifiList other, int j) {
+        return levels[i] == other.levels[j]
+                && channels[i] == other.channels[j]
+                && equal(bssids[i], other.bssids[j])
+                && equal(ssids[i], other.ssids[j]);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,72 @@
+package com.tomjanson.wifilocationlogger;
+
+import android.text.TextUtils;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Shows a WifiList as rows of a LinearLayout, one single-line TextView per wifi:
+ *
+ *     channel SSID [BSSID]: level
+ *
+ * Rows are created once and recycled (surplus rows are hidden), and showing a new list is a diff
+ * against the one shown before: only rows whose wifi changed get new text, the rest isn't touched.
+ * Rows have a fixed height, so new text only redraws the row instead of laying out the screen.
+ *
+ * The rows live in MainActivity's ScrollView, where a ListView couldn't recycle its rows anyway.
+ * Main thread only.
+ */
+final class WifiListRenderer {
+    private final LinearLayout container;
+    private final List<TextView> rows = new ArrayList<TextView>();
+    private final StringBuilder text = new StringBuilder(128);
+
+    private WifiList shown = WifiList.EMPTY;
+    private int visibleRows;
+
+    WifiListRenderer(LinearLayout container) {
+        this.container = container;
+    }
+
+    void show(WifiList wifis) {
+        if (wifis == shown) {
+            return;
+        }
+        for (int i = 0; i < wifis.size; i++) {
+            if (i < shown.size && wifis.sameAs(i, shown, i)) {
+                continue;
+            }
+            text.setLength(0);
+            text.append(wifis.channels[i]).append(' ').append(wifis.ssids[i])
+                .append(" [").append(wifis.bssids[i]).append("]: ").append(wifis.levels[i]);
+            row(i).setText(text);
+        }
+        for (int i = wifis.size; i < visibleRows; i++) {
+            rows.get(i).setVisibility(View.GONE);
+        }
+        for (int i = visibleRows; i < wifis.size; i++) {
+            rows.get(i).setVisibility(View.VISIBLE);
+        }
+        visibleRows = wifis.size;
+        shown = wifis;
+    }
+
+    private TextView row(int i) {
+        if (i < rows.size()) {
+            return rows.get(i);
+        }
+        TextView row = new TextView(container.getContext());
+        row.setSingleLine(true);
+        row.setEllipsize(TextUtils.TruncateAt.END);
+        row.setVisibility(View.GONE);
+        container.addView(row, new LinearLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        rows.add(row);
+        return row;
+    }
+}
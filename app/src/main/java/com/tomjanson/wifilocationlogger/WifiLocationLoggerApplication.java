@@ -0,0 +1,16 @@
+package com.tomjanson.wifilocationlogger;
+
+import android.app.Application;
+
+/*
+ * Sets up logging before any Activity or Service is created (see LoggingConfig).
+ */
+public class WifiLocationLoggerApplication extends Application {
+    @Override
+    public void onCreate() {
+        StartupTrace.start();
+        super.onCreate();
+        LoggingConfig.configure();
+        StartupTrace.mark(StartupTrace.LOGGING_CONFIGURED);
+    }
+}
@@ -0,0 +1,141 @@
+package com.tomjanson.wifilocationlogger;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The wifi SampleSource: starts scans (as the ScanScheduler says) and receives their results
+ * whenever WifiManager has them (on LoggingService's pipeline thread), updates
+ * `lastWifiScanTime` and hands the wifis (SSID, BSSID, strength, frequency) to the output,
+ * LoggingService's ScanPipeline, which logs them with the location
+ *
+ * Metrics: scan_latency_ms (startScan() to results), scan_interval_ms (between results)
+ * and scan_delay_ms (the delay requested by the ScanScheduler).
+ */
+class WifiScanSource extends BroadcastReceiver implements SampleSource<ScanProcessor> {
+    private final LoggingService s;
+    private final Handler handler;
+    private SampleSource.Output<ScanProcessor> output;
+
+    private final ScheduledExecutorService wifiScanExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Runnable startScan = new Runnable() {
+        @Override
+        public void run() {
+            scanRequestTime = SystemClock.elapsedRealtime();
+            s.wifiManager.startScan();
+        }
+    };
+
+    private final Metrics.Histogram scanLatency;
+    private final Metrics.Histogram scanInterval;
+    private final Metrics.Histogram scanDelay;
+    private volatile long scanRequestTime;   // 0 if no request is pending
+    private long lastResultTime;
+
+    // BSSIDs of the current and previous scan (all, not just those matching the filter)
+    private Set<String> visibleBssids = new HashSet<String>();
+    private Set<String> previousVisibleBssids = new HashSet<String>();
+
+    public WifiScanSource(LoggingService s, Handler handler) {
+        this.s = s;
+        this.handler = handler;
+        scanLatency  = s.metrics.histogram("scan_latency_ms");
+        scanInterval = s.metrics.histogram("scan_interval_ms");
+        scanDelay    = s.metrics.histogram("scan_delay_ms");
+    }
+
+    @Override
+    public String name() {
+        return "wifi";
+    }
+
+    /**
+     * Registers for scan results (delivered on the handler's thread) and starts the first scan.
+     */
+    @Override
+    public void start(SampleSource.Output<ScanProcessor> output) {
+        this.output = output;
+        s.registerReceiver(this, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION), null, handler);
+        startScan.run();
+    }
+
+    /**
+     * Stops scheduling scans and receiving results.
+     */
+    @Override
+    public void stop() {
+        s.unregisterReceiver(this);
+        wifiScanExecutor.shutdownNow();
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        List<ScanResult> scanResultList = s.wifiManager.getScanResults();
+        s.lastWifiScanTime = new Date();
+
+        long now = SystemClock.elapsedRealtime();
+        if (scanRequestTime != 0) {
+            scanLatency.record(now - scanRequestTime);
+            scanRequestTime = 0;
+        }
+        if (lastResultTime != 0) {
+            scanInterval.record(now - lastResultTime);
+        }
+        lastResultTime = now;
+
+        s.dataLog.trace("Wifis: {}", scanResultList);
+
+        double apSetChange = updateVisibleBssids(scanResultList);
+
+        ScanProcessor scan = output.obtain();
+        scan.clear();
+        for (ScanResult wifi : scanResultList) {
+            scan.add(wifi.SSID, wifi.BSSID, wifi.level, wifi.frequency);
+        }
+        output.submit(scan, s.lastWifiScanTime.getTime());
+
+        long delay = s.onScanCompleted(s.lastWifiScanTime.getTime(), apSetChange);
+        scanDelay.record(delay);
+
+        s.publishSnapshot();
+
+        // schedule next scan, see ScanScheduler
+        if (!wifiScanExecutor.isShutdown()) {
+            wifiScanExecutor.schedule(startScan, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Remembers the BSSIDs of this scan and returns how much they changed since the last one
+     * (Jaccard distance: 0 if identical, 1 if disjoint).
+     */
+    private double updateVisibleBssids(List<ScanResult> scanResultList) {
+        Set<String> previous = previousVisibleBssids;
+        previousVisibleBssids = visibleBssids;
+        visibleBssids = previous;
+        visibleBssids.clear();
+
+        int common = 0;
+        for (ScanResult wifi : scanResultList) {
+            if (visibleBssids.add(wifi.BSSID) && previousVisibleBssids.contains(wifi.BSSID)) {
+                common++;
+            }
+        }
+        int union = visibleBssids.size() + previousVisibleBssids.size() - common;
+        return union == 0 ? 0 : 1 - (double) common / union;
+    }
+}
@@ -0,0 +1,77 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * CoverageAggregator: adding scans of 50 APs while walking through a city (a new cell every
+ * few scans), with a small table and one as large as the app's, and checkpointing a full table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoverageBenchmark {
+    private static final int APS = 50;
+    private static final int SCANS = 4096;
+
+    @Param({"10000", "150000"})
+    int maxEntries;
+
+    private final ScanBatch[] batches = new ScanBatch[SCANS];
+    private int next;
+    private CoverageAggregator aggregator;
+    private File checkpoint;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // 64 overlapping sets of APs, 2 m per scan
+        for (int i = 0; i < SCANS; i++) {
+            batches[i] = new ScanBatch();
+            new SyntheticScans(APS, i / 64).fill(batches[i], 0);
+            batches[i].latitude = 52.5163 + i * 2 / 111195.0;
+        }
+        checkpoint = File.createTempFile("coverage-bench", "." + CoverageAggregator.FILE_EXTENSION);
+    }
+
+    @Setup(Level.Iteration)
+    public void createAggregator() {
+        aggregator = new CoverageAggregator(25, maxEntries);
+        // fill it up first, so add() measures the steady state (full or not)
+        for (ScanBatch batch : batches) {
+            aggregator.add(batch);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        checkpoint.delete();
+    }
+
+    @Benchmark
+    public CoverageAggregator addScan() {
+        aggregator.add(batches[next]);
+        next = (next + 1) % SCANS;
+        return aggregator;
+    }
+
+    @Benchmark
+    public File writeCheckpoint() throws IOException {
+        aggregator.writeCheckpoint(checkpoint);
+        return checkpoint;
+    }
+}
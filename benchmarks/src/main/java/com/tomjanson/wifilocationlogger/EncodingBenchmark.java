@@ -0,0 +1,79 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Encoding a logged scan of 10/50/200 APs: building the CSV rows, and encoding to bytes in
+ * either log format. Successive scans are a second apart, like in a real log.
+ * compactDeltaEncode is the stationary case of delta mode: diffing a scan that didn't change.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+    private static final long START_TIME = 1425205800000L;   // 2015-03-01 10:30 UTC
+
+    @Param({"10", "50", "200"})
+    int aps;
+
+    private final ScanBatch batch = new ScanBatch();
+    private final StringBuilder rows = new StringBuilder(4096);
+    private final ChunkBuffer out = new ChunkBuffer(8192);
+    private CsvRecordEncoder csvEncoder;
+    private CompactLogEncoder compactEncoder;
+    private CompactLogEncoder compactDeltaEncoder;
+
+    @Setup
+    public void setUp() {
+        new SyntheticScans(aps, 42).fill(batch, START_TIME);
+        csvEncoder = new CsvRecordEncoder("Nexus 5");
+        csvEncoder.beginSession("4f1c2a9e-7d1b-4c55-9a0e-3b2f8e6d1c77");
+        compactEncoder = new CompactLogEncoder("Nexus 5");
+        compactEncoder.beginSession("4f1c2a9e-7d1b-4c55-9a0e-3b2f8e6d1c77");
+        compactDeltaEncoder = new CompactLogEncoder("Nexus 5", 2, Integer.MAX_VALUE);
+        compactDeltaEncoder.beginSession("4f1c2a9e-7d1b-4c55-9a0e-3b2f8e6d1c77");
+    }
+
+    @Benchmark
+    public StringBuilder csvRows() {
+        batch.timeMillis += 1000;
+        rows.setLength(0);
+        csvEncoder.appendBatch(batch, rows);
+        return rows;
+    }
+
+    @Benchmark
+    public ChunkBuffer csvEncode() {
+        batch.timeMillis += 1000;
+        out.reset();
+        csvEncoder.encode(batch, out);
+        return out;
+    }
+
+    @Benchmark
+    public ChunkBuffer compactEncode() {
+        batch.timeMillis += 1000;
+        out.reset();
+        compactEncoder.encode(batch, out);
+        return out;
+    }
+
+    @Benchmark
+    public ChunkBuffer compactDeltaEncode() {
+        batch.timeMillis += 1000;
+        out.reset();
+        compactDeltaEncoder.encode(batch, out);
+        return out;
+    }
+}
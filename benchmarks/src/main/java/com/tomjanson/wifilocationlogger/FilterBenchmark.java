@@ -0,0 +1,87 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Per-scan cost of the different kinds of ScanFilter, for scans of 10/50/200 APs:
+ *
+ * - regex:       the default SSID regular expression
+ * - alternation: a regular expression alternation of 300 of "our own" wifis (by SSID)
+ * - bssidSet:    the same 300 wifis as a BSSID set
+ * - combined:    minimum level, band, excluded OUI and SSID prefix
+ *
+ * Half of the scanned wifis are among the 300.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+    private static final int OWN_WIFIS = 300;
+
+    @Param({"10", "50", "200"})
+    int aps;
+
+    @Param({"regex", "alternation", "bssidSet", "combined"})
+    String kind;
+
+    private final ScanProcessor scan = new ScanProcessor();
+    private final ScanBatch batch = new ScanBatch();
+    private ScanFilter filter;
+    private String filterText;
+
+    @Setup
+    public void setUp() {
+        SyntheticScans scans = new SyntheticScans(aps, 42);
+        SyntheticScans others = new SyntheticScans(OWN_WIFIS, 43);
+
+        // unique SSIDs, so the alternation can select the same wifis as the BSSID set
+        scan.clear();
+        for (int i = 0; i < aps; i++) {
+            scan.add("net-" + scans.bssids[i], scans.bssids[i], scans.levels[i], scans.frequencies[i]);
+        }
+        scan.sort();
+
+        StringBuilder alternation = new StringBuilder("ssid:(");
+        StringBuilder bssids = new StringBuilder("bssid:");
+        for (int i = 0; i < OWN_WIFIS; i++) {
+            String bssid = i < aps / 2 ? scans.bssids[i * 2] : others.bssids[i];
+            alternation.append(i == 0 ? "" : "|").append("net-").append(bssid);
+            bssids.append(i == 0 ? "" : ",").append(bssid);
+        }
+        alternation.append(')');
+
+        if (kind.equals("regex")) {
+            filterText = "(.*)(F|f)reifunk(.*)";
+        } else if (kind.equals("alternation")) {
+            filterText = alternation.toString();
+        } else if (kind.equals("bssidSet")) {
+            filterText = bssids.toString();
+        } else {
+            filterText = "minrssi:-85; band:2.4; !oui:00:11:22,f4:ec:38; prefix:net-";
+        }
+        filter = ScanFilter.compile(filterText);
+    }
+
+    @Benchmark
+    public ScanBatch filter() {
+        batch.clear();
+        scan.filter(filter, batch);
+        return batch;
+    }
+
+    @Benchmark
+    public ScanFilter compile() {
+        return ScanFilter.compile(filterText);
+    }
+}
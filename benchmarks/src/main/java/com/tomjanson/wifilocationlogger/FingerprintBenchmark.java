@@ -0,0 +1,178 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * FingerprintLocator.locate() on a city-sized index: side x side cells of 25 m (the app's
+ * COVERAGE_CELL_SIZE_METERS) around Berlin, i.e. 1M fingerprints, and 400k APs at random
+ * cells, each logged in the cells up to apRange away (37 for 3). That's about 15M postings,
+ * some 15 APs per cell. Levels fall off by 10 dB per cell; scans are taken at random cells
+ * with 4 dB of noise, and cycle through 1024 precomputed ones.
+ *
+ * The index file (about 180 MB) is kept in java.io.tmpdir, named after the parameters, for the
+ * next run. It's in the page cache once written, so this doesn't include reading it from storage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FingerprintBenchmark {
+    private static final double CELL_SIZE_METERS = 25;
+    private static final int NEIGHBOURS = 4;   // MainActivity.FINGERPRINT_NEIGHBOURS
+    private static final int SCANS = 1024;
+    private static final float NOISE_DB = 4;
+
+    @Param({"1000"})
+    int side;
+
+    @Param({"400000"})
+    int aps;
+
+    @Param({"3"})
+    int apRange;
+
+    private int zone;
+    private int minQ;
+    private int minR;
+    private int[] apCells;     // grid index of each AP
+    private int[] apLevels;    // level next to each AP
+    private final long[][] scanBssids = new long[SCANS][];
+    private final int[][] scanLevels = new int[SCANS][];
+    private int next;
+
+    private FingerprintLocator locator;
+    private final FingerprintLocator.Estimate estimate = new FingerprintLocator.Estimate();
+
+    @Setup
+    public void setUp() throws IOException {
+        long center = new CoverageAggregator(CELL_SIZE_METERS, 0).cellOf(52.52, 13.40);
+        zone = CoverageAggregator.cellZone(center);
+        minQ = CoverageAggregator.cellQ(center) - side / 2;
+        minR = CoverageAggregator.cellR(center) - side / 2;
+
+        Random random = new Random(42);
+        apCells = new int[aps];
+        apLevels = new int[aps];
+        for (int ap = 0; ap < aps; ap++) {
+            apCells[ap] = random.nextInt(side * side);
+            apLevels[ap] = -35 - random.nextInt(20);
+        }
+
+        File file = new File(System.getProperty("java.io.tmpdir"),
+                "fingerprints-" + side + "-" + aps + "-" + apRange + "." + FingerprintIndex.FILE_EXTENSION);
+        if (!file.exists()) {
+            writeIndex(file);
+        }
+        locator = new FingerprintLocator(FingerprintIndex.open(file), CELL_SIZE_METERS, Float.MAX_VALUE,
+                Integer.MAX_VALUE, NEIGHBOURS);
+
+        // the APs at each cell, by counting sort
+        int[] firstAp = new int[side * side + 1];
+        for (int ap = 0; ap < aps; ap++) {
+            firstAp[apCells[ap] + 1]++;
+        }
+        for (int i = 0; i < side * side; i++) {
+            firstAp[i + 1] += firstAp[i];
+        }
+        int[] apsByCell = new int[aps];
+        int[] filled = Arrays.copyOf(firstAp, side * side);
+        for (int ap = 0; ap < aps; ap++) {
+            apsByCell[filled[apCells[ap]]++] = ap;
+        }
+
+        long[] bssids = new long[aps];
+        int[] levels = new int[aps];
+        for (int i = 0; i < SCANS; i++) {
+            int q = random.nextInt(side);
+            int r = random.nextInt(side);
+            int n = 0;
+            for (int dq = -apRange; dq <= apRange; dq++) {
+                for (int dr = Math.max(-apRange, -dq - apRange); dr <= Math.min(apRange, -dq + apRange); dr++) {
+                    if (q + dq < 0 || q + dq >= side || r + dr < 0 || r + dr >= side) {
+                        continue;
+                    }
+                    int cell = (q + dq) * side + r + dr;
+                    for (int j = firstAp[cell]; j < firstAp[cell + 1]; j++) {
+                        int ap = apsByCell[j];
+                        bssids[n] = bssid(ap);
+                        levels[n] = (int) Math.round(level(ap, distance(dq, dr)) + random.nextGaussian() * NOISE_DB);
+                        n++;
+                    }
+                }
+            }
+            scanBssids[i] = Arrays.copyOf(bssids, n);
+            scanLevels[i] = Arrays.copyOf(levels, n);
+        }
+    }
+
+    @Benchmark
+    public FingerprintLocator.Estimate locate() {
+        int i = next++ & (SCANS - 1);
+        locator.locate(scanBssids[i], scanLevels[i], scanBssids[i].length, estimate);
+        return estimate;
+    }
+
+    /**
+     * Writes the postings of each AP, in (BSSID, cell) order, renaming the file once it's complete.
+     */
+    private void writeIndex(File file) throws IOException {
+        File partial = new File(file.getPath() + ".partial");
+        FingerprintIndex.Writer writer = new FingerprintIndex.Writer(partial, CELL_SIZE_METERS);
+        long[] cells = new long[3 * apRange * (apRange + 1) + 1];
+        try {
+            for (int ap = 0; ap < aps; ap++) {
+                int q = apCells[ap] / side;
+                int r = apCells[ap] % side;
+                int n = 0;
+                for (int dq = -apRange; dq <= apRange; dq++) {
+                    for (int dr = Math.max(-apRange, -dq - apRange); dr <= Math.min(apRange, -dq + apRange); dr++) {
+                        if (q + dq >= 0 && q + dq < side && r + dr >= 0 && r + dr < side) {
+                            cells[n++] = CoverageAggregator.toCell(zone, minQ + q + dq, minR + r + dr);
+                        }
+                    }
+                }
+                Arrays.sort(cells, 0, n);
+                for (int i = 0; i < n; i++) {
+                    int dq = CoverageAggregator.cellQ(cells[i]) - minQ - q;
+                    int dr = CoverageAggregator.cellR(cells[i]) - minR - r;
+                    writer.add(bssid(ap), cells[i], level(ap, distance(dq, dr)), 5);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (!partial.renameTo(file)) {
+            throw new IOException("Could not rename " + partial + " to " + file);
+        }
+    }
+
+    private double level(int ap, int distance) {
+        return apLevels[ap] - 10 * distance;
+    }
+
+    private static int distance(int dq, int dr) {
+        return (Math.abs(dq) + Math.abs(dr) + Math.abs(dq + dr)) / 2;
+    }
+
+    private static long bssid(int ap) {
+        return 0x00163e000000L + ap;
+    }
+}
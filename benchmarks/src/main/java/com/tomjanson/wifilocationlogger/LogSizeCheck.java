@@ -0,0 +1,58 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.util.Locale;
+import java.util.Random;
+
+/*
+ * Checks that the compact log format is at least MIN_RATIO times smaller than CSV, on a day of
+ * synthetic scans (SyntheticScans.fillWalking(), a scan every 2 s along a street of 2000 APs,
+ * some 15 wifis per scan). Prints the size per scan in either format, and exits with status 1
+ * if the ratio is lower. Run by ./gradlew :benchmarks:check:
+ *
+ *     java -cp benchmarks.jar com.tomjanson.wifilocationlogger.LogSizeCheck [SCANS]
+ */
+public final class LogSizeCheck {
+    private static final double MIN_RATIO = 5;
+    private static final long START_TIME = 1425205800000L;   // 2015-03-01 10:30 UTC
+    private static final long SCAN_INTERVAL_MILLIS = 2000;
+    private static final int APS = 2000;
+    private static final String SESSION = "4f1c2a9e-7d1b-4c55-9a0e-3b2f8e6d1c77";
+
+    private LogSizeCheck() {
+    }
+
+    public static void main(String[] args) {
+        int scans = args.length > 0 ? Integer.parseInt(args[0]) : 43200;
+        long csvBytes = encodedSize(new CsvRecordEncoder("Nexus 5"), scans);
+        long compactBytes = encodedSize(new CompactLogEncoder("Nexus 5"), scans);
+        long deltaBytes = encodedSize(new CompactLogEncoder("Nexus 5", 2, 60), scans);
+
+        double ratio = (double) csvBytes / compactBytes;
+        System.out.printf(Locale.US, "%d scans: CSV %.0f bytes/scan, compact %.0f (%.1fx smaller), with delta records %.0f (%.1fx)%n",
+                scans, (double) csvBytes / scans, (double) compactBytes / scans, ratio,
+                (double) deltaBytes / scans, (double) csvBytes / deltaBytes);
+        if (ratio < MIN_RATIO) {
+            System.err.printf(Locale.US, "The compact format should be at least %.0fx smaller than CSV%n", MIN_RATIO);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Encodes the scans (the same for every encoder), returns the number of bytes.
+     */
+    private static long encodedSize(ScanEncoder encoder, int scans) {
+        SyntheticScans street = new SyntheticScans(APS, 42);
+        Random random = new Random(42);
+        ScanBatch batch = new ScanBatch();
+        ChunkBuffer out = new ChunkBuffer(8192);
+        long size = 0;
+        encoder.beginSession(SESSION);
+        for (int i = 0; i < scans; i++) {
+            street.fillWalking(batch, START_TIME, START_TIME + i * SCAN_INTERVAL_MILLIS, random);
+            out.reset();
+            encoder.encode(batch, out);
+            size += out.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,96 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * The steps of WifiScanSource.onReceive, for scans of 10/50/200 APs.
+ * sort() includes copying the unsorted scan (see copy() for that alone).
+ * See FilterBenchmark for other kinds of filters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanProcessingBenchmark {
+    // the default filter (R.string.ssid_filter_default)
+    private static final String FILTER_TEXT = "(.*)(F|f)reifunk(.*)";
+
+    @Param({"10", "50", "200"})
+    int aps;
+
+    private SyntheticScans scans;
+    private final ScanProcessor scan = new ScanProcessor();
+    private final ScanBatch batch = new ScanBatch();
+    private ScanFilter filter;
+
+    @Setup
+    public void setUp() {
+        scans = new SyntheticScans(aps, 42);
+        scans.fill(scan);
+        scan.sort();
+        filter = ScanFilter.compile(FILTER_TEXT);
+    }
+
+    @Benchmark
+    public ScanProcessor copy() {
+        scans.fill(scan);
+        return scan;
+    }
+
+    @Benchmark
+    public ScanProcessor sort() {
+        scans.fill(scan);
+        scan.sort();
+        return scan;
+    }
+
+    @Benchmark
+    public ScanFilter compileFilter() {
+        return ScanFilter.compile(FILTER_TEXT);
+    }
+
+    @Benchmark
+    public ScanBatch filter() {
+        batch.clear();
+        scan.filter(filter, batch);
+        return batch;
+    }
+
+    @Benchmark
+    public ScanBatch filterAll() {
+        batch.clear();
+        scan.filter("", batch);
+        return batch;
+    }
+
+    @Benchmark
+    public void convertFrequencyToChannel(Blackhole blackhole) {
+        int[] frequencies = scans.frequencies;
+        for (int i = 0; i < frequencies.length; i++) {
+            blackhole.consume(ScanProcessor.convertFrequencyToChannel(frequencies[i]));
+        }
+    }
+
+    /**
+     * Everything onReceive does per scan before logging it.
+     */
+    @Benchmark
+    public ScanBatch onReceive() {
+        scans.fill(scan);
+        scan.sort();
+        batch.clear();
+        scan.filter(FILTER_TEXT, batch);
+        return batch;
+    }
+}
@@ -0,0 +1,322 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ScanStore's queries (ScanStoreSchema, run with sqlite-jdbc instead of Android's SQLite) on a
+ * database of 500k scans of 20 APs each, i.e. 10M observations: scans uniformly spread over
+ * 10 x 10 km of Berlin during a year, 200k APs on a grid, each scan seeing the 20 nearest.
+ * Queries read their whole result. insertScan is a scan inserted in its own transaction, as
+ * ScanStore does (WAL mode, synchronous=NORMAL).
+ *
+ * Building the database takes minutes, so it's kept in java.io.tmpdir (named after the
+ * parameters) for the next run; user_version is set once it's complete.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanStoreBenchmark {
+    private static final long START_TIME = 1420070400000L;   // 2015-01-01 00:00 UTC
+    private static final long PERIOD_MILLIS = 365L * 24 * 3600 * 1000;
+    private static final double MIN_LATITUDE = 52.47;
+    private static final double MIN_LONGITUDE = 13.33;
+    // about 10 km in both directions
+    private static final double LATITUDE_SPAN = 0.09;
+    private static final double LONGITUDE_SPAN = 0.147;
+    private static final double METERS_PER_DEGREE_LATITUDE = 111320;
+    private static final int APS_PER_SCAN = 20;
+    private static final int BATCH_SCANS = 10000;
+
+    @Param({"500000"})
+    int scans;
+
+    @Param({"200000"})
+    int aps;
+
+    private Connection connection;
+    private PreparedStatement sightings;
+    private PreparedStatement insertScan;
+    private PreparedStatement insertObservation;
+    private int apColumns;
+    private final Random random = new Random(42);
+    private long nextTime = START_TIME + PERIOD_MILLIS;
+
+    @Setup
+    public void setUp() throws SQLException {
+        apColumns = (int) Math.round(Math.sqrt(aps * LONGITUDE_SPAN / LATITUDE_SPAN));
+        File file = new File(System.getProperty("java.io.tmpdir"), "scanstore-" + scans + "-" + aps + ".db");
+        connection = open(file);
+        if (userVersion() < ScanStoreSchema.VERSION) {
+            connection.close();
+            for (String suffix : new String[] { "", "-wal", "-shm" }) {
+                File f = new File(file.getPath() + suffix);
+                if (f.exists() && !f.delete()) {
+                    throw new SQLException("Could not delete incomplete " + f);
+                }
+            }
+            connection = open(file);
+            populate();
+            connection.close();
+            connection = open(file);
+        }
+        sightings = connection.prepareStatement(ScanStoreSchema.SIGHTINGS);
+        insertScan = connection.prepareStatement(ScanStoreSchema.INSERT_SCAN);
+        insertObservation = connection.prepareStatement(ScanStoreSchema.INSERT_OBSERVATION);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        // removes what insertScan added, the dataset's scans are 1 to scans
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("DELETE FROM observations WHERE scan_id > " + scans);
+            statement.execute("DELETE FROM scans WHERE _id > " + scans);
+        } finally {
+            statement.close();
+            connection.close();
+        }
+    }
+
+    /**
+     * All sightings of an AP, about 50 rows.
+     */
+    @Benchmark
+    public long sightings() throws SQLException {
+        sightings.setLong(1, bssid(random.nextInt(aps)));
+        sightings.setLong(2, START_TIME);
+        return readAll(sightings.executeQuery());
+    }
+
+    /**
+     * Everything in 500 x 500 m during the last month, about 2k rows.
+     */
+    @Benchmark
+    public long observationsIn500m() throws SQLException {
+        return observationsInBox(500, PERIOD_MILLIS / 12);
+    }
+
+    /**
+     * Everything in 2 x 2 km during the last week, about 6.5k rows.
+     */
+    @Benchmark
+    public long observationsIn2km() throws SQLException {
+        return observationsInBox(2000, PERIOD_MILLIS / 52);
+    }
+
+    @Benchmark
+    public long insertScan() throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            double latitude = randomLatitude();
+            double longitude = randomLongitude();
+            long scanId = insertScan(nextTime++, latitude, longitude);
+            int ap = nearestAp(latitude, longitude);
+            for (int i = 0; i < APS_PER_SCAN; i++) {
+                insertObservation(scanId, Math.min(ap + i, aps - 1), -40 - i);
+            }
+            insertObservation.executeBatch();
+            connection.commit();
+            return scanId;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private long observationsInBox(double sizeMeters, long periodMillis) throws SQLException {
+        double latitude = randomLatitude();
+        double longitude = randomLongitude();
+        double latitudeSpan = sizeMeters / METERS_PER_DEGREE_LATITUDE;
+        double longitudeSpan = latitudeSpan / Math.cos(Math.toRadians(latitude));
+        Statement statement = connection.createStatement();
+        try {
+            return readAll(statement.executeQuery(ScanStoreSchema.observationsInBox(latitude, longitude,
+                    latitude + latitudeSpan, longitude + longitudeSpan, START_TIME + PERIOD_MILLIS - periodMillis)));
+        } finally {
+            statement.close();
+        }
+    }
+
+    private double randomLatitude() {
+        return MIN_LATITUDE + random.nextDouble() * LATITUDE_SPAN;
+    }
+
+    private double randomLongitude() {
+        return MIN_LONGITUDE + random.nextDouble() * LONGITUDE_SPAN;
+    }
+
+    private static long readAll(ResultSet rows) throws SQLException {
+        long sum = 0;
+        try {
+            int columns = rows.getMetaData().getColumnCount();
+            while (rows.next()) {
+                for (int i = 1; i <= columns; i++) {
+                    Object value = rows.getObject(i);
+                    sum += value == null ? 0 : value.hashCode();
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        return sum;
+    }
+
+    /**
+     * Opens the database as ScanStore does, in WAL mode with synchronous=NORMAL.
+     */
+    private static Connection open(File file) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+        } finally {
+            statement.close();
+        }
+        return connection;
+    }
+
+    private int userVersion() throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet result = statement.executeQuery("PRAGMA user_version");
+            return result.next() ? result.getInt(1) : 0;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Inserts the dataset, then creates the indexes (much faster than updating them row by row).
+     */
+    private void populate() throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("PRAGMA synchronous = OFF");
+            for (String sql : ScanStoreSchema.CREATE_TABLES) {
+                statement.execute(sql);
+            }
+        } finally {
+            statement.close();
+        }
+        connection.setAutoCommit(false);
+
+        PreparedStatement insertSession = connection.prepareStatement(ScanStoreSchema.INSERT_SESSION);
+        insertSession.setString(1, "4f1c2a9e-7d1b-4c55-9a0e-3b2f8e6d1c77");
+        insertSession.setString(2, "Nexus 5");
+        insertSession.setInt(3, ScanEncoder.LOG_FORMAT_VERSION);
+        insertSession.executeUpdate();
+        insertSession.close();
+
+        SyntheticScans names = new SyntheticScans(1, 0);
+        PreparedStatement insertBssid = connection.prepareStatement(ScanStoreSchema.INSERT_BSSID);
+        for (int ap = 0; ap < aps; ap++) {
+            insertBssid.setLong(1, bssid(ap));
+            insertBssid.setString(2, names.ssids[0] + " " + ap % 100);
+            insertBssid.addBatch();
+        }
+        insertBssid.executeBatch();
+        insertBssid.close();
+        connection.commit();
+
+        insertScan = connection.prepareStatement(ScanStoreSchema.INSERT_SCAN);
+        insertObservation = connection.prepareStatement(ScanStoreSchema.INSERT_OBSERVATION);
+        Random random = new Random(7);
+        for (int scan = 0; scan < scans; scan++) {
+            long time = START_TIME + (long) (random.nextDouble() * PERIOD_MILLIS);
+            double latitude = MIN_LATITUDE + random.nextDouble() * LATITUDE_SPAN;
+            double longitude = MIN_LONGITUDE + random.nextDouble() * LONGITUDE_SPAN;
+            long scanId = insertScan(time, latitude, longitude);
+            int ap = nearestAp(latitude, longitude);
+            for (int i = 0; i < APS_PER_SCAN; i++) {
+                // neighbours on the grid, row by row
+                int neighbour = ap + (i % 5 - 2) + (i / 5 - 2) * apColumns;
+                insertObservation(scanId, Math.min(Math.max(neighbour, 0), aps - 1), -35 - random.nextInt(60));
+            }
+            if (scan % BATCH_SCANS == BATCH_SCANS - 1) {
+                insertObservation.executeBatch();
+                connection.commit();
+            }
+        }
+        insertObservation.executeBatch();
+        connection.commit();
+        insertScan.close();
+        insertObservation.close();
+        connection.setAutoCommit(true);
+
+        statement = connection.createStatement();
+        try {
+            for (String sql : ScanStoreSchema.CREATE_INDEXES) {
+                statement.execute(sql);
+            }
+            statement.execute("ANALYZE");
+            statement.execute("PRAGMA user_version = " + ScanStoreSchema.VERSION);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private long insertScan(long time, double latitude, double longitude) throws SQLException {
+        insertScan.setLong(1, 1);
+        insertScan.setLong(2, time);
+        insertScan.setDouble(3, latitude);
+        insertScan.setDouble(4, longitude);
+        insertScan.setDouble(5, 34.5);
+        insertScan.setDouble(6, 12.0);
+        insertScan.setDouble(7, 1.4);
+        insertScan.setLong(8, 850);
+        insertScan.setDouble(9, 13.2);
+        insertScan.setLong(10, ScanStoreSchema.cell(latitude, longitude));
+        insertScan.setString(11, "");
+        insertScan.executeUpdate();
+        ResultSet key = insertScan.getGeneratedKeys();
+        try {
+            key.next();
+            return key.getLong(1);
+        } finally {
+            key.close();
+        }
+    }
+
+    private void insertObservation(long scanId, int ap, int level) throws SQLException {
+        insertObservation.setLong(1, scanId);
+        insertObservation.setLong(2, ap + 1);   // bssids were inserted in order
+        insertObservation.setInt(3, level);
+        insertObservation.setInt(4, 1 + ap % 11);
+        insertObservation.addBatch();
+    }
+
+    private int nearestAp(double latitude, double longitude) {
+        int rows = aps / apColumns;
+        int row = (int) ((latitude - MIN_LATITUDE) / LATITUDE_SPAN * rows);
+        int column = (int) ((longitude - MIN_LONGITUDE) / LONGITUDE_SPAN * apColumns);
+        return Math.min(row, rows - 1) * apColumns + Math.min(column, apColumns - 1);
+    }
+
+    private static long bssid(int ap) {
+        return 0x00163e000000L + ap;
+    }
+}
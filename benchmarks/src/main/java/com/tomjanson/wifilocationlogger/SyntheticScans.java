@@ -0,0 +1,106 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.util.Random;
+
+/*
+ * Reproducible, realistic-looking scans for the benchmarks: a mix of 2.4 and 5 GHz APs
+ * with common SSIDs (a few of which need quoting in CSV), levels from -30 to -95 dBm.
+ *
+ * fill() logs the same scan over and over; fillWalking() varies it like a walk past the APs.
+ */
+final class SyntheticScans {
+    private static final String[] SSIDS = {
+            "eduroam", "Telekom_FON", "FRITZ!Box 7490", "Freifunk", "berlin.freifunk.net",
+            "WLAN-4F2A11", "Vodafone Hotspot", "o2-WLAN42", "Kabel Deutschland, 5G", "\"guest\"",
+    };
+    private static final int[] FREQUENCIES = {
+            2412, 2417, 2422, 2427, 2432, 2437, 2442, 2447, 2452, 2457, 2462, 2467, 2472,
+            5180, 5200, 5220, 5240, 5260, 5280, 5300, 5320, 5500, 5520, 5540, 5560, 5580,
+    };
+
+    // fillWalking(): one AP every AP_SPACING_METERS along a street, in range for AP_RANGE_METERS
+    private static final double WALKING_SPEED = 1.4;   // m/s
+    private static final double AP_SPACING_METERS = 5;
+    private static final double AP_RANGE_METERS = 50;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    final String[] ssids;
+    final String[] bssids;
+    final int[]    levels;
+    final int[]    frequencies;
+
+    SyntheticScans(int aps, long seed) {
+        Random random = new Random(seed);
+        ssids       = new String[aps];
+        bssids      = new String[aps];
+        levels      = new int[aps];
+        frequencies = new int[aps];
+        for (int i = 0; i < aps; i++) {
+            ssids[i]       = SSIDS[random.nextInt(SSIDS.length)];
+            bssids[i]      = String.format("%02x:%02x:%02x:%02x:%02x:%02x", random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256));
+            levels[i]      = -30 - random.nextInt(66);
+            frequencies[i] = FREQUENCIES[random.nextInt(FREQUENCIES.length)];
+        }
+    }
+
+    /**
+     * Adds the scan, in the (unsorted) order it was generated.
+     */
+    void fill(ScanProcessor scan) {
+        scan.clear();
+        for (int i = 0; i < ssids.length; i++) {
+            scan.add(ssids[i], bssids[i], levels[i], frequencies[i]);
+        }
+    }
+
+    /**
+     * Fills a batch as it's logged, i.e., with location and all wifis.
+     */
+    void fill(ScanBatch batch, long timeMillis) {
+        batch.clear();
+        batch.timeMillis   = timeMillis;
+        batch.latitude     = 52.5163 + (timeMillis % 1000) * 1e-6;
+        batch.longitude    = 13.3777 + (timeMillis % 1000) * 1e-6;
+        batch.altitude     = 34.5;
+        batch.accuracy     = 12.0f;
+        batch.speed        = 1.4f;
+        batch.locationSkew = 850;
+        batch.locationError = 13.2f;
+        batch.filter       = ".*";
+        for (int i = 0; i < ssids.length; i++) {
+            batch.add(ssids[i], bssids[i], levels[i], ScanProcessor.convertFrequencyToChannel(frequencies[i]));
+        }
+    }
+
+    /**
+     * Fills a batch as logged while walking along a street of all APs, from its start at
+     * startMillis, and again from the start once past its end. An AP in range is missed one
+     * scan in five, and its level falls off with distance, give or take a few dB; the fix is
+     * off by a few meters.
+     */
+    void fillWalking(ScanBatch batch, long startMillis, long timeMillis, Random random) {
+        double streetMeters = ssids.length * AP_SPACING_METERS;
+        double position = (timeMillis - startMillis) / 1000.0 * WALKING_SPEED % streetMeters;
+        batch.clear();
+        batch.timeMillis    = timeMillis;
+        batch.latitude      = 52.5163 + (position + random.nextGaussian() * 3) / METERS_PER_DEGREE;
+        batch.longitude     = 13.3777 + random.nextGaussian() * 3 / METERS_PER_DEGREE;
+        batch.altitude      = 34.5 + random.nextGaussian();
+        batch.accuracy      = 8 + random.nextInt(10);
+        batch.speed         = (float) (WALKING_SPEED + random.nextGaussian() * 0.2);
+        batch.locationSkew  = random.nextInt(2000);
+        batch.locationError = batch.accuracy + random.nextInt(5);
+        batch.filter        = ".*";
+        int first = (int) Math.max(0, Math.ceil((position - AP_RANGE_METERS) / AP_SPACING_METERS));
+        int last = (int) Math.min(ssids.length - 1, Math.floor((position + AP_RANGE_METERS) / AP_SPACING_METERS));
+        for (int i = first; i <= last; i++) {
+            if (random.nextInt(5) == 0) {
+                continue;
+            }
+            double distance = Math.abs(i * AP_SPACING_METERS - position);
+            int level = (int) Math.round(levels[i] - distance / 5 + random.nextGaussian() * 2);
+            batch.add(ssids[i], bssids[i], Math.max(level, -100), ScanProcessor.convertFrequencyToChannel(frequencies[i]));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * End to end: writing scans of 10/50/200 APs to a log file through ScanBatchWriter,
+ * in either format, with the app's default flush policy. Scans are 10 ms apart, so an
+ * iteration doesn't span days (i.e., rollovers).
+ *
+ * write() only encodes and queues, the file is written on the writer thread; each iteration
+ * ends with close(), which waits until everything is on disk, so the throughput is limited
+ * by the writer as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriterBenchmark {
+    private static final long START_TIME = 1425205800000L;   // 2015-03-01 10:30 UTC
+
+    @Param({"10", "50", "200"})
+    int aps;
+
+    @Param({"csv", "compact"})
+    String format;
+
+    private final ScanBatch batch = new ScanBatch();
+    private File directory;
+    private ScanBatchWriter writer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        new SyntheticScans(aps, 42).fill(batch, START_TIME);
+        directory = File.createTempFile("wifilog-bench", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void openWriter() {
+        batch.timeMillis = START_TIME;
+        ScanEncoder encoder = format.equals("csv") ? new CsvRecordEncoder("Nexus 5") : new CompactLogEncoder("Nexus 5");
+        writer = new ScanBatchWriter(directory, "wifilog", encoder, ScanBatchWriter.FlushPolicy.EVERY_SCAN, 0);
+        writer.beginSession("4f1c2a9e-7d1b-4c55-9a0e-3b2f8e6d1c77");
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWriter() {
+        writer.close();
+        deleteLogFiles();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        deleteLogFiles();
+        directory.delete();
+    }
+
+    @Benchmark
+    public void write() {
+        batch.timeMillis += 10;
+        writer.write(batch);
+    }
+
+    private void deleteLogFiles() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+#!/bin/sh
+# Cold start of the app on a connected device (adb): time to the first frame and to the first
+# scan written to the log, as marked by StartupTrace (from Application.onCreate), per run and
+# the median.
+#
+#   benchmarks/startup.sh [RUNS]    (default 10; the app must be installed, logging will be on)
+
+RUNS=${1:-10}
+PACKAGE=com.tomjanson.wifilocationlogger
+TIMEOUT=60
+
+median() {
+    sort -n | awk '{ v[NR] = $1 } END { if (NR == 0) print "-"; else print v[int((NR + 1) / 2)] }'
+}
+
+frames=""
+scans=""
+run=1
+while [ "$run" -le "$RUNS" ]; do
+    adb shell am force-stop $PACKAGE
+    sleep 2
+    adb logcat -c
+    adb shell am start -W -n $PACKAGE/.MainActivity --ez $PACKAGE.START_LOGGING true > /dev/null
+
+    waited=0
+    while ! adb logcat -d -s StartupTrace:I | grep -q first_logged_scan; do
+        if [ "$waited" -ge "$TIMEOUT" ]; then
+            echo "run $run: no logged scan after ${TIMEOUT}s" >&2
+            break
+        fi
+        sleep 1
+        waited=$((waited + 1))
+    done
+
+    trace=$(adb logcat -d -s StartupTrace:I)
+    frame=$(echo "$trace" | sed -n 's/.*first_frame at \([0-9]*\) ms.*/\1/p' | head -n 1)
+    scan=$(echo "$trace" | sed -n 's/.*first_logged_scan at \([0-9]*\) ms.*/\1/p' | head -n 1)
+    echo "run $run: first frame ${frame:--} ms, first logged scan ${scan:--} ms"
+    frames="$frames $frame"
+    scans="$scans $scan"
+    run=$((run + 1))
+done
+
+adb shell am force-stop $PACKAGE
+echo "median: first frame $(echo $frames | tr ' ' '\n' | grep . | median) ms," \
+     "first logged scan $(echo $scans | tr ' ' '\n' | grep . | median) ms"
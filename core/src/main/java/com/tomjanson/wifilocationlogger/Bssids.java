@@ -0,0 +1,52 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * BSSIDs as 48-bit longs, for primitive-keyed tables (no String per entry).
+ */
+final class Bssids {
+    static final long INVALID = -1;
+
+    private Bssids() {
+    }
+
+    /**
+     * Parses "aa:bb:cc:dd:ee:ff" (either case, ':' or '-' separated), INVALID if malformed.
+     */
+    static long parse(String bssid) {
+        if (bssid == null || bssid.length() != 17) {
+            return INVALID;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = bssid.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':' && c != '-') {
+                    return INVALID;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return INVALID;
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * The form Android reports BSSIDs in: lower case, separated by colons.
+     */
+    static String format(long bssid) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (bssid >>> (40 - 8 * i)) & 0xff;
+            chars[i * 3]     = Character.forDigit(octet >>> 4, 16);
+            chars[i * 3 + 1] = Character.forDigit(octet & 0xf, 16);
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
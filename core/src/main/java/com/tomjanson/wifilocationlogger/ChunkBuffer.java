@@ -0,0 +1,38 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.ByteArrayOutputStream;
+
+/*
+ * Growable byte buffer whose backing array can be accessed without copying.
+ */
+final class ChunkBuffer extends ByteArrayOutputStream {
+    ChunkBuffer(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    /**
+     * Writes a single byte; unlike write(int), not synchronized.
+     */
+    void put(int b) {
+        if (count == buf.length) {
+            ensureCapacity(count + 1);
+        }
+        buf[count++] = (byte) b;
+    }
+
+    void setSize(int size) {
+        count = size;
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            byte[] newBuf = new byte[Math.max(capacity, buf.length * 2)];
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            buf = newBuf;
+        }
+    }
+}
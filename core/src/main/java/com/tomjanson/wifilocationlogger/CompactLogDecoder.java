@@ -0,0 +1,289 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import static com.tomjanson.wifilocationlogger.CompactLogFormat.*;
+
+/*
+ * Streaming decoder for the compact binary log format, see CompactLogFormat.
+ *
+ * next() decodes one scan at a time into a reused ScanBatch; the session fields of the
+ * segment the scan belongs to are available via model(), sessionId() etc.
+ * Delta scans are expanded to the full scan they represent.
+ * toCsv() exports to the regular CSV format, reproducing the columns CsvRecordEncoder writes.
+ */
+final class CompactLogDecoder {
+    private final InputStream in;
+
+    // per-segment state
+    private int segment;
+    private int formatVersion;
+    private int logFormatVersion;
+    private String model;
+    private String sessionId;
+    private TimeZone timeZone;
+    private final List<String> bssidDictionary = new ArrayList<String>();
+    private final List<String> ssidDictionary  = new ArrayList<String>();
+    private String filter;
+    private long previousTime;
+    private long previousLatitude;
+    private long previousLongitude;
+    private long previousAltitude;
+    private long previousAccuracy;
+    private long previousSpeed;
+    private long previousError;
+    private final ScanDeltaState deltaState = new ScanDeltaState();
+    private boolean delta;
+
+    CompactLogDecoder(InputStream in) {
+        this.in = in.markSupported() ? in : new BufferedInputStream(in);
+    }
+
+    /**
+     * Decodes the next scan into {@code batch}.
+     *
+     * @return false at the end of the stream
+     */
+    boolean next(ScanBatch batch) throws IOException {
+        int tag = in.read();
+        if (tag < 0) {
+            return false;
+        }
+        if (tag == MAGIC[0]) {
+            readSegmentHeader();
+            tag = in.read();
+            if (tag < 0) {
+                return false;
+            }
+        }
+        if (tag != TAG_SCAN && (tag != TAG_DELTA_SCAN || formatVersion < 3)) {
+            throw new IOException("Unexpected record tag " + tag);
+        }
+        if (model == null) {
+            throw new IOException("Scan record before segment header");
+        }
+        readScanHeader(batch);
+        if (tag == TAG_SCAN) {
+            readWifis(batch);
+        } else {
+            readDeltaWifis(batch);
+        }
+        delta = tag == TAG_DELTA_SCAN;
+        return true;
+    }
+
+    /**
+     * Whether the last scan was reconstructed from a delta record.
+     */
+    boolean wasDelta() {
+        return delta;
+    }
+
+    /**
+     * Increases whenever a new segment (with possibly different session fields) starts.
+     */
+    int segment() {
+        return segment;
+    }
+
+    int logFormatVersion() {
+        return logFormatVersion;
+    }
+
+    String model() {
+        return model;
+    }
+
+    String sessionId() {
+        return sessionId;
+    }
+
+    TimeZone timeZone() {
+        return timeZone;
+    }
+
+    private void readSegmentHeader() throws IOException {
+        for (int i = 1; i < MAGIC.length; i++) {
+            if (readByte(in) != MAGIC[i]) {
+                throw new IOException("Bad segment magic");
+            }
+        }
+        formatVersion = (int) readVarint(in);
+        if (formatVersion > FORMAT_VERSION) {
+            throw new IOException("Unsupported format version " + formatVersion);
+        }
+        logFormatVersion = (int) readVarint(in);
+        model = readString(in);
+        sessionId = readString(in);
+        timeZone = TimeZone.getTimeZone(readString(in));
+        previousTime = readLong(in);
+
+        bssidDictionary.clear();
+        ssidDictionary.clear();
+        filter = null;
+        previousLatitude = 0;
+        previousLongitude = 0;
+        previousAltitude = 0;
+        previousAccuracy = 0;
+        previousSpeed = 0;
+        previousError = 0;
+        deltaState.clear();
+        segment++;
+    }
+
+    private void readScanHeader(ScanBatch batch) throws IOException {
+        int flags = readByte(in);
+
+        previousTime += readSignedVarint(in);
+        batch.timeMillis = previousTime;
+
+        if ((flags & FLAG_RAW_LATITUDE) != 0) {
+            batch.latitude = Double.longBitsToDouble(readLong(in));
+        } else {
+            previousLatitude += readSignedVarint(in);
+            batch.latitude = previousLatitude / DEGREE_SCALE;
+        }
+        if ((flags & FLAG_RAW_LONGITUDE) != 0) {
+            batch.longitude = Double.longBitsToDouble(readLong(in));
+        } else {
+            previousLongitude += readSignedVarint(in);
+            batch.longitude = previousLongitude / DEGREE_SCALE;
+        }
+        if ((flags & FLAG_RAW_ALTITUDE) != 0) {
+            batch.altitude = Double.longBitsToDouble(readLong(in));
+        } else {
+            previousAltitude += readSignedVarint(in);
+            batch.altitude = previousAltitude / ALTITUDE_SCALE;
+        }
+        if ((flags & FLAG_RAW_ACCURACY) != 0) {
+            batch.accuracy = Float.intBitsToFloat(readInt(in));
+        } else {
+            previousAccuracy += readSignedVarint(in);
+            batch.accuracy = (float) (previousAccuracy / FLOAT_SCALE);
+        }
+        if ((flags & FLAG_RAW_SPEED) != 0) {
+            batch.speed = Float.intBitsToFloat(readInt(in));
+        } else {
+            previousSpeed += readSignedVarint(in);
+            batch.speed = (float) (previousSpeed / FLOAT_SCALE);
+        }
+
+        batch.locationSkew = readSignedVarint(in);
+
+        if (formatVersion < 2) {
+            batch.locationError = Float.NaN;
+        } else if ((flags & FLAG_RAW_ERROR) != 0) {
+            batch.locationError = Float.intBitsToFloat(readInt(in));
+        } else {
+            previousError += readSignedVarint(in);
+            batch.locationError = (float) (previousError / FLOAT_SCALE);
+        }
+
+        if ((flags & FLAG_FILTER) != 0) {
+            filter = readString(in);
+        } else if (filter == null) {
+            throw new IOException("Scan record without filter");
+        }
+        batch.filter = filter;
+    }
+
+    private void readWifis(ScanBatch batch) throws IOException {
+        batch.clear();
+        int size = (int) readVarint(in);
+        for (int i = 0; i < size; i++) {
+            String bssid = readDictionaryRef(bssidDictionary);
+            String ssid  = readDictionaryRef(ssidDictionary);
+            int level    = (int) readSignedVarint(in) - LEVEL_BIAS;
+            int channel  = (int) readVarint(in);
+            batch.add(ssid, bssid, level, channel);
+        }
+        if (formatVersion >= 3) {
+            deltaState.reset(batch);
+        }
+    }
+
+    private void readDeltaWifis(ScanBatch batch) throws IOException {
+        int removed = (int) readVarint(in);
+        for (int i = 0; i < removed; i++) {
+            deltaState.remove(readDictionaryRef(bssidDictionary));
+        }
+        int changed = (int) readVarint(in);
+        for (int i = 0; i < changed; i++) {
+            String bssid = readDictionaryRef(bssidDictionary);
+            String ssid  = readDictionaryRef(ssidDictionary);
+            int level    = (int) readSignedVarint(in) - LEVEL_BIAS;
+            int channel  = (int) readVarint(in);
+            deltaState.put(ssid, bssid, level, channel);
+        }
+        deltaState.compact();
+
+        batch.clear();
+        deltaState.copyTo(batch);
+    }
+
+    private String readDictionaryRef(List<String> dictionary) throws IOException {
+        int ref = (int) readVarint(in);
+        if (ref == 0) {
+            String value = readString(in);
+            dictionary.add(value);
+            return value;
+        }
+        if (ref > dictionary.size()) {
+            throw new IOException("Dangling dictionary reference " + ref);
+        }
+        return dictionary.get(ref - 1);
+    }
+
+    /**
+     * Exports a compact log to CSV, as if it had been logged in CSV format.
+     * A truncated last record (e.g., app killed while writing) is ignored.
+     */
+    static void toCsv(InputStream in, Writer out) throws IOException {
+        CompactLogDecoder decoder = new CompactLogDecoder(in);
+        ScanBatch batch = new ScanBatch();
+        StringBuilder rows = new StringBuilder(4096);
+        CsvRecordEncoder encoder = null;
+        int segment = 0;
+
+        try {
+            while (decoder.next(batch)) {
+                if (decoder.segment() != segment) {
+                    segment = decoder.segment();
+                    encoder = new CsvRecordEncoder(decoder.model(), decoder.timeZone());
+                    encoder.beginSession(decoder.sessionId(), decoder.logFormatVersion());
+                }
+                rows.setLength(0);
+                encoder.appendBatch(batch, rows);
+                out.append(rows);
+            }
+        } catch (EOFException e) {
+            // truncated record at the end of the file
+        }
+        out.flush();
+    }
+
+    static void toCsv(File compactLog, File csv) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(compactLog));
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+            try {
+                toCsv(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
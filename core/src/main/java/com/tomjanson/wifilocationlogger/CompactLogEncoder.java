@@ -0,0 +1,280 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import static com.tomjanson.wifilocationlogger.CompactLogFormat.*;
+
+/*
+ * Encodes scans in the compact binary format, one record per scan; see CompactLogFormat.
+ *
+ * In delta mode (keyframeInterval > 1), a scan is written as a delta record if that's smaller:
+ * only the wifis that appeared, disappeared, or whose level changed by more than levelThreshold dB
+ * (or whose channel or SSID changed) since the previous scan as reconstructed by the decoder.
+ * Reconstructed levels are thus off by at most levelThreshold. Every segment starts with a full
+ * scan (a keyframe), and there's one at least every keyframeInterval scans.
+ */
+final class CompactLogEncoder implements ScanEncoder {
+    private final String model;
+    private final int levelThreshold;
+    private final int keyframeInterval;
+
+    private String sessionId = "";
+    private boolean segmentPending = true;
+
+    // per-segment state
+    private final Map<String, Integer> bssidDictionary = new HashMap<String, Integer>();
+    private final Map<String, Integer> ssidDictionary  = new HashMap<String, Integer>();
+    private String filter;
+    private long previousTime;
+    private long previousLatitude;
+    private long previousLongitude;
+    private long previousAltitude;
+    private long previousAccuracy;
+    private long previousSpeed;
+    private long previousError;
+    private final ScanDeltaState deltaState = new ScanDeltaState();
+    private int scansSinceKeyframe;
+
+    // per-scan scratch space of delta encoding
+    private boolean[] seen = new boolean[64];
+    private int[] changed = new int[64];
+    private final Set<String> addedBssids = new HashSet<String>();
+
+    CompactLogEncoder(String model) {
+        this(model, 0, 1);
+    }
+
+    /**
+     * @param levelThreshold   level changes of up to this many dB aren't logged in delta records
+     * @param keyframeInterval maximum number of scans from one full scan to the next; 1 disables delta records
+     */
+    CompactLogEncoder(String model, int levelThreshold, int keyframeInterval) {
+        this.model = model;
+        this.levelThreshold = levelThreshold;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    @Override
+    public String fileExtension() {
+        return FILE_EXTENSION;
+    }
+
+    @Override
+    public void beginSession(String sessionId) {
+        this.sessionId = sessionId;
+        segmentPending = true;
+    }
+
+    @Override
+    public void beginSegment() {
+        segmentPending = true;
+    }
+
+    @Override
+    public void encode(ScanBatch batch, ChunkBuffer out) {
+        if (segmentPending) {
+            writeSegmentHeader(batch.timeMillis, out);
+            segmentPending = false;
+        } else if (scansSinceKeyframe + 1 < keyframeInterval && encodeDelta(batch, out)) {
+            scansSinceKeyframe++;
+            return;
+        }
+
+        writeScanHeader(TAG_SCAN, batch, out);
+        writeVarint(out, batch.size);
+        for (int i = 0; i < batch.size; i++) {
+            writeWifi(out, batch.ssids[i], batch.bssids[i], batch.levels[i], batch.channels[i]);
+        }
+        if (keyframeInterval > 1) {
+            deltaState.reset(batch);
+            scansSinceKeyframe = 0;
+        }
+    }
+
+    /**
+     * Writes {@code batch} as a delta record, unless a full record would be as small.
+     *
+     * @return false if nothing was written
+     */
+    private boolean encodeDelta(ScanBatch batch, ChunkBuffer out) {
+        int previousSize = deltaState.size();
+        if (seen.length < previousSize) {
+            seen = new boolean[Math.max(previousSize, seen.length * 2)];
+        }
+        if (changed.length < batch.size) {
+            changed = new int[Math.max(batch.size, changed.length * 2)];
+        }
+        Arrays.fill(seen, 0, previousSize, false);
+
+        int changedCount = 0;
+        int added = 0;
+        for (int i = 0; i < batch.size; i++) {
+            int index = deltaState.indexOf(batch.bssids[i]);
+            if (index < 0) {
+                changed[changedCount++] = i;
+                added++;
+                continue;
+            }
+            if (seen[index]) {
+                return false;   // duplicate BSSID, can't be expressed as a change
+            }
+            seen[index] = true;
+            String ssid = batch.ssids[i] == null ? "" : batch.ssids[i];
+            if (Math.abs(batch.levels[i] - deltaState.level(index)) > levelThreshold
+                    || batch.channels[i] != deltaState.channel(index)
+                    || !ssid.equals(deltaState.ssid(index))) {
+                changed[changedCount++] = i;
+            }
+        }
+        int removedCount = previousSize - (batch.size - added);
+        if (changedCount + removedCount >= batch.size || added > 1 && hasDuplicateAdditions(changedCount, batch)) {
+            return false;
+        }
+
+        writeScanHeader(TAG_DELTA_SCAN, batch, out);
+        writeVarint(out, removedCount);
+        for (int i = 0; i < previousSize; i++) {
+            if (!seen[i]) {
+                writeDictionaryRef(out, bssidDictionary, deltaState.bssid(i));
+                deltaState.remove(deltaState.bssid(i));
+            }
+        }
+        writeVarint(out, changedCount);
+        for (int j = 0; j < changedCount; j++) {
+            int i = changed[j];
+            writeWifi(out, batch.ssids[i], batch.bssids[i], batch.levels[i], batch.channels[i]);
+            deltaState.put(batch.ssids[i], batch.bssids[i], batch.levels[i], batch.channels[i]);
+        }
+        deltaState.compact();
+        return true;
+    }
+
+    private boolean hasDuplicateAdditions(int changedCount, ScanBatch batch) {
+        addedBssids.clear();
+        for (int j = 0; j < changedCount; j++) {
+            String bssid = batch.bssids[changed[j]];
+            if (deltaState.indexOf(bssid) < 0 && !addedBssids.add(bssid == null ? "" : bssid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeScanHeader(int tag, ScanBatch batch, ChunkBuffer out) {
+        out.put(tag);
+
+        long latitude  = toFixed(batch.latitude,  DEGREE_SCALE);
+        long longitude = toFixed(batch.longitude, DEGREE_SCALE);
+        long altitude  = toFixed(batch.altitude,  ALTITUDE_SCALE);
+        long accuracy  = toFixed(batch.accuracy,  FLOAT_SCALE);
+        long speed     = toFixed(batch.speed,     FLOAT_SCALE);
+        long error     = toFixed(batch.locationError, FLOAT_SCALE);
+        boolean filterChanged = !batch.filter.equals(filter);
+
+        int flags = 0;
+        if (latitude  == Long.MIN_VALUE) flags |= FLAG_RAW_LATITUDE;
+        if (longitude == Long.MIN_VALUE) flags |= FLAG_RAW_LONGITUDE;
+        if (altitude  == Long.MIN_VALUE) flags |= FLAG_RAW_ALTITUDE;
+        if (accuracy  == Long.MIN_VALUE) flags |= FLAG_RAW_ACCURACY;
+        if (speed     == Long.MIN_VALUE) flags |= FLAG_RAW_SPEED;
+        if (error     == Long.MIN_VALUE) flags |= FLAG_RAW_ERROR;
+        if (filterChanged)               flags |= FLAG_FILTER;
+        out.put(flags);
+
+        writeSignedVarint(out, batch.timeMillis - previousTime);
+        previousTime = batch.timeMillis;
+
+        if (latitude == Long.MIN_VALUE) {
+            writeLong(out, Double.doubleToRawLongBits(batch.latitude));
+        } else {
+            writeSignedVarint(out, latitude - previousLatitude);
+            previousLatitude = latitude;
+        }
+        if (longitude == Long.MIN_VALUE) {
+            writeLong(out, Double.doubleToRawLongBits(batch.longitude));
+        } else {
+            writeSignedVarint(out, longitude - previousLongitude);
+            previousLongitude = longitude;
+        }
+        if (altitude == Long.MIN_VALUE) {
+            writeLong(out, Double.doubleToRawLongBits(batch.altitude));
+        } else {
+            writeSignedVarint(out, altitude - previousAltitude);
+            previousAltitude = altitude;
+        }
+        if (accuracy == Long.MIN_VALUE) {
+            writeInt(out, Float.floatToRawIntBits(batch.accuracy));
+        } else {
+            writeSignedVarint(out, accuracy - previousAccuracy);
+            previousAccuracy = accuracy;
+        }
+        if (speed == Long.MIN_VALUE) {
+            writeInt(out, Float.floatToRawIntBits(batch.speed));
+        } else {
+            writeSignedVarint(out, speed - previousSpeed);
+            previousSpeed = speed;
+        }
+
+        writeSignedVarint(out, batch.locationSkew);
+
+        if (error == Long.MIN_VALUE) {
+            writeInt(out, Float.floatToRawIntBits(batch.locationError));
+        } else {
+            writeSignedVarint(out, error - previousError);
+            previousError = error;
+        }
+
+        if (filterChanged) {
+            filter = batch.filter;
+            writeString(out, filter);
+        }
+    }
+
+    private void writeWifi(ChunkBuffer out, String ssid, String bssid, int level, int channel) {
+        writeDictionaryRef(out, bssidDictionary, bssid);
+        writeDictionaryRef(out, ssidDictionary,  ssid);
+        writeSignedVarint(out, level + LEVEL_BIAS);
+        writeVarint(out, channel);
+    }
+
+    private void writeSegmentHeader(long baseTime, ChunkBuffer out) {
+        out.write(MAGIC, 0, MAGIC.length);
+        writeVarint(out, FORMAT_VERSION);
+        writeVarint(out, LOG_FORMAT_VERSION);
+        writeString(out, model);
+        writeString(out, sessionId);
+        writeString(out, TimeZone.getDefault().getID());
+        writeLong(out, baseTime);
+
+        bssidDictionary.clear();
+        ssidDictionary.clear();
+        filter = null;
+        previousTime = baseTime;
+        previousLatitude = 0;
+        previousLongitude = 0;
+        previousAltitude = 0;
+        previousAccuracy = 0;
+        previousSpeed = 0;
+        previousError = 0;
+        deltaState.clear();
+    }
+
+    private static void writeDictionaryRef(ChunkBuffer out, Map<String, Integer> dictionary, String value) {
+        if (value == null) {
+            value = "";   // written as an empty CSV field either way
+        }
+        Integer index = dictionary.get(value);
+        if (index != null) {
+            writeVarint(out, index + 1);
+        } else {
+            dictionary.put(value, dictionary.size());
+            writeVarint(out, 0);
+            writeString(out, value);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/*
+ * Constants and primitives of the compact binary log format (*.wlb).
+ *
+ * A file is a sequence of segments, each decodable on its own:
+ *
+ *     segment  := MAGIC formatVersion logFormatVersion model sessionId timeZoneId baseTime scan (scan | delta)*
+ *     scan     := TAG_SCAN header wifiCount wifi*
+ *     delta    := TAG_DELTA_SCAN header removedCount bssidRef* wifiCount wifi*
+ *     header   := flags timeDelta lat lon alt accuracy speed skew error [filter]
+ *     wifi     := bssidRef [bssid] ssidRef [ssid] level channel
+ *
+ * - numbers are (zigzag) varints, strings are a varint byte length followed by UTF-8
+ * - timeDelta is relative to the previous scan in the segment (or baseTime)
+ * - lat/lon are fixed-point 1e-7 deg, alt fixed-point cm, accuracy/speed/error fixed-point 0.1,
+ *   each as delta to the previous scan; a flag bit per value switches to its raw IEEE bits
+ *   whenever the fixed-point value wouldn't reproduce the original exactly
+ * - BSSIDs and SSIDs are dictionary-encoded: ref 0 means "new entry, string follows",
+ *   ref n refers to the (n-1)th entry defined in this segment
+ * - the filter is only written when it changed (FLAG_FILTER)
+ * - a scan without wifis is the "no visible wifi" special row of the CSV format
+ * - a delta scan lists the wifis of the previous scan that are gone, and the wifis that are new
+ *   or changed; the others are as in the previous scan (see ScanDeltaState). Levels may have
+ *   changed by a few dB since, see CompactLogEncoder.
+ *
+ * Format version 2 added the location error; version 1 segments have none.
+ * Format version 3 added delta scans.
+ */
+final class CompactLogFormat {
+    static final String FILE_EXTENSION = "wlb";
+
+    static final byte[] MAGIC = { 'W', 'L', 'B' };
+    static final int FORMAT_VERSION = 3;
+
+    static final int TAG_SCAN = 1;
+    static final int TAG_DELTA_SCAN = 2;
+
+    static final int FLAG_RAW_LATITUDE  = 1;
+    static final int FLAG_RAW_LONGITUDE = 1 << 1;
+    static final int FLAG_RAW_ALTITUDE  = 1 << 2;
+    static final int FLAG_RAW_ACCURACY  = 1 << 3;
+    static final int FLAG_RAW_SPEED     = 1 << 4;
+    static final int FLAG_FILTER        = 1 << 5;
+    static final int FLAG_RAW_ERROR     = 1 << 6;
+
+    static final double DEGREE_SCALE   = 1e7;
+    static final double ALTITUDE_SCALE = 1e2;
+    static final double FLOAT_SCALE    = 1e1;
+
+    // keeps typical RSSI values ([-128, -1] dBm) in a single varint byte
+    static final int LEVEL_BIAS = 64;
+
+    private CompactLogFormat() {
+    }
+
+    /**
+     * Returns the fixed-point representation of {@code value}, or Long.MIN_VALUE if it isn't exact.
+     */
+    static long toFixed(double value, double scale) {
+        double scaled = value * scale;
+        if (Double.isNaN(scaled) || Math.abs(scaled) > 1e15) {
+            return Long.MIN_VALUE;
+        }
+        long fixed = Math.round(scaled);
+        boolean exact = Double.doubleToLongBits(fixed / scale) == Double.doubleToLongBits(value);
+        return exact ? fixed : Long.MIN_VALUE;
+    }
+
+    static long toFixed(float value, double scale) {
+        double scaled = value * scale;
+        if (Double.isNaN(scaled) || Math.abs(scaled) > 1e15) {
+            return Long.MIN_VALUE;
+        }
+        long fixed = Math.round(scaled);
+        boolean exact = Float.floatToIntBits((float) (fixed / scale)) == Float.floatToIntBits(value);
+        return exact ? fixed : Long.MIN_VALUE;
+    }
+
+    static void writeVarint(ChunkBuffer out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.put((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((int) value);
+    }
+
+    static void writeSignedVarint(ChunkBuffer out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    static void writeLong(ChunkBuffer out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.put((int) (value >>> shift));
+        }
+    }
+
+    static void writeInt(ChunkBuffer out, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.put(value >>> shift);
+        }
+    }
+
+    static void writeString(ChunkBuffer out, String value) {
+        byte[] bytes = utf8(value);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static long readSignedVarint(InputStream in) throws IOException {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long readLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | readByte(in);
+        }
+        return value;
+    }
+
+    static int readInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | readByte(in);
+        }
+        return value;
+    }
+
+    static String readString(InputStream in) throws IOException {
+        int length = (int) readVarint(in);
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(bytes, offset, length - offset);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            offset += n;
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Incremental per-(cell, BSSID) statistics of the signal level: count, mean, variance, min, max,
+ * i.e., what a hexbin coverage map needs, without keeping (or uploading) every logged row.
+ *
+ * Cells are hexagons of a configurable size (distance between the centers of neighbouring cells)
+ * on a sinusoidal projection (x = (longitude - central meridian) * cos(latitude), y = latitude,
+ * in meters), which keeps them true to size everywhere. Like UTM, there's a central meridian per
+ * 6 degree zone of longitude, so the hexagons are sheared by at most a few percent. A cell is
+ * identified by its zone and axial coordinates (q, r), packed into a long. BSSIDs are 48-bit
+ * longs (see Bssids).
+ *
+ * Entries live in an open-addressing (linear probing) hash table of parallel primitive arrays,
+ * about 40 bytes per slot. Levels are kept as exact sums, so entries can be merged (e.g., on
+ * a server) without loss. The table grows up to the capacity for maxEntries and no further:
+ * once full, samples of new (cell, BSSID) pairs are dropped (and counted), those of existing
+ * pairs are still aggregated. Memory is therefore bounded no matter how many samples there are.
+ *
+ * The whole table can be checkpointed to a compact binary file, and read back to continue:
+ *
+ *     file  := MAGIC formatVersion cellSizeMeters samples droppedSamples entryCount entry*
+ *     entry := cell(8) bssid(6) count(4) sum(8) sumOfSquares(8) min(1) max(1)
+ *
+ * Not thread-safe.
+ */
+final class CoverageAggregator {
+    static final String FILE_EXTENSION = "wla";
+    static final byte[] MAGIC = { 'W', 'L', 'A' };
+    static final int FORMAT_VERSION = 1;
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    static final double METERS_PER_DEGREE = Math.PI / 180 * EARTH_RADIUS_METERS;
+    private static final double SQRT3 = Math.sqrt(3);
+    private static final int ZONE_WIDTH_DEGREES = 6;
+
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int MAX_LOAD_PERCENT = 75;
+
+    private final double cellSizeMeters;
+    private final double radius;   // of the hexagons' circumcircle
+    private final int maxEntries;
+    private final int maxSlots;
+
+    // a slot is empty iff its count is 0
+    private long[] cells;
+    private long[] bssids;
+    private int[]  counts;
+    private long[] sums;
+    private long[] sumsOfSquares;
+    private byte[] mins;
+    private byte[] maxs;
+
+    private int size;
+    private int threshold;
+    private long samples;
+    private long droppedSamples;
+    private boolean modified;
+
+    CoverageAggregator(double cellSizeMeters, int maxEntries) {
+        this.cellSizeMeters = cellSizeMeters;
+        this.radius = cellSizeMeters / SQRT3;
+        this.maxEntries = maxEntries;
+        int slots = INITIAL_SLOTS;
+        while ((long) slots * MAX_LOAD_PERCENT / 100 < maxEntries) {
+            slots *= 2;
+        }
+        this.maxSlots = slots;
+        allocate(Math.min(INITIAL_SLOTS, maxSlots));
+    }
+
+    double cellSizeMeters() {
+        return cellSizeMeters;
+    }
+
+    /**
+     * Number of (cell, BSSID) entries.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Number of samples aggregated so far, including those of a checkpoint read back.
+     */
+    long samples() {
+        return samples;
+    }
+
+    /**
+     * Number of samples dropped because the table was full.
+     */
+    long droppedSamples() {
+        return droppedSamples;
+    }
+
+    /**
+     * Whether anything was added since the last checkpoint was written or read.
+     */
+    boolean isModified() {
+        return modified;
+    }
+
+    void clear() {
+        size = 0;
+        allocate(Math.min(INITIAL_SLOTS, maxSlots));
+        samples = 0;
+        droppedSamples = 0;
+        modified = true;
+    }
+
+    /**
+     * Adds all wifis of a logged scan, at the scan's location. Wifis with malformed BSSIDs are skipped.
+     */
+    void add(ScanBatch batch) {
+        long cell = cellOf(batch.latitude, batch.longitude);
+        for (int i = 0; i < batch.size; i++) {
+            long bssid = Bssids.parse(batch.bssids[i]);
+            if (bssid != Bssids.INVALID) {
+                add(cell, bssid, batch.levels[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds a single sample; returns false if it was dropped because the table is full.
+     */
+    boolean add(long cell, long bssid, int level) {
+        byte clamped = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, level));
+        return merge(cell, bssid, 1, level, (long) level * level, clamped, clamped);
+    }
+
+    /**
+     * Merges all entries of {@code other}, which must use the same cell size.
+     */
+    void addAll(CoverageAggregator other) {
+        if (other.cellSizeMeters != cellSizeMeters) {
+            throw new IllegalArgumentException("Cell sizes differ: " + other.cellSizeMeters + " m");
+        }
+        long samplesBefore = samples;
+        for (int i = 0; i < other.counts.length; i++) {
+            if (other.counts[i] != 0) {
+                merge(other.cells[i], other.bssids[i], other.counts[i], other.sums[i],
+                        other.sumsOfSquares[i], other.mins[i], other.maxs[i]);
+            }
+        }
+        samples = samplesBefore + other.samples;
+        droppedSamples += other.droppedSamples;
+    }
+
+    /**
+     * The cell containing a position.
+     */
+    long cellOf(double latitude, double longitude) {
+        int zone = (int) Math.floor((longitude + 180) / ZONE_WIDTH_DEGREES);
+        zone = Math.max(0, Math.min(360 / ZONE_WIDTH_DEGREES - 1, zone));
+        double y = latitude * METERS_PER_DEGREE;
+        double x = (longitude - centralMeridian(zone)) * METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+
+        // fractional axial coordinates of pointy-top hexagons, rounded via cube coordinates
+        double q = (SQRT3 / 3 * x - y / 3) / radius;
+        double r = 2.0 / 3 * y / radius;
+        double s = -q - r;
+        long roundedQ = Math.round(q);
+        long roundedR = Math.round(r);
+        long roundedS = Math.round(s);
+        double dq = Math.abs(roundedQ - q);
+        double dr = Math.abs(roundedR - r);
+        double ds = Math.abs(roundedS - s);
+        if (dq > dr && dq > ds) {
+            roundedQ = -roundedR - roundedS;
+        } else if (dr > ds) {
+            roundedR = -roundedQ - roundedS;
+        }
+        return toCell(zone, (int) roundedQ, (int) roundedR);
+    }
+
+    /**
+     * Packs zone (8 bits), q and r (28 bits each, enough for cells down to 1 m) into a cell.
+     */
+    static long toCell(int zone, int q, int r) {
+        return (long) zone << 56 | (q & 0xfffffffL) << 28 | (r & 0xfffffffL);
+    }
+
+    static int cellZone(long cell) {
+        return (int) (cell >>> 56);
+    }
+
+    static int cellQ(long cell) {
+        return (int) (cell << 8 >> 36);
+    }
+
+    static int cellR(long cell) {
+        return (int) (cell << 36 >> 36);
+    }
+
+    /**
+     * Latitude of the cell's center.
+     */
+    double cellLatitude(long cell) {
+        return radius * 1.5 * cellR(cell) / METERS_PER_DEGREE;
+    }
+
+    /**
+     * Longitude of the cell's center.
+     */
+    double cellLongitude(long cell) {
+        double x = radius * SQRT3 * (cellQ(cell) + cellR(cell) / 2.0);
+        return centralMeridian(cellZone(cell))
+                + x / (METERS_PER_DEGREE * Math.cos(Math.toRadians(cellLatitude(cell))));
+    }
+
+    private static double centralMeridian(int zone) {
+        return zone * ZONE_WIDTH_DEGREES - 180 + ZONE_WIDTH_DEGREES / 2.0;
+    }
+
+    /**
+     * Entries are accessed by slot: iterate over [0, slots()) and skip slots with count 0.
+     */
+    int slots() {
+        return counts.length;
+    }
+
+    /**
+     * The slot of an entry, or -1 if there's none.
+     */
+    int find(long cell, long bssid) {
+        int slot = slotOf(cell, bssid);
+        return counts[slot] == 0 ? -1 : slot;
+    }
+
+    long cell(int slot) {
+        return cells[slot];
+    }
+
+    long bssid(int slot) {
+        return bssids[slot];
+    }
+
+    int count(int slot) {
+        return counts[slot];
+    }
+
+    double mean(int slot) {
+        return (double) sums[slot] / counts[slot];
+    }
+
+    /**
+     * Population variance of the levels.
+     */
+    double variance(int slot) {
+        double mean = mean(slot);
+        return Math.max(0, (double) sumsOfSquares[slot] / counts[slot] - mean * mean);
+    }
+
+    int min(int slot) {
+        return mins[slot];
+    }
+
+    int max(int slot) {
+        return maxs[slot];
+    }
+
+    /**
+     * Writes all entries to {@code file}, atomically: a crash leaves the previous checkpoint intact.
+     */
+    void writeCheckpoint(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            out.write(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeDouble(cellSizeMeters);
+            out.writeLong(samples);
+            out.writeLong(droppedSamples);
+            out.writeInt(size);
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    out.writeLong(cells[i]);
+                    out.writeShort((int) (bssids[i] >>> 32));
+                    out.writeInt((int) bssids[i]);
+                    out.writeInt(counts[i]);
+                    out.writeLong(sums[i]);
+                    out.writeLong(sumsOfSquares[i]);
+                    out.writeByte(mins[i]);
+                    out.writeByte(maxs[i]);
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+        modified = false;
+    }
+
+    /**
+     * Merges the entries of a checkpoint into this aggregator (usually an empty one, to continue
+     * where the checkpoint left off). Fails if the checkpoint's cell size differs.
+     */
+    void readCheckpoint(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            int version = in.readUnsignedByte();
+            if (!Arrays.equals(magic, MAGIC) || version != FORMAT_VERSION) {
+                throw new IOException(file + " is not a coverage checkpoint (version " + FORMAT_VERSION + ")");
+            }
+            double fileCellSize = in.readDouble();
+            if (fileCellSize != cellSizeMeters) {
+                throw new IOException(file + " has cells of " + fileCellSize + " m, not " + cellSizeMeters + " m");
+            }
+            long fileSamples = in.readLong();
+            long fileDroppedSamples = in.readLong();
+            int entries = in.readInt();
+            long samplesBefore = samples;
+            for (int i = 0; i < entries; i++) {
+                long cell = in.readLong();
+                long bssid = (long) in.readUnsignedShort() << 32 | (in.readInt() & 0xffffffffL);
+                int count = in.readInt();
+                long sum = in.readLong();
+                long sumOfSquares = in.readLong();
+                byte min = in.readByte();
+                byte max = in.readByte();
+                merge(cell, bssid, count, sum, sumOfSquares, min, max);
+            }
+            samples = samplesBefore + fileSamples;
+            droppedSamples += fileDroppedSamples;
+            modified = false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean merge(long cell, long bssid, int count, long sum, long sumOfSquares, byte min, byte max) {
+        samples += count;
+        int slot = slotOf(cell, bssid);
+        if (counts[slot] == 0) {
+            if (size == maxEntries) {
+                droppedSamples += count;
+                return false;
+            }
+            if (size >= threshold && counts.length < maxSlots) {
+                allocate(counts.length * 2);
+                slot = slotOf(cell, bssid);
+            }
+            cells[slot] = cell;
+            bssids[slot] = bssid;
+            mins[slot] = min;
+            maxs[slot] = max;
+            size++;
+        } else {
+            if (min < mins[slot]) {
+                mins[slot] = min;
+            }
+            if (max > maxs[slot]) {
+                maxs[slot] = max;
+            }
+        }
+        counts[slot] += count;
+        sums[slot] += sum;
+        sumsOfSquares[slot] += sumOfSquares;
+        modified = true;
+        return true;
+    }
+
+    /**
+     * The slot holding the entry, or the empty slot where it would go.
+     */
+    private int slotOf(long cell, long bssid) {
+        int mask = counts.length - 1;
+        int slot = hash(cell, bssid) & mask;
+        while (counts[slot] != 0 && (cells[slot] != cell || bssids[slot] != bssid)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long cell, long bssid) {
+        // MurmurHash3's 64-bit finalizer
+        long h = cell * 0x9e3779b97f4a7c15L ^ bssid;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * (Re)allocates the table with the given number of slots, rehashing existing entries.
+     */
+    private void allocate(int slots) {
+        long[] oldCells = cells;
+        long[] oldBssids = bssids;
+        int[]  oldCounts = counts;
+        long[] oldSums = sums;
+        long[] oldSumsOfSquares = sumsOfSquares;
+        byte[] oldMins = mins;
+        byte[] oldMaxs = maxs;
+
+        cells         = new long[slots];
+        bssids        = new long[slots];
+        counts        = new int[slots];
+        sums          = new long[slots];
+        sumsOfSquares = new long[slots];
+        mins          = new byte[slots];
+        maxs          = new byte[slots];
+        threshold     = (int) ((long) slots * MAX_LOAD_PERCENT / 100);
+
+        if (oldCounts == null || size == 0) {
+            return;
+        }
+        for (int i = 0; i < oldCounts.length; i++) {
+            if (oldCounts[i] != 0) {
+                int slot = slotOf(oldCells[i], oldBssids[i]);
+                cells[slot]         = oldCells[i];
+                bssids[slot]        = oldBssids[i];
+                counts[slot]        = oldCounts[i];
+                sums[slot]          = oldSums[i];
+                sumsOfSquares[slot] = oldSumsOfSquares[i];
+                mins[slot]          = oldMins[i];
+                maxs[slot]          = oldMaxs[i];
+            }
+        }
+    }
+}
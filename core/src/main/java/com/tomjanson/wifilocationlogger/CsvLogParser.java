@@ -0,0 +1,531 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/*
+ * Parses CSV scan logs (format versions 1 and 2, see CsvRecordEncoder) straight from a
+ * (memory-mapped) buffer, without creating Strings: numbers, timestamps and BSSIDs are
+ * parsed from the bytes, text fields are only reported as byte ranges (see Row.text()).
+ *
+ * Copes with what older versions of the app wrote: SSIDs and the filter weren't quoted at all,
+ * so they may contain commas (and an SSID may start with a double quote). An SSID therefore
+ * ends where ",BSSID," follows, unless it's a properly quoted field; the filter (last column)
+ * is skipped up to the end of the line.
+ *
+ * Rows that can't be parsed are skipped up to the next line and counted.
+ */
+final class CsvLogParser {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final int TIMESTAMP_LENGTH = 23;   // yyyy-MM-dd HH:mm:ss.SSS
+    private static final int BSSID_LENGTH = 17;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    interface Handler {
+        /**
+         * Called for each row; {@code row} is reused for the next one.
+         */
+        void onRow(Row row);
+    }
+
+    /**
+     * One parsed row. Text fields are byte ranges [start, end) of {@code buffer}.
+     */
+    static final class Row {
+        ByteBuffer buffer;
+        int     start, end;   // the whole row, including its line break (if any)
+
+        long    localTime;   // the timestamp column as millis since 1970-01-01 00:00 (in local time)
+        int     version;
+        int     modelStart, modelEnd;
+        boolean modelQuoted;
+        int     sessionStart, sessionEnd;
+        boolean sessionQuoted;
+        double  latitude;
+        double  longitude;
+        double  altitude;
+        float   accuracy;
+        float   speed;
+        int     specialCode;
+        long    locationSkew;
+        float   locationError;   // NaN in version 1
+        int     ssidStart, ssidEnd;
+        boolean ssidQuoted;
+        long    bssid;           // Bssids.INVALID in special rows
+        int     level;
+        int     channel;
+
+        String model() {
+            return text(modelStart, modelEnd, modelQuoted);
+        }
+
+        String sessionId() {
+            return text(sessionStart, sessionEnd, sessionQuoted);
+        }
+
+        String ssid() {
+            return text(ssidStart, ssidEnd, ssidQuoted);
+        }
+
+        boolean isSpecial() {
+            return specialCode != ScanBatch.NOT_SPECIAL;
+        }
+
+        /**
+         * The raw bytes of a text field, see decode().
+         */
+        byte[] bytes(int start, int end) {
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return bytes;
+        }
+
+        /**
+         * Whether the raw bytes of a text field equal {@code bytes}.
+         */
+        boolean equals(int start, int end, byte[] bytes) {
+            if (bytes.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (buffer.get(start + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String text(int start, int end, boolean quoted) {
+            return decode(bytes(start, end), quoted);
+        }
+    }
+
+    /**
+     * The text of a field from its raw bytes.
+     */
+    static String decode(byte[] bytes, boolean quoted) {
+        String text = new String(bytes, UTF_8);
+        return quoted ? text.replace("\"\"", "\"") : text;
+    }
+
+    private final Row row = new Row();
+    private ByteBuffer buf;
+    private int pos;
+    private int limit;
+
+    // the last field parsed by textField()
+    private int fieldStart;
+    private int fieldEnd;
+    private boolean fieldQuoted;
+
+    private long rows;
+    private long malformedRows;
+
+    long rows() {
+        return rows;
+    }
+
+    long malformedRows() {
+        return malformedRows;
+    }
+
+    /**
+     * Parses all rows in [position, limit) of {@code buffer}, which should start at a row.
+     */
+    void parse(ByteBuffer buffer, Handler handler) {
+        buf = buffer;
+        row.buffer = buffer;
+        pos = buffer.position();
+        limit = buffer.limit();
+        while (pos < limit) {
+            int start = pos;
+            boolean parsed;
+            try {
+                parseRow();
+                parsed = true;
+            } catch (NumberFormatException e) {
+                parsed = false;
+            } catch (IndexOutOfBoundsException e) {
+                parsed = false;
+            }
+            if (parsed) {
+                row.start = start;
+                row.end = Math.min(pos, limit);
+                rows++;
+                handler.onRow(row);
+            } else {
+                malformedRows++;
+                pos = lineEnd(start) + 1;
+            }
+        }
+    }
+
+    private void parseRow() {
+        if (!isRowStart(buf, pos)) {
+            throw malformed();
+        }
+        row.localTime = parseTimestamp(buf, pos);
+        pos += TIMESTAMP_LENGTH + 1;
+
+        row.version = (int) longField();
+        if (row.version < 1 || row.version > ScanEncoder.LOG_FORMAT_VERSION) {
+            throw malformed();
+        }
+        textField();
+        row.modelStart = fieldStart;
+        row.modelEnd = fieldEnd;
+        row.modelQuoted = fieldQuoted;
+        textField();
+        row.sessionStart = fieldStart;
+        row.sessionEnd = fieldEnd;
+        row.sessionQuoted = fieldQuoted;
+
+        row.latitude      = doubleField();
+        row.longitude     = doubleField();
+        row.altitude      = doubleField();
+        row.accuracy      = (float) doubleField();
+        row.speed         = (float) doubleField();
+        row.specialCode   = (int) longField();
+        row.locationSkew  = longField();
+        row.locationError = row.version >= 2 ? (float) doubleField() : Float.NaN;
+
+        if (row.isSpecial()) {
+            // empty ssid, bssid, level, channel
+            for (int i = 0; i < 4; i++) {
+                pos = commaAfter(pos) + 1;
+            }
+            row.ssidStart = row.ssidEnd = pos;
+            row.ssidQuoted = false;
+            row.bssid = Bssids.INVALID;
+            row.level = 0;
+            row.channel = 0;
+        } else {
+            ssidField();
+            row.bssid = parseBssid(buf, pos);
+            pos += BSSID_LENGTH + 1;
+            row.level = (int) longField();
+            row.channel = (int) longField();
+        }
+        skipLastField();
+    }
+
+    private void textField() {
+        if (buf.get(pos) == '"') {
+            int close = closingQuote(pos + 1);
+            if (close < 0 || buf.get(close + 1) != ',') {
+                throw malformed();
+            }
+            fieldStart = pos + 1;
+            fieldEnd = close;
+            fieldQuoted = true;
+            pos = close + 2;
+        } else {
+            int comma = commaAfter(pos);
+            fieldStart = pos;
+            fieldEnd = comma;
+            fieldQuoted = false;
+            pos = comma + 1;
+        }
+    }
+
+    /**
+     * The SSID, quoted or not, up to the ",BSSID," following it. Leaves pos at the BSSID.
+     */
+    private void ssidField() {
+        int start = pos;
+        if (buf.get(start) == '"') {
+            int close = closingQuote(start + 1);
+            if (close >= 0 && buf.get(close + 1) == ',' && isBssidField(buf, close + 2, limit)) {
+                row.ssidStart = start + 1;
+                row.ssidEnd = close;
+                row.ssidQuoted = true;
+                pos = close + 2;
+                return;
+            }
+        }
+        for (int i = start; i < limit; i++) {
+            byte b = buf.get(i);
+            if (b == '\n') {
+                break;
+            }
+            if (b == ',' && isBssidField(buf, i + 1, limit)) {
+                row.ssidStart = start;
+                row.ssidEnd = i;
+                row.ssidQuoted = false;
+                pos = i + 1;
+                return;
+            }
+        }
+        throw malformed();
+    }
+
+    private void skipLastField() {
+        if (pos < limit && buf.get(pos) == '"') {
+            int close = closingQuote(pos + 1);
+            if (close >= 0) {
+                pos = close + 1;
+            }
+        }
+        pos = lineEnd(pos) + 1;
+    }
+
+    private long longField() {
+        int comma = commaAfter(pos);
+        long value = parseLong(buf, pos, comma);
+        pos = comma + 1;
+        return value;
+    }
+
+    private double doubleField() {
+        int comma = commaAfter(pos);
+        double value = parseDouble(buf, pos, comma);
+        pos = comma + 1;
+        return value;
+    }
+
+    /**
+     * Index of the next ',' in the current line.
+     */
+    private int commaAfter(int from) {
+        for (int i = from; i < limit; i++) {
+            byte b = buf.get(i);
+            if (b == ',') {
+                return i;
+            }
+            if (b == '\n') {
+                break;
+            }
+        }
+        throw malformed();
+    }
+
+    /**
+     * Index of the quote closing a quoted field whose content starts at {@code from}, -1 if none.
+     * Quoted fields may span lines.
+     */
+    private int closingQuote(int from) {
+        for (int i = from; i < limit; i++) {
+            if (buf.get(i) == '"') {
+                if (i + 1 < limit && buf.get(i + 1) == '"') {
+                    i++;
+                } else {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Index of the '\n' ending the line, or limit.
+     */
+    private int lineEnd(int from) {
+        for (int i = from; i < limit; i++) {
+            if (buf.get(i) == '\n') {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    private static NumberFormatException malformed() {
+        return new NumberFormatException("Malformed row");
+    }
+
+    /**
+     * Whether a row (i.e., "yyyy-MM-dd HH:mm:ss.SSS,") starts at {@code i}.
+     */
+    static boolean isRowStart(ByteBuffer buf, int i) {
+        if (i + TIMESTAMP_LENGTH >= buf.limit()) {
+            return false;
+        }
+        for (int k = 0; k < TIMESTAMP_LENGTH; k++) {
+            byte b = buf.get(i + k);
+            boolean ok;
+            switch (k) {
+                case 4:
+                case 7:
+                    ok = b == '-';
+                    break;
+                case 10:
+                    ok = b == ' ';
+                    break;
+                case 13:
+                case 16:
+                    ok = b == ':';
+                    break;
+                case 19:
+                    ok = b == '.';
+                    break;
+                default:
+                    ok = b >= '0' && b <= '9';
+            }
+            if (!ok) {
+                return false;
+            }
+        }
+        return buf.get(i + TIMESTAMP_LENGTH) == ',';
+    }
+
+    /**
+     * Whether the timestamps of the rows starting at {@code i} and {@code j} are equal.
+     */
+    static boolean sameTimestamp(ByteBuffer buf, int i, int j) {
+        for (int k = 0; k < TIMESTAMP_LENGTH; k++) {
+            if (buf.get(i + k) != buf.get(j + k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long parseTimestamp(ByteBuffer buf, int i) {
+        int year   = digits(buf, i, 4);
+        int month  = digits(buf, i + 5, 2);
+        int day    = digits(buf, i + 8, 2);
+        int hour   = digits(buf, i + 11, 2);
+        int minute = digits(buf, i + 14, 2);
+        int second = digits(buf, i + 17, 2);
+        int millis = digits(buf, i + 20, 3);
+        return daysFromCivil(year, month, day) * 86400000L
+                + hour * 3600000L + minute * 60000L + second * 1000L + millis;
+    }
+
+    private static int digits(ByteBuffer buf, int i, int n) {
+        int value = 0;
+        for (int k = 0; k < n; k++) {
+            value = value * 10 + buf.get(i + k) - '0';
+        }
+        return value;
+    }
+
+    /**
+     * Days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    static boolean isBssidField(ByteBuffer buf, int i, int limit) {
+        if (i + BSSID_LENGTH >= limit || buf.get(i + BSSID_LENGTH) != ',') {
+            return false;
+        }
+        for (int k = 0; k < BSSID_LENGTH; k++) {
+            byte b = buf.get(i + k);
+            if (k % 3 == 2 ? b != ':' : Character.digit(b, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The BSSID at {@code i} (checked with isBssidField()) as a long, see Bssids.
+     */
+    static long parseBssid(ByteBuffer buf, int i) {
+        long value = 0;
+        for (int k = 0; k < BSSID_LENGTH; k++) {
+            if (k % 3 != 2) {
+                value = value << 4 | Character.digit(buf.get(i + k), 16);
+            }
+        }
+        return value;
+    }
+
+    static long parseLong(ByteBuffer buf, int start, int end) {
+        int i = start;
+        boolean negative = i < end && buf.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            throw malformed();
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw malformed();
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses what Double.toString() writes. Values with at most 18 significant digits and
+     * a small exponent are parsed directly (at most 1 ulp off), others via Double.parseDouble().
+     */
+    static double parseDouble(ByteBuffer buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte b = buf.get(i);
+            if (b >= '0' && b <= '9') {
+                anyDigit = true;
+                if (significantDigits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0) {
+                        significantDigits++;
+                    }
+                    if (fraction) {
+                        exponent--;
+                    }
+                } else if (!fraction) {
+                    exponent++;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else if (b == 'E' || b == 'e') {
+                exponent += (int) parseLong(buf, i + 1, end);
+                break;
+            } else {
+                // NaN, Infinity
+                return slowParseDouble(buf, start, end);
+            }
+        }
+        if (!anyDigit) {
+            throw malformed();
+        }
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (mantissa < 1L << 53 && exponent >= -22 && exponent <= 22) {
+            value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return slowParseDouble(buf, start, end);
+        }
+        return negative ? -value : value;
+    }
+
+    private static double slowParseDouble(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return Double.parseDouble(new String(bytes, UTF_8));
+    }
+}
@@ -0,0 +1,253 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/*
+ * Encodes the CSV rows of a scan (one per logged wifi, or one "special" row) into a buffer.
+ *
+ * Fields that stay constant for a session (format version, device model, session ID)
+ * are encoded once by beginSession(), the filter column once per filter change,
+ * and the timestamp's date/hour/minute part once per minute.
+ * Everything else is appended straight into the buffer, so encoding a row does not
+ * create any intermediate Strings.
+ *
+ * Row layout:
+ *     timestamp,version,model,sessionId,lat,lon,alt,accuracy,speed,specialCode,locationSkew,locationError,ssid,bssid,level,channel,'filter'
+ * where timestamp is "yyyy-MM-dd HH:mm:ss.SSS" in local time (formerly logback's %date).
+ * Version 1 rows (still written when re-encoding old data) have no locationError column.
+ *
+ * Free-text fields (SSID, filter, model) are quoted RFC 4180-style, but only if they
+ * actually contain a comma, double quote or line break. Rows without such characters
+ * are byte-identical to what the app wrote before.
+ */
+final class CsvRecordEncoder implements ScanEncoder {
+    private final StringBuilder rows = new StringBuilder(4096);
+
+    private final String model;
+    private String sessionPrefix = "";
+    private boolean writeLocationError = true;
+
+    private String filter;
+    private String filterSuffix = "";
+
+    // cached "yyyy-MM-dd HH:mm:" prefix, valid for [minuteStart, minuteStart + 60s)
+    private final Calendar calendar;
+    private final StringBuilder minutePrefix = new StringBuilder(20);
+    private long minuteStart = Long.MIN_VALUE;
+
+    CsvRecordEncoder(String model) {
+        this(model, TimeZone.getDefault());
+    }
+
+    /**
+     * @param timeZone time zone of the timestamp column
+     */
+    CsvRecordEncoder(String model, TimeZone timeZone) {
+        this.model = model;
+        this.calendar = Calendar.getInstance(timeZone);
+    }
+
+    @Override
+    public String fileExtension() {
+        return "csv";
+    }
+
+    /**
+     * Precomputes the row prefix for a new session.
+     */
+    @Override
+    public void beginSession(String sessionId) {
+        beginSession(sessionId, LOG_FORMAT_VERSION);
+    }
+
+    /**
+     * Precomputes the row prefix for a session logged with the given format version.
+     */
+    void beginSession(String sessionId, int formatVersion) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(formatVersion).append(',');
+        appendField(sb, model);
+        sb.append(',');
+        appendField(sb, sessionId);
+        sb.append(',');
+        sessionPrefix = sb.toString();
+        writeLocationError = formatVersion >= 2;
+    }
+
+    /**
+     * Sets the filter text logged in the last column; cheap if unchanged.
+     */
+    void setFilter(String filterText) {
+        if (filterText.equals(filter)) {
+            return;
+        }
+        filter = filterText;
+        StringBuilder sb = new StringBuilder(filterText.length() + 4);
+        sb.append(',');
+        appendField(sb, "'" + filterText + "'");
+        filterSuffix = sb.toString();
+    }
+
+    @Override
+    public void beginSegment() {
+        // CSV rows are self-contained
+    }
+
+    /**
+     * Appends all rows of a scan to {@code out} as UTF-8.
+     */
+    @Override
+    public void encode(ScanBatch batch, ChunkBuffer out) {
+        rows.setLength(0);
+        appendBatch(batch, rows);
+        encodeUtf8(rows, out);
+    }
+
+    /**
+     * Appends all rows of a scan to {@code out}, each terminated by a newline.
+     */
+    void appendBatch(ScanBatch batch, StringBuilder out) {
+        setFilter(batch.filter);
+        if (batch.size == 0) {
+            beginRow(batch, out);
+            out.append(",,,");
+            endRow(out);
+            return;
+        }
+        for (int i = 0; i < batch.size; i++) {
+            beginRow(batch, out);
+            appendField(out, batch.ssids[i]);
+            out.append(',').append(batch.bssids[i])
+               .append(',').append(batch.levels[i])
+               .append(',').append(batch.channels[i]);
+            endRow(out);
+        }
+    }
+
+    private void beginRow(ScanBatch batch, StringBuilder out) {
+        appendTimestamp(batch.timeMillis, out);
+        out.append(',')
+           .append(sessionPrefix)
+           .append(batch.latitude)
+           .append(',').append(batch.longitude)
+           .append(',').append(batch.altitude)
+           .append(',').append(batch.accuracy)
+           .append(',').append(batch.speed)
+           .append(',').append(batch.specialCode())
+           .append(',').append(batch.locationSkew)
+           .append(',');
+        if (writeLocationError) {
+            out.append(batch.locationError).append(',');
+        }
+    }
+
+    private void endRow(StringBuilder out) {
+        out.append(filterSuffix).append('\n');
+    }
+
+    /**
+     * Appends "yyyy-MM-dd HH:mm:ss.SSS" in local time.
+     */
+    void appendTimestamp(long timeMillis, StringBuilder out) {
+        if (timeMillis < minuteStart || timeMillis >= minuteStart + 60000) {
+            updateMinutePrefix(timeMillis);
+        }
+        int millisInMinute = (int) (timeMillis - minuteStart);
+        out.append(minutePrefix);
+        appendPadded(out, millisInMinute / 1000, 2);
+        out.append('.');
+        appendPadded(out, millisInMinute % 1000, 3);
+    }
+
+    private void updateMinutePrefix(long timeMillis) {
+        calendar.setTimeInMillis(timeMillis);
+        // not set(SECOND, 0) etc.: in the hour repeated when DST ends, that may resolve to the other offset
+        minuteStart = timeMillis - calendar.get(Calendar.SECOND) * 1000 - calendar.get(Calendar.MILLISECOND);
+
+        minutePrefix.setLength(0);
+        appendPadded(minutePrefix, calendar.get(Calendar.YEAR), 4);
+        minutePrefix.append('-');
+        appendPadded(minutePrefix, calendar.get(Calendar.MONTH) + 1, 2);
+        minutePrefix.append('-');
+        appendPadded(minutePrefix, calendar.get(Calendar.DAY_OF_MONTH), 2);
+        minutePrefix.append(' ');
+        appendPadded(minutePrefix, calendar.get(Calendar.HOUR_OF_DAY), 2);
+        minutePrefix.append(':');
+        appendPadded(minutePrefix, calendar.get(Calendar.MINUTE), 2);
+        minutePrefix.append(':');
+    }
+
+    private static void appendPadded(StringBuilder sb, int value, int digits) {
+        for (int limit = 10; digits > 1; digits--, limit *= 10) {
+            if (value < limit) {
+                sb.append('0');
+            }
+        }
+        sb.append(value);
+    }
+
+    /**
+     * Appends a CSV field, quoting it only if necessary.
+     */
+    static void appendField(StringBuilder sb, String value) {
+        if (value == null) {
+            return;
+        }
+        if (!needsQuoting(value)) {
+            sb.append(value);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static boolean needsQuoting(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes {@code chars} as UTF-8 into {@code out}.
+     */
+    static void encodeUtf8(CharSequence chars, ChunkBuffer out) {
+        out.ensureCapacity(out.size() + chars.length() * 3);
+        byte[] b = out.array();
+        int n = out.size();
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                b[n++] = (byte) c;
+            } else if (c < 0x800) {
+                b[n++] = (byte) (0xc0 | (c >> 6));
+                b[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                b[n++] = (byte) (0xf0 | (cp >> 18));
+                b[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                b[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                b[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                b[n++] = (byte) '?';
+            } else {
+                b[n++] = (byte) (0xe0 | (c >> 12));
+                b[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        out.setSize(n);
+    }
+}
@@ -0,0 +1,228 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Inverted index from BSSID to the fingerprints it's part of, for FingerprintLocator.
+ *
+ * A fingerprint is a coverage cell (see CoverageAggregator) with the mean level of each BSSID
+ * logged in it. The index has, per BSSID, its postings: (cell, mean level, number of samples),
+ * sorted by cell. Looking up the BSSIDs of a scan therefore only touches cells sharing an AP with it.
+ *
+ * File format (big-endian), written in a single pass by Writer:
+ *
+ *     file       := posting* bssidEntry* footer
+ *     posting    := cell(8) meanLevel(2, in 1/16 dB) samples(2, capped at 65535)
+ *     bssidEntry := bssid(8) firstPosting(4)              (ascending BSSIDs)
+ *     footer     := MAGIC formatVersion(1) cellSizeMeters(8) bssidCount(4) postingCount(4)
+ *
+ * open() memory-maps the file, so only the pages of BSSIDs actually looked up are read (by the OS,
+ * on demand); finding a BSSID is a binary search in the table. 12 bytes per posting and per BSSID,
+ * files up to 2 GB. An index is immutable; FingerprintLocator merges new data into a new file.
+ */
+final class FingerprintIndex {
+    static final String FILE_EXTENSION = "wfi";
+    static final byte[] MAGIC = { 'W', 'F', 'I' };
+    static final int FORMAT_VERSION = 1;
+
+    static final int LEVEL_SCALE = 16;
+    static final int MAX_SAMPLES = 0xffff;
+
+    private static final int POSTING_SIZE = 12;
+    private static final int BSSID_ENTRY_SIZE = 12;
+    private static final int FOOTER_SIZE = MAGIC.length + 1 + 8 + 4 + 4;
+
+    private final ByteBuffer buf;
+    private final double cellSizeMeters;
+    private final int bssidCount;
+    private final int postingCount;
+    private final int tableOffset;
+
+    private FingerprintIndex(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        int footer = buf.limit() - FOOTER_SIZE;
+        if (footer < 0 || buf.get(footer) != MAGIC[0] || buf.get(footer + 1) != MAGIC[1]
+                || buf.get(footer + 2) != MAGIC[2]) {
+            throw new IOException("Not a fingerprint index");
+        }
+        if (buf.get(footer + 3) != FORMAT_VERSION) {
+            throw new IOException("Unsupported fingerprint index version " + buf.get(footer + 3));
+        }
+        cellSizeMeters = buf.getDouble(footer + 4);
+        bssidCount     = buf.getInt(footer + 12);
+        postingCount   = buf.getInt(footer + 16);
+        tableOffset    = postingCount * POSTING_SIZE;
+        if ((long) tableOffset + (long) bssidCount * BSSID_ENTRY_SIZE != footer) {
+            throw new IOException("Truncated fingerprint index");
+        }
+    }
+
+    /**
+     * Memory-maps an index file (which may be deleted or replaced afterwards).
+     */
+    static FingerprintIndex open(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large");
+            }
+            return new FingerprintIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    double cellSizeMeters() {
+        return cellSizeMeters;
+    }
+
+    int bssidCount() {
+        return bssidCount;
+    }
+
+    int postingCount() {
+        return postingCount;
+    }
+
+    /**
+     * The table entry of a BSSID, or -1 if it isn't in the index.
+     */
+    int find(long bssid) {
+        int low = 0;
+        int high = bssidCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long value = bssid(middle);
+            if (value < bssid) {
+                low = middle + 1;
+            } else if (value > bssid) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    long bssid(int entry) {
+        return buf.getLong(tableOffset + entry * BSSID_ENTRY_SIZE);
+    }
+
+    /**
+     * The postings of a BSSID are [firstPosting(entry), endPosting(entry)).
+     */
+    int firstPosting(int entry) {
+        return buf.getInt(tableOffset + entry * BSSID_ENTRY_SIZE + 8);
+    }
+
+    int endPosting(int entry) {
+        return entry + 1 < bssidCount ? firstPosting(entry + 1) : postingCount;
+    }
+
+    long cell(int posting) {
+        return buf.getLong(posting * POSTING_SIZE);
+    }
+
+    float meanLevel(int posting) {
+        return (float) buf.getShort(posting * POSTING_SIZE + 8) / LEVEL_SCALE;
+    }
+
+    int samples(int posting) {
+        return buf.getShort(posting * POSTING_SIZE + 10) & 0xffff;
+    }
+
+    /**
+     * Writes an index file from postings added in ascending (BSSID, cell) order.
+     * The file is only complete after close().
+     */
+    static final class Writer {
+        private final DataOutputStream out;
+        private final double cellSizeMeters;
+        private long[] bssids = new long[1024];
+        private int[] firstPostings = new int[1024];
+        private int bssidCount;
+        private int postingCount;
+        private long lastCell;
+
+        Writer(File file, double cellSizeMeters) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            this.cellSizeMeters = cellSizeMeters;
+        }
+
+        void add(long bssid, long cell, double meanLevel, long samples) throws IOException {
+            if (bssidCount == 0 || bssid != bssids[bssidCount - 1]) {
+                if (bssidCount > 0 && bssid < bssids[bssidCount - 1]) {
+                    throw new IllegalArgumentException("BSSIDs out of order");
+                }
+                if (bssidCount == bssids.length) {
+                    bssids = Arrays.copyOf(bssids, bssidCount * 2);
+                    firstPostings = Arrays.copyOf(firstPostings, bssidCount * 2);
+                }
+                bssids[bssidCount] = bssid;
+                firstPostings[bssidCount] = postingCount;
+                bssidCount++;
+            } else if (cell <= lastCell) {
+                throw new IllegalArgumentException("Cells out of order");
+            }
+            lastCell = cell;
+            out.writeLong(cell);
+            out.writeShort((int) Math.round(Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, meanLevel * LEVEL_SCALE))));
+            out.writeShort((int) Math.min(samples, MAX_SAMPLES));
+            postingCount++;
+        }
+
+        void close() throws IOException {
+            try {
+                for (int i = 0; i < bssidCount; i++) {
+                    out.writeLong(bssids[i]);
+                    out.writeInt(firstPostings[i]);
+                }
+                out.write(MAGIC);
+                out.writeByte(FORMAT_VERSION);
+                out.writeDouble(cellSizeMeters);
+                out.writeInt(bssidCount);
+                out.writeInt(postingCount);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the fingerprints of all entries of {@code coverage} to {@code file}.
+     */
+    static void write(final CoverageAggregator coverage, File file) throws IOException {
+        Integer[] slots = new Integer[coverage.size()];
+        int n = 0;
+        for (int i = 0; i < coverage.slots(); i++) {
+            if (coverage.count(i) != 0) {
+                slots[n++] = i;
+            }
+        }
+        Arrays.sort(slots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Long.compare(coverage.bssid(a), coverage.bssid(b));
+                return c != 0 ? c : Long.compare(coverage.cell(a), coverage.cell(b));
+            }
+        });
+        Writer writer = new Writer(file, coverage.cellSizeMeters());
+        try {
+            for (Integer slot : slots) {
+                writer.add(coverage.bssid(slot), coverage.cell(slot), coverage.mean(slot), coverage.count(slot));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Estimates the position of a scan from logged fingerprints (weighted k nearest neighbours in
+ * signal space), without a GPS fix.
+ *
+ * Fingerprints are kept in an immutable FingerprintIndex file (the base, may be missing) plus
+ * an in-memory delta of the scans logged since, per BSSID and cell. Both are inverted indexes,
+ * so a lookup only visits the candidate cells that share at least one AP with the scan:
+ *
+ * - every AP of the scan adds (level - mean level)^2 to each cell it was logged in
+ * - the distance of a candidate is the RMS level difference over the scan's APs known to the
+ *   index, where an AP not logged in that cell counts as MISSING_AP_DIFFERENCE_DB
+ * - the estimate is the mean of the k nearest cells' centers, weighted by 1 / (distance + 1)
+ *
+ * accuracy is the weighted spread of these cells plus half a cell; confidence (0 to 1) is the
+ * fraction of the scan's APs found in the nearest cell, discounted by its distance.
+ *
+ * Candidates are accumulated in a reused open-addressing table, so lookups don't allocate.
+ * Once the delta has more than maxDeltaEntries, merge() should be called to write base and
+ * delta to a new index file. Not thread-safe.
+ */
+final class FingerprintLocator {
+    static final float MISSING_AP_DIFFERENCE_DB = 20;
+    private static final float DISTANCE_SCALE_DB = 10;   // confidence is halved every ~7 dB
+    private static final int INITIAL_CANDIDATE_SLOTS = 1024;
+
+    /**
+     * Result of locate(), reused by the caller.
+     */
+    static final class Estimate {
+        double latitude;
+        double longitude;
+        float  accuracy;     // meters
+        float  confidence;   // 0 to 1
+        float  distanceDb;   // RMS level difference to the nearest fingerprint
+        int    matchedAps;   // APs of the scan found in the nearest fingerprint
+        int    candidates;   // fingerprints compared
+    }
+
+    // per-cell level sums of one BSSID, since the base index was written
+    private static final class DeltaPostings {
+        long[] cells = new long[4];
+        long[] sums = new long[4];
+        int[]  counts = new int[4];
+        int    size;
+
+        int find(long cell) {
+            for (int i = 0; i < size; i++) {
+                if (cells[i] == cell) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void add(long cell, int level) {
+            int i = find(cell);
+            if (i < 0) {
+                if (size == cells.length) {
+                    cells  = Arrays.copyOf(cells, size * 2);
+                    sums   = Arrays.copyOf(sums, size * 2);
+                    counts = Arrays.copyOf(counts, size * 2);
+                }
+                i = size++;
+                cells[i] = cell;
+            }
+            sums[i] += level;
+            counts[i]++;
+        }
+    }
+
+    private final CoverageAggregator geometry;   // only used for its cells
+    private final float maxErrorMeters;
+    private final int maxDeltaEntries;
+    private final int k;
+
+    private FingerprintIndex base;
+    private final TreeMap<Long, DeltaPostings> delta = new TreeMap<Long, DeltaPostings>();
+    private int deltaEntries;
+
+    // candidate table, valid for the current generation only
+    private long[]  candidateCells;
+    private int[]   candidateGenerations;
+    private float[] candidateSquares;
+    private int[]   candidateMatches;
+    private int     generation;
+    private int[]   candidateSlots;   // the slots of this lookup's candidates
+    private int     candidateCount;
+
+    // k nearest of the current lookup, by ascending distance
+    private final long[]  nearestCells;
+    private final float[] nearestDistances;
+    private final int[]   nearestMatches;
+
+    FingerprintLocator(FingerprintIndex base, double cellSizeMeters, float maxErrorMeters,
+                       int maxDeltaEntries, int k) {
+        if (base != null && base.cellSizeMeters() != cellSizeMeters) {
+            throw new IllegalArgumentException("Cell sizes differ: " + base.cellSizeMeters() + " m");
+        }
+        this.base = base;
+        this.geometry = new CoverageAggregator(cellSizeMeters, 0);
+        this.maxErrorMeters = maxErrorMeters;
+        this.maxDeltaEntries = maxDeltaEntries;
+        this.k = k;
+        allocateCandidates(INITIAL_CANDIDATE_SLOTS);
+        candidateSlots = new int[0];
+        nearestCells = new long[k];
+        nearestDistances = new float[k];
+        nearestMatches = new int[k];
+    }
+
+    /**
+     * Number of (BSSID, cell) fingerprints in the index file.
+     */
+    int baseEntries() {
+        return base == null ? 0 : base.postingCount();
+    }
+
+    /**
+     * Number of (BSSID, cell) fingerprints logged since the index file was written.
+     */
+    int deltaEntries() {
+        return deltaEntries;
+    }
+
+    boolean needsMerge() {
+        return deltaEntries > maxDeltaEntries;
+    }
+
+    /**
+     * Adds the wifis of a logged scan, unless its location is less accurate than maxErrorMeters.
+     */
+    void add(ScanBatch batch) {
+        if (batch.accuracy + batch.locationError > maxErrorMeters) {
+            return;
+        }
+        long cell = geometry.cellOf(batch.latitude, batch.longitude);
+        for (int i = 0; i < batch.size; i++) {
+            long bssid = Bssids.parse(batch.bssids[i]);
+            if (bssid == Bssids.INVALID) {
+                continue;
+            }
+            DeltaPostings postings = delta.get(bssid);
+            if (postings == null) {
+                postings = new DeltaPostings();
+                delta.put(bssid, postings);
+            }
+            int before = postings.size;
+            postings.add(cell, batch.levels[i]);
+            deltaEntries += postings.size - before;
+        }
+    }
+
+    /**
+     * Estimates the position of a scan of n APs. Returns false (leaving {@code out} as it is)
+     * if none of them is in the index.
+     */
+    boolean locate(long[] bssids, int[] levels, int n, Estimate out) {
+        if (++generation == 0) {
+            Arrays.fill(candidateGenerations, 0);
+            generation = 1;
+        }
+        candidateCount = 0;
+        int known = 0;
+        for (int i = 0; i < n; i++) {
+            if (addCandidates(bssids[i], levels[i])) {
+                known++;
+            }
+        }
+        if (candidateCount == 0) {
+            return false;
+        }
+
+        // k nearest, by insertion into the (short) sorted arrays
+        int nearest = 0;
+        float missingSquare = MISSING_AP_DIFFERENCE_DB * MISSING_AP_DIFFERENCE_DB;
+        for (int c = 0; c < candidateCount; c++) {
+            int slot = candidateSlots[c];
+            int matches = candidateMatches[slot];
+            float distance = (float) Math.sqrt((candidateSquares[slot] + (known - matches) * missingSquare) / known);
+            if (nearest == k && distance >= nearestDistances[k - 1]) {
+                continue;
+            }
+            int j = nearest < k ? nearest++ : k - 1;
+            while (j > 0 && nearestDistances[j - 1] > distance) {
+                nearestCells[j] = nearestCells[j - 1];
+                nearestDistances[j] = nearestDistances[j - 1];
+                nearestMatches[j] = nearestMatches[j - 1];
+                j--;
+            }
+            nearestCells[j] = candidateCells[slot];
+            nearestDistances[j] = distance;
+            nearestMatches[j] = matches;
+        }
+
+        double weightSum = 0;
+        double latitude = 0;
+        double longitude = 0;
+        for (int j = 0; j < nearest; j++) {
+            double weight = 1 / (nearestDistances[j] + 1.0);
+            weightSum += weight;
+            latitude  += weight * geometry.cellLatitude(nearestCells[j]);
+            longitude += weight * geometry.cellLongitude(nearestCells[j]);
+        }
+        latitude /= weightSum;
+        longitude /= weightSum;
+
+        double cosLatitude = Math.cos(Math.toRadians(latitude));
+        double spread = 0;
+        for (int j = 0; j < nearest; j++) {
+            double dy = (geometry.cellLatitude(nearestCells[j]) - latitude) * CoverageAggregator.METERS_PER_DEGREE;
+            double dx = (geometry.cellLongitude(nearestCells[j]) - longitude)
+                    * CoverageAggregator.METERS_PER_DEGREE * cosLatitude;
+            spread += (dx * dx + dy * dy) / (nearestDistances[j] + 1.0);
+        }
+
+        out.latitude   = latitude;
+        out.longitude  = longitude;
+        out.accuracy   = (float) (Math.sqrt(spread / weightSum) + geometry.cellSizeMeters() / 2);
+        out.distanceDb = nearestDistances[0];
+        out.matchedAps = nearestMatches[0];
+        out.confidence = (float) ((double) nearestMatches[0] / n * Math.exp(-nearestDistances[0] / DISTANCE_SCALE_DB));
+        out.candidates = candidateCount;
+        return true;
+    }
+
+    /**
+     * Adds the squared level differences of one AP to the cells it's known in (base merged
+     * with delta). Returns whether it's known at all.
+     */
+    private boolean addCandidates(long bssid, int level) {
+        int entry = base == null ? -1 : base.find(bssid);
+        int first = entry < 0 ? 0 : base.firstPosting(entry);
+        int end = entry < 0 ? 0 : base.endPosting(entry);
+        DeltaPostings postings = delta.get(bssid);
+        int deltaSize = postings == null ? 0 : postings.size;
+        if (end - first + deltaSize == 0) {
+            return false;
+        }
+        ensureCandidateCapacity(end - first + deltaSize);
+
+        for (int p = first; p < end; p++) {
+            long cell = base.cell(p);
+            double mean = base.meanLevel(p);
+            int d = deltaSize == 0 ? -1 : postings.find(cell);
+            if (d >= 0) {
+                int samples = base.samples(p);
+                mean = (mean * samples + postings.sums[d]) / (samples + postings.counts[d]);
+            }
+            addCandidate(cell, level - mean);
+        }
+        for (int d = 0; d < deltaSize; d++) {
+            long cell = postings.cells[d];
+            if (entry < 0 || findPosting(cell, first, end) < 0) {
+                addCandidate(cell, level - (double) postings.sums[d] / postings.counts[d]);
+            }
+        }
+        return true;
+    }
+
+    private int findPosting(long cell, int first, int end) {
+        int low = first;
+        int high = end - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long value = base.cell(middle);
+            if (value < cell) {
+                low = middle + 1;
+            } else if (value > cell) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private void addCandidate(long cell, double difference) {
+        int mask = candidateCells.length - 1;
+        int slot = hash(cell) & mask;
+        while (candidateGenerations[slot] == generation && candidateCells[slot] != cell) {
+            slot = (slot + 1) & mask;
+        }
+        if (candidateGenerations[slot] != generation) {
+            candidateGenerations[slot] = generation;
+            candidateCells[slot] = cell;
+            candidateSquares[slot] = 0;
+            candidateMatches[slot] = 0;
+            candidateSlots[candidateCount++] = slot;
+        }
+        candidateSquares[slot] += (float) (difference * difference);
+        candidateMatches[slot]++;
+    }
+
+    /**
+     * Makes room for {@code more} candidates, keeping those of the current lookup.
+     */
+    private void ensureCandidateCapacity(int more) {
+        int needed = candidateCount + more;
+        if (candidateSlots.length < needed) {
+            candidateSlots = Arrays.copyOf(candidateSlots, Math.max(needed, candidateSlots.length * 2));
+        }
+        if ((long) needed * 2 <= candidateCells.length) {
+            return;
+        }
+        long[]  oldCells = candidateCells;
+        float[] oldSquares = candidateSquares;
+        int[]   oldMatches = candidateMatches;
+        int slots = candidateCells.length;
+        while (slots < needed * 2) {
+            slots *= 2;
+        }
+        allocateCandidates(slots);
+        int mask = slots - 1;
+        for (int c = 0; c < candidateCount; c++) {
+            int old = candidateSlots[c];
+            int slot = hash(oldCells[old]) & mask;
+            while (candidateGenerations[slot] == generation) {
+                slot = (slot + 1) & mask;
+            }
+            candidateGenerations[slot] = generation;
+            candidateCells[slot] = oldCells[old];
+            candidateSquares[slot] = oldSquares[old];
+            candidateMatches[slot] = oldMatches[old];
+            candidateSlots[c] = slot;
+        }
+    }
+
+    private void allocateCandidates(int slots) {
+        candidateCells       = new long[slots];
+        candidateGenerations = new int[slots];
+        candidateSquares     = new float[slots];
+        candidateMatches     = new int[slots];
+    }
+
+    private static int hash(long cell) {
+        long h = cell * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    /**
+     * Writes base and delta to a new index file (via a temporary file next to it, so {@code file}
+     * may be the base's own file), which becomes the base, and clears the delta.
+     */
+    void merge(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FingerprintIndex.Writer writer = new FingerprintIndex.Writer(temp, geometry.cellSizeMeters());
+        try {
+            int entries = base == null ? 0 : base.bssidCount();
+            int entry = 0;
+            Iterator<Map.Entry<Long, DeltaPostings>> deltas = delta.entrySet().iterator();
+            Map.Entry<Long, DeltaPostings> next = deltas.hasNext() ? deltas.next() : null;
+            while (entry < entries || next != null) {
+                long baseBssid = entry < entries ? base.bssid(entry) : Long.MAX_VALUE;
+                long deltaBssid = next != null ? next.getKey() : Long.MAX_VALUE;
+                if (baseBssid <= deltaBssid) {
+                    writeMerged(writer, baseBssid, entry, baseBssid == deltaBssid ? next.getValue() : null);
+                    entry++;
+                } else {
+                    writeMerged(writer, deltaBssid, -1, next.getValue());
+                }
+                if (deltaBssid <= baseBssid && next != null) {
+                    next = deltas.hasNext() ? deltas.next() : null;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+        base = FingerprintIndex.open(file);
+        delta.clear();
+        deltaEntries = 0;
+    }
+
+    /**
+     * Writes the postings of one BSSID: those of base entry {@code entry} (if not -1) merged with
+     * {@code postings} (if not null), by ascending cell.
+     */
+    private void writeMerged(FingerprintIndex.Writer writer, long bssid, int entry, DeltaPostings postings)
+            throws IOException {
+        int p = entry < 0 ? 0 : base.firstPosting(entry);
+        int end = entry < 0 ? 0 : base.endPosting(entry);
+        int size = postings == null ? 0 : postings.size;
+        Integer[] order = new Integer[size];
+        for (int d = 0; d < size; d++) {
+            order[d] = d;
+        }
+        if (size > 1) {
+            final long[] cells = postings.cells;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(cells[a], cells[b]);
+                }
+            });
+        }
+        int d = 0;
+        while (p < end || d < size) {
+            long baseCell = p < end ? base.cell(p) : Long.MAX_VALUE;
+            long deltaCell = d < size ? postings.cells[order[d]] : Long.MAX_VALUE;
+            if (p < end && (d == size || baseCell < deltaCell)) {
+                writer.add(bssid, baseCell, base.meanLevel(p), base.samples(p));
+                p++;
+            } else if (p == end || deltaCell < baseCell) {
+                int i = order[d++];
+                writer.add(bssid, deltaCell, (double) postings.sums[i] / postings.counts[i], postings.counts[i]);
+            } else {
+                int i = order[d++];
+                int samples = base.samples(p);
+                long count = samples + postings.counts[i];
+                writer.add(bssid, baseCell, (base.meanLevel(p) * samples + postings.sums[i]) / count, count);
+                p++;
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * Time-indexed ring buffer of recent location fixes, used to stamp each scan with
+ * the position at scan time instead of the last known one.
+ *
+ * Fixes are kept in parallel primitive arrays (no per-fix allocation), ordered by time.
+ * estimate() interpolates between the fixes bracketing the requested time, or
+ * extrapolates from the newest fix (using the velocity between the two newest fixes),
+ * and reports an upper bound of the resulting position error.
+ */
+final class LocationHistory {
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final double METERS_PER_DEGREE = Math.PI / 180 * EARTH_RADIUS_METERS;
+
+    // don't derive a velocity from fixes further apart than this
+    private static final long MAX_VELOCITY_BASE_MILLIS = 30000;
+
+    private final long[]   times;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double[] altitudes;
+    private final float[]  accuracies;
+    private final float[]  speeds;
+
+    private int start;   // index of the oldest fix
+    private int size;
+
+    LocationHistory(int capacity) {
+        times      = new long[capacity];
+        latitudes  = new double[capacity];
+        longitudes = new double[capacity];
+        altitudes  = new double[capacity];
+        accuracies = new float[capacity];
+        speeds     = new float[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Time of the newest fix, or Long.MIN_VALUE if there is none.
+     */
+    long newestTime() {
+        return size == 0 ? Long.MIN_VALUE : times[index(size - 1)];
+    }
+
+    void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    /**
+     * Adds a fix, evicting the oldest one if full. Fixes may arrive slightly out of order.
+     */
+    void add(long time, double latitude, double longitude, double altitude, float accuracy, float speed) {
+        if (size == times.length) {
+            if (time < times[start]) {
+                return;   // older than anything we keep
+            }
+            start = (start + 1) % times.length;
+            size--;
+        }
+
+        // find insertion position, usually at the end
+        int position = size;
+        while (position > 0 && times[index(position - 1)] > time) {
+            position--;
+        }
+        for (int i = size; i > position; i--) {
+            copy(index(i - 1), index(i));
+        }
+
+        int i = index(position);
+        times[i]      = time;
+        latitudes[i]  = latitude;
+        longitudes[i] = longitude;
+        altitudes[i]  = altitude;
+        accuracies[i] = accuracy;
+        speeds[i]     = speed;
+        size++;
+    }
+
+    /**
+     * Estimates the location at {@code time} and stores it (including the error bound) in {@code out}.
+     *
+     * @return false if there is no fix at all
+     */
+    boolean estimate(long time, ScanBatch out) {
+        if (size == 0) {
+            return false;
+        }
+
+        // first fix after time
+        int after = 0;
+        while (after < size && times[index(after)] <= time) {
+            after++;
+        }
+
+        if (after == 0) {
+            // before the oldest fix: use it as is, it can't be more wrong than this
+            set(index(0), time, out);
+        } else if (after == size) {
+            extrapolate(time, out);
+        } else {
+            interpolate(index(after - 1), index(after), time, out);
+        }
+        return true;
+    }
+
+    private void interpolate(int a, int b, long time, ScanBatch out) {
+        long dt = times[b] - times[a];
+        double f = dt == 0 ? 0 : (double) (time - times[a]) / dt;
+
+        out.latitude  = latitudes[a]  + f * (latitudes[b]  - latitudes[a]);
+        out.longitude = longitudes[a] + f * (longitudes[b] - longitudes[a]);
+        out.altitude  = altitudes[a]  + f * (altitudes[b]  - altitudes[a]);
+        out.accuracy  = (float) (accuracies[a] + f * (accuracies[b] - accuracies[a]));
+        out.speed     = (float) (speeds[a]     + f * (speeds[b]     - speeds[a]));
+
+        // the true path may deviate from the straight line between the fixes
+        // by at most (max speed) * (time to the closer fix)
+        double maxSpeed = Math.max(Math.max(speeds[a], speeds[b]),
+                dt == 0 ? 0 : distance(a, b) / (dt / 1000.0));
+        double closer = Math.min(time - times[a], times[b] - time) / 1000.0;
+        out.locationError = (float) (out.accuracy + maxSpeed * closer);
+    }
+
+    private void extrapolate(long time, ScanBatch out) {
+        int newest = index(size - 1);
+        set(newest, time, out);
+        if (size < 2) {
+            return;
+        }
+
+        int previous = index(size - 2);
+        long dt = times[newest] - times[previous];
+        if (dt <= 0 || dt > MAX_VELOCITY_BASE_MILLIS) {
+            return;
+        }
+        double f = (double) (time - times[newest]) / dt;
+        out.latitude  += f * (latitudes[newest]  - latitudes[previous]);
+        out.longitude += f * (longitudes[newest] - longitudes[previous]);
+        out.altitude  += f * (altitudes[newest]  - altitudes[previous]);
+    }
+
+    /**
+     * Uses fix {@code i} as is; the error grows with the fix's age (or time until it).
+     */
+    private void set(int i, long time, ScanBatch out) {
+        out.latitude  = latitudes[i];
+        out.longitude = longitudes[i];
+        out.altitude  = altitudes[i];
+        out.accuracy  = accuracies[i];
+        out.speed     = speeds[i];
+        out.locationError = (float) (accuracies[i] + speeds[i] * Math.abs(time - times[i]) / 1000.0);
+    }
+
+    private double distance(int a, int b) {
+        return distanceMeters(latitudes[a], longitudes[a], latitudes[b], longitudes[b]);
+    }
+
+    /**
+     * Approximate distance in meters between two nearby positions (equirectangular).
+     */
+    static double distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dy = (latitude2 - latitude1) * METERS_PER_DEGREE;
+        double dx = (longitude2 - longitude1) * METERS_PER_DEGREE
+                * Math.cos(Math.toRadians((latitude1 + latitude2) / 2));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private int index(int position) {
+        return (start + position) % times.length;
+    }
+
+    private void copy(int from, int to) {
+        times[to]      = times[from];
+        latitudes[to]  = latitudes[from];
+        longitudes[to] = longitudes[from];
+        altitudes[to]  = altitudes[from];
+        accuracies[to] = accuracies[from];
+        speeds[to]     = speeds[from];
+    }
+}
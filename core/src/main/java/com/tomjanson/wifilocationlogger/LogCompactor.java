@@ -0,0 +1,287 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Keeps the log directory within bounds:
+ *
+ * - rolled log files ($name.yyyy-MM-dd.$ext) are gzipped to $name.yyyy-MM-dd.$ext.gz. The
+ *   compressed copy is written to a temporary file and read back (content length and CRC must
+ *   match the original) before it replaces the original.
+ * - while the log files (UploadEngine.logFiles() and the local logs, not the debug logs) take more than
+ *   maxBytes, the oldest rolled files are deleted, but only those the server has acknowledged
+ *   completely (see UploadEngine). Data that hasn't been uploaded is never deleted, even if
+ *   that means staying above maxBytes.
+ * - local logs (localBaseNames, e.g. the BLE log) are never uploaded. They're gzipped the same
+ *   way and count toward maxBytes; their rolled files are deleted without waiting for an upload,
+ *   in the same oldest-first order (by date) as the uploaded ones.
+ *
+ * The active file is never touched, so the ScanBatchWriter never waits for this. Runs on the
+ * upload thread (see UploadScheduler.runOnUploadThread()), so it never races with an upload,
+ * at low priority.
+ *
+ * Metrics: compacted_files, compaction_reclaimed_bytes, evicted_files, evicted_bytes.
+ */
+final class LogCompactor implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(LogCompactor.class);
+
+    // mustn't start with $name., or it would be uploaded
+    private static final String TEMP_FILE = "compaction.tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // the date of a rolled file, see UploadEngine.logFilePattern()
+    private static final Comparator<File> BY_DATE = new Comparator<File>() {
+        private final Pattern date = Pattern.compile("\\.(\\d{4}-\\d\\d-\\d\\d)\\.");
+
+        @Override
+        public int compare(File a, File b) {
+            int byDate = date(a).compareTo(date(b));
+            return byDate != 0 ? byDate : a.getName().compareTo(b.getName());
+        }
+
+        private String date(File file) {
+            Matcher matcher = date.matcher(file.getName());
+            return matcher.find() ? matcher.group(1) : "";
+        }
+    };
+
+    private final File directory;
+    private final long maxBytes;
+    private final UploadEngine engine;
+    private final Pattern[] localLogs;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private final Metrics.Counter compactedFiles;
+    private final Metrics.Counter reclaimedBytes;
+    private final Metrics.Counter evictedFiles;
+    private final Metrics.Counter evictedBytes;
+
+    LogCompactor(File directory, long maxBytes, UploadEngine engine, Metrics metrics, String... localBaseNames) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.engine = engine;
+        localLogs = new Pattern[localBaseNames.length];
+        for (int i = 0; i < localBaseNames.length; i++) {
+            localLogs[i] = UploadEngine.logFilePattern(localBaseNames[i]);
+        }
+        compactedFiles = metrics.counter("compacted_files");
+        reclaimedBytes = metrics.counter("compaction_reclaimed_bytes");
+        evictedFiles   = metrics.counter("evicted_files");
+        evictedBytes   = metrics.counter("evicted_bytes");
+    }
+
+    @Override
+    public void run() {
+        Thread thread = Thread.currentThread();
+        int priority = thread.getPriority();
+        thread.setPriority(Thread.MIN_PRIORITY);
+        try {
+            compress();
+            evict();
+        } catch (IOException e) {
+            log.warn("Log compaction failed: {}", e);
+        } finally {
+            thread.setPriority(priority);
+        }
+    }
+
+    private void compress() throws IOException {
+        int files = 0;
+        long reclaimed = 0;
+        List<File> rolled = new ArrayList<File>();
+        addRolled(engine.logFiles(), rolled);
+        addRolled(localLogFiles(), rolled);
+        for (File file : rolled) {
+            if (UploadEngine.isCompressed(file)) {
+                continue;
+            }
+            File compressed = new File(directory, file.getName() + UploadEngine.GZIP_EXTENSION);
+            if (compressed.exists()) {
+                log.warn("Not compressing {}, {} already exists", file, compressed);
+                continue;
+            }
+            long length = file.length();
+            compress(file, compressed);
+            files++;
+            reclaimed += length - compressed.length();
+        }
+        if (files > 0) {
+            log.info("Compressed {} log files, reclaimed {} bytes", files, reclaimed);
+            compactedFiles.add(files);
+            reclaimedBytes.add(reclaimed);
+        }
+    }
+
+    private void compress(File file, File compressed) throws IOException {
+        File temp = new File(directory, TEMP_FILE);
+        CRC32 crc = new CRC32();
+        long length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            try {
+                GZIPOutputStream out = new GZIPOutputStream(fileOut, BUFFER_SIZE);
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    length += n;
+                }
+                out.finish();
+                fileOut.getFD().sync();
+                out.close();
+            } finally {
+                fileOut.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        if (!hasContent(temp, length, crc.getValue())) {
+            temp.delete();
+            throw new IOException("Compressed copy of " + file + " doesn't match, keeping the original");
+        }
+        if (!temp.renameTo(compressed)) {
+            throw new IOException("Could not rename " + temp + " to " + compressed);
+        }
+        // if this fails, both are uploaded as the same file (same fingerprint), and retried next time
+        if (!file.delete()) {
+            log.warn("Could not delete {} after compressing it", file);
+        }
+    }
+
+    /**
+     * Whether the gzipped file decompresses to {@code length} bytes with that CRC.
+     */
+    private boolean hasContent(File gzipped, long length, long crcValue) {
+        CRC32 crc = new CRC32();
+        long n = 0;
+        try {
+            InputStream in = new GZIPInputStream(new FileInputStream(gzipped), BUFFER_SIZE);
+            try {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, read);
+                    n += read;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not read back {}: {}", gzipped, e);
+            return false;
+        }
+        return n == length && crc.getValue() == crcValue;
+    }
+
+    private void evict() throws IOException {
+        File[] files = engine.logFiles();
+        File[] localFiles = localLogFiles();
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        for (File file : localFiles) {
+            total += file.length();
+        }
+
+        List<File> rolled = new ArrayList<File>();
+        addRolled(files, rolled);
+        addRolled(localFiles, rolled);
+        Collections.sort(rolled, BY_DATE);
+        Set<File> local = new HashSet<File>();
+        Collections.addAll(local, localFiles);
+
+        int evicted = 0;
+        long evictedLength = 0;
+        for (int i = 0; i < rolled.size() && total > maxBytes; i++) {
+            File file = rolled.get(i);
+            String key = null;
+            if (!local.contains(file)) {
+                long contentLength = UploadEngine.contentLength(file);
+                key = engine.key(file, contentLength);
+                if (!engine.isUploaded(key, contentLength)) {
+                    continue;
+                }
+            }
+            long length = file.length();
+            if (!file.delete()) {
+                log.warn("Could not delete {}", file);
+                continue;
+            }
+            if (key != null) {
+                engine.forget(key);
+            }
+            total -= length;
+            evicted++;
+            evictedLength += length;
+        }
+
+        if (evicted > 0) {
+            log.info("Deleted {} uploaded or local log files ({} bytes), log files now take {} bytes",
+                    evicted, evictedLength, total);
+            evictedFiles.add(evicted);
+            evictedBytes.add(evictedLength);
+        }
+        if (total > maxBytes) {
+            log.warn("Log files take {} bytes, more than {}, but the rest hasn't been uploaded yet", total, maxBytes);
+        }
+    }
+
+    /**
+     * The local logs' files, active and rolled.
+     */
+    private File[] localLogFiles() {
+        if (localLogs.length == 0) {
+            return new File[0];
+        }
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return localLogMatcher(name) != null;
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private Matcher localLogMatcher(String name) {
+        for (Pattern pattern : localLogs) {
+            Matcher matcher = pattern.matcher(name);
+            if (matcher.matches()) {
+                return matcher;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the rolled ones of the files (uploaded or local logs) to {@code rolled}.
+     */
+    private void addRolled(File[] files, List<File> rolled) {
+        for (File file : files) {
+            Matcher local = localLogMatcher(file.getName());
+            if (local != null ? local.group(1) != null : engine.isRolled(file)) {
+                rolled.add(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Registry of counters and histograms of the logging pipeline, cheap enough for the per-scan
+ * path: updating one is a few uncontended atomic operations, without allocation or locking.
+ *
+ * Components register their metrics by name (usually once, when they're created) and keep
+ * the returned handle. Counters count up forever; histograms collect the values of the current
+ * interval, which snapshot() reports and resets (see MetricsLog).
+ *
+ * Histogram buckets are log-linear, 4 per power of two, so reported percentiles are off by
+ * less than 1/8 of the value; values are typically latencies, sizes and counts.
+ */
+final class Metrics {
+
+    static final class Counter {
+        final String name;
+        private final AtomicLong total = new AtomicLong();
+        private long reported;   // only accessed by snapshot()
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        void increment() {
+            total.incrementAndGet();
+        }
+
+        void add(long n) {
+            total.addAndGet(n);
+        }
+
+        long total() {
+            return total.get();
+        }
+    }
+
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records a value; negative values are recorded as 0.
+         */
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucketOf(value));
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // retry
+            }
+        }
+
+        /**
+         * Reads (and, if {@code reset}, clears) the current interval.
+         */
+        private void read(Summary summary, boolean reset) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = reset ? buckets.getAndSet(i, 0) : buckets.get(i);
+                summary.counts[i] = n;
+                count += n;
+            }
+            summary.count = count;
+            summary.max = reset ? max.getAndSet(0) : max.get();
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+            int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + subBucket) << shift;
+        }
+    }
+
+    /**
+     * The values of one histogram interval.
+     */
+    static final class Summary {
+        private final long[] counts = new long[Histogram.BUCKETS];
+        long count;
+        long max;
+
+        /**
+         * Returns the q-quantile (0 < q <= 1), as the middle of its bucket; 0 if empty.
+         */
+        long percentile(double q) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(rank, 1)) {
+                    long lower = Histogram.lowerBound(i);
+                    long upper = i + 1 < Histogram.BUCKETS ? Histogram.lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                    return Math.min(lower + (upper - lower) / 2, max);
+                }
+            }
+            return max;
+        }
+    }
+
+    private final List<Counter> counters = new ArrayList<Counter>();
+    private final List<Histogram> histograms = new ArrayList<Histogram>();
+    private final Summary summary = new Summary();   // guarded by this
+
+    private final Metrics parent;   // of a prefixed() view, null otherwise
+    private final String prefix;
+
+    Metrics() {
+        this(null, "");
+    }
+
+    private Metrics(Metrics parent, String prefix) {
+        this.parent = parent;
+        this.prefix = prefix;
+    }
+
+    /**
+     * A view that registers metrics here, with {@code prefix} prepended to their names, e.g.,
+     * for a second instance of a component. Only for registering: the view has no metrics of its own.
+     */
+    Metrics prefixed(String prefix) {
+        return parent != null ? parent.prefixed(this.prefix + prefix) : new Metrics(this, prefix);
+    }
+
+    /**
+     * Returns the counter of that name, registering it if necessary.
+     */
+    synchronized Counter counter(String name) {
+        if (parent != null) {
+            return parent.counter(prefix + name);
+        }
+        for (Counter counter : counters) {
+            if (counter.name.equals(name)) {
+                return counter;
+            }
+        }
+        Counter counter = new Counter(name);
+        counters.add(counter);
+        return counter;
+    }
+
+    /**
+     * Returns the histogram of that name, registering it if necessary.
+     */
+    synchronized Histogram histogram(String name) {
+        if (parent != null) {
+            return parent.histogram(prefix + name);
+        }
+        for (Histogram histogram : histograms) {
+            if (histogram.name.equals(name)) {
+                return histogram;
+            }
+        }
+        Histogram histogram = new Histogram(name);
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Appends the CSV values of the interval since the last snapshot (counter increments and
+     * histogram summaries) and starts the next interval. The matching header goes to
+     * {@code header}, in the same step, so that a metric registered meanwhile is in both or
+     * neither: per counter its name, per histogram name_n, name_p50, name_p90, name_p99 and name_max.
+     *
+     * @return false if nothing was counted or recorded in the interval
+     */
+    synchronized boolean snapshot(StringBuilder header, StringBuilder out) {
+        boolean active = false;
+        for (Counter counter : counters) {
+            long total = counter.total();
+            header.append(',').append(counter.name);
+            out.append(',').append(total - counter.reported);
+            active |= total != counter.reported;
+            counter.reported = total;
+        }
+        for (Histogram histogram : histograms) {
+            histogram.read(summary, true);
+            header.append(',').append(histogram.name).append("_n")
+                  .append(',').append(histogram.name).append("_p50")
+                  .append(',').append(histogram.name).append("_p90")
+                  .append(',').append(histogram.name).append("_p99")
+                  .append(',').append(histogram.name).append("_max");
+            out.append(',').append(summary.count)
+               .append(',').append(summary.percentile(0.5))
+               .append(',').append(summary.percentile(0.9))
+               .append(',').append(summary.percentile(0.99))
+               .append(',').append(summary.max);
+            active |= summary.count > 0;
+        }
+        return active;
+    }
+
+    /**
+     * Appends a human-readable view for the debug panel: counter totals, and the
+     * histograms of the current interval so far.
+     */
+    synchronized void appendSummary(StringBuilder out) {
+        for (Counter counter : counters) {
+            out.append(counter.name).append(": ").append(counter.total()).append('\n');
+        }
+        for (Histogram histogram : histograms) {
+            histogram.read(summary, false);
+            out.append(histogram.name).append(": ");
+            if (summary.count == 0) {
+                out.append("-\n");
+                continue;
+            }
+            out.append("n ").append(summary.count)
+               .append(", p50 ").append(summary.percentile(0.5))
+               .append(", p90 ").append(summary.percentile(0.9))
+               .append(", max ").append(summary.max).append('\n');
+        }
+    }
+}
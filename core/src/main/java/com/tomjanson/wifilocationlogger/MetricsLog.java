@@ -0,0 +1,109 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/*
+ * Appends periodic Metrics snapshots to a CSV file, one row per interval:
+ *
+ *     time,model,sessionId,config,<counters>,<histograms>
+ *
+ * time is the end of the interval (epoch millis), config describes the settings the app runs with
+ * (so files of different devices and settings can be compared), and the metric columns are
+ * described in Metrics.snapshot(). Intervals in which nothing happened are skipped.
+ *
+ * If the columns change (e.g., an app update added a metric), the old file is renamed
+ * to $name.$time.csv and a new one started.
+ */
+final class MetricsLog {
+    private final File file;
+    private final Metrics metrics;
+    private final String model;
+    private final String config;
+
+    private final StringBuilder row = new StringBuilder(1024);
+    private final StringBuilder rowHeader = new StringBuilder(1024);
+    private String header;   // of the file, once known to match
+
+    MetricsLog(File file, Metrics metrics, String model, String config) {
+        this.file = file;
+        this.metrics = metrics;
+        this.model = model;
+        this.config = config;
+    }
+
+    /**
+     * Snapshots the metrics and appends them to the file (unless nothing happened).
+     */
+    void write(long timeMillis, String sessionId) throws IOException {
+        rowHeader.setLength(0);
+        rowHeader.append("time,model,sessionId,config");
+        row.setLength(0);
+        row.append(timeMillis).append(',');
+        CsvRecordEncoder.appendField(row, model);
+        row.append(',');
+        CsvRecordEncoder.appendField(row, sessionId);
+        row.append(',');
+        CsvRecordEncoder.appendField(row, config);
+        if (!metrics.snapshot(rowHeader, row)) {
+            return;
+        }
+        row.append('\n');
+
+        String newHeader = rowHeader.toString();
+        if (!newHeader.equals(header)) {
+            startFile(newHeader, timeMillis);
+        }
+
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(row.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Makes sure the file starts with {@code newHeader}, rolling over a file with different columns.
+     */
+    private void startFile(String newHeader, long timeMillis) throws IOException {
+        if (file.length() > 0) {
+            if (newHeader.equals(readHeader())) {
+                header = newHeader;
+                return;
+            }
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            String base = dot < 0 ? name : name.substring(0, dot);
+            File rolled = new File(file.getParentFile(), base + "." + timeMillis + (dot < 0 ? "" : name.substring(dot)));
+            if (!file.renameTo(rolled)) {
+                throw new IOException("Could not roll over " + file);
+            }
+        }
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write((newHeader + "\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        header = newHeader;
+    }
+
+    private String readHeader() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            return in.readLine();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/*
+ * One stage of a SampleLane: a thread handling the items handed to it through a bounded queue.
+ *
+ * Items are pooled: the producer takes one with obtain(), fills it and submit()s it; once it's
+ * been handled, it's free again. So no more than the pool's items can be queued, and when the
+ * stage falls behind, obtain() does what the DropPolicy says:
+ *
+ * - BLOCK waits for an item to become free (up to maxBlockMillis, then drops): backpressure,
+ *   for producers that can afford to wait, e.g., the stage before
+ * - DROP_NEWEST returns null, i.e., the new item is dropped
+ * - DROP_OLDEST takes back the oldest item still queued, i.e., that one is dropped
+ *
+ * Metrics, named after the stage: NAME_in (items handled), NAME_dropped, NAME_us (to handle
+ * one) and NAME_queue (items queued, when one is submitted), so per-interval throughput shows
+ * up in the MetricsLog.
+ */
+final class PipelineStage<T> {
+    private static final Logger log = LoggerFactory.getLogger(PipelineStage.class);
+
+    enum DropPolicy {
+        BLOCK,
+        DROP_NEWEST,
+        DROP_OLDEST
+    }
+
+    interface Handler<T> {
+        void handle(T item);
+    }
+
+    private final String name;
+    private final DropPolicy dropPolicy;
+    private final long maxBlockMillis;
+    private final Handler<T> handler;
+    private final Thread thread;
+
+    // guarded by this
+    private final ArrayDeque<T> free;
+    private final ArrayDeque<T> queue;
+    private boolean stopped;
+
+    private final Metrics.Counter handled;
+    private final Metrics.Counter dropped;
+    private final Metrics.Histogram handleTime;
+    private final Metrics.Histogram queueDepth;
+
+    /**
+     * Starts the stage's thread, which hands the {@code items} submitted to {@code handler}.
+     */
+    PipelineStage(String name, List<T> items, DropPolicy dropPolicy, long maxBlockMillis,
+                  Handler<T> handler, Metrics metrics) {
+        this.name = name;
+        this.dropPolicy = dropPolicy;
+        this.maxBlockMillis = maxBlockMillis;
+        this.handler = handler;
+        free  = new ArrayDeque<T>(items);
+        queue = new ArrayDeque<T>(items.size());
+        handled    = metrics.counter(name + "_in");
+        dropped    = metrics.counter(name + "_dropped");
+        handleTime = metrics.histogram(name + "_us");
+        queueDepth = metrics.histogram(name + "_queue");
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                handleLoop();
+            }
+        }, name);
+        // below LoggingService's pipeline thread, where wifi scans are handled
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * An item to fill and submit(), or null if it's dropped (see DropPolicy). Items aren't
+     * cleared: one taken back from the queue still holds what it was submitted with.
+     */
+    synchronized T obtain() {
+        if (free.isEmpty() && !stopped) {
+            switch (dropPolicy) {
+                case BLOCK:
+                    long deadline = System.currentTimeMillis() + maxBlockMillis;
+                    long wait;
+                    while (free.isEmpty() && !stopped && (wait = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                    break;
+                case DROP_OLDEST:
+                    if (!queue.isEmpty()) {
+                        dropped.increment();
+                        return queue.pollFirst();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (free.isEmpty() || stopped) {
+            dropped.increment();
+            return null;
+        }
+        return free.pollFirst();
+    }
+
+    synchronized void submit(T item) {
+        queue.addLast(item);
+        queueDepth.record(queue.size());
+        notifyAll();
+    }
+
+    /**
+     * Handles what's queued, then stops the thread (and waits for it). Items obtained
+     * afterwards are dropped.
+     */
+    void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleLoop() {
+        while (true) {
+            T item;
+            synchronized (this) {
+                while (queue.isEmpty() && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                item = queue.pollFirst();
+            }
+            long start = System.nanoTime();
+            try {
+                handler.handle(item);
+            } catch (RuntimeException e) {
+                log.warn("Stage " + name + " failed", e);
+            }
+            handleTime.record((System.nanoTime() - start) / 1000);
+            handled.increment();
+            synchronized (this) {
+                free.addLast(item);
+                notifyAll();
+            }
+        }
+    }
+}
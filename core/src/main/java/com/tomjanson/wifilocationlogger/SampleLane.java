@@ -0,0 +1,167 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The path of a SampleSource other than wifi (whose scans take the ScanPipeline on LoggingService's
+ * pipeline thread) to its log file, in stages connected by bounded queues (see PipelineStage):
+ *
+ *     source -> join (location at sample time) and filter -> encode -> ScanBatchWriter's thread
+ *
+ * Samples use ScanBatch's fields: SSID for the name, BSSID for the address, level, channel (or -1).
+ * Observations without a matching sample, or before the first fix, aren't logged.
+ *
+ * The source's observations are dropped as its DropPolicy says when the lane falls behind; the
+ * join stage waits for the encode stage, and that for the writer, if the writer's queue is
+ * bounded with DropPolicy BLOCK (each up to MAX_BLOCK_MILLIS, then the observation is dropped).
+ * Each lane has its own threads, at low priority, so a busy source can't delay wifi scans, nor
+ * other lanes. Sources may report an observation at a time, so the writer should flush at an
+ * INTERVAL rather than on EVERY_SCAN.
+ *
+ * Fixes are passed in by onLocation(), on any thread. Metrics, prefixed by the lane's name:
+ * those of its stages (NAME_join_*, NAME_encode_*), NAME_samples_logged (observations queued for
+ * writing, not those the writer dropped) and NAME_without_location. Its ScanBatchWriter's metrics
+ * need a prefix of their own (NAME_writer_).
+ */
+final class SampleLane implements SampleSource.Output<ScanBatch> {
+    static final long MAX_BLOCK_MILLIS = 1000;
+
+    private final ScanBatchWriter writer;
+    private final PipelineStage<ScanBatch> join;
+    private final PipelineStage<ScanBatch> encode;
+
+    private final LocationHistory locationHistory;   // guarded by itself
+    private long lastFixTime = Long.MIN_VALUE;        // guarded by locationHistory
+
+    private volatile String filterText = "";
+    private volatile String sessionId;
+
+    // join thread
+    private final ScanBatch matched = new ScanBatch();
+    private ScanFilter filter = ScanFilter.compile("");
+
+    // encode thread
+    private String writerSessionId;
+
+    private final Metrics.Counter samplesLogged;
+    private final Metrics.Counter withoutLocation;
+
+    /**
+     * @param capacity   observations queued per stage
+     * @param dropPolicy what happens to the source's observations when the lane falls behind
+     */
+    SampleLane(String name, ScanBatchWriter writer, int locationHistorySize, int capacity,
+               PipelineStage.DropPolicy dropPolicy, Metrics metrics) {
+        this.writer = writer;
+        this.locationHistory = new LocationHistory(locationHistorySize);
+        samplesLogged   = metrics.counter(name + "_samples_logged");
+        withoutLocation = metrics.counter(name + "_without_location");
+        encode = new PipelineStage<ScanBatch>(name + "_encode", batches(capacity), PipelineStage.DropPolicy.BLOCK,
+                MAX_BLOCK_MILLIS, new PipelineStage.Handler<ScanBatch>() {
+                    @Override
+                    public void handle(ScanBatch batch) {
+                        write(batch);
+                    }
+                }, metrics);
+        join = new PipelineStage<ScanBatch>(name + "_join", batches(capacity), dropPolicy,
+                MAX_BLOCK_MILLIS, new PipelineStage.Handler<ScanBatch>() {
+                    @Override
+                    public void handle(ScanBatch batch) {
+                        locate(batch);
+                    }
+                }, metrics);
+    }
+
+    private static List<ScanBatch> batches(int n) {
+        List<ScanBatch> batches = new ArrayList<ScanBatch>(n);
+        for (int i = 0; i < n; i++) {
+            batches.add(new ScanBatch());
+        }
+        return batches;
+    }
+
+    @Override
+    public ScanBatch obtain() {
+        return join.obtain();
+    }
+
+    @Override
+    public void submit(ScanBatch samples, long timeMillis) {
+        samples.timeMillis = timeMillis;
+        join.submit(samples);
+    }
+
+    void onLocation(long time, double latitude, double longitude, double altitude, float accuracy, float speed) {
+        synchronized (locationHistory) {
+            locationHistory.add(time, latitude, longitude, altitude, accuracy, speed);
+            lastFixTime = time;
+        }
+    }
+
+    void setFilterText(String filterText) {
+        this.filterText = filterText;
+    }
+
+    /**
+     * Observations submitted from now on belong to this session.
+     */
+    void beginSession(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    void flush() {
+        writer.flush();
+    }
+
+    /**
+     * Writes what's queued and closes the file; the lane cannot be used afterwards.
+     */
+    void close() {
+        join.stop();
+        encode.stop();
+        writer.close();
+    }
+
+    private void locate(ScanBatch samples) {
+        String text = filterText;
+        if (!text.equals(filter.text())) {
+            filter = ScanFilter.compile(text);
+        }
+        matched.clear();
+        for (int i = 0; i < samples.size; i++) {
+            if (filter.matches(samples.ssids[i], samples.bssids[i], samples.levels[i], samples.channels[i])) {
+                matched.add(samples.ssids[i], samples.bssids[i], samples.levels[i], samples.channels[i]);
+            }
+        }
+        if (matched.size == 0) {
+            return;
+        }
+        synchronized (locationHistory) {
+            if (!locationHistory.estimate(samples.timeMillis, matched)) {
+                withoutLocation.increment();
+                return;
+            }
+            matched.locationSkew = lastFixTime - samples.timeMillis;
+        }
+        matched.timeMillis = samples.timeMillis;
+        matched.filter = text;
+
+        ScanBatch batch = encode.obtain();
+        if (batch != null) {
+            batch.copyFrom(matched);
+            encode.submit(batch);
+        }
+    }
+
+    private void write(ScanBatch batch) {
+        String id = sessionId;
+        if (id != null && !id.equals(writerSessionId)) {
+            writer.beginSession(id);
+            writerSessionId = id;
+        }
+        if (writer.offer(batch)) {
+            samplesLogged.increment();
+        }
+    }
+}
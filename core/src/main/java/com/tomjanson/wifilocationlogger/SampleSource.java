@@ -0,0 +1,34 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * A radio whose observations are logged: wifi scans, BLE beacons, ... The type parameter is
+ * what a source fills with one observation's samples (ScanProcessor for wifi, whose scans take
+ * the ScanPipeline; ScanBatch for the others, see SampleLane).
+ */
+interface SampleSource<S> {
+    /**
+     * Where a source hands its samples to. Containers are reused: the source gets one with
+     * obtain(), fills it and passes it to submit(), and must not touch it afterwards.
+     */
+    interface Output<S> {
+        /**
+         * A container for the next observation (not necessarily empty), or null if the pipeline
+         * can't take it (the observation is dropped).
+         */
+        S obtain();
+
+        void submit(S samples, long timeMillis);
+    }
+
+    /**
+     * Short name, e.g., for metrics.
+     */
+    String name();
+
+    /**
+     * Starts observing; samples are handed to {@code output} from then on.
+     */
+    void start(Output<S> output);
+
+    void stop();
+}
@@ -0,0 +1,91 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * All data logged for one wifi scan: scan time, location and the wifis that matched the filter.
+ *
+ * Instances are meant to be reused from scan to scan (see clear()),
+ * wifis are kept in parallel arrays that grow as needed.
+ */
+final class ScanBatch {
+    static final int NOT_SPECIAL = 0;
+    static final int SPECIAL_NO_VISIBLE_WIFI = 1;
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    long   timeMillis;
+    double latitude;
+    double longitude;
+    double altitude;
+    float  accuracy;
+    float  speed;
+    long   locationSkew;   // location update time - scan time
+    float  locationError;  // upper bound (m) of the error of the location estimated for the scan time
+    String filter;
+
+    int      size;
+    String[] ssids    = new String[INITIAL_CAPACITY];
+    String[] bssids   = new String[INITIAL_CAPACITY];
+    int[]    levels   = new int[INITIAL_CAPACITY];
+    int[]    channels = new int[INITIAL_CAPACITY];
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            ssids[i] = null;
+            bssids[i] = null;
+        }
+        size = 0;
+    }
+
+    void add(String ssid, String bssid, int level, int channel) {
+        if (size == ssids.length) {
+            grow();
+        }
+        ssids[size]    = ssid;
+        bssids[size]   = bssid;
+        levels[size]   = level;
+        channels[size] = channel;
+        size++;
+    }
+
+    /**
+     * Makes this batch a copy of {@code other}, e.g., to hold on to a scan for later.
+     */
+    void copyFrom(ScanBatch other) {
+        clear();
+        timeMillis    = other.timeMillis;
+        latitude      = other.latitude;
+        longitude     = other.longitude;
+        altitude      = other.altitude;
+        accuracy      = other.accuracy;
+        speed         = other.speed;
+        locationSkew  = other.locationSkew;
+        locationError = other.locationError;
+        filter        = other.filter;
+        for (int i = 0; i < other.size; i++) {
+            add(other.ssids[i], other.bssids[i], other.levels[i], other.channels[i]);
+        }
+    }
+
+    /**
+     * A scan without any matching wifi is logged as a single "special" row.
+     */
+    int specialCode() {
+        return size == 0 ? SPECIAL_NO_VISIBLE_WIFI : NOT_SPECIAL;
+    }
+
+    private void grow() {
+        int capacity = ssids.length * 2;
+        String[] newSsids    = new String[capacity];
+        String[] newBssids   = new String[capacity];
+        int[]    newLevels   = new int[capacity];
+        int[]    newChannels = new int[capacity];
+        System.arraycopy(ssids,    0, newSsids,    0, size);
+        System.arraycopy(bssids,   0, newBssids,   0, size);
+        System.arraycopy(levels,   0, newLevels,   0, size);
+        System.arraycopy(channels, 0, newChannels, 0, size);
+        ssids    = newSsids;
+        bssids   = newBssids;
+        levels   = newLevels;
+        channels = newChannels;
+    }
+}
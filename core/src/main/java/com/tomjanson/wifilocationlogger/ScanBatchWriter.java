@@ -0,0 +1,441 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Writes whole scans to the scan log, replacing one logback call per wifi.
+ *
+ * The caller's thread encodes a scan into a single (pooled) buffer using the ScanEncoder
+ * (i.e., the log format), and hands it to a background thread, which appends it through
+ * a buffered FileChannel. When the buffered data actually hits the file is determined by
+ * the FlushPolicy.
+ *
+ * With a ScanJournal, each scan is also appended to the journal before write() returns, and
+ * committed once it's been written to the file, so a killed process loses no scans: a new
+ * writer first writes what the last one didn't (after truncating its partial write).
+ *
+ * The number of scans queued can be limited: when that many are waiting, write() does what
+ * the DropPolicy says, i.e., waits for the writer thread (BLOCK, up to maxBlockMillis, then
+ * drops the scan) or drops the scan right away (DROP_NEWEST). Scans already encoded (and
+ * journaled) aren't taken back, so there's no DROP_OLDEST.
+ *
+ * Metrics: encode_us (per scan), queue_depth (chunks waiting when a scan is queued),
+ * write_us (per write to the file, including sync), bytes_written, dropped_scans,
+ * journal_overflows (scans not journaled because the journal was full) and
+ * journal_recovered_scans.
+ *
+ * Rollover mirrors the old logback TimeBasedRollingPolicy: the active file is
+ * $dir/$name.$ext, and when the day changes it is renamed to $dir/$name.yyyy-MM-dd.$ext.
+ */
+class ScanBatchWriter implements ScanPipeline.Sink {
+    private static final Logger log = LoggerFactory.getLogger(ScanBatchWriter.class);
+
+    enum FlushPolicy {
+        EVERY_SCAN,   // one write per scan
+        INTERVAL,     // write every flushIntervalMillis (or when the buffer is full)
+        ON_PAUSE      // write only on flush() (or when the buffer is full)
+    }
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_POOL_SIZE = 16;
+    private static final int INITIAL_CHUNK_SIZE = 8 * 1024;
+
+    private final File directory;
+    private final String baseName;
+    private final FlushPolicy flushPolicy;
+    private final long flushIntervalMillis;
+    private final ScanJournal journal;   // null if none
+    private final PipelineStage.DropPolicy dropPolicy;
+    private final long maxBlockMillis;
+
+    // only accessed by the thread calling write()
+    private final ScanEncoder encoder;
+    private long encodeDayStart = Long.MIN_VALUE;
+    private long encodeDayEnd = Long.MIN_VALUE;
+
+    private final Metrics.Histogram encodeTime;
+    private final Metrics.Histogram queueDepth;
+    private final Metrics.Histogram writeTime;
+    private final Metrics.Counter bytesWritten;
+    private final Metrics.Counter droppedScans;
+    private final Metrics.Counter journalOverflows;
+
+    private final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+    // a permit per scan that may still be queued; taken by write(), given back once it's written
+    private final Semaphore queueSlots;
+    private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<Chunk>(CHUNK_POOL_SIZE);
+    private final Thread writerThread;
+
+    // only accessed by writerThread
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private FileChannel channel;
+    private long fileDayStart;
+    private String fileExtension;
+    private long fileLength;         // written so far, excluding writeBuffer
+    private long bufferedJournalEnd = -1;   // of the last chunk in writeBuffer, -1 if none
+    private long bufferedFileLength;        // fileLength once all chunks in writeBuffer are written
+    private long lastFlushTime;
+
+    private static final Chunk FLUSH = new Chunk(0);
+    private static final Chunk CLOSE = new Chunk(0);
+
+    private static final class Chunk {
+        final ChunkBuffer buffer;
+        long dayStart;
+        String extension;
+        long journalEnd = -1;
+
+        Chunk(int capacity) {
+            buffer = new ChunkBuffer(capacity);
+        }
+    }
+
+    ScanBatchWriter(File directory, String baseName, ScanEncoder encoder,
+                    FlushPolicy flushPolicy, long flushIntervalMillis) {
+        this(directory, baseName, encoder, flushPolicy, flushIntervalMillis, new Metrics());
+    }
+
+    ScanBatchWriter(File directory, String baseName, ScanEncoder encoder,
+                    FlushPolicy flushPolicy, long flushIntervalMillis, Metrics metrics) {
+        this(directory, baseName, encoder, flushPolicy, flushIntervalMillis, null, metrics);
+    }
+
+    /**
+     * With a journal, the scans the last writer using it didn't write are written first.
+     */
+    ScanBatchWriter(File directory, String baseName, ScanEncoder encoder, FlushPolicy flushPolicy,
+                    long flushIntervalMillis, ScanJournal journal, Metrics metrics) {
+        this(directory, baseName, encoder, flushPolicy, flushIntervalMillis, journal,
+                Integer.MAX_VALUE, PipelineStage.DropPolicy.BLOCK, 0, metrics);
+    }
+
+    /**
+     * @param maxQueuedScans scans queued before write() blocks or drops, as {@code dropPolicy} says
+     * @param dropPolicy     BLOCK or DROP_NEWEST
+     */
+    ScanBatchWriter(File directory, String baseName, ScanEncoder encoder, FlushPolicy flushPolicy,
+                    long flushIntervalMillis, ScanJournal journal, int maxQueuedScans,
+                    PipelineStage.DropPolicy dropPolicy, long maxBlockMillis, Metrics metrics) {
+        if (dropPolicy == PipelineStage.DropPolicy.DROP_OLDEST) {
+            throw new IllegalArgumentException("Queued scans can't be dropped");
+        }
+        this.directory = directory;
+        this.baseName = baseName;
+        this.encoder = encoder;
+        this.flushPolicy = flushPolicy;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.journal = journal;
+        this.dropPolicy = dropPolicy;
+        this.maxBlockMillis = maxBlockMillis;
+        encodeTime   = metrics.histogram("encode_us");
+        queueDepth   = metrics.histogram("queue_depth");
+        writeTime    = metrics.histogram("write_us");
+        bytesWritten = metrics.counter("bytes_written");
+        droppedScans = metrics.counter("dropped_scans");
+        journalOverflows = metrics.counter("journal_overflows");
+        int recovered = 0;
+        if (journal != null) {
+            recovered = recover(journal, metrics.counter("journal_recovered_scans"));
+        }
+        // recovered scans take slots too (possibly more than there are)
+        queueSlots = new Semaphore(maxQueuedScans - recovered);
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "scan-batch-writer");
+        writerThread.start();
+    }
+
+    String fileExtension() {
+        return encoder.fileExtension();
+    }
+
+    void beginSession(String sessionId) {
+        encoder.beginSession(sessionId);
+    }
+
+    /**
+     * Encodes a scan and queues it for writing, unless it's dropped (see DropPolicy). The batch
+     * may be reused as soon as this returns.
+     */
+    @Override
+    public void write(ScanBatch batch) {
+        offer(batch);
+    }
+
+    /**
+     * Like write(), but returns whether the scan was queued (false if it was dropped).
+     */
+    boolean offer(ScanBatch batch) {
+        if (!queueSlots.tryAcquire() && !awaitQueueSlot()) {
+            droppedScans.increment();
+            return false;
+        }
+        if (batch.timeMillis < encodeDayStart || batch.timeMillis >= encodeDayEnd) {
+            // next file, which has to be decodable on its own
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(batch.timeMillis);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            encodeDayStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            encodeDayEnd = calendar.getTimeInMillis();
+            encoder.beginSegment();
+        }
+
+        Chunk chunk = freeChunks.poll();
+        if (chunk == null) {
+            chunk = new Chunk(INITIAL_CHUNK_SIZE);
+        }
+        long start = System.nanoTime();
+        chunk.buffer.reset();
+        encoder.encode(batch, chunk.buffer);
+        chunk.dayStart = encodeDayStart;
+        chunk.extension = encoder.fileExtension();
+        if (journal != null) {
+            chunk.journalEnd = journal.append(chunk.buffer.array(), chunk.buffer.size(), chunk.dayStart, chunk.extension);
+            if (chunk.journalEnd < 0) {
+                journalOverflows.increment();
+            }
+        }
+        encodeTime.record((System.nanoTime() - start) / 1000);
+        queueDepth.record(queue.size());
+        queue.add(chunk);
+        return true;
+    }
+
+    private boolean awaitQueueSlot() {
+        if (dropPolicy != PipelineStage.DropPolicy.BLOCK) {
+            return false;
+        }
+        try {
+            return queueSlots.tryAcquire(maxBlockMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Queues the journal's uncommitted records, after cutting off whatever the last writer wrote
+     * to the log file after its last commit (before any other file is opened). Returns the number
+     * of scans queued.
+     */
+    private int recover(ScanJournal journal, Metrics.Counter recoveredScans) {
+        List<ScanJournal.Record> records = journal.recover();
+        String extension = journal.logExtension();
+        if (extension != null) {
+            File file = activeFile(extension);
+            if (file.length() > journal.logLength()) {
+                log.warn("Truncating {} to {} bytes, after the last write journaled", file, journal.logLength());
+                try {
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    try {
+                        raf.setLength(journal.logLength());
+                    } finally {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    log.error("Could not truncate {}: {}", file, e);
+                }
+            }
+        }
+        for (ScanJournal.Record record : records) {
+            Chunk chunk = new Chunk(record.data.length);
+            chunk.buffer.write(record.data, 0, record.data.length);
+            chunk.dayStart = record.dayStart;
+            chunk.extension = record.extension;
+            chunk.journalEnd = record.endPosition;
+            queue.add(chunk);
+        }
+        if (!records.isEmpty()) {
+            log.info("Recovered {} scans from the journal", records.size());
+            recoveredScans.add(records.size());
+        }
+        return records.size();
+    }
+
+    /**
+     * Writes and syncs everything queued so far, e.g., when the Activity is paused.
+     */
+    void flush() {
+        queue.add(FLUSH);
+    }
+
+    /**
+     * Flushes and closes the file; the writer cannot be used afterwards.
+     */
+    void close() {
+        queue.add(CLOSE);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Chunk chunk;
+                if (flushPolicy == FlushPolicy.INTERVAL) {
+                    chunk = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    chunk = queue.take();
+                }
+
+                if (chunk == CLOSE) {
+                    writeOut(true);
+                    closeChannel();
+                    return;
+                } else if (chunk == FLUSH) {
+                    writeOut(true);
+                } else if (chunk != null) {
+                    append(chunk);
+                    freeChunks.offer(chunk);
+                    queueSlots.release();
+                    if (flushPolicy == FlushPolicy.EVERY_SCAN) {
+                        writeOut(false);
+                    }
+                }
+
+                if (flushPolicy == FlushPolicy.INTERVAL
+                        && System.currentTimeMillis() - lastFlushTime >= flushIntervalMillis) {
+                    writeOut(false);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("ScanBatchWriter interrupted, unwritten scans are lost");
+        }
+    }
+
+    private void append(Chunk chunk) {
+        try {
+            if (channel == null || chunk.dayStart != fileDayStart || !chunk.extension.equals(fileExtension)) {
+                writeOut(true);
+                openFile(chunk.dayStart, chunk.extension);
+            }
+            int length = chunk.buffer.size();
+            int offset = 0;
+            while (offset < length) {
+                if (!writeBuffer.hasRemaining()) {
+                    writeOut(false);
+                }
+                int n = Math.min(writeBuffer.remaining(), length - offset);
+                writeBuffer.put(chunk.buffer.array(), offset, n);
+                offset += n;
+            }
+            if (chunk.journalEnd >= 0) {
+                bufferedJournalEnd = chunk.journalEnd;
+            }
+            bufferedFileLength = fileLength + writeBuffer.position();
+        } catch (IOException e) {
+            log.error("Could not write scan to log file: {}", e);
+        }
+    }
+
+    private void writeOut(boolean sync) {
+        lastFlushTime = System.currentTimeMillis();
+        if (channel == null) {
+            writeBuffer.clear();
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            writeBuffer.flip();
+            int bytes = writeBuffer.remaining();
+            while (writeBuffer.hasRemaining()) {
+                fileLength += channel.write(writeBuffer);
+            }
+            if (journal != null) {
+                // a chunk only partially written (at the end of a full buffer) isn't committed
+                journal.commit(bufferedJournalEnd, fileExtension, Math.min(bufferedFileLength, fileLength));
+                bufferedJournalEnd = -1;
+            }
+            if (sync) {
+                channel.force(false);
+            }
+            bytesWritten.add(bytes);
+            writeTime.record((System.nanoTime() - start) / 1000);
+        } catch (IOException e) {
+            log.error("Could not write log file: {}", e);
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+
+    /**
+     * Opens the active log file for the given day, rolling over the existing one if needed.
+     */
+    private void openFile(long dayStart, String extension) throws IOException {
+        closeChannel();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        fileDayStart = dayStart;
+        fileExtension = extension;
+        File active = activeFile(extension);
+        if (active.exists() && active.length() > 0 && active.lastModified() < fileDayStart) {
+            rollOver(active, active.lastModified(), extension);
+        }
+
+        channel = new FileOutputStream(active, true).getChannel();
+        fileLength = channel.size();
+        bufferedFileLength = fileLength;
+        if (journal != null) {
+            journal.commit(-1, extension, fileLength);
+        }
+    }
+
+    private void rollOver(File active, long fileTime, String extension) {
+        String day = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date(fileTime));
+        File rolled = new File(directory, baseName + "." + day + "." + extension);
+        if (rolled.exists()) {
+            log.warn("Not rolling over {}, {} already exists", active, rolled);
+        } else if (!active.renameTo(rolled)) {
+            log.warn("Could not roll over {} to {}", active, rolled);
+        } else {
+            log.info("Rolled over log file to {}", rolled);
+        }
+    }
+
+    private File activeFile(String extension) {
+        return new File(directory, baseName + "." + extension);
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Could not close log file: {}", e);
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,139 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * The wifis of the previous scan, which a delta record (see CompactLogFormat) is relative to.
+ *
+ * CompactLogEncoder and CompactLogDecoder update it the same way, so both agree on it:
+ * removed wifis are dropped, changed ones updated in place and new ones appended, i.e.,
+ * the order of reconstructed scans is stable rather than that of the original scans.
+ * Each BSSID is only kept once. Like in the compact format, null BSSIDs and SSIDs are stored as "".
+ */
+final class ScanDeltaState {
+    // only the wifi arrays are used; removed entries are null until compact()
+    private final ScanBatch wifis = new ScanBatch();
+    private final Map<String, Integer> positions = new HashMap<String, Integer>();
+    private boolean removed;
+
+    int size() {
+        return wifis.size;
+    }
+
+    String bssid(int i) {
+        return wifis.bssids[i];
+    }
+
+    String ssid(int i) {
+        return wifis.ssids[i];
+    }
+
+    int level(int i) {
+        return wifis.levels[i];
+    }
+
+    int channel(int i) {
+        return wifis.channels[i];
+    }
+
+    /**
+     * Returns the index of {@code bssid}, or -1.
+     */
+    int indexOf(String bssid) {
+        if (bssid == null) {
+            bssid = "";
+        }
+        Integer position = positions.get(bssid);
+        return position == null ? -1 : position;
+    }
+
+    void clear() {
+        wifis.clear();
+        positions.clear();
+        removed = false;
+    }
+
+    /**
+     * Replaces the state with the wifis of a full scan (of duplicate BSSIDs, only the first is kept).
+     */
+    void reset(ScanBatch batch) {
+        clear();
+        for (int i = 0; i < batch.size; i++) {
+            if (indexOf(batch.bssids[i]) < 0) {
+                put(batch.ssids[i], batch.bssids[i], batch.levels[i], batch.channels[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes a wifi; indexes stay valid until compact().
+     */
+    void remove(String bssid) {
+        Integer position = positions.remove(bssid);
+        if (position != null) {
+            wifis.ssids[position] = null;
+            wifis.bssids[position] = null;
+            removed = true;
+        }
+    }
+
+    /**
+     * Updates a wifi, or appends it if it's new.
+     */
+    void put(String ssid, String bssid, int level, int channel) {
+        if (ssid == null) {
+            ssid = "";
+        }
+        if (bssid == null) {
+            bssid = "";
+        }
+        Integer position = positions.get(bssid);
+        if (position == null) {
+            positions.put(bssid, wifis.size);
+            wifis.add(ssid, bssid, level, channel);
+        } else {
+            wifis.ssids[position] = ssid;
+            wifis.levels[position] = level;
+            wifis.channels[position] = channel;
+        }
+    }
+
+    /**
+     * Drops removed wifis (after all changes of a delta record have been applied).
+     */
+    void compact() {
+        if (!removed) {
+            return;
+        }
+        int n = 0;
+        for (int i = 0; i < wifis.size; i++) {
+            if (wifis.bssids[i] == null) {
+                continue;
+            }
+            if (n != i) {
+                wifis.ssids[n]    = wifis.ssids[i];
+                wifis.bssids[n]   = wifis.bssids[i];
+                wifis.levels[n]   = wifis.levels[i];
+                wifis.channels[n] = wifis.channels[i];
+                positions.put(wifis.bssids[n], n);
+            }
+            n++;
+        }
+        for (int i = n; i < wifis.size; i++) {
+            wifis.ssids[i] = null;
+            wifis.bssids[i] = null;
+        }
+        wifis.size = n;
+        removed = false;
+    }
+
+    /**
+     * Adds all wifis to {@code batch}.
+     */
+    void copyTo(ScanBatch batch) {
+        for (int i = 0; i < wifis.size; i++) {
+            batch.add(wifis.ssids[i], wifis.bssids[i], wifis.levels[i], wifis.channels[i]);
+        }
+    }
+}
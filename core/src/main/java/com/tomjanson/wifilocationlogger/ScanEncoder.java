@@ -0,0 +1,30 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * On-disk format of the scan log, see CsvRecordEncoder and CompactLogEncoder.
+ *
+ * Encoders are used from a single thread (the one calling ScanBatchWriter.write()).
+ */
+interface ScanEncoder {
+    // will be incremented when log format changes
+    // 2: added locationError column
+    int LOG_FORMAT_VERSION = 2;
+
+    /**
+     * File extension of log files in this format, e.g., "csv".
+     */
+    String fileExtension();
+
+    void beginSession(String sessionId);
+
+    /**
+     * Called before the first scan written to a (new or reopened) file,
+     * so the encoder can make what follows decodable on its own.
+     */
+    void beginSegment();
+
+    /**
+     * Appends the encoded scan to {@code out}.
+     */
+    void encode(ScanBatch batch, ChunkBuffer out);
+}
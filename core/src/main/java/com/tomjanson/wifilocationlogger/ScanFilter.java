@@ -0,0 +1,373 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/*
+ * Compiled form of the wifi filter text, see compile().
+ *
+ * The filter text used to be a regular expression on the SSID, and that's still what it is,
+ * unless it consists of ';'-separated criteria:
+ *
+ *   ssid:REGEX            SSID matches the regular expression
+ *   prefix:A,B            SSID starts with one of the prefixes
+ *   bssid:MAC,MAC         BSSID is in the set
+ *   bssid:@FILE           ... read from FILE (one BSSID per line)
+ *   oui:AA:BB:CC,...      vendor part (first three octets) of the BSSID is in the set
+ *   minrssi:-80           level is at least -80 dBm
+ *   band:2.4 / band:5     on the 2.4 or 5 GHz band
+ *   channel:1,6,11        on one of the channels
+ *
+ * A wifi matches if it satisfies all criteria. Criteria starting with '!' (e.g., "!oui:...")
+ * exclude matching wifis instead. Criteria are evaluated cheapest first: level and channel,
+ * then BSSID sets and OUIs (binary search of the BSSID parsed as a long, see Bssids, so either
+ * case and ':' or '-' match), then SSID prefixes and finally the regular expression.
+ *
+ * A ';' within a value is written ";;" (e.g., "ssid:a;;b"). A null SSID (e.g., of a Bluetooth
+ * device without a name) is matched as "".
+ */
+final class ScanFilter {
+    private static final int MAX_CHANNEL = 255;
+    private static final String[] KEYS = {"ssid:", "prefix:", "bssid:", "oui:", "minrssi:", "band:", "channel:"};
+
+    private final String text;
+
+    // inclusion criteria, null/MIN_VALUE if not given
+    private int minLevel = Integer.MIN_VALUE;
+    private boolean[] channels;
+    private long[] bssids;   // sorted
+    private int[] ouis;      // sorted
+    private String[] prefixes;
+    private Pattern ssidPattern;
+
+    // exclusion criteria, null if not given
+    private boolean[] excludedChannels;
+    private long[] excludedBssids;
+    private int[] excludedOuis;
+    private String[] excludedPrefixes;
+    private Pattern excludedSsidPattern;
+
+    private ScanFilter(String text) {
+        this.text = text;
+    }
+
+    /**
+     * The text this filter was compiled from.
+     */
+    String text() {
+        return text;
+    }
+
+    /**
+     * Compiles a filter text. Never fails: an empty text, or a regular expression that
+     * doesn't compile, matches everything (criteria that can't be parsed are ignored).
+     */
+    static ScanFilter compile(String text) {
+        ScanFilter filter = new ScanFilter(text);
+        if (!isCriteriaList(text)) {
+            filter.ssidPattern = compileRegexp(text);
+            return filter;
+        }
+        for (String criterion : splitCriteria(text)) {
+            criterion = criterion.trim();
+            if (criterion.length() > 0) {
+                filter.add(criterion);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Whether matches() looks at the channel at all (otherwise, any value can be passed).
+     */
+    boolean usesChannel() {
+        return channels != null || excludedChannels != null;
+    }
+
+    boolean matches(String ssid, String bssid, int level, int channel) {
+        if (ssid == null) {
+            ssid = "";
+        }
+        if (level < minLevel) {
+            return false;
+        }
+        if (channels != null && !contains(channels, channel)) {
+            return false;
+        }
+        if (excludedChannels != null && contains(excludedChannels, channel)) {
+            return false;
+        }
+        if (bssids == null && excludedBssids == null && ouis == null && excludedOuis == null) {
+            return matchesSsid(ssid);
+        }
+        long value = Bssids.parse(bssid);
+        if (bssids != null && Arrays.binarySearch(bssids, value) < 0) {
+            return false;
+        }
+        if (excludedBssids != null && Arrays.binarySearch(excludedBssids, value) >= 0) {
+            return false;
+        }
+        if (ouis != null || excludedOuis != null) {
+            int oui = value == Bssids.INVALID ? -1 : (int) (value >>> 24);
+            if (ouis != null && Arrays.binarySearch(ouis, oui) < 0) {
+                return false;
+            }
+            if (excludedOuis != null && Arrays.binarySearch(excludedOuis, oui) >= 0) {
+                return false;
+            }
+        }
+        return matchesSsid(ssid);
+    }
+
+    private boolean matchesSsid(String ssid) {
+        if (prefixes != null && !startsWithAny(ssid, prefixes)) {
+            return false;
+        }
+        if (excludedPrefixes != null && startsWithAny(ssid, excludedPrefixes)) {
+            return false;
+        }
+        if (ssidPattern != null && !ssidPattern.matcher(ssid).matches()) {
+            return false;
+        }
+        return excludedSsidPattern == null || !excludedSsidPattern.matcher(ssid).matches();
+    }
+
+    private static boolean isCriteriaList(String text) {
+        for (String criterion : splitCriteria(text)) {
+            criterion = criterion.trim();
+            if (criterion.length() > 0 && keyOf(criterion) == null) {
+                return false;
+            }
+        }
+        return text.trim().length() > 0;
+    }
+
+    /**
+     * Splits at ';', except where it's doubled (";;" is a ';' of the value).
+     */
+    private static List<String> splitCriteria(String text) {
+        List<String> criteria = new ArrayList<String>();
+        StringBuilder criterion = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ';') {
+                criterion.append(c);
+            } else if (i + 1 < text.length() && text.charAt(i + 1) == ';') {
+                criterion.append(';');
+                i++;
+            } else {
+                criteria.add(criterion.toString());
+                criterion.setLength(0);
+            }
+        }
+        criteria.add(criterion.toString());
+        return criteria;
+    }
+
+    private static String keyOf(String criterion) {
+        String plain = criterion.startsWith("!") ? criterion.substring(1) : criterion;
+        for (String key : KEYS) {
+            if (plain.regionMatches(true, 0, key, 0, key.length())) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private void add(String criterion) {
+        boolean exclude = criterion.startsWith("!");
+        String key = keyOf(criterion);
+        String value = criterion.substring(key.length() + (exclude ? 1 : 0)).trim();
+
+        if (key.equals("ssid:")) {
+            if (exclude) {
+                excludedSsidPattern = compileRegexp(value);
+            } else {
+                ssidPattern = compileRegexp(value);
+            }
+        } else if (key.equals("prefix:")) {
+            String[] values = splitList(value);
+            if (exclude) {
+                excludedPrefixes = values;
+            } else {
+                prefixes = values;
+            }
+        } else if (key.equals("bssid:")) {
+            long[] values = parseBssids(value);
+            if (exclude) {
+                excludedBssids = values;
+            } else {
+                bssids = values;
+            }
+        } else if (key.equals("oui:")) {
+            int[] values = parseOuis(value);
+            if (exclude) {
+                excludedOuis = values;
+            } else {
+                ouis = values;
+            }
+        } else if (key.equals("minrssi:")) {
+            try {
+                minLevel = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                // ignored
+            }
+        } else {
+            boolean[] values = key.equals("band:") ? parseBands(value) : parseChannels(value);
+            if (exclude) {
+                excludedChannels = values;
+            } else {
+                channels = values;
+            }
+        }
+    }
+
+    private static Pattern compileRegexp(String regexp) {
+        // if not a valid regular expression or empty, don't filter at all
+        if (regexp.equals("")) {
+            return null;
+        }
+        try {
+            return Pattern.compile(regexp);
+        } catch (PatternSyntaxException ex) {
+            return null;
+        }
+    }
+
+    private static String[] splitList(String value) {
+        List<String> values = new ArrayList<String>();
+        for (String v : value.split(",")) {
+            v = v.trim();
+            if (v.length() > 0) {
+                values.add(v);
+            }
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
+    private static long[] parseBssids(String value) {
+        Set<String> bssids = new HashSet<String>();
+        if (value.startsWith("@")) {
+            try {
+                readLines(value.substring(1), bssids);
+            } catch (IOException e) {
+                // can't check anything, don't match anything either
+            }
+        } else {
+            bssids.addAll(Arrays.asList(splitList(value)));
+        }
+
+        long[] values = new long[bssids.size()];
+        int n = 0;
+        for (String bssid : bssids) {
+            long v = Bssids.parse(bssid.trim());
+            if (v != Bssids.INVALID) {   // also comments (#) and empty lines
+                values[n++] = v;
+            }
+        }
+        values = Arrays.copyOf(values, n);
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static void readLines(String path, Set<String> out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                out.add(line.trim());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int[] parseOuis(String value) {
+        String[] values = splitList(value);
+        int[] ouis = new int[values.length];
+        int n = 0;
+        for (String v : values) {
+            int oui = parseOui(v.replace('-', ':'));
+            if (oui >= 0) {
+                ouis[n++] = oui;
+            }
+        }
+        ouis = Arrays.copyOf(ouis, n);
+        Arrays.sort(ouis);
+        return ouis;
+    }
+
+    /**
+     * The first three octets of "aa:bb:cc..." (either case) as an int, -1 if malformed.
+     */
+    private static int parseOui(String bssid) {
+        if (bssid == null || bssid.length() < 8) {
+            return -1;
+        }
+        int oui = 0;
+        for (int i = 0; i < 8; i++) {
+            char c = bssid.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return -1;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            oui = oui << 4 | digit;
+        }
+        return oui;
+    }
+
+    private static boolean[] parseBands(String value) {
+        boolean[] channels = new boolean[MAX_CHANNEL + 1];
+        for (String band : splitList(value)) {
+            if (band.startsWith("2")) {
+                Arrays.fill(channels, 1, 15, true);
+            } else if (band.startsWith("5")) {
+                Arrays.fill(channels, 34, MAX_CHANNEL + 1, true);
+            }
+        }
+        return channels;
+    }
+
+    private static boolean[] parseChannels(String value) {
+        boolean[] channels = new boolean[MAX_CHANNEL + 1];
+        for (String channel : splitList(value)) {
+            try {
+                int c = Integer.parseInt(channel);
+                if (c >= 0 && c <= MAX_CHANNEL) {
+                    channels[c] = true;
+                }
+            } catch (NumberFormatException e) {
+                // ignored
+            }
+        }
+        return channels;
+    }
+
+    private static boolean contains(boolean[] channels, int channel) {
+        return channel >= 0 && channel <= MAX_CHANNEL && channels[channel];
+    }
+
+    private static boolean startsWithAny(String ssid, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (ssid.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,310 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * Fixed-size, memory-mapped ring of the encoded scans ScanBatchWriter has accepted but not yet
+ * written to the log file, so they survive the process being killed (not a power loss, that's
+ * what the FlushPolicy's syncs are for). Writes to the mapping are plain memory writes that the
+ * kernel writes back on its own, so there's no fsync per scan.
+ *
+ * - the caller of ScanBatchWriter.write() appends each record (the encoded scan, its day and log
+ *   format) before queueing it
+ * - once the writer thread's write() to the log file has returned, it commits the records:
+ *   their commit markers are set, and the header gets the new commit position along with the
+ *   log file's length
+ * - on the next start, recover() returns the records after the commit position (valid CRC,
+ *   expected position, no commit marker), which ScanBatchWriter writes first, after truncating
+ *   the log file to the committed length (dropping a partial write). Records are thus written
+ *   exactly once, unless the process dies within the few stores of a commit (then at least once).
+ *
+ * The header also carries the session (ID, whether logging), so LoggingService can resume it.
+ * If the ring is full of uncommitted records (the writer is stuck), new records aren't journaled.
+ *
+ *     file   := header ring
+ *     header := MAGIC formatVersion(1) logging(1) sessionIdLength(1) sessionId(64)
+ *               logExtension(8) logLength(8) committedPosition(8)
+ *     record := length(4) position(8) dayStart(8) extension(8) crc(4) committed(1) data(length)
+ *
+ * Positions count bytes appended since the ring was created; a record lives at position % size.
+ * A record that doesn't fit before the end of the ring starts at the next lap, after a length of
+ * -1 (if there's room for it). The CRC covers position, dayStart, extension and data.
+ *
+ * append() and setSession() on one thread, commit() on another.
+ */
+final class ScanJournal {
+    static final String FILE_EXTENSION = "wlj";
+    static final byte[] MAGIC = { 'W', 'L', 'J' };
+    static final int FORMAT_VERSION = 1;
+
+    static final int MAX_SESSION_ID_LENGTH = 64;
+    static final int MAX_EXTENSION_LENGTH = 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int LOGGING_OFFSET = MAGIC.length + 1;
+    private static final int SESSION_ID_OFFSET = LOGGING_OFFSET + 1;
+    private static final int LOG_EXTENSION_OFFSET = SESSION_ID_OFFSET + 1 + MAX_SESSION_ID_LENGTH;
+    private static final int LOG_LENGTH_OFFSET = LOG_EXTENSION_OFFSET + MAX_EXTENSION_LENGTH;
+    private static final int COMMITTED_POSITION_OFFSET = LOG_LENGTH_OFFSET + 8;
+    private static final int HEADER_SIZE = COMMITTED_POSITION_OFFSET + 8;
+
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + MAX_EXTENSION_LENGTH + 4 + 1;
+    private static final int COMMITTED_MARKER_OFFSET = RECORD_HEADER_SIZE - 1;
+    private static final int WRAP = -1;
+
+    /**
+     * An uncommitted record found by recover().
+     */
+    static final class Record {
+        final byte[] data;
+        final long   dayStart;
+        final String extension;
+        final long   endPosition;
+
+        Record(byte[] data, long dayStart, String extension, long endPosition) {
+            this.data = data;
+            this.dayStart = dayStart;
+            this.extension = extension;
+            this.endPosition = endPosition;
+        }
+    }
+
+    private final MappedByteBuffer map;
+    private final int ringSize;
+
+    // appending thread
+    private final ByteBuffer appendView;
+    private final CRC32 appendCrc = new CRC32();
+    private final byte[] fieldBytes = new byte[8 + 8 + MAX_EXTENSION_LENGTH];   // position, dayStart, extension
+    private final ByteBuffer fields = ByteBuffer.wrap(fieldBytes);
+    private long appendPosition;
+
+    // committing thread
+    private final ByteBuffer commitView;
+    private volatile long committedPosition;
+
+    private final boolean wasLogging;
+    private final String sessionId;
+    private List<Record> recovered;
+
+    /**
+     * Maps the journal, creating it (or starting over, if it's unusable) as needed.
+     */
+    ScanJournal(File file, int ringSize) throws IOException {
+        this.ringSize = ringSize;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean valid = raf.length() == HEADER_SIZE + ringSize;
+            if (!valid) {
+                raf.setLength(0);
+                raf.setLength(HEADER_SIZE + ringSize);
+            }
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + ringSize);
+        } finally {
+            raf.close();
+        }
+        appendView = map.duplicate();
+        commitView = map.duplicate();
+
+        if (!hasHeader()) {
+            for (int i = 0; i < HEADER_SIZE; i++) {
+                map.put(i, (byte) 0);
+            }
+            map.put(0, MAGIC[0]).put(1, MAGIC[1]).put(2, MAGIC[2]).put(3, (byte) FORMAT_VERSION);
+        }
+        wasLogging = map.get(LOGGING_OFFSET) != 0;
+        int sessionIdLength = Math.min(map.get(SESSION_ID_OFFSET) & 0xff, MAX_SESSION_ID_LENGTH);
+        sessionId = sessionIdLength == 0 ? null : readString(map, SESSION_ID_OFFSET + 1, sessionIdLength);
+        committedPosition = map.getLong(COMMITTED_POSITION_OFFSET);
+        recovered = scan();
+    }
+
+    private boolean hasHeader() {
+        return map.get(0) == MAGIC[0] && map.get(1) == MAGIC[1] && map.get(2) == MAGIC[2]
+                && map.get(3) == FORMAT_VERSION;
+    }
+
+    /**
+     * Whether logging was enabled when the last process stopped (or died).
+     */
+    boolean wasLogging() {
+        return wasLogging;
+    }
+
+    /**
+     * The session ID of the last process, or null.
+     */
+    String sessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Extension and length of the log file as of the last commit, or null and 0 if none. Unless
+     * a writer is active, anything beyond that length is a partial write, replaced by recover()'s records.
+     */
+    String logExtension() {
+        return readExtension(map, LOG_EXTENSION_OFFSET);
+    }
+
+    long logLength() {
+        return map.getLong(LOG_LENGTH_OFFSET);
+    }
+
+    /**
+     * The records appended but not committed by the last process, oldest first (only once).
+     */
+    List<Record> recover() {
+        List<Record> records = recovered;
+        recovered = new ArrayList<Record>();
+        return records;
+    }
+
+    void setSession(String sessionId, boolean logging) {
+        byte[] bytes = sessionId == null ? new byte[0] : sessionId.getBytes(UTF8);
+        int length = Math.min(bytes.length, MAX_SESSION_ID_LENGTH);
+        appendView.put(LOGGING_OFFSET, (byte) (logging ? 1 : 0));
+        appendView.put(SESSION_ID_OFFSET, (byte) length);
+        for (int i = 0; i < length; i++) {
+            appendView.put(SESSION_ID_OFFSET + 1 + i, bytes[i]);
+        }
+    }
+
+    /**
+     * Appends a record; returns its end position (to commit), or -1 if it wasn't journaled
+     * because there's no room for it.
+     */
+    long append(byte[] data, int length, long dayStart, String extension) {
+        int size = RECORD_HEADER_SIZE + length;
+        long position = appendPosition;
+        int remaining = ringSize - (int) (position % ringSize);
+        if (size > remaining) {
+            position += remaining;
+        }
+        if (size > ringSize || position + size - committedPosition > ringSize) {
+            return -1;
+        }
+        if (position != appendPosition && remaining >= 4) {
+            appendView.putInt(HEADER_SIZE + ringSize - remaining, WRAP);
+        }
+
+        fields.clear();
+        fields.putLong(position).putLong(dayStart);
+        putExtension(fields, extension);
+        appendCrc.reset();
+        appendCrc.update(fieldBytes);
+        appendCrc.update(data, 0, length);
+
+        appendView.position(HEADER_SIZE + (int) (position % ringSize));
+        appendView.putInt(length).put(fieldBytes).putInt((int) appendCrc.getValue()).put((byte) 0)
+                .put(data, 0, length);
+        appendPosition = position + size;
+        return appendPosition;
+    }
+
+    /**
+     * Marks the records up to {@code endPosition} (-1 for none) as written to the log file, which
+     * is now {@code logLength} bytes long (including them, excluding anything written later).
+     */
+    void commit(long endPosition, String logExtension, long logLength) {
+        commitView.position(LOG_EXTENSION_OFFSET);
+        putExtension(commitView, logExtension);
+        commitView.putLong(LOG_LENGTH_OFFSET, logLength);
+        long position = committedPosition;
+        if (endPosition <= position) {
+            return;
+        }
+        while (position < endPosition) {
+            int offset = (int) (position % ringSize);
+            int remaining = ringSize - offset;
+            if (remaining < 4 || commitView.getInt(HEADER_SIZE + offset) == WRAP) {
+                position += remaining;
+                continue;
+            }
+            commitView.put(HEADER_SIZE + offset + COMMITTED_MARKER_OFFSET, (byte) 1);
+            position += RECORD_HEADER_SIZE + commitView.getInt(HEADER_SIZE + offset);
+        }
+        commitView.putLong(COMMITTED_POSITION_OFFSET, endPosition);
+        committedPosition = endPosition;
+    }
+
+    /**
+     * Reads the valid records after the commit position and sets the append position after them.
+     */
+    private List<Record> scan() {
+        List<Record> records = new ArrayList<Record>();
+        ByteBuffer view = map.duplicate();
+        CRC32 crc = new CRC32();
+        long position = committedPosition;
+        long end = position;
+        while (position - committedPosition < ringSize) {
+            int offset = (int) (position % ringSize);
+            int remaining = ringSize - offset;
+            int length = remaining < 4 ? WRAP : view.getInt(HEADER_SIZE + offset);
+            if (length == WRAP) {
+                position += remaining;
+                continue;
+            }
+            if (length <= 0 || RECORD_HEADER_SIZE + length > remaining) {
+                break;
+            }
+            view.position(HEADER_SIZE + offset + 4);
+            view.get(fieldBytes);
+            int storedCrc = view.getInt();
+            boolean committed = view.get() != 0;
+            byte[] data = new byte[length];
+            view.get(data);
+            fields.clear();
+            crc.reset();
+            crc.update(fieldBytes);
+            crc.update(data);
+            if (fields.getLong() != position || (int) crc.getValue() != storedCrc) {
+                break;
+            }
+            long dayStart = fields.getLong();
+            position += RECORD_HEADER_SIZE + length;
+            end = position;
+            if (committed) {
+                // the process died while committing
+                committedPosition = position;
+                map.putLong(COMMITTED_POSITION_OFFSET, position);
+            } else {
+                records.add(new Record(data, dayStart, readExtension(fields, 16), position));
+            }
+        }
+        appendPosition = end;
+        return records;
+    }
+
+    private static void putExtension(ByteBuffer buffer, String extension) {
+        byte[] bytes = extension == null ? new byte[0] : extension.getBytes(UTF8);
+        for (int i = 0; i < MAX_EXTENSION_LENGTH; i++) {
+            buffer.put(i < bytes.length ? bytes[i] : 0);
+        }
+    }
+
+    private static String readExtension(ByteBuffer buffer, int offset) {
+        int length = 0;
+        while (length < MAX_EXTENSION_LENGTH && buffer.get(offset + length) != 0) {
+            length++;
+        }
+        return length == 0 ? null : readString(buffer, offset, length);
+    }
+
+    private static String readString(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, UTF8);
+    }
+}
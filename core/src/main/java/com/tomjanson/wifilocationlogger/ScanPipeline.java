@@ -0,0 +1,173 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The scan -> log path of LoggingService without Android types, so a replay of recorded logs
+ * can drive it on a plain JVM (see the replay module):
+ *
+ * - location fixes go into the LocationHistory (onLocation())
+ * - scans are sorted and filtered (see ScanProcessor), and if logging, stamped with the location
+ *   estimated for the scan time and handed to the Sinks (the ScanBatchWriter, coverage, ...)
+ * - with waitForBracketingFix, a scan newer than the newest fix is held back until a later fix
+ *   arrives, or until it waited maxWaitMillis (see advanceTo())
+ *
+ * Time is whatever the caller says: scan and fix times, and the time passed to advanceTo().
+ * So a replay can run faster than real time and still behave like the app did.
+ * Used from a single thread (LoggingService's pipeline thread).
+ *
+ * Metrics: aps_per_scan (visible), matched_aps (matching the filter), filter_us
+ * (sorting and filtering), location_age_ms (|locationSkew|), scans_logged and scans_without_location.
+ */
+final class ScanPipeline {
+    private static final Logger log = LoggerFactory.getLogger(ScanPipeline.class);
+
+    interface Sink {
+        /**
+         * Called for every logged (located) scan; the batch may be reused once this returns.
+         */
+        void write(ScanBatch batch);
+    }
+
+    private final LocationHistory locationHistory;
+    private final boolean waitForBracketingFix;
+    private final long maxWaitMillis;
+    private final List<Sink> sinks = new ArrayList<Sink>();
+
+    private final ScanProcessor scan = new ScanProcessor();
+    private final ScanBatch batch = new ScanBatch();
+    private long lastFixTime = Long.MIN_VALUE;
+
+    // scans waiting for a location fix after them
+    private final ArrayDeque<ScanBatch> pendingScans = new ArrayDeque<ScanBatch>();
+    private final ArrayDeque<ScanBatch> freeScans = new ArrayDeque<ScanBatch>();
+
+    private final Metrics.Histogram apsPerScan;
+    private final Metrics.Histogram matchedAps;
+    private final Metrics.Histogram filterTime;
+    private final Metrics.Histogram locationAge;
+    private final Metrics.Counter scansLogged;
+    private final Metrics.Counter scansWithoutLocation;
+
+    ScanPipeline(LocationHistory locationHistory, boolean waitForBracketingFix, long maxWaitMillis,
+                 Metrics metrics) {
+        this.locationHistory = locationHistory;
+        this.waitForBracketingFix = waitForBracketingFix;
+        this.maxWaitMillis = maxWaitMillis;
+        apsPerScan           = metrics.histogram("aps_per_scan");
+        matchedAps           = metrics.histogram("matched_aps");
+        filterTime           = metrics.histogram("filter_us");
+        locationAge          = metrics.histogram("location_age_ms");
+        scansLogged          = metrics.counter("scans_logged");
+        scansWithoutLocation = metrics.counter("scans_without_location");
+    }
+
+    void addSink(Sink sink) {
+        sinks.add(sink);
+    }
+
+    void removeSink(Sink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * The processor to add the next scan's wifis to (after clear()), before calling onScan().
+     */
+    ScanProcessor scan() {
+        return scan;
+    }
+
+    /**
+     * Adds a location fix, and logs the pending scans it brackets.
+     *
+     * @param time arrival time of the fix, on the same clock as the scan times
+     */
+    void onLocation(long time, double latitude, double longitude, double altitude, float accuracy, float speed) {
+        locationHistory.add(time, latitude, longitude, altitude, accuracy, speed);
+        lastFixTime = time;
+        while (!pendingScans.isEmpty() && locationHistory.newestTime() > pendingScans.peek().timeMillis) {
+            writePending();
+        }
+    }
+
+    /**
+     * Filters the scan added to scan() and logs it, if {@code logging}.
+     *
+     * @return the wifis matching the filter (reused by the next scan)
+     */
+    ScanBatch onScan(long timeMillis, String filterText, boolean logging) {
+        apsPerScan.record(scan.size());
+        long filterStart = System.nanoTime();
+        scan.sort();
+        batch.clear();
+        scan.filter(filterText, batch);
+        filterTime.record((System.nanoTime() - filterStart) / 1000);
+        matchedAps.record(batch.size);
+
+        // if no wifi matched the filter, the batch is logged as
+        // a special entry signifying that no wifi was in range
+        if (logging) {
+            batch.timeMillis = timeMillis;
+            batch.filter     = filterText;
+            if (waitForBracketingFix && locationHistory.newestTime() <= timeMillis) {
+                ScanBatch pending = freeScans.isEmpty() ? new ScanBatch() : freeScans.poll();
+                pending.copyFrom(batch);
+                pendingScans.add(pending);
+            } else {
+                write(batch);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Logs the pending scans that have waited maxWaitMillis by {@code now}.
+     */
+    void advanceTo(long now) {
+        while (!pendingScans.isEmpty() && now - pendingScans.peek().timeMillis >= maxWaitMillis) {
+            writePending();
+        }
+    }
+
+    /**
+     * When advanceTo() has something to do next, Long.MAX_VALUE if nothing is pending.
+     */
+    long nextDeadline() {
+        return pendingScans.isEmpty() ? Long.MAX_VALUE : pendingScans.peek().timeMillis + maxWaitMillis;
+    }
+
+    /**
+     * Logs all pending scans, e.g., when logging stops.
+     */
+    void flushPending() {
+        while (!pendingScans.isEmpty()) {
+            writePending();
+        }
+    }
+
+    private void writePending() {
+        ScanBatch pending = pendingScans.poll();
+        write(pending);
+        pending.clear();
+        freeScans.add(pending);
+    }
+
+    private void write(ScanBatch batch) {
+        if (!locationHistory.estimate(batch.timeMillis, batch)) {
+            log.debug("No location yet, scan not logged");
+            scansWithoutLocation.increment();
+            return;
+        }
+        batch.locationSkew = lastFixTime - batch.timeMillis;
+        locationAge.record(Math.abs(batch.locationSkew));
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).write(batch);
+        }
+        scansLogged.increment();
+    }
+}
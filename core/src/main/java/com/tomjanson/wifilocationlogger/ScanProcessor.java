@@ -0,0 +1,103 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * The per-scan work of WifiScanSource, without Android types (so it can be benchmarked
+ * on a plain JVM): sort the visible wifis by signal strength, filter them (see ScanFilter) and
+ * convert frequencies to channels.
+ *
+ * Wifis are copied into reused Wifi objects; a ScanProcessor is used from a single thread.
+ */
+final class ScanProcessor {
+    /*
+     * The fields of android.net.wifi.ScanResult we use.
+     */
+    static final class Wifi {
+        String ssid;
+        String bssid;
+        int level;
+        int frequency;
+    }
+
+    static final Comparator<Wifi> RSSI_ORDER =
+            new Comparator<Wifi>() {
+                public int compare(Wifi e1, Wifi e2) {
+                    return Integer.compare(e2.level, e1.level);
+                }
+            };
+
+    private final List<Wifi> wifis = new ArrayList<Wifi>();
+    private final List<Wifi> pool = new ArrayList<Wifi>();
+
+    // compiled filter, replaced when the filter text changes
+    private ScanFilter filter = ScanFilter.compile("");
+
+    void clear() {
+        pool.addAll(wifis);
+        wifis.clear();
+    }
+
+    void add(String ssid, String bssid, int level, int frequency) {
+        Wifi wifi = pool.isEmpty() ? new Wifi() : pool.remove(pool.size() - 1);
+        wifi.ssid = ssid;
+        wifi.bssid = bssid;
+        wifi.level = level;
+        wifi.frequency = frequency;
+        wifis.add(wifi);
+    }
+
+    int size() {
+        return wifis.size();
+    }
+
+    Wifi get(int i) {
+        return wifis.get(i);
+    }
+
+    /**
+     * Sorts by signal strength, strongest first.
+     */
+    void sort() {
+        Collections.sort(wifis, RSSI_ORDER);
+    }
+
+    /**
+     * Adds the wifis matching the filter text to {@code batch} (in the current order).
+     * The filter is only compiled when the text changed since the last scan.
+     */
+    void filter(String filterText, ScanBatch batch) {
+        if (!filterText.equals(filter.text())) {
+            filter = ScanFilter.compile(filterText);
+        }
+        filter(filter, batch);
+    }
+
+    void filter(ScanFilter filter, ScanBatch batch) {
+        boolean usesChannel = filter.usesChannel();
+        for (int i = 0; i < wifis.size(); i++) {
+            Wifi wifi = wifis.get(i);
+            int channel = usesChannel ? convertFrequencyToChannel(wifi.frequency) : -1;
+            if (!filter.matches(wifi.ssid, wifi.bssid, wifi.level, channel)) {
+                continue;
+            }
+            if (!usesChannel) {
+                channel = convertFrequencyToChannel(wifi.frequency);
+            }
+            batch.add(wifi.ssid, wifi.bssid, wifi.level, channel);
+        }
+    }
+
+    static int convertFrequencyToChannel(int freq) {
+        if (freq >= 2412 && freq <= 2484) {
+            return (freq - 2412) / 5 + 1;
+        } else if (freq >= 5170 && freq <= 5825) {
+            return (freq - 5170) / 5 + 34;
+        } else {
+            throw new IllegalArgumentException(Integer.toString(freq));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.tomjanson.wifilocationlogger;
+
+/*
+ * The SQL of ScanStore, apart from the Android database API it's run with, so the benchmarks
+ * can run the same statements and queries (see ScanStoreBenchmark):
+ *
+ *     sessions      (_id, uuid, model, format_version)
+ *     bssids        (_id, bssid, ssid)   dictionary, bssid as 48-bit integer (see Bssids)
+ *     scans         (_id, session_id, time, latitude, longitude, altitude, accuracy, speed,
+ *                    location_skew, location_error, cell, filter)
+ *     observations  (scan_id, bssid_id, level, channel)
+ *
+ * Indexes: scans by time and by (cell, time), observations by (bssid_id, scan_id) and scan_id.
+ * cell is a grid cell of CELL_DEGREES, which narrows bounding box queries down to a few index ranges.
+ */
+final class ScanStoreSchema {
+    static final int VERSION = 1;
+
+    static final double CELL_DEGREES = 0.01;
+    private static final long CELL_COLUMNS = Math.round(360 / CELL_DEGREES);
+
+    // bounding boxes spanning more rows of cells are queried by time only
+    private static final int MAX_CELL_ROWS = 16;
+
+    static final String[] CREATE_TABLES = {
+            "CREATE TABLE sessions (_id INTEGER PRIMARY KEY, uuid TEXT NOT NULL UNIQUE,"
+                    + " model TEXT, format_version INTEGER)",
+            "CREATE TABLE bssids (_id INTEGER PRIMARY KEY, bssid INTEGER NOT NULL UNIQUE, ssid TEXT)",
+            "CREATE TABLE scans (_id INTEGER PRIMARY KEY,"
+                    + " session_id INTEGER NOT NULL REFERENCES sessions, time INTEGER NOT NULL,"
+                    + " latitude REAL, longitude REAL, altitude REAL, accuracy REAL, speed REAL,"
+                    + " location_skew INTEGER, location_error REAL, cell INTEGER NOT NULL, filter TEXT)",
+            "CREATE TABLE observations (scan_id INTEGER NOT NULL REFERENCES scans,"
+                    + " bssid_id INTEGER NOT NULL REFERENCES bssids, level INTEGER, channel INTEGER)",
+    };
+
+    static final String[] CREATE_INDEXES = {
+            "CREATE INDEX scans_time ON scans (time)",
+            "CREATE INDEX scans_cell_time ON scans (cell, time)",
+            "CREATE INDEX observations_bssid ON observations (bssid_id, scan_id)",
+            "CREATE INDEX observations_scan ON observations (scan_id)",
+    };
+
+    static final String INSERT_SCAN = "INSERT INTO scans (session_id, time, latitude, longitude, altitude,"
+            + " accuracy, speed, location_skew, location_error, cell, filter)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    static final String INSERT_OBSERVATION =
+            "INSERT INTO observations (scan_id, bssid_id, level, channel) VALUES (?, ?, ?, ?)";
+    static final String INSERT_BSSID = "INSERT INTO bssids (bssid, ssid) VALUES (?, ?)";
+    static final String UPDATE_SSID = "UPDATE bssids SET ssid = ? WHERE _id = ?";
+    static final String SELECT_BSSID = "SELECT _id FROM bssids WHERE bssid = ?";
+    static final String INSERT_SESSION = "INSERT INTO sessions (uuid, model, format_version) VALUES (?, ?, ?)";
+    static final String SELECT_SESSION = "SELECT _id FROM sessions WHERE uuid = ?";
+    static final String COUNT_OBSERVATIONS = "SELECT COUNT(*) FROM observations";
+
+    /**
+     * All sightings of a BSSID (see Bssids) since a time, ordered by time.
+     * Columns: time, latitude, longitude, level, channel.
+     */
+    static final String SIGHTINGS = "SELECT s.time, s.latitude, s.longitude, o.level, o.channel"
+            + " FROM observations o JOIN scans s ON s._id = o.scan_id"
+            + " WHERE o.bssid_id = (SELECT _id FROM bssids WHERE bssid = ?) AND s.time >= ?"
+            + " ORDER BY s.time";
+
+    private ScanStoreSchema() {
+    }
+
+    /**
+     * All observations in a bounding box since the given time.
+     * Columns: time, latitude, longitude, bssid (see Bssids), ssid, level, channel.
+     */
+    static String observationsInBox(double minLatitude, double minLongitude, double maxLatitude,
+                                    double maxLongitude, long sinceMillis) {
+        StringBuilder sql = new StringBuilder(512);
+        sql.append("SELECT s.time, s.latitude, s.longitude, b.bssid, b.ssid, o.level, o.channel")
+           .append(" FROM scans s JOIN observations o ON o.scan_id = s._id JOIN bssids b ON b._id = o.bssid_id")
+           .append(" WHERE s.time >= ").append(sinceMillis)
+           .append(" AND s.latitude BETWEEN ").append(minLatitude).append(" AND ").append(maxLatitude)
+           .append(" AND s.longitude BETWEEN ").append(minLongitude).append(" AND ").append(maxLongitude);
+
+        long minRow = cellRow(minLatitude);
+        long maxRow = cellRow(maxLatitude);
+        if (maxRow - minRow < MAX_CELL_ROWS) {
+            long minColumn = cellColumn(minLongitude);
+            long maxColumn = cellColumn(maxLongitude);
+            sql.append(" AND (");
+            for (long row = minRow; row <= maxRow; row++) {
+                if (row > minRow) {
+                    sql.append(" OR ");
+                }
+                sql.append("s.cell BETWEEN ").append(row * CELL_COLUMNS + minColumn)
+                   .append(" AND ").append(row * CELL_COLUMNS + maxColumn);
+            }
+            sql.append(')');
+        }
+        return sql.toString();
+    }
+
+    static long cell(double latitude, double longitude) {
+        return cellRow(latitude) * CELL_COLUMNS + cellColumn(longitude);
+    }
+
+    private static long cellRow(double latitude) {
+        return (long) Math.floor((latitude + 90) / CELL_DEGREES);
+    }
+
+    private static long cellColumn(double longitude) {
+        return (long) Math.floor((longitude + 180) / CELL_DEGREES);
+    }
+}
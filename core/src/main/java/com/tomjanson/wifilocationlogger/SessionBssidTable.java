@@ -0,0 +1,424 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Per-BSSID statistics of the current logging session, for the UI and an export when it ends:
+ * when each AP was first and last seen, how often, its level (min, max and an exponentially
+ * weighted moving average), channel and SSID (as last seen).
+ *
+ * Like the analyzer's BssidTable, an open-addressing (linear probing) hash table keyed by the
+ * BSSID as a long (see Bssids), with the statistics in parallel primitive arrays, about 32 bytes
+ * per slot. Times are seconds since the session's first scan, SSIDs are interned, so all the
+ * entries of a network share one String. Adding a scan is O(wifis) and doesn't allocate, except
+ * for an SSID not seen before.
+ *
+ * Memory is bounded: the table grows up to the capacity for maxEntries. Once that's full, the
+ * quarter of the entries seen least often (then least recently) are evicted, so the table keeps
+ * up with a long drive past 100k+ APs; evicted entries are counted. Evicting rebuilds the table,
+ * which briefly needs twice its memory.
+ *
+ * top() finds the k best entries by some order in O(slots * log k).
+ *
+ * Not thread-safe.
+ */
+final class SessionBssidTable {
+    static final int BY_SIGHTINGS = 0;   // then most recent first
+    static final int BY_LEVEL     = 1;   // moving average, then most sightings first
+    static final int BY_LAST_SEEN = 2;   // then most sightings first
+
+    static final float EWMA_WEIGHT = 0.25f;   // of a new sighting's level
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int MAX_LOAD_PERCENT = 75;
+    private static final int EVICT_PERCENT = 25;
+
+    private final int maxEntries;
+    private final int maxSlots;
+
+    // a slot is empty iff its count is 0
+    private long[]   bssids;
+    private int[]    counts;
+    private int[]    firstSeen;   // seconds since startMillis
+    private int[]    lastSeen;
+    private float[]  levels;      // moving average
+    private byte[]   mins;
+    private byte[]   maxs;
+    private short[]  channels;
+    private String[] ssids;
+
+    private final Map<String, String> ssidPool = new HashMap<String, String>();
+    private long startMillis = Long.MIN_VALUE;
+    private int size;
+    private int threshold;
+    private long scans;
+    private long evicted;
+
+    // top()'s heap
+    private int[]  heapSlots = new int[0];
+    private long[] heapKeys = new long[0];
+
+    SessionBssidTable(int maxEntries) {
+        this.maxEntries = maxEntries;
+        int slots = INITIAL_SLOTS;
+        while ((long) slots * MAX_LOAD_PERCENT / 100 < maxEntries) {
+            slots *= 2;
+        }
+        this.maxSlots = slots;
+        allocate(Math.min(INITIAL_SLOTS, maxSlots));
+    }
+
+    /**
+     * Starts over, for a new session. Keeps the table's current size.
+     */
+    void clear() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(ssids, null);
+        ssidPool.clear();
+        startMillis = Long.MIN_VALUE;
+        size = 0;
+        scans = 0;
+        evicted = 0;
+    }
+
+    /**
+     * Number of BSSIDs in the table.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Number of scans added since clear().
+     */
+    long scans() {
+        return scans;
+    }
+
+    /**
+     * Number of entries evicted to make room since clear().
+     */
+    long evicted() {
+        return evicted;
+    }
+
+    /**
+     * Adds all wifis of a scan. Wifis with malformed BSSIDs are skipped.
+     */
+    void add(ScanBatch batch) {
+        if (startMillis == Long.MIN_VALUE) {
+            startMillis = batch.timeMillis;
+        }
+        int time = (int) Math.max(0, (batch.timeMillis - startMillis) / 1000);
+        for (int i = 0; i < batch.size; i++) {
+            long bssid = Bssids.parse(batch.bssids[i]);
+            if (bssid != Bssids.INVALID) {
+                add(bssid, batch.ssids[i], batch.levels[i], batch.channels[i], time);
+            }
+        }
+        scans++;
+    }
+
+    private void add(long bssid, String ssid, int level, int channel, int time) {
+        byte clamped = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, level));
+        int slot = slotOf(bssid);
+        if (counts[slot] == 0) {
+            if (size == maxEntries) {
+                evict();
+            }
+            if (size >= threshold && counts.length < maxSlots) {
+                allocate(counts.length * 2);
+            }
+            slot = slotOf(bssid);
+            bssids[slot]    = bssid;
+            firstSeen[slot] = time;
+            levels[slot]    = clamped;
+            mins[slot]      = clamped;
+            maxs[slot]      = clamped;
+            size++;
+        } else {
+            levels[slot] += EWMA_WEIGHT * (clamped - levels[slot]);
+            if (clamped < mins[slot]) {
+                mins[slot] = clamped;
+            }
+            if (clamped > maxs[slot]) {
+                maxs[slot] = clamped;
+            }
+        }
+        counts[slot]++;
+        lastSeen[slot] = time;
+        channels[slot] = (short) channel;
+        if (ssids[slot] == null ? ssid != null : !ssids[slot].equals(ssid)) {
+            ssids[slot] = intern(ssid);
+        }
+    }
+
+    /**
+     * Entries are accessed by slot: iterate over [0, slots()) and skip slots with count 0,
+     * or use top(). Slots change when entries are added.
+     */
+    int slots() {
+        return counts.length;
+    }
+
+    /**
+     * The slot of an entry, or -1 if there's none.
+     */
+    int find(long bssid) {
+        int slot = slotOf(bssid);
+        return counts[slot] == 0 ? -1 : slot;
+    }
+
+    long bssid(int slot) {
+        return bssids[slot];
+    }
+
+    String ssid(int slot) {
+        return ssids[slot];
+    }
+
+    int channel(int slot) {
+        return channels[slot];
+    }
+
+    int count(int slot) {
+        return counts[slot];
+    }
+
+    long firstSeen(int slot) {
+        return startMillis + firstSeen[slot] * 1000L;
+    }
+
+    long lastSeen(int slot) {
+        return startMillis + lastSeen[slot] * 1000L;
+    }
+
+    float level(int slot) {
+        return levels[slot];
+    }
+
+    int min(int slot) {
+        return mins[slot];
+    }
+
+    int max(int slot) {
+        return maxs[slot];
+    }
+
+    /**
+     * Fills {@code slots} with the slots of the (up to) {@code slots.length} best entries by
+     * {@code order}, best first; returns how many there are.
+     */
+    int top(int order, int[] slots) {
+        int k = Math.min(slots.length, size);
+        if (heapSlots.length < k) {
+            heapSlots = new int[k];
+            heapKeys = new long[k];
+        }
+        // min-heap of the best k so far, the worst of them at the root
+        int n = 0;
+        for (int slot = 0; slot < counts.length && k > 0; slot++) {
+            if (counts[slot] == 0) {
+                continue;
+            }
+            long key = key(order, slot);
+            if (n < k) {
+                siftUp(n++, slot, key);
+            } else if (key > heapKeys[0]) {
+                siftDown(0, n, slot, key);
+            }
+        }
+        // pop the worst one to the end until the heap is empty
+        for (int i = n - 1; i >= 0; i--) {
+            slots[i] = heapSlots[0];
+            siftDown(0, i, heapSlots[i], heapKeys[i]);
+        }
+        return n;
+    }
+
+    /**
+     * Writes the (up to) {@code k} entries seen most often as CSV, most often first.
+     */
+    void writeCsv(File file, int k) throws IOException {
+        int[] slots = new int[k];
+        int n = top(BY_SIGHTINGS, slots);
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), UTF8);
+        try {
+            StringBuilder sb = new StringBuilder(256);
+            out.write("bssid,ssid,channel,sightings,level,min,max,first_seen,last_seen\n");
+            for (int i = 0; i < n; i++) {
+                int slot = slots[i];
+                sb.setLength(0);
+                sb.append(Bssids.format(bssids[slot])).append(',');
+                CsvRecordEncoder.appendField(sb, ssids[slot]);
+                sb.append(',').append(channels[slot])
+                  .append(',').append(counts[slot])
+                  .append(',').append(Math.round(levels[slot] * 10) / 10f)
+                  .append(',').append(mins[slot])
+                  .append(',').append(maxs[slot])
+                  .append(',').append(firstSeen(slot))
+                  .append(',').append(lastSeen(slot))
+                  .append('\n');
+                out.append(sb);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Sort key of a slot by {@code order}: larger is better.
+     */
+    private long key(int order, int slot) {
+        switch (order) {
+            case BY_SIGHTINGS:
+                return (long) counts[slot] << 32 | lastSeen[slot] & 0xffffffffL;
+            case BY_LEVEL:
+                // levels are within [-128, 127], in 1/256 dB
+                return (long) (levels[slot] * 256 + (1 << 16)) << 32 | counts[slot] & 0xffffffffL;
+            case BY_LAST_SEEN:
+                return (long) lastSeen[slot] << 32 | counts[slot] & 0xffffffffL;
+            default:
+                throw new IllegalArgumentException("Unknown order: " + order);
+        }
+    }
+
+    private void siftUp(int i, int slot, long key) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapKeys[parent] <= key) {
+                break;
+            }
+            heapSlots[i] = heapSlots[parent];
+            heapKeys[i] = heapKeys[parent];
+            i = parent;
+        }
+        heapSlots[i] = slot;
+        heapKeys[i] = key;
+    }
+
+    private void siftDown(int i, int n, int slot, long key) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                break;
+            }
+            if (child + 1 < n && heapKeys[child + 1] < heapKeys[child]) {
+                child++;
+            }
+            if (key <= heapKeys[child]) {
+                break;
+            }
+            heapSlots[i] = heapSlots[child];
+            heapKeys[i] = heapKeys[child];
+            i = child;
+        }
+        heapSlots[i] = slot;
+        heapKeys[i] = key;
+    }
+
+    /**
+     * Evicts the EVICT_PERCENT of the entries seen least often, then least recently,
+     * and drops the SSIDs no remaining entry refers to.
+     */
+    private void evict() {
+        long[] keys = new long[size];
+        int n = 0;
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] != 0) {
+                keys[n++] = key(BY_SIGHTINGS, slot);
+            }
+        }
+        Arrays.sort(keys, 0, n);
+        long cutoff = keys[Math.max(0, n * EVICT_PERCENT / 100 - 1)];
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] != 0 && key(BY_SIGHTINGS, slot) <= cutoff) {
+                counts[slot] = 0;
+                ssids[slot] = null;
+                size--;
+                evicted++;
+            }
+        }
+        ssidPool.clear();
+        allocate(counts.length);
+    }
+
+    private String intern(String ssid) {
+        if (ssid == null) {
+            return null;
+        }
+        String interned = ssidPool.get(ssid);
+        if (interned == null) {
+            ssidPool.put(ssid, ssid);
+            interned = ssid;
+        }
+        return interned;
+    }
+
+    /**
+     * The slot holding the entry, or the empty slot where it would go.
+     */
+    private int slotOf(long bssid) {
+        int mask = counts.length - 1;
+        long h = bssid * 0x9e3779b97f4a7c15L;
+        int slot = (int) (h ^ h >>> 32) & mask;
+        while (counts[slot] != 0 && bssids[slot] != bssid) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * (Re)allocates the table with the given number of slots, rehashing existing entries
+     * (and re-interning their SSIDs, if the pool was cleared).
+     */
+    private void allocate(int slots) {
+        long[]   oldBssids = bssids;
+        int[]    oldCounts = counts;
+        int[]    oldFirstSeen = firstSeen;
+        int[]    oldLastSeen = lastSeen;
+        float[]  oldLevels = levels;
+        byte[]   oldMins = mins;
+        byte[]   oldMaxs = maxs;
+        short[]  oldChannels = channels;
+        String[] oldSsids = ssids;
+
+        bssids    = new long[slots];
+        counts    = new int[slots];
+        firstSeen = new int[slots];
+        lastSeen  = new int[slots];
+        levels    = new float[slots];
+        mins      = new byte[slots];
+        maxs      = new byte[slots];
+        channels  = new short[slots];
+        ssids     = new String[slots];
+        threshold = slots * MAX_LOAD_PERCENT / 100;
+
+        if (oldBssids == null) {
+            return;
+        }
+        for (int i = 0; i < oldBssids.length; i++) {
+            if (oldCounts[i] != 0) {
+                int slot = slotOf(oldBssids[i]);
+                bssids[slot]    = oldBssids[i];
+                counts[slot]    = oldCounts[i];
+                firstSeen[slot] = oldFirstSeen[i];
+                lastSeen[slot]  = oldLastSeen[i];
+                levels[slot]    = oldLevels[i];
+                mins[slot]      = oldMins[i];
+                maxs[slot]      = oldMaxs[i];
+                channels[slot]  = oldChannels[i];
+                ssids[slot]     = intern(oldSsids[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Incremental upload of the log files ($name.$ext and the rolled $name.yyyy-MM-dd.$ext).
+ *
+ * For every file, a cursor (the number of bytes the server has acknowledged) is kept in
+ * $dir/upload-cursors.properties, and only the data after it is sent, in gzipped chunks of at
+ * most chunkSize (uncompressed) bytes. Together with the log files, the cursors form a durable
+ * queue of pending data. Several chunks (possibly of different files) are sent per request,
+ * up to batchSize uncompressed bytes. The cursors are saved after every acknowledged request,
+ * so a failed upload resumes with the request that failed.
+ *
+ * Files are identified by a fingerprint of their first bytes rather than by name, since
+ * ScanBatchWriter renames the active file when the day changes. Each file also gets a random
+ * upload id, and every chunk is posted as a multipart file named
+ * $secret.$uploadId.$offset.gz; the chunks of a file (sorted by offset) concatenate to a
+ * valid gzip stream of the whole file.
+ *
+ * Rolled files gzipped by LogCompactor ($name.yyyy-MM-dd.$ext.gz) are uploaded like the
+ * original: offsets, fingerprint and upload id refer to the uncompressed content, so
+ * compressing a partially uploaded file doesn't restart its upload.
+ *
+ * run() blocks, call it on a background thread (and not concurrently).
+ */
+final class UploadEngine {
+    private static final Logger log = LoggerFactory.getLogger(UploadEngine.class);
+
+    static final String CURSOR_FILE = "upload-cursors.properties";
+    static final String GZIP_EXTENSION = ".gz";
+
+    // files are identified by the CRC of this many leading bytes; the active file isn't
+    // uploaded before it's this long (it'll be uploaded once it's rolled over, at the latest)
+    private static final int FINGERPRINT_LENGTH = 256;
+
+    // $uploadId $offset
+    private static final Pattern CURSOR = Pattern.compile("[0-9a-f-]{36} \\d{1,18}");
+
+    private static final String BOUNDARY = "----WifiLocationLoggerUploadBoundary";
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    /*
+     * A chunk of a log file, compressed and ready to be sent.
+     */
+    private static final class Part {
+        final ChunkBuffer gzip;
+        String key;
+        String uploadId;
+        long offset;
+        int length;
+
+        Part(int capacity) {
+            gzip = new ChunkBuffer(capacity);
+        }
+    }
+
+    private final File directory;
+    // $name.$ext or $name.yyyy-MM-dd.$ext, possibly gzipped (not the debug logs, $name.trace.txt etc.)
+    private final Pattern logFile;
+    private final String secret;
+    private final int chunkSize;
+    private final int batchSize;
+    private volatile String url;
+
+    private final Properties cursors = new Properties();
+    private final byte[] readBuffer;
+    private final byte[] fingerprintBuffer = new byte[FINGERPRINT_LENGTH];
+    private final CRC32 crc = new CRC32();
+
+    // parts of the current request; parts beyond batchCount are kept for reuse
+    private final List<Part> batch = new ArrayList<Part>();
+    private int batchCount;
+    private int batchBytes;
+
+    // statistics of the last run, read from other threads
+    private volatile long bytesRead;
+    private volatile long bytesSent;
+    private volatile int requestsSent;
+    private volatile long pendingBytes = -1;
+
+    UploadEngine(File directory, String baseName, String url, String secret, int chunkSize, int batchSize) {
+        this.directory = directory;
+        logFile = logFilePattern(baseName);
+        this.url = url;
+        this.secret = secret;
+        this.chunkSize = chunkSize;
+        this.batchSize = Math.max(batchSize, chunkSize);
+        this.readBuffer = new byte[chunkSize];
+    }
+
+    /**
+     * The names of the log files of baseName: $name.$ext and $name.yyyy-MM-dd.$ext, possibly
+     * gzipped. Group 1 is the date (with its leading dot) of a rolled file, null for the active one.
+     */
+    static Pattern logFilePattern(String baseName) {
+        return Pattern.compile(Pattern.quote(baseName) + "(\\.\\d{4}-\\d\\d-\\d\\d)?\\.(csv|"
+                + CompactLogFormat.FILE_EXTENSION + ")(" + Pattern.quote(GZIP_EXTENSION) + ")?");
+    }
+
+    /**
+     * Takes effect from the next request on.
+     */
+    void setUrl(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Uploads everything not yet acknowledged by the server, oldest file first.
+     *
+     * @throws IOException if a request failed; everything before it stays acknowledged
+     */
+    void run() throws IOException {
+        bytesRead = 0;
+        bytesSent = 0;
+        requestsSent = 0;
+        batchCount = 0;
+        batchBytes = 0;
+        loadCursors();
+
+        try {
+            for (File file : logFiles()) {
+                upload(file);
+            }
+            postBatch();
+            log.info("Upload done: {} requests, {} bytes of log data, {} bytes sent",
+                    requestsSent, bytesRead, bytesSent);
+        } finally {
+            countPendingBytes();
+        }
+    }
+
+    /**
+     * Number of (uncompressed) log bytes uploaded by the last run.
+     */
+    long bytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Number of bytes posted by the last run, including multipart overhead.
+     */
+    long bytesSent() {
+        return bytesSent;
+    }
+
+    int requestsSent() {
+        return requestsSent;
+    }
+
+    /**
+     * Number of log bytes not yet acknowledged as of the end of the last run
+     * (or of countPendingBytes()), -1 if unknown.
+     */
+    long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Updates pendingBytes() without uploading anything.
+     */
+    void countPendingBytes() throws IOException {
+        if (cursors.isEmpty()) {
+            loadCursors();
+        }
+        long pending = 0;
+        for (File file : logFiles()) {
+            long length = contentLength(file);
+            String cursor = cursors.getProperty(key(file, length));
+            pending += length - (cursor == null ? 0 : cursorOffset(cursor));
+        }
+        pendingBytes = pending;
+    }
+
+    /**
+     * Whether the server has acknowledged all {@code length} bytes of the log file with that key
+     * (see key()).
+     */
+    boolean isUploaded(String key, long length) throws IOException {
+        if (cursors.isEmpty()) {
+            loadCursors();
+        }
+        String cursor = cursors.getProperty(key);
+        return cursor != null && cursorOffset(cursor) >= length;
+    }
+
+    /**
+     * Drops the cursor of a deleted log file.
+     */
+    void forget(String key) throws IOException {
+        if (cursors.remove(key) != null) {
+            saveCursors();
+        }
+    }
+
+    /**
+     * Log files in upload order: rolled files by date, then the active file(s).
+     */
+    File[] logFiles() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return logFile.matcher(name).matches();
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // $name.yyyy-MM-dd.$ext sorts before $name.$ext (digits before letters)
+        Arrays.sort(files);
+        return files;
+    }
+
+    private void upload(File file) throws IOException {
+        long length = contentLength(file);
+        int fingerprintLength = (int) Math.min(length, FINGERPRINT_LENGTH);
+        if (fingerprintLength < FINGERPRINT_LENGTH && isActive(file)) {
+            return;
+        }
+        InputStream in = open(file);
+        try {
+            String key = fingerprint(in, fingerprintLength);
+
+            String uploadId;
+            long offset;
+            String cursor = cursors.getProperty(key);
+            if (cursor == null) {
+                uploadId = UUID.randomUUID().toString();
+                offset = 0;
+            } else {
+                uploadId = cursor.substring(0, cursor.indexOf(' '));
+                offset = cursorOffset(cursor);
+            }
+
+            if (offset < fingerprintLength) {
+                in.close();
+                in = open(file);
+                skipFully(in, offset);
+            } else {
+                skipFully(in, offset - fingerprintLength);
+            }
+            while (offset < length) {
+                int n = (int) Math.min(chunkSize, length - offset);
+                if (batchBytes + n > batchSize) {
+                    postBatch();
+                }
+                readFully(in, readBuffer, n);
+                addPart(key, uploadId, offset, n);
+                offset += n;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static boolean isCompressed(File file) {
+        return file.getName().endsWith(GZIP_EXTENSION);
+    }
+
+    /**
+     * Opens the (uncompressed) content of a log file.
+     */
+    static InputStream open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (!isCompressed(file)) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in, 8192);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Length of the (uncompressed) content of a log file. For gzipped files, it's taken from
+     * the gzip trailer, which only has it modulo 4 GB; a day of logs is much less than that.
+     */
+    static long contentLength(File file) throws IOException {
+        if (!isCompressed(file)) {
+            return file.length();
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(in.length() - 4);
+            return Integer.reverseBytes(in.readInt()) & 0xffffffffL;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(buffer, offset, length - offset);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            offset += n;
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    private static long cursorOffset(String cursor) {
+        return Long.parseLong(cursor.substring(cursor.indexOf(' ') + 1));
+    }
+
+    private boolean isActive(File file) {
+        // active files have no date between name and extension
+        Matcher matcher = logFile.matcher(file.getName());
+        return matcher.matches() && matcher.group(1) == null;
+    }
+
+    /**
+     * Whether a file is a rolled log file ($name.yyyy-MM-dd.$ext, possibly gzipped).
+     */
+    boolean isRolled(File file) {
+        Matcher matcher = logFile.matcher(file.getName());
+        return matcher.matches() && matcher.group(1) != null;
+    }
+
+    /**
+     * The key of a log file's cursor.
+     */
+    String key(File file, long length) throws IOException {
+        InputStream in = open(file);
+        try {
+            return fingerprint(in, (int) Math.min(length, FINGERPRINT_LENGTH));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Fingerprints the first {@code length} bytes of a log file, read from the start of {@code in}.
+     */
+    private String fingerprint(InputStream in, int length) throws IOException {
+        readFully(in, fingerprintBuffer, length);
+        crc.reset();
+        crc.update(fingerprintBuffer, 0, length);
+        return Long.toHexString(crc.getValue()) + "-" + length;
+    }
+
+    /**
+     * Compresses readBuffer[0, length) into the next part of the batch.
+     */
+    private void addPart(String key, String uploadId, long offset, int length) throws IOException {
+        if (batchCount == batch.size()) {
+            batch.add(new Part(chunkSize / 4));
+        }
+        Part part = batch.get(batchCount++);
+        part.key = key;
+        part.uploadId = uploadId;
+        part.offset = offset;
+        part.length = length;
+
+        part.gzip.reset();
+        GZIPOutputStream gzip = new GZIPOutputStream(part.gzip, 8192);
+        gzip.write(readBuffer, 0, length);
+        gzip.close();
+        batchBytes += length;
+    }
+
+    /**
+     * Posts the parts collected so far in one request and advances their cursors.
+     */
+    private void postBatch() throws IOException {
+        if (batchCount == 0) {
+            return;
+        }
+
+        byte[][] heads = new byte[batchCount][];
+        int contentLength = 0;
+        for (int i = 0; i < batchCount; i++) {
+            Part part = batch.get(i);
+            String name = secret + "." + part.uploadId + "." + String.format(Locale.US, "%012d", part.offset) + ".gz";
+            heads[i] = ((i == 0 ? "" : "\r\n") + "--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + name + "\"\r\n"
+                    + "Content-Type: application/gzip\r\n\r\n").getBytes("UTF-8");
+            contentLength += heads[i].length + part.gzip.size();
+        }
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8");
+        contentLength += tail.length;
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(contentLength);
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+
+            OutputStream out = connection.getOutputStream();
+            for (int i = 0; i < batchCount; i++) {
+                Part part = batch.get(i);
+                out.write(heads[i]);
+                out.write(part.gzip.array(), 0, part.gzip.size());
+            }
+            out.write(tail);
+            out.close();
+
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("Upload failed, status " + status);
+            }
+            drain(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+
+        for (int i = 0; i < batchCount; i++) {
+            Part part = batch.get(i);
+            cursors.setProperty(part.key, part.uploadId + " " + (part.offset + part.length));
+        }
+        saveCursors();
+
+        log.debug("Uploaded {} chunks ({} bytes)", batchCount, contentLength);
+        bytesRead += batchBytes;
+        bytesSent += contentLength;
+        requestsSent++;
+        batchCount = 0;
+        batchBytes = 0;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[512];
+        try {
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void loadCursors() throws IOException {
+        cursors.clear();
+        File file = new File(directory, CURSOR_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            cursors.load(in);
+        } finally {
+            in.close();
+        }
+        // e.g., after a partial write by an older version; the file is uploaded again from the start
+        for (String key : cursors.stringPropertyNames()) {
+            if (!CURSOR.matcher(cursors.getProperty(key)).matches()) {
+                log.warn("Ignoring malformed upload cursor {}={}", key, cursors.getProperty(key));
+                cursors.remove(key);
+            }
+        }
+    }
+
+    private void saveCursors() throws IOException {
+        File file = new File(directory, CURSOR_FILE);
+        File temp = new File(directory, CURSOR_FILE + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            cursors.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not save upload cursors to " + file);
+        }
+    }
+}
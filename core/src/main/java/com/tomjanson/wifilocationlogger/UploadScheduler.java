@@ -0,0 +1,219 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Runs the UploadEngine periodically in the background.
+ *
+ * - uploads every intervalMillis, while Conditions allow it (e.g., on an unmetered
+ *   network and with enough battery); deferred uploads start when onConditionsChanged()
+ * - after a failure, retries with exponential backoff (with jitter, so a fleet of devices
+ *   doesn't hammer a recovering server in lockstep)
+ * - requested uploads (upload button) run right away, regardless of Conditions
+ *
+ * Uploads run on a single thread, so there's never more than one request in flight.
+ *
+ * Metrics: uploads, upload_failures, upload_bytes (log data read), upload_sent_bytes (posted,
+ * compressed) and upload_bytes_per_s (log data throughput of uploads that read anything).
+ */
+final class UploadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(UploadScheduler.class);
+
+    interface Conditions {
+        boolean canUpload();
+    }
+
+    interface Listener {
+        /**
+         * Called on the upload thread after every upload attempt.
+         */
+        void onUploadFinished(boolean success, boolean requested);
+    }
+
+    // cap exponent, 2^16 * minBackoff exceeds any sensible maxBackoff
+    private static final int MAX_BACKOFF_EXPONENT = 16;
+
+    private final UploadEngine engine;
+    private final Conditions conditions;
+    private final Listener listener;
+    private final long intervalMillis;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+
+    // only accessed on the upload thread
+    private ScheduledFuture<?> nextUpload;
+    private int failures;
+    private boolean deferred;
+
+    // statistics, read from other threads
+    private volatile double throughput;   // log bytes per second of the last upload
+    private final Metrics.Counter uploads;
+    private final Metrics.Counter uploadFailures;
+    private final Metrics.Counter uploadBytes;
+    private final Metrics.Counter uploadSentBytes;
+    private final Metrics.Histogram uploadThroughput;
+
+    private final Runnable scheduledUpload = new Runnable() {
+        @Override
+        public void run() {
+            upload(false);
+        }
+    };
+
+    UploadScheduler(UploadEngine engine, Conditions conditions, Listener listener,
+                    long intervalMillis, long minBackoffMillis, long maxBackoffMillis, Metrics metrics) {
+        this.engine = engine;
+        this.conditions = conditions;
+        this.listener = listener;
+        this.intervalMillis = intervalMillis;
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        uploads          = metrics.counter("uploads");
+        uploadFailures   = metrics.counter("upload_failures");
+        uploadBytes      = metrics.counter("upload_bytes");
+        uploadSentBytes  = metrics.counter("upload_sent_bytes");
+        uploadThroughput = metrics.histogram("upload_bytes_per_s");
+    }
+
+    /**
+     * Starts periodic uploads, the first one right away.
+     */
+    void start() {
+        execute(scheduledUpload);
+    }
+
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Uploads now, e.g., because the user asked for it.
+     */
+    void uploadNow() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                upload(true);
+            }
+        });
+    }
+
+    /**
+     * Starts a deferred upload if Conditions might allow it now (e.g., network or battery changed).
+     */
+    void onConditionsChanged() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (deferred) {
+                    upload(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the upload thread, so it never runs concurrently with an upload (see LogCompactor).
+     */
+    void runOnUploadThread(Runnable task) {
+        execute(task);
+    }
+
+    /**
+     * Number of log bytes waiting to be uploaded, -1 if not known yet.
+     */
+    long queuedBytes() {
+        return engine.pendingBytes();
+    }
+
+    /**
+     * Log bytes per second achieved by the last upload that sent anything, 0 if none.
+     */
+    double throughput() {
+        return throughput;
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    private void upload(boolean requested) {
+        if (nextUpload != null) {
+            nextUpload.cancel(false);
+            nextUpload = null;
+        }
+
+        if (!requested && !conditions.canUpload()) {
+            log.debug("Upload deferred");
+            deferred = true;
+            scheduleNext(intervalMillis);
+            return;
+        }
+        deferred = false;
+
+        long startTime = System.currentTimeMillis();
+        boolean success;
+        try {
+            engine.run();
+            success = true;
+            failures = 0;
+        } catch (IOException e) {
+            success = false;
+            failures++;
+            log.warn("Upload failed ({} in a row): {}", failures, e);
+        } catch (RuntimeException e) {
+            // a bug, but uploads must go on: escaping, it would end up unread in the executor's Future
+            success = false;
+            failures++;
+            log.error("Upload failed ({} in a row)", failures, e);
+        }
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (engine.bytesRead() > 0 && elapsed > 0) {
+            throughput = engine.bytesRead() * 1000.0 / elapsed;
+            uploadThroughput.record((long) throughput);
+        }
+        uploads.increment();
+        if (!success) {
+            uploadFailures.increment();
+        }
+        uploadBytes.add(engine.bytesRead());
+        uploadSentBytes.add(engine.bytesSent());
+        scheduleNext(success ? intervalMillis : backoffMillis());
+        listener.onUploadFinished(success, requested);
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": half of the delay is fixed, half is random.
+     */
+    private long backoffMillis() {
+        int exponent = Math.min(failures - 1, MAX_BACKOFF_EXPONENT);
+        long delay = Math.min(maxBackoffMillis, minBackoffMillis << exponent);
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    private void scheduleNext(long delayMillis) {
+        try {
+            nextUpload = executor.schedule(scheduledUpload, delayMillis, TimeUnit.MILLISECONDS);
+            log.trace("Next upload in {} ms", delayMillis);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * CsvRecordEncoder against the string concatenation (and logback's %date) it replaced.
+ */
+public class CsvRecordEncoderTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/Berlin");
+    private static final String MODEL = "Nexus 5";
+    private static final String SESSION = "0f8fad5b-d9cb-469f-a165-70867728950e";
+
+    @Test
+    public void rowsAreIdenticalToTheOldFormat() {
+        ScanBatch batch = batch(1420113599999L, "eduroam");
+        batch.add("eduroam", "00:11:22:33:44:55", -61, 6);
+        batch.add("", "00:11:22:33:44:66", -87, 36);
+        batch.add("Café ☕", "00:11:22:33:44:77", -70, 11);
+
+        assertEquals(oldRows(batch), encode(batch, 1));
+    }
+
+    @Test
+    public void specialRowIsIdenticalToTheOldFormat() {
+        ScanBatch batch = batch(1420113600000L, "^Free");
+
+        String encoded = encode(batch, 1);
+        assertEquals(oldRows(batch), encoded);
+        assertTrue(encoded, encoded.endsWith(",-350,,,,,'^Free'\n"));
+    }
+
+    @Test
+    public void version2AddsTheLocationError() {
+        ScanBatch batch = batch(1420113600000L, "");
+        batch.add("eduroam", "00:11:22:33:44:55", -61, 6);
+
+        assertEquals("2015-01-01 13:00:00.000,2,Nexus 5," + SESSION
+                + ",52.516275,13.377704,34.0,12.5,1.25,0,-350,7.5,eduroam,00:11:22:33:44:55,-61,6,''\n",
+                encode(batch, 2));
+    }
+
+    @Test
+    public void fieldsWithCommasAndQuotesAreQuoted() {
+        ScanBatch batch = batch(1420113600000L, "a,b");
+        batch.add("Joe's \"fast\", free wifi", "00:11:22:33:44:55", -61, 6);
+        batch.add("line\nbreak", "00:11:22:33:44:66", -62, 6);
+
+        CsvRecordEncoder encoder = new CsvRecordEncoder("Model, \"X\"", ZONE);
+        encoder.beginSession(SESSION, 2);
+        StringBuilder sb = new StringBuilder();
+        encoder.appendBatch(batch, sb);
+
+        String prefix = "2015-01-01 13:00:00.000,2,\"Model, \"\"X\"\"\"," + SESSION
+                + ",52.516275,13.377704,34.0,12.5,1.25,0,-350,7.5,";
+        assertEquals(prefix + "\"Joe's \"\"fast\"\", free wifi\",00:11:22:33:44:55,-61,6,\"'a,b'\"\n"
+                + prefix + "\"line\nbreak\",00:11:22:33:44:66,-62,6,\"'a,b'\"\n", sb.toString());
+    }
+
+    @Test
+    public void cachedMinuteRollsOver() {
+        CsvRecordEncoder encoder = new CsvRecordEncoder(MODEL, ZONE);
+        SimpleDateFormat dateFormat = oldDateFormat();
+        long[] times = {
+                1420113599999L,   // last millisecond of a minute, hour, day and year (local time)
+                1420113600000L,
+                1420113659999L,
+                1420113660000L,
+                1420113600001L,   // back in time
+                1427590799999L,   // 01:59:59.999 before the switch to summer time
+                1427590800000L,   // 03:00:00.000 after it
+                1445734799999L,   // 02:59:59.999 summer time, before the switch back
+                1445734800000L,   // 02:00:00.000 winter time
+        };
+        for (long time : times) {
+            StringBuilder sb = new StringBuilder();
+            encoder.appendTimestamp(time, sb);
+            assertEquals("at " + time, dateFormat.format(new Date(time)), sb.toString());
+        }
+    }
+
+    @Test
+    public void allocatesLessThanTheOldFormat() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        ScanBatch batch = batch(1420113600000L, "^Free");
+        for (int i = 0; i < 20; i++) {
+            batch.add("wifi " + i, String.format("00:11:22:33:44:%02x", i), -50 - i, 1 + i % 11);
+        }
+        CsvRecordEncoder encoder = new CsvRecordEncoder(MODEL, ZONE);
+        encoder.beginSession(SESSION, 1);
+        StringBuilder sb = new StringBuilder(8192);
+        int scans = 2000;
+        for (int i = 0; i < scans; i++) {   // warm-up
+            sb.setLength(0);
+            encoder.appendBatch(batch, sb);
+            oldRows(batch);
+        }
+
+        long start = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < scans; i++) {
+            batch.timeMillis += 1000;
+            sb.setLength(0);
+            encoder.appendBatch(batch, sb);
+        }
+        long encoderBytes = allocations.getThreadAllocatedBytes(thread) - start;
+
+        start = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < scans; i++) {
+            batch.timeMillis += 1000;
+            oldRows(batch);
+        }
+        long oldBytes = allocations.getThreadAllocatedBytes(thread) - start;
+
+        assertTrue("old " + oldBytes + ", encoder " + encoderBytes, encoderBytes * 10 < oldBytes);
+    }
+
+    private static ScanBatch batch(long time, String filter) {
+        ScanBatch batch = new ScanBatch();
+        batch.timeMillis    = time;
+        batch.latitude      = 52.516275;
+        batch.longitude     = 13.377704;
+        batch.altitude      = 34.0;
+        batch.accuracy      = 12.5f;
+        batch.speed         = 1.25f;
+        batch.locationSkew  = -350;
+        batch.locationError = 7.5f;
+        batch.filter        = filter;
+        return batch;
+    }
+
+    private static String encode(ScanBatch batch, int formatVersion) {
+        CsvRecordEncoder encoder = new CsvRecordEncoder(MODEL, ZONE);
+        encoder.beginSession(SESSION, formatVersion);
+        StringBuilder sb = new StringBuilder();
+        encoder.appendBatch(batch, sb);
+        return sb.toString();
+    }
+
+    private static SimpleDateFormat oldDateFormat() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        dateFormat.setTimeZone(ZONE);
+        return dateFormat;
+    }
+
+    /**
+     * The rows as WifiBroadcastReceiver.log() and logback's "%date{yyyy-MM-dd HH:mm:ss.SSS},%msg%n"
+     * wrote them (format version 1).
+     */
+    private static String oldRows(ScanBatch batch) {
+        String date = oldDateFormat().format(new Date(batch.timeMillis));
+        String rows = "";
+        for (int i = 0; i < Math.max(batch.size, 1); i++) {
+            String csvLine =     1
+                         + "," + MODEL
+                         + "," + SESSION
+                         + "," + batch.latitude
+                         + "," + batch.longitude
+                         + "," + batch.altitude
+                         + "," + batch.accuracy
+                         + "," + batch.speed
+                         + "," + batch.specialCode()
+                         + "," + batch.locationSkew;
+            if (batch.size > 0) {
+                csvLine += "," + batch.ssids[i]
+                         + "," + batch.bssids[i]
+                         + "," + batch.levels[i]
+                         + "," + batch.channels[i];
+            } else {
+                csvLine += ",,,,";
+            }
+            csvLine +=     "," + "'" + batch.filter + "'";
+            rows += date + "," + csvLine + "\n";
+        }
+        return rows;
+    }
+}
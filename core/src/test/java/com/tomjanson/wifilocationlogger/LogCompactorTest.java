@@ -0,0 +1,212 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * LogCompactor on a log directory whose upload state is set up by writing the cursors
+ * UploadEngine would have saved. Log files are random bytes, so that gzipping them doesn't
+ * change their size much, and the budgets below are far from the files' sizes.
+ */
+public class LogCompactorTest {
+    private static final String BASE_NAME = "wifilog";
+    private static final String LOCAL_NAME = "blelog";
+    private static final int FILE_SIZE = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private final Metrics metrics = new Metrics();
+    private final Properties cursors = new Properties();
+
+    @Before
+    public void setUp() {
+        directory = folder.getRoot();
+    }
+
+    @Test
+    public void compressesRolledFiles() throws IOException {
+        File rolled = logFile(BASE_NAME + ".2015-01-01.csv", 1);
+        File active = logFile(BASE_NAME + ".csv", 2);
+        File trace = logFile(BASE_NAME + ".trace.txt", 3);
+        byte[] content = read(rolled);
+
+        compactor(Long.MAX_VALUE).run();
+
+        assertFalse(rolled.exists());
+        File compressed = new File(directory, rolled.getName() + UploadEngine.GZIP_EXTENSION);
+        assertArrayEquals(content, readAll(UploadEngine.open(compressed)));
+        assertEquals(FILE_SIZE, active.length());
+        assertEquals(FILE_SIZE, trace.length());
+        assertEquals(1, metrics.counter("compacted_files").total());
+        assertEquals(0, metrics.counter("evicted_files").total());
+    }
+
+    @Test
+    public void evictsUploadedFilesOldestFirst() throws IOException {
+        File day1 = uploaded(logFile(BASE_NAME + ".2015-01-01.csv", 1));
+        File day2 = uploaded(logFile(BASE_NAME + ".2015-01-02.csv", 2));
+        File day3 = uploaded(logFile(BASE_NAME + ".2015-01-03.csv", 3));
+        File active = uploaded(logFile(BASE_NAME + ".csv", 4));
+        String key1 = key(day1);
+        String key3 = key(day3);
+        saveCursors();
+
+        // 4 files of about FILE_SIZE, two have to go
+        compactor(5 * FILE_SIZE / 2).run();
+
+        assertFalse(gzipped(day1).exists());
+        assertFalse(gzipped(day2).exists());
+        assertTrue(gzipped(day3).exists());
+        assertTrue(active.exists());
+        assertEquals(2, metrics.counter("evicted_files").total());
+        Properties saved = savedCursors();
+        assertFalse(saved.containsKey(key1));
+        assertTrue(saved.containsKey(key3));
+    }
+
+    @Test
+    public void neverEvictsDataNotYetUploaded() throws IOException {
+        File day1 = logFile(BASE_NAME + ".2015-01-01.csv", 1);
+        File day2 = logFile(BASE_NAME + ".2015-01-02.csv", 2);
+        cursors.setProperty(key(day2), "0f8fad5b-d9cb-469f-a165-70867728950e " + (FILE_SIZE - 1));
+        File day3 = uploaded(logFile(BASE_NAME + ".2015-01-03.csv", 3));
+        File active = logFile(BASE_NAME + ".csv", 4);
+        saveCursors();
+        byte[] content1 = read(day1);
+        byte[] content2 = read(day2);
+
+        compactor(FILE_SIZE).run();
+
+        // only the one file that's uploaded completely, staying above the budget
+        assertArrayEquals(content1, readAll(UploadEngine.open(gzipped(day1))));
+        assertArrayEquals(content2, readAll(UploadEngine.open(gzipped(day2))));
+        assertFalse(gzipped(day3).exists());
+        assertTrue(active.exists());
+        assertEquals(1, metrics.counter("evicted_files").total());
+    }
+
+    @Test
+    public void neverEvictsTheActiveFile() throws IOException {
+        File active = uploaded(logFile(BASE_NAME + ".csv", 1));
+        saveCursors();
+
+        compactor(0).run();
+
+        assertEquals(FILE_SIZE, active.length());
+        assertEquals(0, metrics.counter("evicted_files").total());
+    }
+
+    @Test
+    public void compactsLocalLogsWithoutUploading() throws IOException {
+        File wifi1 = logFile(BASE_NAME + ".2015-01-01.csv", 1);
+        File local1 = logFile(LOCAL_NAME + ".2015-01-01.csv", 2);
+        File local2 = logFile(LOCAL_NAME + ".2015-01-02.csv", 3);
+        File local3 = logFile(LOCAL_NAME + ".2015-01-03.csv", 4);
+        File localActive = logFile(LOCAL_NAME + ".csv", 5);
+        saveCursors();
+        byte[] content3 = read(local3);
+
+        // 5 files of about FILE_SIZE, the local logs count too
+        compactor(3 * FILE_SIZE + FILE_SIZE / 2, LOCAL_NAME).run();
+
+        // the older local files go, though nothing has been uploaded; the wifi log stays
+        assertTrue(gzipped(wifi1).exists());
+        assertFalse(gzipped(local1).exists());
+        assertFalse(gzipped(local2).exists());
+        assertArrayEquals(content3, readAll(UploadEngine.open(gzipped(local3))));
+        assertEquals(FILE_SIZE, localActive.length());
+        assertEquals(4, metrics.counter("compacted_files").total());
+        assertEquals(2, metrics.counter("evicted_files").total());
+    }
+
+    private LogCompactor compactor(long maxBytes, String... localBaseNames) {
+        UploadEngine engine = new UploadEngine(directory, BASE_NAME, "http://localhost:1/", "secret", 4096, 8192);
+        return new LogCompactor(directory, maxBytes, engine, metrics, localBaseNames);
+    }
+
+    private File logFile(String name, long seed) throws IOException {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(seed).nextBytes(content);
+        File file = new File(directory, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Marks a file as acknowledged completely by the server.
+     */
+    private File uploaded(File file) throws IOException {
+        cursors.setProperty(key(file), "0f8fad5b-d9cb-469f-a165-70867728950e " + file.length());
+        return file;
+    }
+
+    private String key(File file) throws IOException {
+        return new UploadEngine(directory, BASE_NAME, "", "", 4096, 8192).key(file, file.length());
+    }
+
+    private File gzipped(File file) {
+        return new File(directory, file.getName() + UploadEngine.GZIP_EXTENSION);
+    }
+
+    private void saveCursors() throws IOException {
+        OutputStream out = new FileOutputStream(new File(directory, UploadEngine.CURSOR_FILE));
+        try {
+            cursors.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    private Properties savedCursors() throws IOException {
+        Properties saved = new Properties();
+        InputStream in = new FileInputStream(new File(directory, UploadEngine.CURSOR_FILE));
+        try {
+            saved.load(in);
+        } finally {
+            in.close();
+        }
+        return saved;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        return readAll(new FileInputStream(file));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
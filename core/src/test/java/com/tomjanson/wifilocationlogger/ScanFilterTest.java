@@ -0,0 +1,140 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanFilterTest {
+    private static final String BSSID = "00:11:22:33:44:55";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void plainTextIsARegularExpression() {
+        ScanFilter filter = ScanFilter.compile("eduroam|Free.*");
+        assertTrue(filter.matches("eduroam", BSSID, -60, 6));
+        assertTrue(filter.matches("Free Wifi", BSSID, -60, 6));
+        assertFalse(filter.matches("Home", BSSID, -60, 6));
+    }
+
+    @Test
+    public void doubledSemicolonIsPartOfTheValue() {
+        ScanFilter filter = ScanFilter.compile("ssid:a;;b|c; minrssi:-70");
+        assertTrue(filter.matches("a;b", BSSID, -60, 6));
+        assertTrue(filter.matches("c", BSSID, -60, 6));
+        assertFalse(filter.matches("a", BSSID, -60, 6));
+        assertFalse(filter.matches("a;b", BSSID, -80, 6));
+
+        filter = ScanFilter.compile("prefix:x;;,y;!prefix:y;;");
+        assertTrue(filter.matches("x;1", BSSID, -60, 6));
+        assertTrue(filter.matches("y1", BSSID, -60, 6));
+        assertFalse(filter.matches("y;1", BSSID, -60, 6));
+        assertFalse(filter.matches("x1", BSSID, -60, 6));
+    }
+
+    @Test
+    public void nullSsidIsEmpty() {
+        assertTrue(ScanFilter.compile("").matches(null, BSSID, -60, -1));
+        assertTrue(ScanFilter.compile("ssid:").matches(null, BSSID, -60, -1));
+        assertTrue(ScanFilter.compile("!prefix:Tile").matches(null, BSSID, -60, -1));
+        assertFalse(ScanFilter.compile("prefix:Tile").matches(null, BSSID, -60, -1));
+        assertFalse(ScanFilter.compile("ssid:.+").matches(null, BSSID, -60, -1));
+    }
+
+    @Test
+    public void bssidsMatchInEitherCase() {
+        ScanFilter filter = ScanFilter.compile("bssid:00:11:22:33:44:55, AA-BB-CC-DD-EE-FF");
+        assertTrue(filter.matches("a", BSSID, -60, 6));
+        assertTrue(filter.matches("a", "00:11:22:33:44:55".toUpperCase(), -60, 6));
+        assertTrue(filter.matches("a", "aa:bb:cc:dd:ee:ff", -60, 6));
+        // as BluetoothDevice.getAddress() reports them
+        assertTrue(filter.matches("a", "AA:BB:CC:DD:EE:FF", -60, 6));
+        assertFalse(filter.matches("a", "00:11:22:33:44:56", -60, 6));
+        assertFalse(filter.matches("a", "not a bssid", -60, 6));
+        assertFalse(filter.matches("a", null, -60, 6));
+
+        filter = ScanFilter.compile("!bssid:AA:BB:CC:DD:EE:FF");
+        assertFalse(filter.matches("a", "aa:bb:cc:dd:ee:ff", -60, 6));
+        assertTrue(filter.matches("a", BSSID, -60, 6));
+        assertTrue(filter.matches("a", "not a bssid", -60, 6));
+    }
+
+    @Test
+    public void bssidsAreReadFromAFile() throws IOException {
+        File file = folder.newFile("bssids.txt");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write("# home\n00:11:22:33:44:55\n\n  AA:BB:CC:DD:EE:FF  \n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        ScanFilter filter = ScanFilter.compile("bssid:@" + file.getPath());
+        assertTrue(filter.matches("a", BSSID, -60, 6));
+        assertTrue(filter.matches("a", "aa:bb:cc:dd:ee:ff", -60, 6));
+        assertFalse(filter.matches("a", "00:11:22:33:44:56", -60, 6));
+
+        // a file that can't be read matches nothing
+        filter = ScanFilter.compile("bssid:@" + new File(folder.getRoot(), "missing.txt").getPath());
+        assertFalse(filter.matches("a", BSSID, -60, 6));
+    }
+
+    @Test
+    public void ouisMatchTheFirstThreeOctets() {
+        ScanFilter filter = ScanFilter.compile("oui:00:11:22, aa-bb-CC");
+        assertTrue(filter.matches("a", BSSID, -60, 6));
+        assertTrue(filter.matches("a", "AA:BB:CC:00:00:01", -60, 6));
+        assertFalse(filter.matches("a", "00:11:23:33:44:55", -60, 6));
+        assertFalse(filter.matches("a", "00:11:22", -60, 6));
+
+        filter = ScanFilter.compile("!oui:AA:BB:CC");
+        assertFalse(filter.matches("a", "aa:bb:cc:00:00:01", -60, 6));
+        assertTrue(filter.matches("a", BSSID, -60, 6));
+    }
+
+    @Test
+    public void bandsAndChannels() {
+        ScanFilter filter = ScanFilter.compile("band:2.4");
+        assertTrue(filter.usesChannel());
+        assertTrue(filter.matches("a", BSSID, -60, 1));
+        assertTrue(filter.matches("a", BSSID, -60, 14));
+        assertFalse(filter.matches("a", BSSID, -60, 36));
+
+        filter = ScanFilter.compile("band:5");
+        assertTrue(filter.matches("a", BSSID, -60, 36));
+        assertTrue(filter.matches("a", BSSID, -60, 165));
+        assertFalse(filter.matches("a", BSSID, -60, 6));
+
+        filter = ScanFilter.compile("channel:1,6, 11");
+        assertTrue(filter.matches("a", BSSID, -60, 6));
+        assertTrue(filter.matches("a", BSSID, -60, 11));
+        assertFalse(filter.matches("a", BSSID, -60, 7));
+        assertFalse(filter.matches("a", BSSID, -60, -1));
+        assertFalse(filter.matches("a", BSSID, -60, 1000));
+
+        filter = ScanFilter.compile("band:2.4; !channel:13,14");
+        assertTrue(filter.matches("a", BSSID, -60, 12));
+        assertFalse(filter.matches("a", BSSID, -60, 13));
+
+        assertFalse(ScanFilter.compile("ssid:a").usesChannel());
+    }
+
+    @Test
+    public void allCriteriaMustMatch() {
+        ScanFilter filter = ScanFilter.compile("oui:00:11:22; minrssi:-80; band:5; !prefix:x; !ssid:.*_nomap");
+        assertTrue(filter.matches("a", BSSID, -80, 36));
+        assertFalse(filter.matches("a", "01:11:22:33:44:55", -80, 36));
+        assertFalse(filter.matches("a", BSSID, -81, 36));
+        assertFalse(filter.matches("a", BSSID, -80, 6));
+        assertFalse(filter.matches("xa", BSSID, -80, 36));
+        assertFalse(filter.matches("a_nomap", BSSID, -80, 36));
+    }
+}
@@ -0,0 +1,107 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Reads the verbose "data" log into a RecordedLog: every location fix and every (unfiltered)
+ * scan the app received. LoggingService and WifiScanSource trace them as
+ *
+ *     Location: Location[fused 52.516275,13.377704 acc=12 et=... alt=34.0 vel=1.25 ...]
+ *     Wifis: [SSID: x, BSSID: 00:11:22:33:44:55, capabilities: [WPA2-PSK-CCMP][ESS], level: -61, frequency: 2437, ...]
+ *
+ * with the file appenders' pattern "%date{ISO8601} [%thread] %-5level %logger{36} - %msg"
+ * (see the app's LoggingConfig). The line's date is the event time, in local time. Location.toString()
+ * formats with the device's locale, so decimal commas are accepted too.
+ * Other lines, including those of other loggers, are skipped.
+ */
+final class DataLogParser {
+    private static final Pattern LINE =
+            Pattern.compile("^(\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d,\\d{3}) \\[.*?\\] \\w+\\s+data - (Wifis|Location): (.*)$");
+    private static final Pattern LOCATION =
+            Pattern.compile("^Location\\[\\S+ (-?\\d+[.,]\\d+),(-?\\d+[.,]\\d+)");
+    private static final Pattern ACCURACY = Pattern.compile(" acc=(\\d+(?:[.,]\\d+)?)");
+    private static final Pattern ALTITUDE = Pattern.compile(" alt=(-?\\d+(?:[.,]\\d+)?(?:E-?\\d+)?)");
+    private static final Pattern SPEED    = Pattern.compile(" vel=(-?\\d+(?:[.,]\\d+)?(?:E-?\\d+)?)");
+    private static final Pattern WIFI =
+            Pattern.compile("SSID: (.*?), BSSID: ([0-9a-fA-F:]{17}), capabilities: .*?, level: (-?\\d+), frequency: (\\d+)");
+
+    private final RecordedLog events;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS", Locale.US);
+    private long skippedLines;
+
+    DataLogParser(RecordedLog events, TimeZone timeZone) {
+        this.events = events;
+        dateFormat.setTimeZone(timeZone);
+        dateFormat.setLenient(false);
+    }
+
+    long skippedLines() {
+        return skippedLines;
+    }
+
+    /**
+     * Adds the fixes and scans of a data log file, as session {@code sessionId}.
+     */
+    void read(File file, String sessionId) throws IOException {
+        int session = events.session(sessionId);
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Matcher m = LINE.matcher(line);
+                if (!m.matches() || !parse(m.group(1), m.group(2), m.group(3), session)) {
+                    skippedLines++;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean parse(String date, String type, String message, int session) {
+        long time;
+        try {
+            time = dateFormat.parse(date).getTime();
+        } catch (ParseException e) {
+            return false;
+        }
+        if (type.equals("Wifis")) {
+            events.addScan(time, session);
+            Matcher wifi = WIFI.matcher(message);
+            while (wifi.find()) {
+                events.addWifi(wifi.group(1), wifi.group(2),
+                        Integer.parseInt(wifi.group(3)), Integer.parseInt(wifi.group(4)));
+            }
+            return true;
+        }
+        Matcher location = LOCATION.matcher(message);
+        if (!location.find()) {
+            return false;
+        }
+        events.addFix(time, session, number(location.group(1)), number(location.group(2)),
+                number(ALTITUDE, message), (float) number(ACCURACY, message), (float) number(SPEED, message));
+        return true;
+    }
+
+    /**
+     * The value of an optional field, 0 if it's missing.
+     */
+    private static double number(Pattern field, String message) {
+        Matcher m = field.matcher(message);
+        return m.find() ? number(m.group(1)) : 0;
+    }
+
+    private static double number(String s) {
+        return Double.parseDouble(s.replace(',', '.'));
+    }
+}
@@ -0,0 +1,324 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/*
+ * The input of a replay: location fixes and wifi scans, in memory, ordered by time.
+ *
+ * Events are read from
+ * - CSV scan logs (wifilog*.csv, see CsvLogParser) and compact logs (wifilog*.wlb): these only
+ *   contain the position estimated for each scan, not the fixes themselves. So a fix is
+ *   reconstructed per distinct fix time (scan time + locationSkew), with the position logged
+ *   for the first scan that used it. Scans are what was logged, i.e., already filtered.
+ * - the verbose "data" log (see DataLogParser), which has every fix and every unfiltered scan.
+ *
+ * Wifis are kept in parallel arrays, with their strings shared, so days of scans fit in memory.
+ * Frequencies are recomputed from logged channels; wifis the app couldn't have logged
+ * (frequencies without a channel) are dropped and counted.
+ */
+final class RecordedLog {
+    static final byte FIX = 0;
+    static final byte SCAN = 1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int size;
+    private long[]   times     = new long[INITIAL_CAPACITY];
+    private byte[]   kinds     = new byte[INITIAL_CAPACITY];
+    private int[]    sessions  = new int[INITIAL_CAPACITY];
+    private double[] latitudes = new double[INITIAL_CAPACITY];
+    private double[] longitudes = new double[INITIAL_CAPACITY];
+    private double[] altitudes = new double[INITIAL_CAPACITY];
+    private float[]  accuracies = new float[INITIAL_CAPACITY];
+    private float[]  speeds    = new float[INITIAL_CAPACITY];
+    private int[]    wifiEnds  = new int[INITIAL_CAPACITY];   // of scans; a scan's wifis start at the previous end
+
+    private int wifis;
+    private String[] ssids       = new String[INITIAL_CAPACITY];
+    private String[] bssids      = new String[INITIAL_CAPACITY];
+    private int[]    levels      = new int[INITIAL_CAPACITY];
+    private int[]    frequencies = new int[INITIAL_CAPACITY];
+
+    private final List<String> sessionIds = new ArrayList<String>();
+    private final Map<String, String> strings = new HashMap<String, String>();
+    private long droppedWifis;
+
+    private int[] order;   // by time, once sorted
+
+    int size() {
+        return size;
+    }
+
+    int scans() {
+        int scans = 0;
+        for (int i = 0; i < size; i++) {
+            scans += kinds[i];
+        }
+        return scans;
+    }
+
+    int wifis() {
+        return wifis;
+    }
+
+    long droppedWifis() {
+        return droppedWifis;
+    }
+
+    // accessors of the i-th event in time order (see sort())
+
+    long time(int i) {
+        return times[order[i]];
+    }
+
+    boolean isScan(int i) {
+        return kinds[order[i]] == SCAN;
+    }
+
+    String sessionId(int i) {
+        return sessionIds.get(sessions[order[i]]);
+    }
+
+    double latitude(int i) {
+        return latitudes[order[i]];
+    }
+
+    double longitude(int i) {
+        return longitudes[order[i]];
+    }
+
+    double altitude(int i) {
+        return altitudes[order[i]];
+    }
+
+    float accuracy(int i) {
+        return accuracies[order[i]];
+    }
+
+    float speed(int i) {
+        return speeds[order[i]];
+    }
+
+    /**
+     * Adds the wifis of the i-th event, a scan, to {@code scan}.
+     */
+    void addWifisTo(int i, ScanProcessor scan) {
+        int event = order[i];
+        int start = event == 0 ? 0 : wifiEnds[event - 1];
+        for (int w = start; w < wifiEnds[event]; w++) {
+            scan.add(ssids[w], bssids[w], levels[w], frequencies[w]);
+        }
+    }
+
+    /**
+     * Orders the events by time; events of the same time stay in the order they were read.
+     */
+    void sort() {
+        Integer[] indexes = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ta = times[a];
+                long tb = times[b];
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = indexes[i];
+        }
+    }
+
+    int session(String sessionId) {
+        int session = sessionIds.indexOf(sessionId);
+        if (session < 0) {
+            session = sessionIds.size();
+            sessionIds.add(sessionId);
+        }
+        return session;
+    }
+
+    void addFix(long time, int session, double latitude, double longitude, double altitude,
+                float accuracy, float speed) {
+        add(time, FIX, session);
+        latitudes[size - 1]  = latitude;
+        longitudes[size - 1] = longitude;
+        altitudes[size - 1]  = altitude;
+        accuracies[size - 1] = accuracy;
+        speeds[size - 1]     = speed;
+    }
+
+    /**
+     * Adds a scan without wifis; the following addWifi() calls add to it.
+     */
+    void addScan(long time, int session) {
+        add(time, SCAN, session);
+    }
+
+    void addWifi(String ssid, String bssid, int level, int frequency) {
+        if (frequency < 2412 || (frequency > 2484 && frequency < 5170) || frequency > 5825) {
+            droppedWifis++;
+            return;
+        }
+        if (wifis == ssids.length) {
+            int capacity = wifis * 2;
+            ssids       = Arrays.copyOf(ssids, capacity);
+            bssids      = Arrays.copyOf(bssids, capacity);
+            levels      = Arrays.copyOf(levels, capacity);
+            frequencies = Arrays.copyOf(frequencies, capacity);
+        }
+        ssids[wifis]       = shared(ssid);
+        bssids[wifis]      = shared(bssid);
+        levels[wifis]      = level;
+        frequencies[wifis] = frequency;
+        wifis++;
+        wifiEnds[size - 1] = wifis;
+    }
+
+    private void add(long time, byte kind, int session) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            times      = Arrays.copyOf(times, capacity);
+            kinds      = Arrays.copyOf(kinds, capacity);
+            sessions   = Arrays.copyOf(sessions, capacity);
+            latitudes  = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            altitudes  = Arrays.copyOf(altitudes, capacity);
+            accuracies = Arrays.copyOf(accuracies, capacity);
+            speeds     = Arrays.copyOf(speeds, capacity);
+            wifiEnds   = Arrays.copyOf(wifiEnds, capacity);
+        }
+        times[size]    = time;
+        kinds[size]    = kind;
+        sessions[size] = session;
+        wifiEnds[size] = wifis;
+        size++;
+        order = null;
+    }
+
+    private String shared(String s) {
+        if (s == null) {
+            return null;
+        }
+        String shared = strings.get(s);
+        if (shared == null) {
+            strings.put(s, s);
+            shared = s;
+        }
+        return shared;
+    }
+
+    /**
+     * The frequency of a channel as logged (inverse of ScanProcessor.convertFrequencyToChannel()).
+     */
+    static int frequencyOf(int channel) {
+        return channel < 34 ? 2407 + 5 * channel : 5000 + 5 * channel;
+    }
+
+    /**
+     * Reads a CSV scan log, whose timestamps are local time in {@code timeZone}.
+     */
+    void readCsv(File file, final TimeZone timeZone) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large");
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CsvLogParser parser = new CsvLogParser();
+            parser.parse(buf, new CsvLogParser.Handler() {
+                private byte[] sessionBytes;
+                private int session;
+                private long localTime = Long.MIN_VALUE;
+                private long fixTime = Long.MIN_VALUE;
+
+                @Override
+                public void onRow(CsvLogParser.Row row) {
+                    if (sessionBytes == null || !row.equals(row.sessionStart, row.sessionEnd, sessionBytes)) {
+                        sessionBytes = row.bytes(row.sessionStart, row.sessionEnd);
+                        session = session(row.sessionId());
+                        localTime = Long.MIN_VALUE;
+                    }
+                    if (row.localTime != localTime) {
+                        // first row of a scan
+                        localTime = row.localTime;
+                        long time = toUtc(localTime, timeZone);
+                        if (time + row.locationSkew != fixTime) {
+                            fixTime = time + row.locationSkew;
+                            addFix(fixTime, session, row.latitude, row.longitude, row.altitude,
+                                    row.accuracy, row.speed);
+                        }
+                        addScan(time, session);
+                    }
+                    if (!row.isSpecial()) {
+                        addWifi(row.ssid(), Bssids.format(row.bssid), row.level, frequencyOf(row.channel));
+                    }
+                }
+            });
+            if (parser.malformedRows() > 0) {
+                System.err.println(file + ": skipped " + parser.malformedRows() + " malformed rows");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a compact log (see CompactLogFormat).
+     */
+    void readCompact(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try {
+            CompactLogDecoder decoder = new CompactLogDecoder(in);
+            ScanBatch batch = new ScanBatch();
+            int segment = -1;
+            int session = 0;
+            long fixTime = Long.MIN_VALUE;
+            while (decoder.next(batch)) {
+                if (decoder.segment() != segment) {
+                    segment = decoder.segment();
+                    session = session(decoder.sessionId());
+                }
+                if (batch.timeMillis + batch.locationSkew != fixTime) {
+                    fixTime = batch.timeMillis + batch.locationSkew;
+                    addFix(fixTime, session, batch.latitude, batch.longitude, batch.altitude,
+                            batch.accuracy, batch.speed);
+                }
+                addScan(batch.timeMillis, session);
+                for (int i = 0; i < batch.size; i++) {
+                    addWifi(batch.ssids[i], batch.bssids[i], batch.levels[i], frequencyOf(batch.channels[i]));
+                }
+                batch.clear();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Converts "local millis" (a local date and time, counted as if it were UTC) to epoch millis.
+     * Local times repeated when the clocks go back are taken as the earlier one.
+     */
+    static long toUtc(long localTime, TimeZone timeZone) {
+        long guess = localTime - timeZone.getOffset(localTime - timeZone.getRawOffset());
+        return localTime - timeZone.getOffset(guess);
+    }
+}
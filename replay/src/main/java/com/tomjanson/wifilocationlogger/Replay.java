@@ -0,0 +1,267 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+/*
+ * Replays recorded fixes and scans through the app's logging pipeline (ScanPipeline,
+ * ScanBatchWriter, CoverageAggregator) on a plain JVM, e.g., to check that a change to the
+ * pipeline doesn't change its output, or to benchmark it with real data:
+ *
+ *     java -jar replay.jar [options] FILE|DIRECTORY...
+ *
+ *     --out DIR            directory the logs are written to (default: replay)
+ *     --speed N            N times real time, 0 for as fast as possible (default: 0)
+ *     --format csv|wlb     log format written (default: csv)
+ *     --delta              write delta records (compact format only)
+ *     --filter TEXT        scan filter (default: none)
+ *     --flush POLICY       every-scan, interval or on-pause (default: every-scan)
+ *     --wait-for-fix       hold back scans until a later fix arrives ...
+ *     --max-wait MILLIS    ... or for at most this long (default: 5000)
+ *     --coverage METERS    also aggregate coverage with this cell size (default: off)
+ *     --timezone ID        time zone of the logs' local timestamps, and of the output (default: system)
+ *     --model NAME         device model written to the logs (default: replay)
+ *
+ * Inputs are CSV and compact scan logs and the verbose "data" log (see RecordedLog and
+ * DataLogParser), by extension: .csv, .wlb and .txt. Directories are searched for wifilog*.
+ * All events are loaded before the replay starts, so reading the input isn't measured.
+ *
+ * Time in the pipeline is the recorded time, whatever the speed, so the output only depends
+ * on the input and the options (the per-file CRCs printed at the end make that easy to check).
+ * Note that files of recorded days aren't rolled over like on the device, since that depends
+ * on the active file's modification time.
+ */
+public final class Replay {
+    private static final String LOG_FILE = "wifilog";
+    private static final String COVERAGE_FILE = "coverage";
+    private static final int LOCATION_HISTORY_SIZE = 32;
+    private static final int COVERAGE_MAX_ENTRIES = 150000;
+    private static final float COVERAGE_MAX_ERROR_METERS = 50;
+    private static final long FLUSH_INTERVAL_MILLIS = 10000;
+
+    private File outDirectory = new File("replay");
+    private double speed = 0;
+    private boolean compactFormat = false;
+    private boolean deltaRecords = false;
+    private String filter = "";
+    private ScanBatchWriter.FlushPolicy flushPolicy = ScanBatchWriter.FlushPolicy.EVERY_SCAN;
+    private boolean waitForBracketingFix = false;
+    private long maxWaitMillis = 5000;
+    private double coverageCellSizeMeters = 0;
+    private TimeZone timeZone = TimeZone.getDefault();
+    private String model = "replay";
+    private final List<File> files = new ArrayList<File>();
+
+    public static void main(String[] args) {
+        Replay replay = new Replay();
+        try {
+            replay.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Replay [--out DIR] [--speed N] [--format csv|wlb] [--delta] [--filter TEXT] "
+                    + "[--flush every-scan|interval|on-pause] [--wait-for-fix] [--max-wait MILLIS] "
+                    + "[--coverage METERS] [--timezone ID] [--model NAME] FILE|DIRECTORY...");
+            System.exit(2);
+        }
+        try {
+            replay.run();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--delta")) {
+                deltaRecords = true;
+            } else if (arg.equals("--wait-for-fix")) {
+                waitForBracketingFix = true;
+            } else if (arg.startsWith("--")) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                try {
+                    if (arg.equals("--out")) {
+                        outDirectory = new File(value);
+                    } else if (arg.equals("--speed")) {
+                        speed = Double.parseDouble(value);
+                    } else if (arg.equals("--format")) {
+                        if (!value.equals("csv") && !value.equals(CompactLogFormat.FILE_EXTENSION)) {
+                            throw new IllegalArgumentException("Unknown format " + value);
+                        }
+                        compactFormat = !value.equals("csv");
+                    } else if (arg.equals("--filter")) {
+                        filter = value;
+                    } else if (arg.equals("--flush")) {
+                        flushPolicy = ScanBatchWriter.FlushPolicy.valueOf(value.toUpperCase(Locale.US).replace('-', '_'));
+                    } else if (arg.equals("--max-wait")) {
+                        maxWaitMillis = Long.parseLong(value);
+                    } else if (arg.equals("--coverage")) {
+                        coverageCellSizeMeters = Double.parseDouble(value);
+                    } else if (arg.equals("--timezone")) {
+                        timeZone = TimeZone.getTimeZone(value);
+                    } else if (arg.equals("--model")) {
+                        model = value;
+                    } else {
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value of " + arg + ": " + value);
+                }
+            } else {
+                addFiles(new File(arg));
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No log files given");
+        }
+    }
+
+    private void addFiles(File file) {
+        if (!file.isDirectory()) {
+            files.add(file);
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory() || child.getName().startsWith(LOG_FILE)) {
+                addFiles(child);
+            }
+        }
+    }
+
+    private RecordedLog load() throws IOException {
+        RecordedLog events = new RecordedLog();
+        DataLogParser dataLogParser = new DataLogParser(events, timeZone);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".csv")) {
+                events.readCsv(file, timeZone);
+            } else if (name.endsWith("." + CompactLogFormat.FILE_EXTENSION)) {
+                events.readCompact(file);
+            } else if (name.endsWith(".txt")) {
+                dataLogParser.read(file, name);
+            } else {
+                System.err.println("Skipping " + file);
+            }
+        }
+        events.sort();
+        System.out.printf(Locale.US, "%d files: %d fixes, %d scans with %d wifis (%d dropped), %d data log lines skipped%n",
+                files.size(), events.size() - events.scans(), events.scans(), events.wifis(),
+                events.droppedWifis(), dataLogParser.skippedLines());
+        return events;
+    }
+
+    private void run() throws IOException, InterruptedException {
+        RecordedLog events = load();
+        if (events.size() == 0) {
+            return;
+        }
+        // the encoders and the writer's rollover work in the default time zone, as on the device
+        TimeZone.setDefault(timeZone);
+
+        Metrics metrics = new Metrics();
+        ScanPipeline pipeline = new ScanPipeline(new LocationHistory(LOCATION_HISTORY_SIZE),
+                waitForBracketingFix, maxWaitMillis, metrics);
+        ScanEncoder encoder = !compactFormat ? new CsvRecordEncoder(model)
+                : deltaRecords ? new CompactLogEncoder(model, 2, 60)
+                : new CompactLogEncoder(model);
+        ScanBatchWriter writer = new ScanBatchWriter(outDirectory, LOG_FILE, encoder,
+                flushPolicy, FLUSH_INTERVAL_MILLIS, metrics);
+        pipeline.addSink(writer);
+        final CoverageAggregator coverage = coverageCellSizeMeters > 0
+                ? new CoverageAggregator(coverageCellSizeMeters, COVERAGE_MAX_ENTRIES) : null;
+        if (coverage != null) {
+            pipeline.addSink(new ScanPipeline.Sink() {
+                @Override
+                public void write(ScanBatch batch) {
+                    if (batch.accuracy + batch.locationError <= COVERAGE_MAX_ERROR_METERS) {
+                        coverage.add(batch);
+                    }
+                }
+            });
+        }
+
+        long firstTime = events.time(0);
+        long startNanos = System.nanoTime();
+        String sessionId = null;
+        for (int i = 0; i < events.size(); i++) {
+            long time = events.time(i);
+            if (speed > 0) {
+                long dueNanos = startNanos + (long) ((time - firstTime) * 1e6 / speed);
+                long wait = dueNanos - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            pipeline.advanceTo(time);
+            if (!events.sessionId(i).equals(sessionId)) {
+                sessionId = events.sessionId(i);
+                writer.beginSession(sessionId);
+            }
+            if (events.isScan(i)) {
+                ScanProcessor scan = pipeline.scan();
+                scan.clear();
+                events.addWifisTo(i, scan);
+                pipeline.onScan(time, filter, true);
+            } else {
+                pipeline.onLocation(time, events.latitude(i), events.longitude(i), events.altitude(i),
+                        events.accuracy(i), events.speed(i));
+            }
+        }
+        pipeline.flushPending();
+        writer.close();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        if (coverage != null) {
+            coverage.writeCheckpoint(new File(outDirectory, COVERAGE_FILE + "." + CoverageAggregator.FILE_EXTENSION));
+        }
+
+        double recordedSeconds = (events.time(events.size() - 1) - firstTime) / 1e3;
+        System.out.printf(Locale.US, "Replayed %.0f s of recordings in %.2f s (%.1fx): %.0f events/s, %.0f scans/s%n",
+                recordedSeconds, seconds, recordedSeconds / seconds, events.size() / seconds, events.scans() / seconds);
+        StringBuilder summary = new StringBuilder(1024);
+        metrics.appendSummary(summary);
+        System.out.print(summary);
+        printChecksums();
+    }
+
+    private void printChecksums() throws IOException {
+        File[] outputs = outDirectory.listFiles();
+        if (outputs == null) {
+            return;
+        }
+        Arrays.sort(outputs);
+        byte[] buf = new byte[64 * 1024];
+        for (File output : outputs) {
+            CRC32 crc = new CRC32();
+            InputStream in = new BufferedInputStream(new FileInputStream(output));
+            try {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    crc.update(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            System.out.printf(Locale.US, "%08x %10d %s%n", crc.getValue(), output.length(), output.getName());
+        }
+    }
+}
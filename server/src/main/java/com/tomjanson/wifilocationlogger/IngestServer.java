@@ -0,0 +1,282 @@
+package com.tomjanson.wifilocationlogger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Reference server for the app's uploads, storing the uploaded rows per session and day:
+ *
+ *     java -jar server.jar [options]
+ *
+ *     --port N             port to listen on (default: 8080)
+ *     --out DIR            directory the data is stored in (default: ingest)
+ *     --workers N          requests handled concurrently (default: 2 per CPU)
+ *     --secret TEXT        expected upload secret (default: the app's)
+ *     --open-sessions N    sessions kept open (default: 1024)
+ *
+ * Any POST path accepts multipart/form-data with a part per file (or chunk), named like
+ * UploadEngine names them, $secret.$uploadId.$offset.gz (gzipped, see UploadStream), or like
+ * the old Uploader did, $secret.$uuid (a whole, uncompressed file). The request body is parsed
+ * as it's received, one block at a time, whatever the size of its parts. The response is 200
+ * once all rows are stored (written to the OS), 400 for a malformed request and 403 for a part
+ * with the wrong secret; UploadEngine only advances its cursors after a 200.
+ *
+ * Rows go to $out/sessions/$sessionId/$yyyy-MM-dd.csv (see SessionStore), deduplicated by
+ * session and scan timestamp, so resent files and chunks are harmless. Compact logs are stored
+ * as uploaded, in $out/raw. GET /stats shows the counters.
+ */
+public final class IngestServer {
+    private static final Pattern CHUNK_NAME = Pattern.compile("([^.]+)\\.(\\d{12})\\.gz");
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private int port = 8080;
+    private File outDirectory = new File("ingest");
+    private int workers = 2 * Runtime.getRuntime().availableProcessors();
+    private String secret = "sLlx6PaL";   // MainActivity.UPLOAD_SECRET
+    private int maxOpenSessions = 1024;
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter requests = metrics.counter("requests");
+    private final Metrics.Counter parts = metrics.counter("parts");
+    private final Metrics.Counter rejectedParts = metrics.counter("rejected_parts");
+    private final Metrics.Counter failedRequests = metrics.counter("failed_requests");
+    private final Metrics.Histogram requestMicros = metrics.histogram("request_us");
+    private final UploadStream.Counters counters = new UploadStream.Counters();
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private File uploadDirectory;
+    private File rawDirectory;
+    private SessionStore store;
+    // streams of the uploads in progress, with the number of requests using them
+    private final Map<String, UploadStream> streams = new HashMap<String, UploadStream>();
+
+    public static void main(String[] args) {
+        final IngestServer server = new IngestServer();
+        try {
+            server.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: IngestServer [--port N] [--out DIR] [--workers N] [--secret TEXT] "
+                    + "[--open-sessions N]");
+            System.exit(2);
+        }
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.stop();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        });
+        System.out.println("Listening on port " + server.port() + ", storing to " + server.outDirectory);
+    }
+
+    /**
+     * Takes the command line options (e.g., {@code --port 0} for any free port, see port()).
+     */
+    void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException(arg.startsWith("--") ? "Missing value of " + arg : "Unknown argument " + arg);
+            }
+            String value = args[++i];
+            try {
+                if (arg.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if (arg.equals("--out")) {
+                    outDirectory = new File(value);
+                } else if (arg.equals("--workers")) {
+                    workers = Integer.parseInt(value);
+                } else if (arg.equals("--secret")) {
+                    secret = value;
+                } else if (arg.equals("--open-sessions")) {
+                    maxOpenSessions = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value of " + arg + ": " + value);
+            }
+        }
+    }
+
+    /**
+     * Starts listening; requests are handled on the worker threads.
+     */
+    void start() throws IOException {
+        uploadDirectory = new File(outDirectory, "uploads");
+        rawDirectory = new File(outDirectory, "raw");
+        File sessionDirectory = new File(outDirectory, "sessions");
+        for (File directory : new File[] { uploadDirectory, rawDirectory, sessionDirectory }) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+        }
+        store = new SessionStore(sessionDirectory, maxOpenSessions, metrics);
+        counters.bytes          = metrics.counter("bytes");
+        counters.duplicateBytes = metrics.counter("duplicate_bytes");
+        counters.gaps           = metrics.counter("gaps");
+        counters.rows           = metrics.counter("rows");
+        counters.malformedRows  = metrics.counter("malformed_rows");
+        counters.rawBytes       = metrics.counter("raw_bytes");
+
+        executor = Executors.newFixedThreadPool(workers);
+        server = HttpServer.create(new InetSocketAddress(port), 256);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (exchange.getRequestMethod().equals("GET") && exchange.getRequestURI().getPath().equals("/stats")) {
+                        StringBuilder stats = new StringBuilder();
+                        metrics.appendSummary(stats);
+                        respond(exchange, 200, stats.toString());
+                    } else if (exchange.getRequestMethod().equals("POST")) {
+                        long start = System.nanoTime();
+                        requests.increment();
+                        upload(exchange);
+                        requestMicros.record((System.nanoTime() - start) / 1000);
+                    } else {
+                        respond(exchange, 405, "Method not allowed\n");
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * The port listened on.
+     */
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops listening, waiting up to a second for requests in progress, and closes the sessions.
+     */
+    void stop() throws IOException {
+        server.stop(1);
+        executor.shutdown();
+        store.close();
+    }
+
+    private void upload(HttpExchange exchange) throws IOException {
+        String boundary = MultipartReader.boundary(exchange.getRequestHeaders().getFirst("Content-Type"));
+        if (boundary == null) {
+            respond(exchange, 400, "Expected multipart/form-data\n");
+            return;
+        }
+        MultipartReader reader = new MultipartReader(exchange.getRequestBody(), boundary, READ_BUFFER_SIZE);
+        Set<SessionStore.Session> touched = new LinkedHashSet<SessionStore.Session>();
+        Set<UploadStream> used = new LinkedHashSet<UploadStream>();
+        try {
+            while (reader.next()) {
+                String name = reader.name();
+                if (name == null || reader.filename() == null) {
+                    continue;   // not a file
+                }
+                parts.increment();
+                int dot = name.indexOf('.');
+                if (dot < 0 || !name.substring(0, dot).equals(secret)) {
+                    rejectedParts.increment();
+                    respond(exchange, 403, "Wrong secret\n");
+                    return;
+                }
+                String rest = name.substring(dot + 1);
+                Matcher chunk = CHUNK_NAME.matcher(rest);
+                if (chunk.matches()) {
+                    UploadStream stream = acquire(chunk.group(1));
+                    used.add(stream);
+                    synchronized (stream) {
+                        stream.write(new GZIPInputStream(reader.body(), READ_BUFFER_SIZE),
+                                Long.parseLong(chunk.group(2)), false, touched);
+                    }
+                } else {
+                    // a whole file, parsed on its own
+                    UploadStream stream = new UploadStream(rest, null, rawDirectory, store, counters);
+                    stream.write(reader.body(), 0, true, touched);
+                }
+            }
+            for (SessionStore.Session session : touched) {
+                synchronized (session) {
+                    if (!session.isClosed()) {
+                        session.flush();
+                    }
+                }
+            }
+            for (UploadStream stream : used) {
+                synchronized (stream) {
+                    stream.save();
+                }
+            }
+        } catch (IOException e) {
+            // a malformed body or gzip stream, or a storage failure: the client will retry
+            failedRequests.increment();
+            respond(exchange, 400, e.getMessage() + "\n");
+            return;
+        } finally {
+            for (UploadStream stream : used) {
+                release(stream);
+            }
+        }
+        respond(exchange, 200, "OK\n");
+    }
+
+    private UploadStream acquire(String uploadId) {
+        synchronized (streams) {
+            UploadStream stream = streams.get(uploadId);
+            if (stream == null) {
+                stream = new UploadStream(uploadId, uploadDirectory, rawDirectory, store, counters);
+                streams.put(uploadId, stream);
+            }
+            stream.users++;
+            return stream;
+        }
+    }
+
+    private void release(UploadStream stream) {
+        synchronized (streams) {
+            if (--stream.users == 0) {
+                streams.remove(stream.id);
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
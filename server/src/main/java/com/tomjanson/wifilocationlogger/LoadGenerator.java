@@ -0,0 +1,303 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Simulates many devices uploading their logs to IngestServer at the same time, to check that
+ * it stores every scan exactly once, and to measure its throughput:
+ *
+ *     java -cp server.jar com.tomjanson.wifilocationlogger.LoadGenerator [options]
+ *
+ *     --url URL            upload URL (default: http://localhost:8080/)
+ *     --devices N          devices uploading concurrently (default: 200)
+ *     --scans N            scans logged per device (default: 300)
+ *     --wifis N            wifis per scan (default: 8)
+ *     --duplicates P       probability of a request being sent twice, as if its response was
+ *                          lost, and of a device uploading its file again (default: 0.05)
+ *     --chunk BYTES        chunk size (default: MainActivity.UPLOAD_CHUNK_SIZE)
+ *     --batch BYTES        request size, uncompressed (default: MainActivity.UPLOAD_BATCH_SIZE)
+ *     --seed N             random seed (default: 1)
+ *
+ * Every device logs a CSV file of its own session (with CsvRecordEncoder) and uploads it like
+ * UploadEngine does; a file uploaded again goes as a whole, like the old Uploader sent it. At the
+ * end, the rows the server stored (from GET /stats) are compared with the rows logged.
+ */
+public final class LoadGenerator {
+    private static final String BOUNDARY = "----WifiLocationLoggerUploadBoundary";
+
+    private String url = "http://localhost:8080/";
+    private int devices = 200;
+    private int scans = 300;
+    private int wifis = 8;
+    private double duplicates = 0.05;
+    private int chunkSize = 256 * 1024;
+    private int batchSize = 1024 * 1024;
+    private long seed = 1;
+    private String secret = "sLlx6PaL";   // MainActivity.UPLOAD_SECRET
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Histogram requestMillis = metrics.histogram("request_ms");
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGenerator [--url URL] [--devices N] [--scans N] [--wifis N] "
+                    + "[--duplicates P] [--chunk BYTES] [--batch BYTES] [--seed N]");
+            System.exit(2);
+        }
+        try {
+            System.exit(generator.run() ? 0 : 1);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException(arg.startsWith("--") ? "Missing value of " + arg : "Unknown argument " + arg);
+            }
+            String value = args[++i];
+            try {
+                if (arg.equals("--url")) {
+                    url = value;
+                } else if (arg.equals("--devices")) {
+                    devices = Integer.parseInt(value);
+                } else if (arg.equals("--scans")) {
+                    scans = Integer.parseInt(value);
+                } else if (arg.equals("--wifis")) {
+                    wifis = Integer.parseInt(value);
+                } else if (arg.equals("--duplicates")) {
+                    duplicates = Double.parseDouble(value);
+                } else if (arg.equals("--chunk")) {
+                    chunkSize = Integer.parseInt(value);
+                } else if (arg.equals("--batch")) {
+                    batchSize = Integer.parseInt(value);
+                } else if (arg.equals("--seed")) {
+                    seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value of " + arg + ": " + value);
+            }
+        }
+    }
+
+    private boolean run() throws IOException, InterruptedException {
+        long storedBefore = storedRows();
+        final AtomicLong rowsLogged = new AtomicLong();
+        final AtomicLong bytesLogged = new AtomicLong();
+        final CountDownLatch ready = new CountDownLatch(devices);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(devices);
+        for (int i = 0; i < devices; i++) {
+            final int device = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed * 1000003 + device);
+                    byte[] log = log(device, random);
+                    rowsLogged.addAndGet((long) scans * wifis);
+                    bytesLogged.addAndGet(log.length);
+                    ready.countDown();
+                    try {
+                        startSignal.await();
+                        upload(log, random);
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                        System.err.println("Device " + device + ": " + e.getMessage());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        ready.await();
+        long start = System.nanoTime();
+        startSignal.countDown();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long stored = storedRows() - storedBefore;
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%d devices, %d requests (%d failed) in %.1f s: %.0f requests/s, "
+                        + "%.0f rows/s, %.1f MB/s logged, %.1f MB/s sent%n",
+                devices, requests.get(), failures.get(), seconds, requests.get() / seconds,
+                rowsLogged.get() / seconds, bytesLogged.get() / seconds / 1e6, bytesSent.get() / seconds / 1e6));
+        metrics.appendSummary(report);
+        report.append(String.format(Locale.US, "rows logged: %d, stored: %d%n", rowsLogged.get(), stored));
+        System.out.print(report);
+        return failures.get() == 0 && stored == rowsLogged.get();
+    }
+
+    /**
+     * A device's log: a session of scans at a few walked places, every 2 s.
+     */
+    private byte[] log(int device, Random random) {
+        CsvRecordEncoder encoder = new CsvRecordEncoder("load-" + device, TimeZone.getTimeZone("UTC"));
+        encoder.beginSession(UUID.randomUUID().toString());
+        ScanBatch batch = new ScanBatch();
+        batch.filter = "";
+        StringBuilder rows = new StringBuilder(scans * wifis * 160);
+        long time = 1420070400000L + random.nextInt(86400) * 1000L;
+        double latitude = 52.5 + random.nextDouble() * 0.1;
+        double longitude = 13.4 + random.nextDouble() * 0.1;
+        for (int i = 0; i < scans; i++) {
+            batch.clear();
+            batch.timeMillis = time + i * 2000L;
+            latitude += (random.nextDouble() - 0.5) * 1e-4;
+            longitude += (random.nextDouble() - 0.5) * 1e-4;
+            batch.latitude = latitude;
+            batch.longitude = longitude;
+            batch.altitude = 40 + random.nextInt(20);
+            batch.accuracy = 5 + random.nextInt(20);
+            batch.speed = random.nextFloat() * 2;
+            batch.locationSkew = random.nextInt(2000) - 1000;
+            batch.locationError = random.nextFloat() * 10;
+            for (int k = 0; k < wifis; k++) {
+                int ap = random.nextInt(4096);
+                batch.add(random.nextInt(20) == 0 ? "Cafe, \"free\" wifi" : "ap-" + ap,
+                        String.format(Locale.US, "02:00:%02x:%02x:%02x:%02x", device >> 8 & 0xff, device & 0xff, ap >> 8, ap & 0xff),
+                        -40 - random.nextInt(55), 2412 + 5 * random.nextInt(13));
+            }
+            encoder.appendBatch(batch, rows);
+        }
+        try {
+            return rows.toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Uploads like UploadEngine, then (sometimes) the whole file again, like Uploader.
+     */
+    private void upload(byte[] log, Random random) throws IOException {
+        String uploadId = UUID.randomUUID().toString();
+        int offset = 0;
+        while (offset < log.length) {
+            List<String> names = new ArrayList<String>();
+            List<byte[]> bodies = new ArrayList<byte[]>();
+            int batchEnd = Math.min(log.length, offset + batchSize);
+            for (int chunk = offset; chunk < batchEnd; chunk += chunkSize) {
+                int length = Math.min(chunkSize, batchEnd - chunk);
+                names.add(secret + "." + uploadId + "." + String.format(Locale.US, "%012d", chunk) + ".gz");
+                bodies.add(gzip(log, chunk, length));
+            }
+            post(names, bodies, "application/gzip");
+            if (random.nextDouble() < duplicates) {
+                post(names, bodies, "application/gzip");
+            }
+            offset = batchEnd;
+        }
+        if (random.nextDouble() < duplicates) {
+            List<String> names = new ArrayList<String>();
+            List<byte[]> bodies = new ArrayList<byte[]>();
+            names.add(secret + "." + UUID.randomUUID());
+            bodies.add(log);
+            post(names, bodies, "application/octet-stream");
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes, int offset, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(out, 8192);
+        gzip.write(bytes, offset, length);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private void post(List<String> names, List<byte[]> bodies, String contentType) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                body.write(((i == 0 ? "" : "\r\n") + "--" + BOUNDARY + "\r\n"
+                        + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + name + "\"\r\n"
+                        + "Content-Type: " + contentType + "\r\n\r\n").getBytes("UTF-8"));
+                body.write(bodies.get(i));
+            }
+            body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+            connection.setFixedLengthStreamingMode(body.size());
+            OutputStream out = connection.getOutputStream();
+            body.writeTo(out);
+            out.close();
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("HTTP " + status);
+            }
+            drain(connection.getInputStream());
+            bytesSent.addAndGet(body.size());
+        } finally {
+            connection.disconnect();
+        }
+        requests.incrementAndGet();
+        requestMillis.record((System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * stored_rows of the server's /stats.
+     */
+    private long storedRows() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(new URL(url), "/stats").openConnection();
+        try {
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream stats = new ByteArrayOutputStream();
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) > 0) {
+                stats.write(b, 0, n);
+            }
+            for (String line : stats.toString("UTF-8").split("\n")) {
+                if (line.startsWith("stored_rows: ")) {
+                    return Long.parseLong(line.substring("stored_rows: ".length()));
+                }
+            }
+            return 0;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] b = new byte[1024];
+        while (in.read(b) > 0) {
+            // discard
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,265 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/*
+ * Streaming reader of a multipart/form-data request body (RFC 2046, RFC 7578), one part at a time:
+ *
+ *     while (reader.next()) {
+ *         ... reader.name(), reader.filename(), reader.body() ...
+ *     }
+ *
+ * Only one buffer (of at least the delimiter's length) is used, whatever the size of the parts,
+ * so parts are never held in memory as a whole. A part's body ends at the next delimiter,
+ * CRLF "--" boundary; whatever of it wasn't read is skipped by next().
+ */
+final class MultipartReader {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int MAX_HEADER_LINE_LENGTH = 8 * 1024;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    private boolean inBody;     // between the headers of a part and the next delimiter
+    private boolean finished;   // after the close delimiter
+    private String name;
+    private String filename;
+    private String contentType;
+
+    private final InputStream body = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return readBody(b, off, len);
+        }
+    };
+
+    MultipartReader(InputStream in, String boundary, int bufferSize) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(ISO_8859_1);
+        this.buf = new byte[Math.max(bufferSize, 2 * delimiter.length + 4)];
+        // the first delimiter isn't preceded by a line break, pretend the (empty) preamble ends with one
+        buf[0] = '\r';
+        buf[1] = '\n';
+        limit = 2;
+        inBody = true;
+    }
+
+    /**
+     * The boundary parameter of a multipart Content-Type header, or null if there's none.
+     */
+    static String boundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.US).startsWith("multipart/")) {
+            return null;
+        }
+        return parameter(contentType, "boundary");
+    }
+
+    /**
+     * Advances to the next part, skipping the rest of the current one (or the preamble).
+     * Returns false after the last part.
+     */
+    boolean next() throws IOException {
+        if (finished) {
+            return false;
+        }
+        while (inBody) {
+            if (readBody(buf, 0, 0) < 0) {
+                break;
+            }
+        }
+        fill(2);
+        if (limit - pos >= 2 && buf[pos] == '-' && buf[pos + 1] == '-') {
+            finished = true;
+            return false;
+        }
+        readLine();   // the rest of the delimiter line (transport padding)
+
+        name = null;
+        filename = null;
+        contentType = null;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                throw new IOException("Malformed part header: " + line);
+            }
+            String header = line.substring(0, colon).trim().toLowerCase(Locale.US);
+            String value = line.substring(colon + 1).trim();
+            if (header.equals("content-disposition")) {
+                name = parameter(value, "name");
+                filename = parameter(value, "filename");
+            } else if (header.equals("content-type")) {
+                contentType = value;
+            }
+        }
+        inBody = true;
+        return true;
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * The filename parameter of the part, or null if it's not a file.
+     */
+    String filename() {
+        return filename;
+    }
+
+    String contentType() {
+        return contentType;
+    }
+
+    /**
+     * The body of the current part, valid until next().
+     */
+    InputStream body() {
+        return body;
+    }
+
+    /**
+     * Reads up to len bytes of the current body; with len 0, skips all of it.
+     * Returns -1 (and consumes the delimiter) at its end.
+     */
+    private int readBody(byte[] b, int off, int len) throws IOException {
+        while (inBody) {
+            fill(delimiter.length);
+            int match = indexOfDelimiter();
+            if (match == pos) {
+                pos += delimiter.length;
+                inBody = false;
+                return -1;
+            }
+            // bytes before a (possible) delimiter belong to the body
+            int end = match >= 0 ? match : Math.max(pos, limit - delimiter.length + 1);
+            if (end == pos) {
+                if (eof) {
+                    throw new IOException("Truncated multipart body");
+                }
+                continue;
+            }
+            if (len == 0) {
+                pos = end;
+                continue;
+            }
+            int n = Math.min(len, end - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        return -1;
+    }
+
+    private int indexOfDelimiter() {
+        byte first = delimiter[0];
+        for (int i = pos; i <= limit - delimiter.length; i++) {
+            if (buf[i] != first) {
+                continue;
+            }
+            int k = 1;
+            while (k < delimiter.length && buf[i + k] == delimiter[k]) {
+                k++;
+            }
+            if (k == delimiter.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads until at least n bytes are buffered (or the end of the input).
+     */
+    private void fill(int n) throws IOException {
+        if (limit - pos >= n || eof) {
+            return;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit < n) {
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                eof = true;
+                return;
+            }
+            limit += read;
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        while (true) {
+            if (pos == limit) {
+                fill(1);
+                if (pos == limit) {
+                    throw new IOException("Truncated multipart body");
+                }
+            }
+            byte b = buf[pos++];
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() == MAX_HEADER_LINE_LENGTH) {
+                throw new IOException("Part header too long");
+            }
+            line.append((char) (b & 0xff));
+        }
+    }
+
+    /**
+     * A parameter (quoted or not) of a header value like {@code form-data; name="x"}, or null.
+     */
+    private static String parameter(String value, String parameter) {
+        int i = value.indexOf(';');
+        while (i >= 0 && i < value.length()) {
+            int start = i + 1;
+            while (start < value.length() && value.charAt(start) == ' ') {
+                start++;
+            }
+            int equals = value.indexOf('=', start);
+            if (equals < 0) {
+                return null;
+            }
+            String key = value.substring(start, equals).trim();
+            String result;
+            int next;
+            if (equals + 1 < value.length() && value.charAt(equals + 1) == '"') {
+                int close = value.indexOf('"', equals + 2);
+                if (close < 0) {
+                    return null;
+                }
+                result = value.substring(equals + 2, close);
+                next = value.indexOf(';', close);
+            } else {
+                next = value.indexOf(';', equals);
+                result = value.substring(equals + 1, next < 0 ? value.length() : next).trim();
+            }
+            if (key.equalsIgnoreCase(parameter)) {
+                return result;
+            }
+            i = next;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,307 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Session-partitioned storage of CSV rows: $dir/$sessionId/$yyyy-MM-dd.csv, per local day of
+ * the rows' timestamps, rows appended as uploaded (i.e., byte-identical to the device's log).
+ *
+ * Scans are deduplicated by session ID and timestamp: a scan (its rows share the timestamp) is
+ * only stored if its session has none with that timestamp yet. The timestamps of a session are
+ * kept in memory while it's open, read back from its files when it's opened again.
+ *
+ * At most maxOpenSessions are open (with their files); the least recently used is closed when
+ * another one is opened. A Session must be used while synchronized on it.
+ */
+final class SessionStore {
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    private static final String EXTENSION = ".csv";
+
+    private final File directory;
+    private final int maxOpenSessions;
+    private final Metrics.Counter openedSessions;
+    private final Metrics.Counter storedScans;
+    private final Metrics.Counter storedRows;
+    private final Metrics.Counter duplicateScans;
+
+    private final LinkedHashMap<String, Session> sessions;
+
+    final class Session {
+        final String id;
+        private final File sessionDirectory;
+        private final LongSet timestamps = new LongSet();
+        private final Map<Long, OutputStream> days = new HashMap<Long, OutputStream>();
+        private boolean closed;
+
+        private Session(String id) throws IOException {
+            this.id = id;
+            this.sessionDirectory = new File(directory, fileName(id));
+            File[] files = sessionDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(EXTENSION)) {
+                        readTimestamps(file);
+                    }
+                }
+            }
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Whether a scan with this timestamp is new, in which case it's remembered.
+         */
+        boolean accept(long localTime) {
+            if (timestamps.add(localTime)) {
+                storedScans.increment();
+                return true;
+            }
+            duplicateScans.increment();
+            return false;
+        }
+
+        /**
+         * Appends a row of a scan accepted before.
+         */
+        void append(long localTime, ByteBuffer buffer, int start, int end) throws IOException {
+            long day = localTime >= 0 ? localTime / 86400000L : (localTime + 1) / 86400000L - 1;
+            OutputStream out = days.get(day);
+            if (out == null) {
+                if (!sessionDirectory.isDirectory() && !sessionDirectory.mkdirs()) {
+                    throw new IOException("Could not create " + sessionDirectory);
+                }
+                out = new BufferedOutputStream(new FileOutputStream(new File(sessionDirectory, dayName(day) + EXTENSION), true),
+                        OUTPUT_BUFFER_SIZE);
+                days.put(day, out);
+            }
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + start, end - start);
+            } else {
+                for (int i = start; i < end; i++) {
+                    out.write(buffer.get(i));
+                }
+            }
+            if (end == start || buffer.get(end - 1) != '\n') {
+                out.write('\n');
+            }
+            storedRows.increment();
+        }
+
+        /**
+         * Hands everything appended to the OS (no fsync), before the upload is acknowledged.
+         */
+        void flush() throws IOException {
+            for (OutputStream out : days.values()) {
+                out.flush();
+            }
+        }
+
+        private void close() throws IOException {
+            closed = true;
+            IOException failure = null;
+            for (OutputStream out : days.values()) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            days.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void readTimestamps(File file) throws IOException {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+                new CsvLogParser().parse(buffer, new CsvLogParser.Handler() {
+                    @Override
+                    public void onRow(CsvLogParser.Row row) {
+                        timestamps.add(row.localTime);
+                    }
+                });
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    SessionStore(File directory, int maxOpenSessions, Metrics metrics) {
+        this.directory = directory;
+        this.maxOpenSessions = maxOpenSessions;
+        this.sessions = new LinkedHashMap<String, Session>(16, 0.75f, true);
+        openedSessions = metrics.counter("opened_sessions");
+        storedScans    = metrics.counter("stored_scans");
+        storedRows     = metrics.counter("stored_rows");
+        duplicateScans = metrics.counter("duplicate_scans");
+    }
+
+    /**
+     * The open session with that ID, opening it if needed. Check isClosed() after synchronizing
+     * on it: it may have been closed in between, then just get it again.
+     */
+    Session session(String id) throws IOException {
+        List<Session> evicted = null;
+        Session session;
+        synchronized (sessions) {
+            session = sessions.get(id);
+            if (session == null) {
+                session = new Session(id);
+                sessions.put(id, session);
+                openedSessions.increment();
+                Iterator<Session> it = sessions.values().iterator();
+                while (sessions.size() > maxOpenSessions && it.hasNext()) {
+                    if (evicted == null) {
+                        evicted = new ArrayList<Session>();
+                    }
+                    evicted.add(it.next());
+                    it.remove();
+                }
+            }
+        }
+        if (evicted != null) {
+            for (Session old : evicted) {
+                synchronized (old) {
+                    old.close();
+                }
+            }
+        }
+        return session;
+    }
+
+    void close() throws IOException {
+        List<Session> all;
+        synchronized (sessions) {
+            all = new ArrayList<Session>(sessions.values());
+            sessions.clear();
+        }
+        for (Session session : all) {
+            synchronized (session) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * A file name for a session ID: letters, digits, '-' and '_' are kept, anything else escaped.
+     */
+    static String fileName(String id) {
+        StringBuilder sb = new StringBuilder(id.length() + 8);
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_') {
+                sb.append(c);
+            } else {
+                sb.append('%').append(String.format("%04x", (int) c));
+            }
+        }
+        return sb.length() == 0 ? "%" : sb.toString();
+    }
+
+    /**
+     * yyyy-MM-dd of a day since 1970-01-01 (see CsvLogParser.daysFromCivil()).
+     */
+    static String dayName(long day) {
+        // civil from days, H. Hinnant's algorithm
+        long z = day + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long d = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long m = mp < 10 ? mp + 3 : mp - 9;
+        long y = yearOfEra + era * 400 + (m <= 2 ? 1 : 0);
+        char[] name = new char[10];
+        put(name, 0, y, 4);
+        name[4] = '-';
+        put(name, 5, m, 2);
+        name[7] = '-';
+        put(name, 8, d, 2);
+        return new String(name);
+    }
+
+    private static void put(char[] chars, int offset, long value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /*
+     * Open-addressing set of longs (linear probing), about 16 bytes per element.
+     */
+    private static final class LongSet {
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        private long[] values = newTable(64);
+        private int size;
+        private boolean containsEmpty;
+
+        boolean add(long value) {
+            if (value == EMPTY) {
+                boolean added = !containsEmpty;
+                containsEmpty = true;
+                return added;
+            }
+            if ((size + 1) * 2 > values.length) {
+                rehash(values.length * 2);
+            }
+            int mask = values.length - 1;
+            int i = hash(value) & mask;
+            while (values[i] != EMPTY) {
+                if (values[i] == value) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            values[i] = value;
+            size++;
+            return true;
+        }
+
+        private void rehash(int capacity) {
+            long[] old = values;
+            values = newTable(capacity);
+            int mask = capacity - 1;
+            for (long value : old) {
+                if (value != EMPTY) {
+                    int i = hash(value) & mask;
+                    while (values[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    values[i] = value;
+                }
+            }
+        }
+
+        private static long[] newTable(int capacity) {
+            long[] table = new long[capacity];
+            Arrays.fill(table, EMPTY);
+            return table;
+        }
+
+        private static int hash(long value) {
+            long h = value * 0x9e3779b97f4a7c15L;
+            return (int) (h ^ h >>> 32);
+        }
+    }
+}
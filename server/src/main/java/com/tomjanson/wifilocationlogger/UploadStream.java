@@ -0,0 +1,372 @@
+package com.tomjanson.wifilocationlogger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+
+/*
+ * The uploaded content of one log file (one upload id), fed part by part, in order of offset:
+ * UploadEngine sends the chunks of a file at increasing offsets, resending a request that failed.
+ *
+ * Chunks are cut at arbitrary bytes, so rows are parsed from the content as it streams in,
+ * in blocks, up to the last line break followed by a row start; the rest (usually part of a
+ * row) is carried over to the next block, or the next chunk. Rows are stored by SessionStore,
+ * where scans already stored (e.g. by a resent file) are dropped.
+ *
+ * - content before the expected offset (a resent chunk) is skipped
+ * - after a gap (a chunk never received), rows resume at the next row start
+ * - compact logs (MAGIC at offset 0) aren't parsed, but stored as uploaded, in $raw/$uploadId.wlb
+ *
+ * The state (expected offset, carried bytes, last scan) is saved to $dir/$uploadId when the
+ * request is done, so the next chunk may come much later, to any server instance. Use while
+ * synchronized on the stream.
+ */
+final class UploadStream {
+    private static final int STATE_VERSION = 1;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    // a "row" without a row start after it for this long is garbage
+    private static final int MAX_CARRY = 1024 * 1024;
+
+    /*
+     * What the server counts (see IngestServer).
+     */
+    static final class Counters {
+        Metrics.Counter bytes;
+        Metrics.Counter duplicateBytes;
+        Metrics.Counter gaps;
+        Metrics.Counter rows;
+        Metrics.Counter malformedRows;
+        Metrics.Counter rawBytes;
+    }
+
+    private static final class StoreException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StoreException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    final String id;
+    private final File stateFile;
+    private final File rawFile;
+    private final SessionStore store;
+    private final Counters counters;
+
+    // persistent state
+    private long expectedOffset;
+    private boolean raw;
+    private boolean resync;
+    private byte[] lastSession = new byte[0];
+    private long lastTime = Long.MIN_VALUE;
+    private boolean lastAccepted;
+    private byte[] pending = new byte[BLOCK_SIZE * 2];
+    private int pendingLength;   // carried bytes, then the block being parsed
+
+    private boolean loaded;
+    int users;   // guarded by IngestServer's stream map
+
+    private final CsvLogParser parser = new CsvLogParser();
+    private SessionStore.Session session;
+    private Set<SessionStore.Session> touched;
+
+    private static final CsvLogParser.Handler IGNORE_ROWS = new CsvLogParser.Handler() {
+        @Override
+        public void onRow(CsvLogParser.Row row) {
+        }
+    };
+
+    private final CsvLogParser.Handler storeRows = new CsvLogParser.Handler() {
+        @Override
+        public void onRow(CsvLogParser.Row row) {
+            try {
+                store(row);
+            } catch (IOException e) {
+                throw new StoreException(e);
+            }
+        }
+    };
+
+    /**
+     * A stream whose state is kept in {@code stateDirectory} (or nowhere, if null, for content
+     * uploaded as a whole).
+     */
+    UploadStream(String id, File stateDirectory, File rawDirectory, SessionStore store, Counters counters) {
+        this.id = id;
+        this.stateFile = stateDirectory == null ? null : new File(stateDirectory, SessionStore.fileName(id));
+        this.rawFile = new File(rawDirectory, SessionStore.fileName(id) + "." + CompactLogFormat.FILE_EXTENSION);
+        this.store = store;
+        this.counters = counters;
+    }
+
+    /**
+     * Parses and stores the content of a part, starting at {@code offset} of the file;
+     * sessions written to are added to {@code touched} (to be flushed).
+     *
+     * @param last whether the content ends the file (a whole file), or more may follow
+     */
+    void write(InputStream content, long offset, boolean last, Set<SessionStore.Session> touched) throws IOException {
+        this.touched = touched;
+        load();
+        if (offset > expectedOffset) {
+            counters.gaps.increment();
+            pendingLength = 0;
+            resync = true;
+            lastTime = Long.MIN_VALUE;
+            expectedOffset = offset;
+        }
+        long skip = expectedOffset - offset;
+        while (skip > 0) {
+            long n = content.skip(skip);
+            if (n <= 0) {
+                if (content.read() < 0) {
+                    counters.duplicateBytes.add(expectedOffset - offset - skip);
+                    return;
+                }
+                n = 1;
+            }
+            skip -= n;
+        }
+        counters.duplicateBytes.add(expectedOffset - offset);
+
+        try {
+            int n;
+            while ((n = readBlock(content)) > 0) {
+                counters.bytes.add(n);
+                if (expectedOffset == 0 && pendingLength >= CompactLogFormat.MAGIC.length && isCompact()) {
+                    raw = true;
+                }
+                if (raw) {
+                    appendRaw(expectedOffset, pending, pendingLength - n, n);
+                    pendingLength = 0;
+                } else {
+                    parseBlock(false);
+                }
+                expectedOffset += n;
+            }
+            if (!raw && !resync && (last || isCompleteRows())) {
+                parseBlock(true);
+            }
+        } catch (StoreException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Saves the state, after the stored rows have been flushed.
+     */
+    void save() throws IOException {
+        if (stateFile == null || !loaded) {
+            return;
+        }
+        File temp = new File(stateFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeInt(STATE_VERSION);
+            out.writeLong(expectedOffset);
+            out.writeBoolean(raw);
+            out.writeBoolean(resync);
+            out.writeInt(lastSession.length);
+            out.write(lastSession);
+            out.writeLong(lastTime);
+            out.writeBoolean(lastAccepted);
+            out.writeInt(pendingLength);
+            out.write(pending, 0, pendingLength);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(stateFile)) {
+            throw new IOException("Could not rename " + temp + " to " + stateFile);
+        }
+    }
+
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (stateFile == null || !stateFile.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(stateFile));
+        try {
+            if (in.readInt() != STATE_VERSION) {
+                throw new IOException("Unsupported upload state " + stateFile);
+            }
+            expectedOffset = in.readLong();
+            raw = in.readBoolean();
+            resync = in.readBoolean();
+            lastSession = new byte[in.readInt()];
+            in.readFully(lastSession);
+            lastTime = in.readLong();
+            lastAccepted = in.readBoolean();
+            pendingLength = in.readInt();
+            ensureCapacity(pendingLength + BLOCK_SIZE);
+            in.readFully(pending, 0, pendingLength);
+        } catch (EOFException e) {
+            throw new IOException("Truncated upload state " + stateFile, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads up to BLOCK_SIZE bytes of content after the pending bytes; returns how many.
+     */
+    private int readBlock(InputStream content) throws IOException {
+        ensureCapacity(pendingLength + BLOCK_SIZE);
+        int n = 0;
+        while (n < BLOCK_SIZE) {
+            int read = content.read(pending, pendingLength + n, BLOCK_SIZE - n);
+            if (read < 0) {
+                break;
+            }
+            n += read;
+        }
+        pendingLength += n;
+        return n;
+    }
+
+    /**
+     * Parses the complete rows of the pending bytes and keeps the rest; at the end of the
+     * content, everything.
+     */
+    private void parseBlock(boolean end) {
+        ByteBuffer buffer = ByteBuffer.wrap(pending, 0, pendingLength);
+        int start = 0;
+        if (resync) {
+            start = nextRowStart(buffer, 0);
+            if (start < 0) {
+                // no row start yet; keep the tail, which may be the beginning of one
+                dropPending(end ? pendingLength : Math.max(0, pendingLength - CsvLogParser.TIMESTAMP_LENGTH - 1));
+                return;
+            }
+            resync = false;
+        }
+        int cut = end ? pendingLength : lastRowEnd(buffer, start);
+        if (cut > start) {
+            buffer.limit(cut).position(start);
+            long malformed = parser.malformedRows();
+            parser.parse(buffer, storeRows);
+            counters.malformedRows.add(parser.malformedRows() - malformed);
+            start = cut;
+        }
+        dropPending(start);
+        if (pendingLength > MAX_CARRY) {
+            counters.malformedRows.increment();
+            pendingLength = 0;
+            resync = true;
+        }
+    }
+
+    /**
+     * Whether the pending bytes are rows without anything missing at the end, as it's usual for
+     * the end of a chunk, so they can be stored right away.
+     */
+    private boolean isCompleteRows() {
+        if (pendingLength == 0 || pending[pendingLength - 1] != '\n') {
+            return false;
+        }
+        long malformed = parser.malformedRows();
+        parser.parse(ByteBuffer.wrap(pending, 0, pendingLength), IGNORE_ROWS);
+        return parser.malformedRows() == malformed;
+    }
+
+    /**
+     * The end of the last row that is followed by the start of another one, or {@code start}.
+     */
+    private static int lastRowEnd(ByteBuffer buffer, int start) {
+        for (int i = buffer.limit() - 1; i > start; i--) {
+            if (buffer.get(i - 1) == '\n' && CsvLogParser.isRowStart(buffer, i)) {
+                return i;
+            }
+        }
+        return start;
+    }
+
+    private static int nextRowStart(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if ((i == 0 || buffer.get(i - 1) == '\n') && CsvLogParser.isRowStart(buffer, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void dropPending(int n) {
+        System.arraycopy(pending, n, pending, 0, pendingLength - n);
+        pendingLength -= n;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (pending.length < capacity) {
+            pending = Arrays.copyOf(pending, Math.max(capacity, pending.length * 2));
+        }
+    }
+
+    private boolean isCompact() {
+        for (int i = 0; i < CompactLogFormat.MAGIC.length; i++) {
+            if (pending[i] != CompactLogFormat.MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendRaw(long offset, byte[] bytes, int start, int length) throws IOException {
+        File directory = rawFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        RandomAccessFile out = new RandomAccessFile(rawFile, "rw");
+        try {
+            out.seek(offset);
+            out.write(bytes, start, length);
+        } finally {
+            out.close();
+        }
+        counters.rawBytes.add(length);
+    }
+
+    /**
+     * Stores a row unless its scan (session ID and timestamp) was stored before.
+     */
+    private void store(CsvLogParser.Row row) throws IOException {
+        counters.rows.increment();
+        boolean sameSession = row.equals(row.sessionStart, row.sessionEnd, lastSession);
+        boolean newScan = !sameSession || row.localTime != lastTime;
+        if (!sameSession) {
+            lastSession = row.bytes(row.sessionStart, row.sessionEnd);
+            session = null;
+        }
+        while (true) {
+            if (session == null) {
+                session = store.session(CsvLogParser.decode(lastSession, row.sessionQuoted));
+            }
+            synchronized (session) {
+                if (session.isClosed()) {
+                    session = null;
+                    continue;
+                }
+                if (newScan) {
+                    lastAccepted = session.accept(row.localTime);
+                    lastTime = row.localTime;
+                }
+                if (lastAccepted) {
+                    session.append(row.localTime, row.buffer, row.start, row.end);
+                    touched.add(session);
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+import static com.tomjanson.wifilocationlogger.UploadFixture.BASE_NAME;
+import static com.tomjanson.wifilocationlogger.UploadFixture.SECRET;
+import static com.tomjanson.wifilocationlogger.UploadFixture.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ * UploadEngine against IngestServer, with a relay in between to make requests fail.
+ */
+public class UploadEngineTest {
+    private static final int CHUNK_SIZE = 4096;
+    private static final int BATCH_SIZE = 2 * CHUNK_SIZE;
+
+    @Rule
+    public UploadFixture fixture = new UploadFixture();
+
+    @Test
+    public void resumesWithTheRequestThatFailed() throws IOException {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 300);
+        fixture.relay.plan(UploadFixture.Relay.FORWARD, UploadFixture.Relay.FORWARD, 503);
+
+        UploadEngine engine = engine(SECRET);
+        try {
+            engine.run();
+            fail("Upload should have failed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("503"));
+        }
+        assertEquals(2 * BATCH_SIZE, engine.bytesRead());
+        assertEquals(log.length() - 2 * BATCH_SIZE, engine.pendingBytes());
+        assertEquals(2 * BATCH_SIZE, cursorOffset(log));
+        byte[] stored = fixture.stored();
+        assertTrue(stored.length > 0);
+        assertArrayEquals(Arrays.copyOf(read(log), stored.length), stored);
+
+        engine.run();
+        assertEquals(log.length() - 2 * BATCH_SIZE, engine.bytesRead());
+        assertEquals(0, engine.pendingBytes());
+        assertEquals(log.length(), cursorOffset(log));
+        assertArrayEquals(read(log), fixture.stored());
+        assertEquals((log.length() + BATCH_SIZE - 1) / BATCH_SIZE + 1, fixture.relay.requests);
+    }
+
+    @Test
+    public void cursorsArePersisted() throws IOException {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 100);
+        engine(SECRET).run();
+
+        Properties cursors = fixture.cursors();
+        assertEquals(1, cursors.size());
+        String cursor = cursors.getProperty(engine(SECRET).key(log, log.length()));
+        assertTrue(cursor, cursor.matches("[0-9a-f-]{36} " + log.length()));
+
+        // as after a restart of the app
+        UploadEngine engine = engine(SECRET);
+        engine.run();
+        assertEquals(0, engine.requestsSent());
+        assertEquals(0, engine.bytesRead());
+
+        long length = log.length();
+        fixture.appendScans(log, 50);
+        engine = engine(SECRET);
+        engine.run();
+        assertEquals(log.length() - length, engine.bytesRead());
+        String uploadId = cursor.substring(0, cursor.indexOf(' '));
+        assertTrue(fixture.cursors().getProperty(engine.key(log, log.length())).startsWith(uploadId + " "));
+        assertArrayEquals(read(log), fixture.stored());
+    }
+
+    @Test
+    public void malformedCursorsAreIgnored() throws IOException {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 100);
+        Properties cursors = new Properties();
+        cursors.setProperty(engine(SECRET).key(log, log.length()), "truncated");
+        OutputStream out = new FileOutputStream(new File(fixture.logDirectory, UploadEngine.CURSOR_FILE));
+        try {
+            cursors.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        UploadEngine engine = engine(SECRET);
+        engine.run();
+        assertEquals(log.length(), engine.bytesRead());
+        assertArrayEquals(read(log), fixture.stored());
+        assertEquals(log.length(), cursorOffset(log));
+    }
+
+    @Test
+    public void rolledFilesAreNotUploadedAgain() throws IOException {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 100);
+        UploadEngine engine = engine(SECRET);
+        engine.run();
+
+        // ScanBatchWriter rolls the file over after some more scans
+        long length = log.length();
+        fixture.appendScans(log, 20);
+        File rolled = new File(fixture.logDirectory, BASE_NAME + ".2015-01-01.csv");
+        assertTrue(log.renameTo(rolled));
+        fixture.appendScans(log, 30);
+        engine.run();
+        assertEquals(rolled.length() - length + log.length(), engine.bytesRead());
+        assertArrayEquals(concat(read(rolled), read(log)), fixture.stored());
+
+        // and LogCompactor gzips the rolled file
+        File compressed = new File(fixture.logDirectory, rolled.getName() + UploadEngine.GZIP_EXTENSION);
+        gzip(rolled, compressed);
+        assertTrue(rolled.delete());
+        engine.run();
+        assertEquals(0, engine.requestsSent());
+        assertEquals(0, engine.pendingBytes());
+    }
+
+    @Test
+    public void debugLogsAreNotUploaded() throws IOException {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 10);
+        File trace = new File(fixture.logDirectory, BASE_NAME + ".trace.txt");
+        fixture.appendScans(trace, 10);
+
+        UploadEngine engine = engine(SECRET);
+        assertArrayEquals(new File[] { log }, engine.logFiles());
+        engine.run();
+        assertEquals(log.length(), engine.bytesRead());
+    }
+
+    @Test
+    public void wrongSecretIsForbidden() throws IOException {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 100);
+
+        UploadEngine engine = engine("wrong");
+        try {
+            engine.run();
+            fail("Upload should have been rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("403"));
+        }
+        assertFalse(new File(fixture.logDirectory, UploadEngine.CURSOR_FILE).exists());
+        assertEquals(log.length(), engine.pendingBytes());
+        assertEquals(0, fixture.stored().length);
+    }
+
+    @Test
+    public void malformedRequestIsResent() throws IOException {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 100);
+        fixture.relay.plan(UploadFixture.Relay.TRUNCATE);
+
+        UploadEngine engine = engine(SECRET);
+        try {
+            engine.run();
+            fail("Upload should have been rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("400"));
+        }
+        assertFalse(new File(fixture.logDirectory, UploadEngine.CURSOR_FILE).exists());
+
+        engine.run();
+        assertEquals(log.length(), engine.bytesRead());
+        assertArrayEquals(read(log), fixture.stored());
+    }
+
+    private UploadEngine engine(String secret) {
+        return fixture.engine(secret, CHUNK_SIZE, BATCH_SIZE);
+    }
+
+    private long cursorOffset(File log) throws IOException {
+        String cursor = fixture.cursors().getProperty(engine(SECRET).key(log, log.length()));
+        return Long.parseLong(cursor.substring(cursor.indexOf(' ') + 1));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static void gzip(File from, File to) throws IOException {
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(to));
+        try {
+            out.write(read(from));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.tomjanson.wifilocationlogger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.TimeZone;
+
+/*
+ * An IngestServer (in a temporary directory) with a Relay in front of it, and a log directory
+ * for the app's side, for the tests of the uploads.
+ */
+final class UploadFixture extends ExternalResource {
+    static final String SECRET = "s3cret";
+    static final String SESSION = "0f8fad5b-d9cb-469f-a165-70867728950e";
+    static final String BASE_NAME = "wifilog";
+    // 2015-01-01 08:00:00 UTC, so that all rows of a test are stored to the same day
+    private static final long START_TIME = 1420099200000L;
+
+    private final TemporaryFolder folder = new TemporaryFolder();
+    File logDirectory;
+    private File ingestDirectory;
+    private IngestServer server;
+    Relay relay;
+    private int scans;
+
+    @Override
+    protected void before() throws IOException {
+        folder.create();
+        logDirectory = folder.newFolder("logs");
+        ingestDirectory = folder.newFolder("ingest");
+        server = new IngestServer();
+        server.parseArguments(new String[] {
+                "--port", "0", "--out", ingestDirectory.getPath(), "--secret", SECRET, "--workers", "2" });
+        server.start();
+        relay = new Relay("http://localhost:" + server.port() + "/");
+    }
+
+    @Override
+    protected void after() {
+        relay.stop();
+        try {
+            server.stop();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            folder.delete();
+        }
+    }
+
+    /**
+     * An engine uploading the log directory through the relay.
+     */
+    UploadEngine engine(String secret, int chunkSize, int batchSize) {
+        return new UploadEngine(logDirectory, BASE_NAME, relay.url(), secret, chunkSize, batchSize);
+    }
+
+    /**
+     * Appends scans of one wifi each, a second apart, as ScanBatchWriter writes them.
+     */
+    void appendScans(File file, int count) throws IOException {
+        CsvRecordEncoder encoder = new CsvRecordEncoder("Nexus 5", TimeZone.getTimeZone("UTC"));
+        encoder.beginSession(SESSION);
+        ScanBatch batch = new ScanBatch();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++, scans++) {
+            batch.clear();
+            batch.timeMillis = START_TIME + scans * 1000L;
+            batch.latitude = 52.5 + scans * 1e-5;
+            batch.longitude = 13.4;
+            batch.accuracy = 10;
+            batch.filter = "";
+            batch.add("wifi " + scans % 7, "00:11:22:33:44:" + (10 + scans % 90), -40 - scans % 50, 6);
+            encoder.appendBatch(batch, sb);
+        }
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(sb.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The rows IngestServer stored (of the day all scans are from).
+     */
+    byte[] stored() throws IOException {
+        File day = new File(new File(new File(ingestDirectory, "sessions"), SessionStore.fileName(SESSION)), "2015-01-01.csv");
+        // written to the OS before the response, but closed only when the server stops
+        return day.exists() ? read(day) : new byte[0];
+    }
+
+    Properties cursors() throws IOException {
+        Properties cursors = new Properties();
+        InputStream in = new FileInputStream(new File(logDirectory, UploadEngine.CURSOR_FILE));
+        try {
+            cursors.load(in);
+        } finally {
+            in.close();
+        }
+        return cursors;
+    }
+
+    static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /*
+     * Passes requests on to a server, or fails them as planned: FORWARD, TRUNCATE (forwards the
+     * first half of the body only) or an HTTP status to respond with. Unplanned requests are
+     * forwarded.
+     */
+    static final class Relay {
+        static final int FORWARD = 0;
+        static final int TRUNCATE = -1;
+
+        private final String target;
+        private final HttpServer server;
+        private final Queue<Integer> plan = new ArrayDeque<Integer>();   // guarded by this
+        volatile int requests;
+
+        Relay(String target) throws IOException {
+            this.target = target;
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 16);
+            server.createContext("/", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    try {
+                        relay(exchange);
+                    } finally {
+                        exchange.close();
+                    }
+                }
+            });
+            server.start();
+        }
+
+        String url() {
+            return "http://localhost:" + server.getAddress().getPort() + "/";
+        }
+
+        synchronized void plan(Integer... actions) {
+            plan.addAll(Arrays.asList(actions));
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        private void relay(HttpExchange exchange) throws IOException {
+            requests++;
+            byte[] body = readAll(exchange.getRequestBody());
+            Integer action;
+            synchronized (this) {
+                action = plan.poll();
+            }
+            if (action != null && action > 0) {
+                respond(exchange, action, "Planned failure\n".getBytes("UTF-8"));
+                return;
+            }
+            if (action != null && action == TRUNCATE) {
+                body = Arrays.copyOf(body, body.length / 2);
+            }
+
+            HttpURLConnection connection = (HttpURLConnection) new URL(target).openConnection();
+            try {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                connection.setRequestProperty("Content-Type", exchange.getRequestHeaders().getFirst("Content-Type"));
+                OutputStream out = connection.getOutputStream();
+                out.write(body);
+                out.close();
+                int status = connection.getResponseCode();
+                InputStream in = status / 100 == 2 ? connection.getInputStream() : connection.getErrorStream();
+                respond(exchange, status, in == null ? new byte[0] : readAll(in));
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+}
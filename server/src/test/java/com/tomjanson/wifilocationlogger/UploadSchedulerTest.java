@@ -0,0 +1,152 @@
+package com.tomjanson.wifilocationlogger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.tomjanson.wifilocationlogger.UploadFixture.BASE_NAME;
+import static com.tomjanson.wifilocationlogger.UploadFixture.SECRET;
+import static com.tomjanson.wifilocationlogger.UploadFixture.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * UploadScheduler against IngestServer: retries, deferred and requested uploads.
+ */
+public class UploadSchedulerTest {
+    private static final long INTERVAL_MILLIS = 3600 * 1000;
+    private static final long MIN_BACKOFF_MILLIS = 20;
+    private static final long MAX_BACKOFF_MILLIS = 100;
+
+    @Rule
+    public UploadFixture fixture = new UploadFixture();
+
+    private final Metrics metrics = new Metrics();
+    private final BlockingQueue<String> finished = new LinkedBlockingQueue<String>();
+    private volatile boolean canUpload = true;
+    private UploadScheduler scheduler;
+
+    @After
+    public void stopScheduler() {
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void retriesWithBackoffUntilTheUploadSucceeds() throws Exception {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 200);
+        fixture.relay.plan(503, 503);
+
+        startScheduler();
+        assertEquals("failed", nextUpload());
+        assertEquals("failed", nextUpload());
+        assertEquals("succeeded", nextUpload());
+        assertArrayEquals(read(log), fixture.stored());
+        assertEquals(3, metrics.counter("uploads").total());
+        assertEquals(2, metrics.counter("upload_failures").total());
+        assertEquals(log.length(), metrics.counter("upload_bytes").total());
+        assertEquals(0, scheduler.queuedBytes());
+    }
+
+    @Test
+    public void defersUploadsUntilConditionsAllow() throws Exception {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 200);
+        canUpload = false;
+
+        startScheduler();
+        awaitUploadThread();
+        assertEquals(0, fixture.relay.requests);
+        assertEquals(0, metrics.counter("uploads").total());
+
+        canUpload = true;
+        scheduler.onConditionsChanged();
+        assertEquals("succeeded", nextUpload());
+        assertArrayEquals(read(log), fixture.stored());
+    }
+
+    @Test
+    public void requestedUploadsIgnoreConditions() throws Exception {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 200);
+        canUpload = false;
+
+        startScheduler();
+        scheduler.uploadNow();
+        assertEquals("succeeded as requested", nextUpload());
+        assertArrayEquals(read(log), fixture.stored());
+
+        // conditions changing doesn't upload again, since nothing's deferred anymore
+        scheduler.onConditionsChanged();
+        awaitUploadThread();
+        assertEquals(1, metrics.counter("uploads").total());
+    }
+
+    @Test
+    public void retriesAfterUnexpectedExceptions() throws Exception {
+        File log = new File(fixture.logDirectory, BASE_NAME + ".csv");
+        fixture.appendScans(log, 200);
+        UploadEngine engine = fixture.engine(SECRET, 4096, 8192);
+        String url = fixture.relay.url();
+        // HttpURLConnection throws IllegalArgumentException, not an IOException
+        engine.setUrl("http://localhost:99999/");
+
+        startScheduler(engine);
+        assertEquals("failed", nextUpload());
+        engine.setUrl(url);
+        assertEquals("succeeded", nextUpload());
+        assertArrayEquals(read(log), fixture.stored());
+        assertEquals(1, metrics.counter("upload_failures").total());
+    }
+
+    private void startScheduler() {
+        startScheduler(fixture.engine(SECRET, 4096, 8192));
+    }
+
+    private void startScheduler(UploadEngine engine) {
+        scheduler = new UploadScheduler(engine,
+                new UploadScheduler.Conditions() {
+                    @Override
+                    public boolean canUpload() {
+                        return canUpload;
+                    }
+                },
+                new UploadScheduler.Listener() {
+                    @Override
+                    public void onUploadFinished(boolean success, boolean requested) {
+                        finished.add((success ? "succeeded" : "failed") + (requested ? " as requested" : ""));
+                    }
+                },
+                INTERVAL_MILLIS, MIN_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS, metrics);
+        scheduler.start();
+    }
+
+    private String nextUpload() throws InterruptedException {
+        String result = finished.poll(10, TimeUnit.SECONDS);
+        assertTrue("No upload finished", result != null);
+        return result;
+    }
+
+    /**
+     * Waits for the tasks queued on the upload thread so far.
+     */
+    private void awaitUploadThread() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.runOnUploadThread(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}